@@ -1,15 +1,28 @@
 package nablarch.common.web.session;
 
+import nablarch.common.web.session.store.DatabaseClock;
+import nablarch.common.web.session.store.DbAccessLimiter;
+import nablarch.common.web.session.store.SessionChangeLog;
+import nablarch.common.web.session.store.SessionChangeLogSchema;
+import nablarch.common.web.session.store.SessionChangeType;
+import nablarch.common.web.session.store.SessionIdFilter;
+import nablarch.common.web.session.store.SessionIdKey;
+import nablarch.common.web.session.store.SessionStorageRoute;
+import nablarch.common.web.session.store.SlowOperationLogger;
 import nablarch.common.web.session.store.UserSessionSchema;
+import nablarch.common.web.session.store.UserSessionTableInspector;
 import nablarch.core.db.connection.AppDbConnection;
 import nablarch.core.db.statement.SqlPStatement;
 import nablarch.core.db.statement.SqlResultSet;
+import nablarch.core.db.statement.exception.DuplicateStatementException;
 import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
 import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.core.date.SystemTimeUtil;
 import nablarch.core.repository.initialization.Initializable;
 import nablarch.fw.ExecutionContext;
 
 import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * DBを使用した{@link Expiration}実装クラス。
@@ -35,9 +48,39 @@ public class DbManagedExpiration implements Expiration, Initializable {
     /** 有効期限の件数を取得するSQL */
     private String countUserSessionSql;
 
+    /** DBアクセスの同時実行数の制限(設定されていない場合は制限しない) */
+    private DbAccessLimiter dbAccessLimiter;
+
+    /** 存在しないセッションIDを判定するフィルタ(設定されていない場合は常にDBにアクセスする) */
+    private SessionIdFilter sessionIdFilter;
+
+    /** 初期化時のウォームアップでコネクションを取得する回数(0の場合はウォームアップを行わない) */
+    private int warmUpConnections = 0;
+
+    /** 初期化時にユーザセッションテーブルの定義を検証するか否か */
+    private boolean validateSchema = false;
+
+    /** 有効期限の算出と判定に使用するデータベースの時計(設定されていない場合はアプリケーションの時刻を使用する) */
+    private DatabaseClock databaseClock;
+
+    /** 時間がかかった処理のログ出力(設定されていない場合は出力しない) */
+    private SlowOperationLogger slowOperationLogger;
+
+    /** セッション変更ログテーブルのスキーマ(設定されていない場合は変更ログを記録しない) */
+    private SessionChangeLogSchema changeLogSchema;
+
+    /** セッション変更ログテーブルへのアクセス(変更ログを記録しない場合は{@code null}) */
+    private SessionChangeLog changeLog;
+
+    /** 一意制約違反によりリトライした回数 */
+    private final AtomicLong duplicateRetryCount = new AtomicLong();
+
     /** 有効期限の件数エイリアス **/
     private static final String COUNT = "COUNT_";
 
+    /** 有効期限切れか否かのエイリアス **/
+    private static final String EXPIRED = "EXPIRED_";
+
     /**
      * DbManagerのインスタンスをセットする。
      *
@@ -56,86 +99,362 @@ public class DbManagedExpiration implements Expiration, Initializable {
         this.userSessionSchema = userSessionSchema;
     }
 
+    /**
+     * DBアクセスの同時実行数の制限をセットする。
+     * <p/>
+     * 設定されていない場合、同時実行数は制限しない。
+     *
+     * @param dbAccessLimiter DBアクセスの同時実行数の制限
+     */
+    public void setDbAccessLimiter(DbAccessLimiter dbAccessLimiter) {
+        this.dbAccessLimiter = dbAccessLimiter;
+    }
+
+    /**
+     * 存在しないセッションIDを判定するフィルタをセットする。
+     * <p/>
+     * フィルタに含まれないセッションIDは、DBにアクセスせずに有効期限の情報がないものとして扱う。
+     * このため、全てのセッションが本ノードで登録される環境でのみ使用できる(詳細は{@link SessionIdFilter}を参照)。
+     * 1つのユーザセッションテーブルから再構築するため、{@link RoutingDbManagedExpiration}で保存先を分ける場合は設定できない。
+     * 設定されていない場合は、常にDBにアクセスする。
+     *
+     * @param sessionIdFilter 存在しないセッションIDを判定するフィルタ
+     */
+    public void setSessionIdFilter(SessionIdFilter sessionIdFilter) {
+        this.sessionIdFilter = sessionIdFilter;
+    }
+
+    /**
+     * 初期化時のウォームアップでコネクションを取得する回数をセットする。
+     * <p/>
+     * 1以上を設定した場合、初期化時に指定した回数だけコネクションを1つずつ取得して全てのSQL文を準備する。
+     * 同時に保持するコネクションは1つだけのため、コネクションプールの最大数を超える値を設定しても待機は発生しない。
+     * デフォルトは0(ウォームアップを行わない)。
+     *
+     * @param warmUpConnections ウォームアップでコネクションを取得する回数
+     * @see UserSessionTableInspector#warmUp(SimpleDbTransactionManager, int, String...)
+     */
+    public void setWarmUpConnections(int warmUpConnections) {
+        this.warmUpConnections = warmUpConnections;
+    }
+
+    /**
+     * 初期化時にユーザセッションテーブルの定義を検証するか否かをセットする。
+     * <p/>
+     * {@code true}の場合、主キーと有効期限カラムの索引が存在することを検証し、
+     * 存在しない場合はWARNレベルでログに出力する。
+     * デフォルトは{@code false}。
+     *
+     * @param validateSchema ユーザセッションテーブルの定義を検証する場合は{@code true}
+     */
+    public void setValidateSchema(boolean validateSchema) {
+        this.validateSchema = validateSchema;
+    }
+
+    /**
+     * 有効期限の算出と判定に使用する{@link DatabaseClock}をセットする。
+     * <p/>
+     * 設定した場合、有効期限切れの判定はデータベースの現在日時で行い、
+     * 有効期限はデータベースの現在日時に残りの有効期間を加算した値で保存する。
+     * (残りの有効期間は、指定された有効期限とアプリケーションの時刻の差から求める)
+     * 有効期限バケットは指定された有効期限から算出するため、保存される有効期限と一致しないことがある。
+     * {@link nablarch.common.web.session.store.ExpiredSessionPurger}にも同じ{@link DatabaseClock}を設定すること。
+     * 設定されていない場合は、アプリケーションの時刻を使用する。
+     *
+     * @param databaseClock データベースの時計
+     */
+    public void setDatabaseClock(DatabaseClock databaseClock) {
+        this.databaseClock = databaseClock;
+    }
+
+    /**
+     * 時間がかかった処理をログに出力する{@link SlowOperationLogger}をセットする。
+     * <p/>
+     * 設定されていない場合は出力しない。
+     *
+     * @param slowOperationLogger 時間がかかった処理のログ出力
+     */
+    public void setSlowOperationLogger(SlowOperationLogger slowOperationLogger) {
+        this.slowOperationLogger = slowOperationLogger;
+    }
+
+    /**
+     * セッション変更ログテーブルのスキーマをセットする。
+     * <p/>
+     * 設定した場合、有効期限の保存と同じトランザクションで変更ログを追記する。
+     * {@link RoutingDbManagedExpiration}で保存先を分ける場合は、保存先ごとのデータベースの変更ログテーブルに記録する。
+     * 設定されていない場合は記録しない。
+     *
+     * @param changeLogSchema セッション変更ログテーブルのスキーマ
+     */
+    public void setChangeLogSchema(SessionChangeLogSchema changeLogSchema) {
+        this.changeLogSchema = changeLogSchema;
+    }
+
     @Override
     public boolean isExpired(final String sessionId, long currentDateTime, ExecutionContext context) {
-        SqlResultSet sessionRecords = new SimpleDbTransactionExecutor<SqlResultSet>(dbManager) {
-            @Override
-            public SqlResultSet execute(AppDbConnection connection) {
-                // 有効期限を取得する
-                SqlPStatement prepared = connection
-                        .prepareStatement(selectUserSessionSql);
-                prepared.setString(1, sessionId);
-                return prepared.retrieve();
-            }
-        }.doTransaction();
+        if (sessionIdFilter != null && !sessionIdFilter.mightContain(sessionId)) {
+            return true;
+        }
+        final SessionIdKey key = SessionIdKey.of(sessionId, userSessionSchema);
+        if (!key.isValid()) {
+            return true;
+        }
+        final SlowOperationLogger.Operation operation = startOperation("isExpired", sessionId)
+                .setSql(selectUserSessionSql);
+        SqlResultSet sessionRecords;
+        try {
+            sessionRecords = doTransaction(operation, new SimpleDbTransactionExecutor<SqlResultSet>(dbManager) {
+                @Override
+                public SqlResultSet execute(AppDbConnection connection) {
+                    // 有効期限を取得する
+                    SqlPStatement prepared = connection
+                            .prepareStatement(selectUserSessionSql);
+                    key.bind(prepared, 1);
+                    return prepared.retrieve();
+                }
+            });
+            operation.addRows(sessionRecords == null ? 0 : sessionRecords.size());
+        } finally {
+            operation.end();
+        }
 
         if (sessionRecords == null || sessionRecords.isEmpty()) {
             return true;
         }
+        if (databaseClock != null) {
+            return sessionRecords.get(0).getInteger(EXPIRED) == 1;
+        }
         long expiration = sessionRecords.get(0)
                 .getTimestamp(userSessionSchema.getExpirationDatetimeName()).getTime();
         return expiration < currentDateTime;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 新規のセッションに対して複数スレッドから同時に本処理が呼び出された場合、
+     * 登録処理(insert)が同時実行され片方の処理が一意制約違反となる。
+     * このため、一意制約違反が発生した場合には、1回だけリトライを実施する。
+     * <p>
+     * セッションIDをバイナリで保存する設定で、セッションIDがUUID形式でない場合は、
+     * 常に有効期限切れと判定するため保存しない。
+     */
     @Override
     public void saveExpirationDateTime(final String sessionId, final long expirationDateTime, ExecutionContext context) {
-        new SimpleDbTransactionExecutor<Void>(dbManager) {
+        final SessionIdKey key = SessionIdKey.of(sessionId, userSessionSchema);
+        if (!key.isValid()) {
+            return;
+        }
+        final SlowOperationLogger.Operation operation = startOperation("saveExpirationDateTime", sessionId)
+                .setSql(updateUserSessionSql);
+        try {
+            saveSessionExpiration(key, expirationDateTime, operation);
+        } catch (DuplicateStatementException e) {
+            // 一意制約違反発生時には、一度だけリトライを行う。
+            duplicateRetryCount.incrementAndGet();
+            operation.retried();
+            saveSessionExpiration(key, expirationDateTime, operation);
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * 一意制約違反によりリトライした回数を取得する。
+     *
+     * @return リトライした回数
+     */
+    public long getDuplicateRetryCount() {
+        return duplicateRetryCount.get();
+    }
+
+    /**
+     * 有効期限を保存する。
+     *
+     * @param key                セッションID
+     * @param expirationDateTime 有効期限
+     * @param operation          計測中の処理
+     */
+    private void saveSessionExpiration(final SessionIdKey key, final long expirationDateTime,
+                                       final SlowOperationLogger.Operation operation) {
+        doTransaction(operation, new SimpleDbTransactionExecutor<Void>(dbManager) {
             @Override
             public Void execute(AppDbConnection connection) {
                 // 更新処理を行い更新対象がない場合は登録処理を行う
-                int count = updateSessionExpiration(sessionId, expirationDateTime, connection);
+                int count = updateSessionExpiration(key, expirationDateTime, connection);
                 if (count == 0) {
-                    // 主キーとなるセッションIDはUUIDV4で払い出すため一意制約違反となることは考慮不要
-                    insertSessionExpiration(sessionId, expirationDateTime, connection);
+                    insertSessionExpiration(key, expirationDateTime, connection);
+                }
+                if (changeLog != null) {
+                    changeLog.append(key.getSessionId(), SessionChangeType.EXPIRATION, connection);
                 }
+                operation.addRows(1);
                 return null;
             }
-        }.doTransaction();
+        });
     }
 
     @Override
     public boolean isDeterminable(final String sessionId, ExecutionContext context) {
-        return new SimpleDbTransactionExecutor<Boolean>(dbManager) {
-            @Override
-            public Boolean execute(AppDbConnection connection) {
-                // 有効期限を取得する
-                SqlPStatement prepared = connection
-                        .prepareStatement(countUserSessionSql);
-                prepared.setString(1, sessionId);
-                return prepared.retrieve().get(0).getInteger(COUNT) > 0;
-            }
-        }.doTransaction();
+        if (sessionIdFilter != null && !sessionIdFilter.mightContain(sessionId)) {
+            return false;
+        }
+        final SessionIdKey key = SessionIdKey.of(sessionId, userSessionSchema);
+        if (!key.isValid()) {
+            return false;
+        }
+        final SlowOperationLogger.Operation operation = startOperation("isDeterminable", sessionId)
+                .setSql(countUserSessionSql);
+        try {
+            return doTransaction(operation, new SimpleDbTransactionExecutor<Boolean>(dbManager) {
+                @Override
+                public Boolean execute(AppDbConnection connection) {
+                    // 有効期限を取得する
+                    SqlPStatement prepared = connection
+                            .prepareStatement(countUserSessionSql);
+                    key.bind(prepared, 1);
+                    return prepared.retrieve().get(0).getInteger(COUNT) > 0;
+                }
+            });
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * トランザクションを実行する。
+     * <p/>
+     * DBアクセスの同時実行数の制限が設定されている場合は、その範囲内で実行する。
+     *
+     * @param executor 実行するトランザクション
+     * @param <T> トランザクションの実行結果の型
+     * @return トランザクションの実行結果
+     */
+    private <T> T doTransaction(SimpleDbTransactionExecutor<T> executor) {
+        if (dbAccessLimiter == null) {
+            return executor.doTransaction();
+        }
+        return dbAccessLimiter.doTransaction(executor);
+    }
+
+    /**
+     * コネクションの取得とトランザクション内の処理の時間を計測しながら、トランザクションを実行する。
+     *
+     * @param operation 計測中の処理
+     * @param executor 実行するトランザクション
+     * @param <T> トランザクションの実行結果の型
+     * @return トランザクションの実行結果
+     */
+    private <T> T doTransaction(SlowOperationLogger.Operation operation, SimpleDbTransactionExecutor<T> executor) {
+        return doTransaction(operation.wrap(dbManager, executor));
+    }
+
+    /**
+     * 保存先のユーザセッションテーブル(とデータベース)を使用する{@link DbManagedExpiration}を生成する。
+     * <p/>
+     * 本オブジェクトの設定を全て引き継ぎ、ユーザセッションテーブルとデータベースだけを保存先のものに置き換える。
+     * (設定を追加した場合は、本メソッドでも引き継ぐこと)
+     * 保存先は最初に使用した時点で生成されるため、ウォームアップは行わない。
+     *
+     * @param route セッションの保存先
+     * @return 初期化済みの{@link DbManagedExpiration}
+     * @throws IllegalStateException 保存先ごとに使用できない設定がされている場合
+     */
+    DbManagedExpiration copyFor(final SessionStorageRoute route) {
+        verifyRoutable();
+        final DbManagedExpiration expiration = new DbManagedExpiration();
+        expiration.setDbManager(route.getDbManager() == null ? dbManager : route.getDbManager());
+        expiration.setUserSessionSchema(route.getUserSessionSchema());
+        expiration.setDbAccessLimiter(dbAccessLimiter);
+        expiration.setValidateSchema(validateSchema);
+        expiration.setDatabaseClock(databaseClock);
+        expiration.setSlowOperationLogger(slowOperationLogger);
+        expiration.setChangeLogSchema(changeLogSchema);
+        expiration.initialize();
+        return expiration;
+    }
+
+    /**
+     * 保存先ごとに使用できない設定がされていないことを検証する。
+     * <p/>
+     * {@link SessionIdFilter}は1つのユーザセッションテーブルから再構築するため、保存先ごとには使用できない。
+     *
+     * @throws IllegalStateException 保存先ごとに使用できない設定がされている場合
+     */
+    void verifyRoutable() {
+        if (sessionIdFilter != null) {
+            throw new IllegalStateException("sessionIdFilter cannot be used with storageResolver.");
+        }
+    }
+
+    /**
+     * 処理の計測を開始する。
+     *
+     * @param operation 処理の種類
+     * @param sessionId セッションID
+     * @return 計測中の処理(ログを出力しない場合は{@link SlowOperationLogger.Operation#NONE})
+     */
+    private SlowOperationLogger.Operation startOperation(String operation, String sessionId) {
+        return slowOperationLogger == null
+                ? SlowOperationLogger.Operation.NONE
+                : slowOperationLogger.start(operation, sessionId);
     }
 
     /**
      * 有効期限を更新する。
      *
-     * @param sessionId          セッションID
+     * @param key                セッションID
      * @param expirationDateTime 有効期限
      * @param connection         {@link AppDbConnection}
      * @return 更新件数
      */
-    private int updateSessionExpiration(final String sessionId, final long expirationDateTime,
+    private int updateSessionExpiration(final SessionIdKey key, final long expirationDateTime,
                                         final AppDbConnection connection) {
         final SqlPStatement update = connection.prepareStatement(updateUserSessionSql);
-        update.setTimestamp(1, new Timestamp(expirationDateTime));
-        update.setString(2, sessionId);
+        final int index = bindExpiration(update, 1, expirationDateTime);
+        key.bind(update, index);
         return update.executeUpdate();
     }
 
     /**
      * 有効期限を挿入する。
      *
-     * @param sessionId          セッションID
+     * @param key                セッションID
      * @param expirationDateTime 有効期限
      * @param connection         {@link AppDbConnection}
      */
-    private void insertSessionExpiration(final String sessionId, final long expirationDateTime,
+    private void insertSessionExpiration(final SessionIdKey key, final long expirationDateTime,
                                          final AppDbConnection connection) {
         final SqlPStatement insertStatement = connection.prepareStatement(insertUserSessionSql);
-        insertStatement.setString(1, sessionId);
-        insertStatement.setTimestamp(2, new Timestamp(expirationDateTime));
+        key.bind(insertStatement, 1);
+        bindExpiration(insertStatement, 2, expirationDateTime);
         insertStatement.executeUpdate();
+        if (sessionIdFilter != null) {
+            sessionIdFilter.add(key.getSessionId());
+        }
+    }
+
+    /**
+     * 有効期限(と有効期限バケット)をバインドする。
+     *
+     * @param statement          {@link SqlPStatement}
+     * @param index              有効期限をバインドするインデックス
+     * @param expirationDateTime 有効期限
+     * @return 次にバインドするインデックス
+     */
+    private int bindExpiration(final SqlPStatement statement, final int index, final long expirationDateTime) {
+        int next = index;
+        if (databaseClock == null) {
+            statement.setTimestamp(next++, new Timestamp(expirationDateTime));
+        } else {
+            final long remaining = expirationDateTime - SystemTimeUtil.getTimestamp().getTime();
+            statement.setLong(next++, (remaining + 500L) / 1000L);
+        }
+        if (userSessionSchema.getExpirationBucketName() != null) {
+            statement.setLong(next++, userSessionSchema.toExpirationBucket(expirationDateTime));
+        }
+        return next;
     }
 
     @Override
@@ -150,20 +469,37 @@ public class DbManagedExpiration implements Expiration, Initializable {
 
         // SQL文を初期化する。
         selectUserSessionSql = "SELECT " + userSessionSchema.getExpirationDatetimeName()
+                + (databaseClock == null ? "" : ", CASE WHEN " + userSessionSchema.getExpirationDatetimeName()
+                        + " < " + databaseClock.now() + " THEN 1 ELSE 0 END " + EXPIRED)
                 + " FROM " + userSessionSchema.getTableName() + " WHERE "
                 + userSessionSchema.getSessionIdName() + " = ? ";
 
         countUserSessionSql = "SELECT COUNT(" + userSessionSchema.getExpirationDatetimeName() + ") " + COUNT
                 + " FROM (" + selectUserSessionSql + ") SUB_";
 
+        changeLog = changeLogSchema == null ? null : new SessionChangeLog(changeLogSchema);
+
+        final String bucketName = userSessionSchema.getExpirationBucketName();
+        final String expiration = databaseClock == null ? "?" : databaseClock.plusBoundSeconds();
         insertUserSessionSql = "INSERT INTO "
                 + userSessionSchema.getTableName() + " ( "
                 + userSessionSchema.getSessionIdName() + ", "
                 + userSessionSchema.getExpirationDatetimeName()
-                + ") VALUES (?,?)";
+                + (bucketName == null ? "" : ", " + bucketName)
+                + ") VALUES (?," + expiration
+                + (bucketName == null ? ")" : ",?)");
 
         updateUserSessionSql = "UPDATE " + userSessionSchema.getTableName()
-                + " SET " + userSessionSchema.getExpirationDatetimeName() + "=?"
+                + " SET " + userSessionSchema.getExpirationDatetimeName() + "=" + expiration
+                + (bucketName == null ? "" : "," + bucketName + "=?")
                 + " WHERE " + userSessionSchema.getSessionIdName() + " = ?";
+
+        if (validateSchema) {
+            UserSessionTableInspector.validate(dbManager, userSessionSchema);
+        }
+        if (warmUpConnections > 0) {
+            UserSessionTableInspector.warmUp(dbManager, warmUpConnections,
+                    selectUserSessionSql, countUserSessionSql, insertUserSessionSql, updateUserSessionSql);
+        }
     }
 }
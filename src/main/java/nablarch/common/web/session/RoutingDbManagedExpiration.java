@@ -0,0 +1,125 @@
+package nablarch.common.web.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nablarch.common.web.session.store.SessionIdFilter;
+import nablarch.common.web.session.store.SessionStorageResolver;
+import nablarch.common.web.session.store.SessionStorageRoute;
+import nablarch.core.repository.initialization.Initializable;
+import nablarch.fw.ExecutionContext;
+
+/**
+ * リクエストごとに決定した保存先の{@link DbManagedExpiration}に処理を委譲する{@link Expiration}実装クラス。
+ * <p/>
+ * テナントごとにユーザセッションテーブルやデータベースを分ける場合に、
+ * {@link nablarch.common.web.session.store.RoutingDbStore}と組み合わせて使用する。
+ * {@link #setStorageResolver(SessionStorageResolver)}で実行コンテキストから保存先を決定し、
+ * 保存先が決定されない場合は{@link #setDefaultExpiration(DbManagedExpiration)}に設定した既定の保存先を使用する。
+ * <p/>
+ * 保存先ごとの{@link DbManagedExpiration}は、最初に使用した時点で既定の保存先の設定を全て引き継いで生成し、
+ * ユーザセッションテーブルとデータベースだけを保存先のものに置き換える。
+ * {@link SessionIdFilter}は1つのユーザセッションテーブルから再構築するため、既定の保存先に設定されている場合は初期化時に例外を送出する。
+ *
+ * @author TIS
+ */
+public class RoutingDbManagedExpiration implements Expiration, Initializable {
+
+    /** 既定の保存先 */
+    private DbManagedExpiration defaultExpiration;
+
+    /** リクエストごとにセッションの保存先を決定するリゾルバ */
+    private SessionStorageResolver storageResolver;
+
+    /** 保存先ごとの{@link DbManagedExpiration}(SQLは保存先ごとに生成してキャッシュする) */
+    private final ConcurrentMap<SessionStorageRoute, DbManagedExpiration> routedExpirations =
+            new ConcurrentHashMap<SessionStorageRoute, DbManagedExpiration>();
+
+    /**
+     * 既定の保存先をセットする。
+     *
+     * @param defaultExpiration 既定の保存先
+     */
+    public void setDefaultExpiration(DbManagedExpiration defaultExpiration) {
+        this.defaultExpiration = defaultExpiration;
+    }
+
+    /**
+     * リクエストごとにセッションの保存先を決定する{@link SessionStorageResolver}をセットする。
+     *
+     * @param storageResolver セッションの保存先を決定するリゾルバ
+     */
+    public void setStorageResolver(SessionStorageResolver storageResolver) {
+        this.storageResolver = storageResolver;
+    }
+
+    @Override
+    public boolean isExpired(String sessionId, long currentDateTime, ExecutionContext context) {
+        return getExpiration(context).isExpired(sessionId, currentDateTime, context);
+    }
+
+    @Override
+    public void saveExpirationDateTime(String sessionId, long expirationDateTime, ExecutionContext context) {
+        getExpiration(context).saveExpirationDateTime(sessionId, expirationDateTime, context);
+    }
+
+    @Override
+    public boolean isDeterminable(String sessionId, ExecutionContext context) {
+        return getExpiration(context).isDeterminable(sessionId, context);
+    }
+
+    /**
+     * 一意制約違反によりリトライした回数を取得する。
+     * <p/>
+     * 全ての保存先でリトライした回数の合計を返す。
+     *
+     * @return リトライした回数
+     */
+    public long getDuplicateRetryCount() {
+        long count = defaultExpiration.getDuplicateRetryCount();
+        for (DbManagedExpiration routed : routedExpirations.values()) {
+            count += routed.getDuplicateRetryCount();
+        }
+        return count;
+    }
+
+    /**
+     * 実行コンテキストからセッションの保存先を決定し、保存先の{@link DbManagedExpiration}を取得する。
+     *
+     * @param context 実行コンテキスト
+     * @return 保存先の{@link DbManagedExpiration}。保存先が決定されない場合は既定の保存先
+     */
+    DbManagedExpiration getExpiration(ExecutionContext context) {
+        final SessionStorageRoute route = storageResolver.resolve(context);
+        if (route == null) {
+            return defaultExpiration;
+        }
+        DbManagedExpiration routed = routedExpirations.get(route);
+        if (routed == null) {
+            final DbManagedExpiration created = defaultExpiration.copyFor(route);
+            routed = routedExpirations.putIfAbsent(route, created);
+            if (routed == null) {
+                routed = created;
+            }
+        }
+        return routed;
+    }
+
+    /**
+     * 初期化処理。
+     * <p/>
+     * 既定の保存先に、保存先ごとに使用できない設定がされていないことを検証する。
+     *
+     * @throws IllegalStateException 必須の設定がされていない場合や、保存先ごとに使用できない設定がされている場合
+     */
+    @Override
+    public void initialize() {
+        if (defaultExpiration == null) {
+            throw new IllegalStateException("defaultExpiration was not specified.");
+        }
+        if (storageResolver == null) {
+            throw new IllegalStateException("storageResolver was not specified.");
+        }
+        defaultExpiration.verifyRoutable();
+    }
+}
@@ -0,0 +1,89 @@
+package nablarch.common.web.session.store;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * バイト列の差分を作成/適用するクラス。
+ * <p/>
+ * 差分は、変更前後で共通する先頭部分と末尾部分を除いた中間部分だけを保持する。
+ * セッションのように一部のエントリだけが変わるデータでは、変更されたエントリの周辺だけが差分となる。
+ * <p/>
+ * 差分には作成元のバイト列の長さとCRC32を含めており、
+ * 作成元と異なるバイト列に適用しようとした場合は適用せずに{@code null}を返す。
+ *
+ * @author TIS
+ */
+final class BinaryDelta {
+
+    /** ヘッダ(作成元の長さ、作成元のCRC32、共通する先頭部分の長さ、共通する末尾部分の長さ)の長さ */
+    private static final int HEADER_LENGTH = 16;
+
+    /** 隠蔽コンストラクタ。 */
+    private BinaryDelta() {
+    }
+
+    /**
+     * 差分を作成する。
+     *
+     * @param base 変更前のバイト列
+     * @param target 変更後のバイト列
+     * @return 差分
+     */
+    static byte[] diff(byte[] base, byte[] target) {
+        final int max = Math.min(base.length, target.length);
+        int prefix = 0;
+        while (prefix < max && base[prefix] == target[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && base[base.length - 1 - suffix] == target[target.length - 1 - suffix]) {
+            suffix++;
+        }
+        final int middle = target.length - prefix - suffix;
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + middle);
+        buffer.putInt(base.length);
+        buffer.putInt(crc(base));
+        buffer.putInt(prefix);
+        buffer.putInt(suffix);
+        buffer.put(target, prefix, middle);
+        return buffer.array();
+    }
+
+    /**
+     * 差分を適用する。
+     *
+     * @param base 差分の適用先
+     * @param delta 差分
+     * @return 差分を適用したバイト列。差分の作成元と適用先が異なる場合は{@code null}
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        final ByteBuffer buffer = ByteBuffer.wrap(delta);
+        final int baseLength = buffer.getInt();
+        final int baseCrc = buffer.getInt();
+        if (baseLength != base.length || baseCrc != crc(base)) {
+            return null;
+        }
+        final int prefix = buffer.getInt();
+        final int suffix = buffer.getInt();
+        final int middle = delta.length - HEADER_LENGTH;
+        final byte[] result = new byte[prefix + middle + suffix];
+        System.arraycopy(base, 0, result, 0, prefix);
+        buffer.get(result, prefix, middle);
+        System.arraycopy(base, base.length - suffix, result, prefix + middle, suffix);
+        return result;
+    }
+
+    /**
+     * CRC32を算出する。
+     *
+     * @param bytes バイト列
+     * @return CRC32
+     */
+    private static int crc(byte[] bytes) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+}
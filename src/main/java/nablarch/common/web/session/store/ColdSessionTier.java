@@ -0,0 +1,406 @@
+package nablarch.common.web.session.store;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+
+/**
+ * 一定時間アクセスのないセッションを退避するコールドテーブルへのアクセスを行うクラス。
+ * <p/>
+ * {@link DbStore}から使用する。
+ * コールドテーブルはユーザセッションテーブルと同じ構成(セッションID、セッションオブジェクト、有効期限、所有者ID)とする。
+ *
+ * @author TIS
+ */
+final class ColdSessionTier {
+
+    /** 圧縮したセッションオブジェクトであることを示すヘッダ(既存の形式の先頭には現れないバイト列) */
+    private static final byte[] COMPRESSED_HEADER = {(byte) 0xFF, (byte) 0xFB, 'Z', '1'};
+
+    /** ユーザセッションテーブルのスキーマ */
+    private final UserSessionSchema hotSchema;
+
+    /** コールドテーブルのスキーマ */
+    private final UserSessionSchema coldSchema;
+
+    /** セッションオブジェクトを圧縮するか否か */
+    private final boolean compress;
+
+    /** ユーザセッションテーブルからアクセスのないセッションを取得するSQL */
+    private final String selectIdleSql;
+
+    /** ユーザセッションテーブルから、取得した時点から更新されていないセッションを削除するSQL */
+    private final String deleteUnchangedSql;
+
+    /** コールドテーブルに追加するSQL */
+    private final String insertColdSql;
+
+    /** コールドテーブルから取得するSQL */
+    private final String selectColdSql;
+
+    /** コールドテーブルから削除するSQL */
+    private final String deleteColdSql;
+
+    /** コールドテーブルから有効期限切れのセッションを削除するSQL */
+    private final String deleteExpiredColdSql;
+
+    /** コールドテーブルから所有者IDでセッションIDを取得するSQL */
+    private final String selectColdIdsByOwnerSql;
+
+    /** コールドテーブルから所有者IDで削除するSQL */
+    private final String deleteColdByOwnerSql;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param hotSchema ユーザセッションテーブルのスキーマ
+     * @param coldSchema コールドテーブルのスキーマ
+     * @param compress セッションオブジェクトを圧縮するか否か
+     */
+    ColdSessionTier(UserSessionSchema hotSchema, UserSessionSchema coldSchema, boolean compress) {
+        if (hotSchema.getOwnerIdName() != null && coldSchema.getOwnerIdName() == null) {
+            throw new IllegalStateException(
+                    "ownerIdName of coldSessionSchema must be specified when userSessionSchema has ownerIdName.");
+        }
+        this.hotSchema = hotSchema;
+        this.coldSchema = coldSchema;
+        this.compress = compress;
+
+        final boolean owner = hotSchema.getOwnerIdName() != null;
+        selectIdleSql = "SELECT " + hotSchema.getSessionIdName()
+                + ", " + hotSchema.getSessionObjectName()
+                + ", " + hotSchema.getExpirationDatetimeName()
+                + (owner ? ", " + hotSchema.getOwnerIdName() : "")
+                + " FROM " + hotSchema.getTableName()
+                + " WHERE " + hotSchema.getExpirationDatetimeName() + " >= ?"
+                + " AND " + hotSchema.getExpirationDatetimeName() + " < ?";
+
+        deleteUnchangedSql = "DELETE FROM " + hotSchema.getTableName()
+                + " WHERE " + hotSchema.getSessionIdName() + " = ?"
+                + " AND " + hotSchema.getExpirationDatetimeName() + " = ?";
+
+        insertColdSql = "INSERT INTO " + coldSchema.getTableName() + " ( "
+                + coldSchema.getSessionIdName() + ", "
+                + coldSchema.getSessionObjectName() + ", "
+                + coldSchema.getExpirationDatetimeName()
+                + (owner ? ", " + coldSchema.getOwnerIdName() + ") VALUES (?,?,?,?)" : ") VALUES (?,?,?)");
+
+        selectColdSql = "SELECT " + coldSchema.getSessionObjectName()
+                + ", " + coldSchema.getExpirationDatetimeName()
+                + (owner ? ", " + coldSchema.getOwnerIdName() : "")
+                + " FROM " + coldSchema.getTableName()
+                + " WHERE " + coldSchema.getSessionIdName() + " = ?"
+                + " AND " + coldSchema.getExpirationDatetimeName() + " >= ?";
+
+        deleteColdSql = "DELETE FROM " + coldSchema.getTableName()
+                + " WHERE " + coldSchema.getSessionIdName() + " = ?";
+
+        deleteExpiredColdSql = "DELETE FROM " + coldSchema.getTableName()
+                + " WHERE " + coldSchema.getExpirationDatetimeName() + " < ?";
+
+        if (coldSchema.getOwnerIdName() != null) {
+            selectColdIdsByOwnerSql = "SELECT " + coldSchema.getSessionIdName()
+                    + " FROM " + coldSchema.getTableName()
+                    + " WHERE " + coldSchema.getOwnerIdName() + " = ?";
+            deleteColdByOwnerSql = "DELETE FROM " + coldSchema.getTableName()
+                    + " WHERE " + coldSchema.getOwnerIdName() + " = ?";
+        } else {
+            selectColdIdsByOwnerSql = null;
+            deleteColdByOwnerSql = null;
+        }
+    }
+
+    /**
+     * 生成したSQLを取得する。
+     *
+     * @return SQL
+     */
+    List<String> getSqls() {
+        return Arrays.asList(selectIdleSql, deleteUnchangedSql, insertColdSql, selectColdSql, deleteColdSql,
+                deleteExpiredColdSql, selectColdIdsByOwnerSql, deleteColdByOwnerSql);
+    }
+
+    /**
+     * ユーザセッションテーブルのアクセスのないセッションを、最大件数までコールドテーブルに移動する。
+     * <p/>
+     * 有効期限が{@code idleBefore}より前で、期限切れでないセッションを対象とする。
+     * 取得した後に更新されたセッションは移動しない。
+     *
+     * @param now 現在日時
+     * @param idleBefore この有効期限より前のセッションを対象とする
+     * @param maxCount 最大件数
+     * @param archived 移動したセッションを追加するリスト
+     * @param connection {@link AppDbConnection}
+     * @return 取得したセッションの数(移動しなかったものを含む)
+     */
+    int archive(long now, long idleBefore, int maxCount, List<ArchivedSession> archived,
+            AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectIdleSql);
+        select.setMaxRows(maxCount);
+        select.setTimestamp(1, new Timestamp(now));
+        select.setTimestamp(2, new Timestamp(idleBefore));
+        final ResultSetIterator iterator = select.executeQuery();
+
+        final SqlPStatement deleteCold = connection.prepareStatement(deleteColdSql);
+        final SqlPStatement insertCold = connection.prepareStatement(insertColdSql);
+        final SqlPStatement deleteHot = connection.prepareStatement(deleteUnchangedSql);
+        final List<ArchivedSession> fetched = new ArrayList<ArchivedSession>();
+        while (iterator.next()) {
+            final String sessionId = hotSchema.isBinarySessionId()
+                    ? SessionIdKey.toSessionId(iterator.getBytes(1))
+                    : iterator.getString(1);
+            final byte[] sessionObject = iterator.getBytes(2);
+            final Timestamp expiration = iterator.getTimestamp(3);
+            final SessionIdKey coldKey = SessionIdKey.of(sessionId, coldSchema);
+
+            coldKey.bind(deleteCold, 1);
+            deleteCold.addBatch();
+
+            coldKey.bind(insertCold, 1);
+            insertCold.setBytes(2, compress && sessionObject != null ? compress(sessionObject) : sessionObject);
+            insertCold.setTimestamp(3, expiration);
+            if (hotSchema.getOwnerIdName() != null) {
+                insertCold.setString(4, iterator.getString(4));
+            }
+            insertCold.addBatch();
+
+            SessionIdKey.of(sessionId, hotSchema).bind(deleteHot, 1);
+            deleteHot.setTimestamp(2, expiration);
+            deleteHot.addBatch();
+            fetched.add(new ArchivedSession(sessionId, sessionObject, expiration.getTime()));
+        }
+        if (fetched.isEmpty()) {
+            return 0;
+        }
+        deleteCold.executeBatch();
+        insertCold.executeBatch();
+        final int[] counts = deleteHot.executeBatch();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                // 取得した後に更新されたセッションは、ユーザセッションテーブルに残す
+                delete(fetched.get(i).sessionId, connection);
+            } else {
+                archived.add(fetched.get(i));
+            }
+        }
+        return fetched.size();
+    }
+
+    /**
+     * コールドテーブルから有効期限切れのセッションを削除する。
+     *
+     * @param now 現在日時
+     * @param connection {@link AppDbConnection}
+     * @return 削除件数
+     */
+    int purgeExpired(long now, AppDbConnection connection) {
+        final SqlPStatement delete = connection.prepareStatement(deleteExpiredColdSql);
+        delete.setTimestamp(1, new Timestamp(now));
+        return delete.executeUpdate();
+    }
+
+    /**
+     * コールドテーブルからセッションを取り出す。
+     * <p/>
+     * 取り出したセッションはコールドテーブルから削除する。
+     *
+     * @param sessionId セッションID
+     * @param now 現在日時
+     * @param connection {@link AppDbConnection}
+     * @return 取り出したセッション。コールドテーブルに存在しない場合は{@code null}
+     */
+    ColdSession take(String sessionId, long now, AppDbConnection connection) {
+        final SessionIdKey key = SessionIdKey.of(sessionId, coldSchema);
+        if (!key.isValid()) {
+            return null;
+        }
+        final SqlPStatement select = connection.prepareStatement(selectColdSql);
+        key.bind(select, 1);
+        select.setTimestamp(2, new Timestamp(now));
+        final ResultSetIterator iterator = select.executeQuery();
+        if (!iterator.next()) {
+            return null;
+        }
+        final byte[] stored = iterator.getBytes(1);
+        final long expiration = iterator.getTimestamp(2).getTime();
+        final String ownerId = hotSchema.getOwnerIdName() == null ? null : iterator.getString(3);
+        final boolean taken = delete(sessionId, connection) > 0;
+        return new ColdSession(stored == null ? null : decompress(stored), expiration, ownerId, taken);
+    }
+
+    /**
+     * コールドテーブルからセッションを削除する。
+     *
+     * @param sessionId セッションID
+     * @param connection {@link AppDbConnection}
+     * @return 削除件数
+     */
+    int delete(String sessionId, AppDbConnection connection) {
+        final SessionIdKey key = SessionIdKey.of(sessionId, coldSchema);
+        if (!key.isValid()) {
+            return 0;
+        }
+        final SqlPStatement delete = connection.prepareStatement(deleteColdSql);
+        key.bind(delete, 1);
+        return delete.executeUpdate();
+    }
+
+    /**
+     * コールドテーブルから所有者のセッションIDを取得する。
+     *
+     * @param ownerId 所有者ID
+     * @param connection {@link AppDbConnection}
+     * @return セッションID
+     */
+    List<String> findSessionIdsByOwner(String ownerId, AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectColdIdsByOwnerSql);
+        select.setString(1, ownerId);
+        final ResultSetIterator iterator = select.executeQuery();
+        final List<String> sessionIds = new ArrayList<String>();
+        while (iterator.next()) {
+            sessionIds.add(coldSchema.isBinarySessionId()
+                    ? SessionIdKey.toSessionId(iterator.getBytes(1))
+                    : iterator.getString(1));
+        }
+        return sessionIds;
+    }
+
+    /**
+     * コールドテーブルから所有者のセッションを削除する。
+     *
+     * @param ownerId 所有者ID
+     * @param connection {@link AppDbConnection}
+     * @return 削除件数
+     */
+    int deleteByOwner(String ownerId, AppDbConnection connection) {
+        final SqlPStatement delete = connection.prepareStatement(deleteColdByOwnerSql);
+        delete.setString(1, ownerId);
+        return delete.executeUpdate();
+    }
+
+    /**
+     * セッションオブジェクトを圧縮する。
+     *
+     * @param sessionObject セッションオブジェクト
+     * @return 圧縮したセッションオブジェクト
+     */
+    static byte[] compress(byte[] sessionObject) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sessionObject);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(sessionObject.length / 2 + 16);
+            out.write(COMPRESSED_HEADER, 0, COMPRESSED_HEADER.length);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 圧縮したセッションオブジェクトを展開する。
+     * <p/>
+     * 圧縮されていない場合はそのまま返す。
+     *
+     * @param stored コールドテーブルのセッションオブジェクト
+     * @return セッションオブジェクト
+     */
+    static byte[] decompress(byte[] stored) {
+        if (stored.length < COMPRESSED_HEADER.length
+                || !Arrays.equals(Arrays.copyOf(stored, COMPRESSED_HEADER.length), COMPRESSED_HEADER)) {
+            return stored;
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, COMPRESSED_HEADER.length, stored.length - COMPRESSED_HEADER.length);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 2);
+            final byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("compressed session object is truncated.");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("failed to decompress session object.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * コールドテーブルから取り出したセッション。
+     */
+    static final class ColdSession {
+
+        /** セッションオブジェクト */
+        final byte[] sessionObject;
+
+        /** 退避した時点の有効期限 */
+        final long expiration;
+
+        /** 所有者ID */
+        final String ownerId;
+
+        /** 本スレッドで取り出したか否か(他のスレッドが同時に取り出した場合は{@code false}) */
+        final boolean taken;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param sessionObject セッションオブジェクト
+         * @param expiration 退避した時点の有効期限
+         * @param ownerId 所有者ID
+         * @param taken 本スレッドで取り出したか否か
+         */
+        ColdSession(byte[] sessionObject, long expiration, String ownerId, boolean taken) {
+            this.sessionObject = sessionObject;
+            this.expiration = expiration;
+            this.ownerId = ownerId;
+            this.taken = taken;
+        }
+    }
+
+    /**
+     * コールドテーブルに移動したセッション。
+     */
+    static final class ArchivedSession {
+
+        /** セッションID */
+        final String sessionId;
+
+        /** 移動する前のセッションオブジェクト(圧縮前) */
+        final byte[] sessionObject;
+
+        /** 有効期限 */
+        final long expiration;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param sessionId セッションID
+         * @param sessionObject 移動する前のセッションオブジェクト
+         * @param expiration 有効期限
+         */
+        ArchivedSession(String sessionId, byte[] sessionObject, long expiration) {
+            this.sessionId = sessionId;
+            this.sessionObject = sessionObject;
+            this.expiration = expiration;
+        }
+    }
+}
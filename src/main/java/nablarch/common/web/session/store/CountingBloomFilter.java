@@ -0,0 +1,186 @@
+package nablarch.common.web.session.store;
+
+/**
+ * 要素の削除に対応したブルームフィルタ(カウンティングブルームフィルタ)。
+ * <p/>
+ * ビットの代わりに4ビットのカウンタを使用し、追加でカウンタを増やし、削除で減らす。
+ * 上限(15)に達したカウンタは、本来の値が分からなくなるため増減しない。
+ * (上限に達したカウンタは0にならないため、偽陰性にはならない)
+ * <p/>
+ * 追加していない要素を削除すると、他の要素のカウンタを減らして偽陰性の原因となるため、
+ * 追加したことが確実な要素だけを削除すること。
+ * スレッドセーフである。
+ *
+ * @author TIS
+ */
+final class CountingBloomFilter {
+
+    /** カウンタのビット数 */
+    private static final int COUNTER_BITS = 4;
+
+    /** 1つのlongに格納するカウンタの数 */
+    private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+
+    /** カウンタの上限 */
+    private static final long MAX_COUNT = (1L << COUNTER_BITS) - 1;
+
+    /** カウンタの配列 */
+    private final long[] counters;
+
+    /** カウンタの数 */
+    private final long counterSize;
+
+    /** ハッシュ関数の数 */
+    private final int hashCount;
+
+    /**
+     * 想定する要素数と偽陽性率からカウンタの数とハッシュ関数の数を決定してフィルタを生成する。
+     * <p/>
+     * カウンタの数は最大バイト数を超えないよう切り詰める。
+     *
+     * @param expectedInsertions 想定する要素数
+     * @param falsePositiveRate 偽陽性率
+     * @param maxBytes 最大バイト数
+     */
+    CountingBloomFilter(long expectedInsertions, double falsePositiveRate, long maxBytes) {
+        final long n = Math.max(1L, expectedInsertions);
+        final double optimal = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        final long maxCounters = Math.min(maxBytes, Integer.MAX_VALUE / 8L * 8L) * 8L / COUNTER_BITS;
+        final long words = (Math.max(COUNTERS_PER_WORD, Math.min((long) Math.ceil(optimal), maxCounters))
+                + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD;
+        counters = new long[(int) words];
+        counterSize = words * COUNTERS_PER_WORD;
+        hashCount = Math.max(1, (int) Math.round((double) counterSize / n * Math.log(2)));
+    }
+
+    /**
+     * 要素を追加する。
+     *
+     * @param element 要素
+     */
+    synchronized void add(String element) {
+        final long hash = hash(element);
+        for (int i = 0; i < hashCount; i++) {
+            final long index = index(hash, i);
+            if (count(index) < MAX_COUNT) {
+                counters[word(index)] += 1L << shift(index);
+            }
+        }
+    }
+
+    /**
+     * 要素を削除する。
+     * <p/>
+     * 含まれていない要素の場合は何もしない。
+     *
+     * @param element 要素
+     */
+    synchronized void remove(String element) {
+        final long hash = hash(element);
+        if (!mightContain(hash)) {
+            return;
+        }
+        for (int i = 0; i < hashCount; i++) {
+            final long index = index(hash, i);
+            if (count(index) < MAX_COUNT) {
+                counters[word(index)] -= 1L << shift(index);
+            }
+        }
+    }
+
+    /**
+     * 要素が含まれている可能性があるかを判定する。
+     *
+     * @param element 要素
+     * @return 含まれている可能性がある場合は{@code true}、確実に含まれていない場合は{@code false}
+     */
+    synchronized boolean mightContain(String element) {
+        return mightContain(hash(element));
+    }
+
+    /**
+     * ハッシュ値に対応するカウンタが全て0より大きいかを判定する。
+     *
+     * @param hash 要素の64ビットハッシュ値
+     * @return 全て0より大きい場合は{@code true}
+     */
+    private boolean mightContain(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            if (count(index(hash, i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * カウンタ配列のバイト数を取得する。
+     *
+     * @return カウンタ配列のバイト数
+     */
+    long byteSize() {
+        return counters.length * 8L;
+    }
+
+    /**
+     * カウンタの値を取得する。
+     *
+     * @param index カウンタのインデックス
+     * @return カウンタの値
+     */
+    private long count(long index) {
+        return (counters[word(index)] >>> shift(index)) & MAX_COUNT;
+    }
+
+    /**
+     * カウンタを格納するlongのインデックスを算出する。
+     *
+     * @param index カウンタのインデックス
+     * @return longのインデックス
+     */
+    private static int word(long index) {
+        return (int) (index / COUNTERS_PER_WORD);
+    }
+
+    /**
+     * longの中でのカウンタの位置(ビット数)を算出する。
+     *
+     * @param index カウンタのインデックス
+     * @return シフトするビット数
+     */
+    private static int shift(long index) {
+        return (int) (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+    }
+
+    /**
+     * i番目のハッシュ関数に対応するカウンタのインデックスを算出する(ダブルハッシング)。
+     *
+     * @param hash 要素の64ビットハッシュ値
+     * @param i ハッシュ関数の番号
+     * @return カウンタのインデックス
+     */
+    private long index(long hash, int i) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % counterSize;
+    }
+
+    /**
+     * 要素の64ビットハッシュ値(FNV-1a)を算出する。
+     *
+     * @param element 要素
+     * @return ハッシュ値
+     */
+    private static long hash(String element) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < element.length(); i++) {
+            hash ^= element.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // 下位ビットの偏りを減らすため混ぜ合わせる
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
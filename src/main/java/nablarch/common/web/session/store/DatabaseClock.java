@@ -0,0 +1,114 @@
+package nablarch.common.web.session.store;
+
+/**
+ * 有効期限の算出と判定に、データベースの現在日時を使用するためのSQL式を保持するクラス。
+ * <p/>
+ * {@link DbStore#setDatabaseClock(DatabaseClock)}や
+ * {@link nablarch.common.web.session.DbManagedExpiration#setDatabaseClock(DatabaseClock)}に設定すると、
+ * アプリケーションサーバの時刻をバインドする代わりに、生成するSQLにデータベースの現在日時を使用する式を埋め込む。
+ * 全てのノードが同じ時計で有効期限を判定するため、ノード間の時刻のずれの影響を受けない。
+ * <p/>
+ * {@link #setDialect(String)}で主なデータベースの式を選択するか、
+ * {@link #setCurrentTimestampExpression(String)}と{@link #setPlusSecondsTemplate(String)}で式を直接指定する。
+ *
+ * @author TIS
+ */
+public class DatabaseClock {
+
+    /** 秒数のプレースホルダ */
+    private static final String SECONDS_PLACEHOLDER = "{seconds}";
+
+    /** 現在日時を表す式 */
+    private String currentTimestampExpression = "CURRENT_TIMESTAMP";
+
+    /** 現在日時に秒数を加算する式のテンプレート */
+    private String plusSecondsTemplate = "DATEADD('SECOND', {seconds}, CURRENT_TIMESTAMP)";
+
+    /**
+     * データベースの種類を指定して、式を設定する。
+     * <p/>
+     * 指定できる値は以下のとおり(大文字・小文字は区別しない)。
+     * <ul>
+     * <li>h2(デフォルト)</li>
+     * <li>oracle</li>
+     * <li>postgresql</li>
+     * <li>mysql</li>
+     * <li>sqlserver</li>
+     * <li>db2</li>
+     * </ul>
+     *
+     * @param dialect データベースの種類
+     */
+    public void setDialect(String dialect) {
+        final String name = dialect.toLowerCase();
+        if (name.equals("h2")) {
+            currentTimestampExpression = "CURRENT_TIMESTAMP";
+            plusSecondsTemplate = "DATEADD('SECOND', {seconds}, CURRENT_TIMESTAMP)";
+        } else if (name.equals("oracle")) {
+            currentTimestampExpression = "SYSTIMESTAMP";
+            plusSecondsTemplate = "SYSTIMESTAMP + NUMTODSINTERVAL({seconds}, 'SECOND')";
+        } else if (name.equals("postgresql")) {
+            currentTimestampExpression = "CURRENT_TIMESTAMP";
+            plusSecondsTemplate = "CURRENT_TIMESTAMP + {seconds} * INTERVAL '1 second'";
+        } else if (name.equals("mysql")) {
+            currentTimestampExpression = "CURRENT_TIMESTAMP(3)";
+            plusSecondsTemplate = "DATE_ADD(CURRENT_TIMESTAMP(3), INTERVAL {seconds} SECOND)";
+        } else if (name.equals("sqlserver")) {
+            currentTimestampExpression = "SYSDATETIME()";
+            plusSecondsTemplate = "DATEADD(SECOND, {seconds}, SYSDATETIME())";
+        } else if (name.equals("db2")) {
+            currentTimestampExpression = "CURRENT TIMESTAMP";
+            plusSecondsTemplate = "CURRENT TIMESTAMP + CAST({seconds} AS INTEGER) SECONDS";
+        } else {
+            throw new IllegalArgumentException("unsupported dialect. dialect = " + dialect);
+        }
+    }
+
+    /**
+     * 現在日時を表す式をセットする。
+     *
+     * @param currentTimestampExpression 現在日時を表す式
+     */
+    public void setCurrentTimestampExpression(String currentTimestampExpression) {
+        this.currentTimestampExpression = currentTimestampExpression;
+    }
+
+    /**
+     * 現在日時に秒数を加算する式のテンプレートをセットする。
+     * <p/>
+     * テンプレート中の{@code {seconds}}は、秒数のリテラルまたはバインド変数({@code ?})に置き換えられる。
+     *
+     * @param plusSecondsTemplate 現在日時に秒数を加算する式のテンプレート
+     */
+    public void setPlusSecondsTemplate(String plusSecondsTemplate) {
+        this.plusSecondsTemplate = plusSecondsTemplate;
+    }
+
+    /**
+     * 現在日時を表す式を取得する。
+     *
+     * @return 現在日時を表す式
+     */
+    public String now() {
+        return currentTimestampExpression;
+    }
+
+    /**
+     * 現在日時に指定した秒数を加算する式を取得する。
+     *
+     * @param seconds 秒数
+     * @return 現在日時に秒数を加算する式
+     */
+    public String plusSeconds(long seconds) {
+        return plusSecondsTemplate.replace(SECONDS_PLACEHOLDER, String.valueOf(seconds));
+    }
+
+    /**
+     * 現在日時にバインド変数で指定する秒数を加算する式を取得する。
+     *
+     * @return 現在日時に秒数を加算する式({@code ?}に秒数をバインドすること)
+     */
+    public String plusBoundSeconds() {
+        return plusSecondsTemplate.replace(SECONDS_PLACEHOLDER, "?");
+    }
+}
@@ -0,0 +1,19 @@
+package nablarch.common.web.session.store;
+
+/**
+ * セッションストアからのDBアクセスが同時実行数の上限により打ち切られたことを示す例外。
+ *
+ * @author TIS
+ * @see DbAccessLimiter
+ */
+public class DbAccessLimitExceededException extends RuntimeException {
+
+    /**
+     * コンストラクタ。
+     *
+     * @param message メッセージ
+     */
+    public DbAccessLimitExceededException(String message) {
+        super(message);
+    }
+}
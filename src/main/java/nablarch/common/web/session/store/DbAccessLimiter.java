@@ -0,0 +1,141 @@
+package nablarch.common.web.session.store;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+
+/**
+ * セッションストアからのDBアクセスの同時実行数を制限するクラス。
+ * <p/>
+ * セッションの読み書きが業務処理と同じコネクションプールを使い切ってしまわないよう、
+ * 同時に実行できるトランザクション数を{@link #setMaxConcurrency(int)}で指定した数に制限する。
+ * 上限に達している場合は{@link #setQueueTimeoutMillis(long)}で指定した時間まで空きを待ち、
+ * それでも空かない場合は{@link DbAccessLimitExceededException}を送出して処理を打ち切る。
+ * <p/>
+ * 待ち行列の長さと打ち切った件数は{@link #getQueueDepth()}、{@link #getRejectedCount()}で取得できる。
+ *
+ * @author TIS
+ */
+public class DbAccessLimiter {
+
+    /** 同時実行数の上限 */
+    private int maxConcurrency = 10;
+
+    /** 空きを待つ時間(ミリ秒) */
+    private long queueTimeoutMillis = 1000L;
+
+    /** 同時実行数を制御するセマフォ */
+    private Semaphore semaphore = new Semaphore(maxConcurrency, true);
+
+    /** 空きを待っているスレッド数 */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /** 実行中のトランザクション数 */
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    /** 打ち切った件数 */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * 同時実行数の上限を設定する。
+     * <p/>
+     * デフォルトは10。
+     *
+     * @param maxConcurrency 同時実行数の上限
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be greater than 0. maxConcurrency = " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        semaphore = new Semaphore(maxConcurrency, true);
+    }
+
+    /**
+     * 空きを待つ時間(ミリ秒)を設定する。
+     * <p/>
+     * デフォルトは1000ミリ秒。
+     *
+     * @param queueTimeoutMillis 空きを待つ時間(ミリ秒)
+     */
+    public void setQueueTimeoutMillis(long queueTimeoutMillis) {
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    /**
+     * 同時実行数の上限の範囲内でトランザクションを実行する。
+     *
+     * @param executor 実行するトランザクション
+     * @param <T> トランザクションの実行結果の型
+     * @return トランザクションの実行結果
+     * @throws DbAccessLimitExceededException 待ち時間内に実行できなかった場合
+     */
+    public <T> T doTransaction(SimpleDbTransactionExecutor<T> executor) {
+        final Semaphore current = semaphore;
+        acquire(current);
+        activeCount.incrementAndGet();
+        try {
+            return executor.doTransaction();
+        } finally {
+            activeCount.decrementAndGet();
+            current.release();
+        }
+    }
+
+    /**
+     * 実行権を取得する。
+     * <p/>
+     * 引数なしの{@link Semaphore#tryAcquire()}は待っているスレッドを追い越して実行権を取得するため、
+     * 空きがある場合も待ち時間を指定して取得し、公平性(待ち始めた順に実行すること)を保つ。
+     *
+     * @param current セマフォ
+     */
+    private void acquire(Semaphore current) {
+        queueDepth.incrementAndGet();
+        boolean acquired;
+        try {
+            acquired = current.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+        if (!acquired) {
+            rejectedCount.incrementAndGet();
+            throw new DbAccessLimitExceededException(
+                    "session store db access was rejected. maxConcurrency = " + maxConcurrency
+                            + ", queueTimeoutMillis = " + queueTimeoutMillis);
+        }
+    }
+
+    /**
+     * 空きを待っているスレッド数を取得する。
+     *
+     * @return 空きを待っているスレッド数
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * 実行中のトランザクション数を取得する。
+     *
+     * @return 実行中のトランザクション数
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * 待ち時間内に実行できず打ち切った件数を取得する。
+     *
+     * @return 打ち切った件数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
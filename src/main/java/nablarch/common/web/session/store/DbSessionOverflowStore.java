@@ -0,0 +1,134 @@
+package nablarch.common.web.session.store;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.repository.initialization.Initializable;
+
+/**
+ * セッションオブジェクトをチャンクに分割してセッションチャンクテーブルに保存する{@link SessionOverflowStore}。
+ * <p/>
+ * チャンクのサイズ({@link #setChunkSize(int)})をデータベースの行内に格納できるサイズにしておくことで、
+ * 行外のLOB領域を使わずにサイズの大きいセッションオブジェクトを保存できる。
+ * <p/>
+ * チャンクはセッションIDとバージョンで識別し、保存のたびに新しいバージョンのチャンクを追加する。
+ * <p/>
+ * {@link DbStore}以外でユーザセッションテーブルの行を削除した場合はチャンクは削除されないため、
+ * 有効期限切れのセッションを一括で削除する場合は、チャンクも合わせて削除すること。
+ * (セッションIDカラムに、ユーザセッションテーブルへのON DELETE CASCADE付きの外部キーを定義するなど)
+ *
+ * @author TIS
+ */
+public class DbSessionOverflowStore implements SessionOverflowStore, Initializable {
+
+    /** セッションチャンクテーブルのスキーマ */
+    private SessionChunkSchema sessionChunkSchema;
+
+    /** チャンクのサイズ */
+    private int chunkSize = 32000;
+
+    /** チャンクを取得するSQL */
+    private String selectChunkSql;
+
+    /** チャンクを追加するSQL */
+    private String insertChunkSql;
+
+    /** チャンクを削除するSQL */
+    private String deleteChunkSql;
+
+    /**
+     * セッションチャンクテーブルのスキーマをセットする。
+     *
+     * @param sessionChunkSchema セッションチャンクテーブルのスキーマ
+     */
+    public void setSessionChunkSchema(SessionChunkSchema sessionChunkSchema) {
+        this.sessionChunkSchema = sessionChunkSchema;
+    }
+
+    /**
+     * チャンクのサイズ(バイト)をセットする。
+     * <p/>
+     * デフォルトは32000バイト。
+     *
+     * @param chunkSize チャンクのサイズ
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void save(String sessionId, String version, byte[] sessionObject, AppDbConnection connection) {
+        final SqlPStatement insert = connection.prepareStatement(insertChunkSql);
+        int chunkNumber = 0;
+        for (int offset = 0; offset < sessionObject.length; offset += chunkSize) {
+            insert.setString(1, sessionId);
+            insert.setString(2, version);
+            insert.setInt(3, chunkNumber++);
+            insert.setBytes(4, Arrays.copyOfRange(sessionObject, offset,
+                    Math.min(offset + chunkSize, sessionObject.length)));
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+    @Override
+    public byte[] load(String sessionId, String version, AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectChunkSql);
+        select.setString(1, sessionId);
+        select.setString(2, version);
+        final ResultSetIterator iterator = select.executeQuery();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean found = false;
+        while (iterator.next()) {
+            final byte[] chunk = iterator.getBytes(1);
+            out.write(chunk, 0, chunk.length);
+            found = true;
+        }
+        return found ? out.toByteArray() : null;
+    }
+
+    @Override
+    public void delete(String sessionId, String version, AppDbConnection connection) {
+        final SqlPStatement delete = connection.prepareStatement(deleteChunkSql);
+        delete.setString(1, sessionId);
+        delete.setString(2, version);
+        delete.executeUpdate();
+    }
+
+    /**
+     * 初期化処理。
+     */
+    @Override
+    public void initialize() {
+        if (sessionChunkSchema == null) {
+            // デフォルトのセッションチャンクテーブルのスキーマをセットする
+            sessionChunkSchema = new SessionChunkSchema();
+            sessionChunkSchema.setTableName("USER_SESSION_CHUNK");
+            sessionChunkSchema.setSessionIdName("SESSION_ID");
+            sessionChunkSchema.setVersionName("OBJECT_VERSION");
+            sessionChunkSchema.setChunkNumberName("CHUNK_NUMBER");
+            sessionChunkSchema.setChunkDataName("CHUNK_DATA");
+        }
+
+        // SQL文を初期化する。
+        selectChunkSql = "SELECT " + sessionChunkSchema.getChunkDataName()
+                + " FROM " + sessionChunkSchema.getTableName()
+                + " WHERE " + sessionChunkSchema.getSessionIdName() + " = ?"
+                + " AND " + sessionChunkSchema.getVersionName() + " = ?"
+                + " ORDER BY " + sessionChunkSchema.getChunkNumberName();
+
+        insertChunkSql = "INSERT INTO " + sessionChunkSchema.getTableName() + " ( "
+                + sessionChunkSchema.getSessionIdName() + ", "
+                + sessionChunkSchema.getVersionName() + ", "
+                + sessionChunkSchema.getChunkNumberName() + ", "
+                + sessionChunkSchema.getChunkDataName()
+                + ") VALUES (?,?,?,?)";
+
+        deleteChunkSql = "DELETE FROM " + sessionChunkSchema.getTableName()
+                + " WHERE " + sessionChunkSchema.getSessionIdName() + " = ?"
+                + " AND " + sessionChunkSchema.getVersionName() + " = ?";
+    }
+}
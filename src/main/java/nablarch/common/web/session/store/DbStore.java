@@ -1,11 +1,29 @@
 package nablarch.common.web.session.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import nablarch.common.web.session.SessionEntry;
 import nablarch.common.web.session.SessionStore;
+import nablarch.common.web.session.StateEncoder;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import nablarch.core.ThreadContext;
 import nablarch.core.date.SystemTimeUtil;
 import nablarch.core.db.connection.AppDbConnection;
 import nablarch.core.db.statement.ResultSetIterator;
@@ -13,6 +31,8 @@ import nablarch.core.db.statement.SqlPStatement;
 import nablarch.core.db.statement.exception.DuplicateStatementException;
 import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
 import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
 import nablarch.core.repository.initialization.Initializable;
 import nablarch.fw.ExecutionContext;
 
@@ -20,10 +40,47 @@ import nablarch.fw.ExecutionContext;
  * セッションの内容をDBに格納/読み込みする{@link DbStore}。
  * <p/>
  * デフォルトのストア名は"db"。
+ * <p/>
+ * {@link #setSessionDeltaSchema(SessionDeltaSchema)}を設定した場合は差分保存モードとなり、
+ * 前回保存した内容からの差分だけをセッション差分テーブルに追記する。
+ * 差分の件数が{@link #setMaxDeltaCount(int)}に達した場合や、
+ * 差分の合計サイズがセッションオブジェクトのサイズに対して{@link #setDeltaCompactionRatio(double)}を超えた場合は、
+ * セッションオブジェクト全体をユーザセッションテーブルに書き込み、差分を削除する。
+ * <p/>
+ * 差分の作成元となる前回保存した内容は、ユーザセッションテーブルのバージョンとともにノード内のキャッシュに保持する。
+ * 差分の追記は、ユーザセッションテーブルのバージョンが差分の作成元のバージョンと一致する場合にだけ行い、
+ * 他のノードが同じセッションを更新していた場合は全体を書き込む(後から保存した内容が常に有効となる)。
+ * このため、差分保存モードではバージョンカラム({@link UserSessionSchema#setVersionName(String)})の設定が必須となる。
+ * 同じセッションが同じノードで処理されるスティッキーセッションなどの環境の方が、差分を追記できる割合は高くなる。
+ * <p/>
+ * {@link #setOverflowStore(SessionOverflowStore)}を設定した場合、
+ * サイズが{@link #setOverflowThreshold(int)}を超えるセッションオブジェクトは{@link SessionOverflowStore}に保存し、
+ * ユーザセッションテーブルには参照だけを保存する。
+ * 参照先は保存のたびに新しいバージョンとし、以前のバージョンは保存がコミットされた後に削除する。
+ * <p/>
+ * {@link #setPooledEncoding(boolean)}を設定した場合は、スレッドごとに再利用するバッファにエンコードし、
+ * バッファの内容をコピーせずにステートメントにバインドする。
+ * この形式は本設定に対応していないバージョンでは読み込めないため、ローリングアップデート中は有効にしないこと
+ * ({@link #setPooledEncoding(boolean)}を参照)。
+ * <p/>
+ * {@link #setParallelCodec(ParallelSessionCodec)}を設定した場合は、エントリごとに独立してエンコードした形式で保存し、
+ * 大きなセッションのエンコード・デコードを並列に行う。
+ * <p/>
+ * 管理機能向けに、複数のセッションを一括で読み込む{@link #loadAll(Collection, ExecutionContext)}、
+ * 一括で削除する{@link #deleteAll(Collection, ExecutionContext)}、
+ * 所有者のセッションを全て無効化する{@link #invalidateByOwner(String)}を提供する。
+ * <p/>
+ * テナントごとにユーザセッションテーブルやデータベースを分ける場合は、本クラスを{@link RoutingDbStore}に設定する。
+ * <p/>
+ * ノードごとに保持するキャッシュは、{@link SessionChangeLogPoller}のリスナに本クラスを設定することで、
+ * 他のノードでの変更時に破棄される({@link #sessionChanged(String, SessionChangeType)}を参照)。
  *
  * @author TIS
  */
-public class DbStore extends SessionStore implements Initializable {
+public class DbStore extends SessionStore implements Initializable, SessionChangeListener {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(DbStore.class);
 
     /**
      * SimpleDbTransactionManagerのインスタンス。
@@ -47,6 +104,180 @@ public class DbStore extends SessionStore implements Initializable {
     /** ユーザセッションテーブルを削除するSQL */
     private String deleteUserSessionSql;
 
+    /** バージョンを条件に、ユーザセッションテーブルの有効期限だけを更新するSQL */
+    private String updateExpirationSql;
+
+    /** バージョンを条件に、ユーザセッションテーブルの有効期限とバージョンを更新するSQL */
+    private String updateVersionSql;
+
+    /** 一括読み込みで、1回のSQLで指定するセッションIDの数 */
+    private int bulkChunkSize = 100;
+
+    /** 一括読み込みでセッションIDを{@link #bulkChunkSize}個指定してユーザセッションテーブルを取得するSQL */
+    private String selectUserSessionsSql;
+
+    /** 所有者IDでユーザセッションテーブルのセッションIDを取得するSQL */
+    private String selectSessionIdsByOwnerSql;
+
+    /** 所有者IDでユーザセッションテーブルを削除するSQL */
+    private String deleteUserSessionsByOwnerSql;
+
+    /** セッション差分テーブルを取得するSQL */
+    private String selectDeltaSql;
+
+    /** セッション差分テーブルを追加するSQL */
+    private String insertDeltaSql;
+
+    /** セッション差分テーブルを削除するSQL */
+    private String deleteDeltaSql;
+
+    /** DBアクセスの同時実行数の制限(設定されていない場合は制限しない) */
+    private DbAccessLimiter dbAccessLimiter;
+
+    /** セッション差分テーブルのスキーマ(設定されていない場合は差分保存を行わない) */
+    private SessionDeltaSchema sessionDeltaSchema;
+
+    /** 全体を書き込むまでに追記する差分の最大件数 */
+    private int maxDeltaCount = 10;
+
+    /** 全体を書き込むまでに許容する、セッションオブジェクトのサイズに対する差分の合計サイズの比率 */
+    private double deltaCompactionRatio = 0.5;
+
+    /** 差分の作成元を保持するキャッシュの最大バイト数 */
+    private long deltaBaseCacheMaxBytes = 64L * 1024 * 1024;
+
+    /** 差分の作成元を保持するキャッシュ */
+    private WeightedLruCache<DeltaBase> deltaBaseCache;
+
+    /** 存在しないセッションIDを判定するフィルタ(設定されていない場合は常にDBにアクセスする) */
+    private SessionIdFilter sessionIdFilter;
+
+    /** {@link SessionOverflowStore}に保存したことを示す参照(既存の形式の先頭には現れないバイト列) */
+    private static final byte[] OVERFLOW_REFERENCE = {(byte) 0xFF, (byte) 0xFD, 'O', 'V'};
+
+    /** サイズの大きいセッションオブジェクトの保存先(設定されていない場合は全てユーザセッションテーブルに保存する) */
+    private SessionOverflowStore overflowStore;
+
+    /** {@link SessionOverflowStore}に保存するセッションオブジェクトのサイズの閾値 */
+    private int overflowThreshold = 64 * 1024;
+
+    /** {@link SessionOverflowStore}に保存したバージョンを保持するキャッシュの最大バイト数 */
+    private static final long OVERFLOW_VERSION_CACHE_MAX_BYTES = 4L * 1024 * 1024;
+
+    /** 参照を保存していないことを示す、{@link #overflowVersionCache}の値 */
+    private static final String NO_OVERFLOW = "";
+
+    /**
+     * このノードで保存したセッションの、{@link SessionOverflowStore}のバージョン
+     * ({@link SessionOverflowStore}を使用しない場合は{@code null})
+     */
+    private WeightedLruCache<String> overflowVersionCache;
+
+    /** ユーザセッションテーブルのセッションオブジェクトを有効期限に関わらず取得するSQL */
+    private String selectStoredObjectSql;
+
+    /** プールしたバッファでエンコードした形式であることを示すヘッダ(既存の形式の先頭には現れないバイト列) */
+    private static final byte[] POOLED_FORMAT_HEADER = {(byte) 0xFF, (byte) 0xFE, 'P', 'E'};
+
+    /** 共有値テーブルの値を参照する形式であることを示すヘッダ(既存の形式の先頭には現れないバイト列) */
+    private static final byte[] SHARED_FORMAT_HEADER = {(byte) 0xFF, (byte) 0xFC, 'D', 'V'};
+
+    /** 値を共有値テーブルに保存する形式のエントリの種類(値を含む) */
+    private static final int ENTRY_INLINE = 0;
+
+    /** 値を共有値テーブルに保存する形式のエントリの種類(ハッシュ値で参照する) */
+    private static final int ENTRY_SHARED = 1;
+
+    /** ノードのローカルファイルに保持する層(設定されていない場合は常にデータベースから読み込む) */
+    private MappedSessionTier localTier;
+
+    /** ユーザセッションテーブルからバージョンと、バージョンが異なる場合にセッションオブジェクトを取得するSQL */
+    private String selectVersionedSessionSql;
+
+    /** 共有値テーブルのスキーマ(設定されていない場合は値を共有しない) */
+    private SharedSessionValueSchema sharedValueSchema;
+
+    /** 共有値テーブルに保存する値のサイズの閾値 */
+    private int sharedValueThreshold = 4 * 1024;
+
+    /** 共有値テーブルの値を保持するキャッシュの最大バイト数 */
+    private long sharedValueCacheMaxBytes = 32L * 1024 * 1024;
+
+    /** 共有値テーブルへのアクセス(値を共有しない場合は{@code null}) */
+    private SharedSessionValues sharedValues;
+
+    /** プールしたバッファでエンコードするか否か */
+    private boolean pooledEncoding = false;
+
+    /** 再利用するエンコード用バッファの最大バイト数 */
+    private int encodeBufferMaxRetainedBytes = 1024 * 1024;
+
+    /** エンコード用バッファのプール(プールしたバッファでエンコードしない場合は{@code null}) */
+    private SessionEncodeBufferPool encodeBufferPool;
+
+    /** エントリごとに並列にエンコード・デコードを行うコーデック(設定されていない場合は逐次処理する) */
+    private ParallelSessionCodec parallelCodec;
+
+    /** セッションの値のエンコーダ */
+    private StateEncoder stateEncoder = new JavaSerializeStateEncoder();
+
+    /** 一意制約違反によりリトライした回数 */
+    private final AtomicLong duplicateRetryCount = new AtomicLong();
+
+    /** アクセスのないセッションを退避するコールドテーブルのスキーマ(設定されていない場合は退避しない) */
+    private UserSessionSchema coldSessionSchema;
+
+    /** コールドテーブルに移動するまでの、最終アクセスからの経過時間(秒) */
+    private long archiveIdleSeconds = 1200L;
+
+    /** コールドテーブルに移動する際に、1トランザクションで処理する件数 */
+    private int archiveBatchSize = 500;
+
+    /** コールドテーブルに移動する際に、セッションオブジェクトを圧縮するか否か */
+    private boolean compressArchive = false;
+
+    /** コールドテーブルへのアクセス(コールドテーブルを使用しない場合は{@code null}) */
+    private ColdSessionTier coldTier;
+
+    /** コールドテーブルから戻したセッションの有効期限を、退避した時点のものに戻すSQL */
+    private String restoreExpirationSql;
+
+    /** セッションに保存された値のサイズの集計(設定されていない場合は集計しない) */
+    private SessionSizeStatistics sizeStatistics;
+
+    /** セッションごとのサイズの上限(設定されていない場合は上限を設けない) */
+    private SessionQuota quota;
+
+    /** 有効期限の算出と判定に使用するデータベースの時計(設定されていない場合はアプリケーションの時刻を使用する) */
+    private DatabaseClock databaseClock;
+
+    /** 時間がかかった処理のログ出力(設定されていない場合は出力しない) */
+    private SlowOperationLogger slowOperationLogger;
+
+    /** セッション変更ログテーブルのスキーマ(設定されていない場合は変更ログを記録しない) */
+    private SessionChangeLogSchema changeLogSchema;
+
+    /** セッション変更ログテーブルへのアクセス(変更ログを記録しない場合は{@code null}) */
+    private SessionChangeLog changeLog;
+
+    /** このノードで記録し、まだ通知されていない保存の変更ログの件数(セッションIDごと) */
+    private WeightedLruCache<Integer> pendingOwnChanges;
+
+    /** {@link #pendingOwnChanges}に保持するセッションIDの最大数 */
+    private static final long PENDING_OWN_CHANGES_MAX_ENTRIES = 10000L;
+
+    /** ノードで共有するキャッシュのキーの接頭辞(保存先ごとに異なる。既定の保存先は空文字列) */
+    private String cacheKeyPrefix = "";
+
+    /** 初期化時のウォームアップでコネクションを取得する回数(0の場合はウォームアップを行わない) */
+    private int warmUpConnections = 0;
+
+    /** 初期化時に行うエンコード・デコードの回数 */
+    private int warmUpEncodeRounds = 1000;
+
+    /** 初期化時にユーザセッションテーブルの定義を検証するか否か */
+    private boolean validateSchema = false;
+
     /**
      * コンストラクタ。
      */
@@ -72,178 +303,2631 @@ public class DbStore extends SessionStore implements Initializable {
         this.userSessionSchema = userSessionSchema;
     }
 
+    /**
+     * DBアクセスの同時実行数の制限をセットする。
+     * <p/>
+     * 設定されていない場合、同時実行数は制限しない。
+     *
+     * @param dbAccessLimiter DBアクセスの同時実行数の制限
+     */
+    public void setDbAccessLimiter(DbAccessLimiter dbAccessLimiter) {
+        this.dbAccessLimiter = dbAccessLimiter;
+    }
+
+    /**
+     * セッション差分テーブルのスキーマをセットする。
+     * <p/>
+     * 設定した場合は差分保存モードとなる。
+     * 差分保存モードでは、ユーザセッションテーブルのバージョンカラム({@link UserSessionSchema#setVersionName(String)})が必須となる。
+     *
+     * @param sessionDeltaSchema セッション差分テーブルのスキーマ
+     */
+    public void setSessionDeltaSchema(SessionDeltaSchema sessionDeltaSchema) {
+        this.sessionDeltaSchema = sessionDeltaSchema;
+    }
+
+    /**
+     * 全体を書き込むまでに追記する差分の最大件数をセットする。
+     * <p/>
+     * デフォルトは10。
+     *
+     * @param maxDeltaCount 差分の最大件数
+     */
+    public void setMaxDeltaCount(int maxDeltaCount) {
+        this.maxDeltaCount = maxDeltaCount;
+    }
+
+    /**
+     * 全体を書き込むまでに許容する、セッションオブジェクトのサイズに対する差分の合計サイズの比率をセットする。
+     * <p/>
+     * デフォルトは0.5。
+     *
+     * @param deltaCompactionRatio 差分の合計サイズの比率
+     */
+    public void setDeltaCompactionRatio(double deltaCompactionRatio) {
+        this.deltaCompactionRatio = deltaCompactionRatio;
+    }
+
+    /**
+     * 差分の作成元を保持するキャッシュの最大バイト数をセットする。
+     * <p/>
+     * デフォルトは64MB。
+     *
+     * @param deltaBaseCacheMaxBytes キャッシュの最大バイト数
+     */
+    public void setDeltaBaseCacheMaxBytes(long deltaBaseCacheMaxBytes) {
+        this.deltaBaseCacheMaxBytes = deltaBaseCacheMaxBytes;
+    }
+
+    /**
+     * サイズの大きいセッションオブジェクトの保存先をセットする。
+     * <p/>
+     * 設定されていない場合は、サイズによらずユーザセッションテーブルに保存する。
+     * <p/>
+     * 保存の際は、以前のバージョンを削除するために、ユーザセッションテーブルに保存されている参照を確認する。
+     * このノードで保存したセッションの参照はキャッシュに保持し、それ以外のセッションの場合だけ
+     * ユーザセッションテーブルから読み込む。
+     * 複数のノードが同じセッションを保存した場合は、キャッシュが古くなり、
+     * 以前のバージョンが削除されずに残ることがある(読み込みには影響しない)。
+     * 残ったバージョンは、{@link FileSessionOverflowStore#deleteFilesOlderThan(long)}による定期的な削除や、
+     * セッションチャンクテーブルの外部キーによるカスケード削除で削除されるようにすること。
+     * <p/>
+     * 読み込みの途中で他のスレッドの保存がコミットされ、参照先が削除された場合は、ユーザセッションテーブルを読み直す。
+     * このため、トランザクション分離レベルはREAD COMMITTEDとすること。
+     *
+     * @param overflowStore サイズの大きいセッションオブジェクトの保存先
+     */
+    public void setOverflowStore(SessionOverflowStore overflowStore) {
+        this.overflowStore = overflowStore;
+    }
+
+    /**
+     * {@link SessionOverflowStore}に保存するセッションオブジェクトのサイズの閾値(バイト)をセットする。
+     * <p/>
+     * この値を超えるセッションオブジェクトを{@link SessionOverflowStore}に保存する。
+     * デフォルトは64KB。
+     *
+     * @param overflowThreshold サイズの閾値
+     */
+    public void setOverflowThreshold(int overflowThreshold) {
+        this.overflowThreshold = overflowThreshold;
+    }
+
+    /**
+     * 存在しないセッションIDを判定するフィルタをセットする。
+     * <p/>
+     * フィルタに含まれないセッションIDは、DBにアクセスせずに空のセッションとして扱う。
+     * このため、全てのセッションが本ノードで登録される環境でのみ使用できる(詳細は{@link SessionIdFilter}を参照)。
+     * 削除したことが確実なセッションIDは、削除がコミットされた後にフィルタから取り除く。
+     * 1つのユーザセッションテーブルから再構築するため、{@link RoutingDbStore}で保存先を分ける場合は設定できない。
+     * 設定されていない場合は、常にDBにアクセスする。
+     *
+     * @param sessionIdFilter 存在しないセッションIDを判定するフィルタ
+     */
+    public void setSessionIdFilter(SessionIdFilter sessionIdFilter) {
+        this.sessionIdFilter = sessionIdFilter;
+    }
+
     @Override
     public List<SessionEntry> load(final String sessionId,
             ExecutionContext executionContext) {
-        return new SimpleDbTransactionExecutor<List<SessionEntry>>(dbManager) {
-            @Override
-            public List<SessionEntry> execute(AppDbConnection connection) {
-                // ユーザセッションテーブルをロードする
-                SqlPStatement prepared = connection
-                        .prepareStatement(selectUserSessionSql);
-                prepared.setString(1, sessionId);
-                prepared.setTimestamp(2, new Timestamp(SystemTimeUtil
-                        .getTimestamp().getTime()));
-                
-                ResultSetIterator iterator = prepared.executeQuery();
-                if (iterator.next()) {
-                    byte[] sessionObject = iterator.getBytes(1);
-                    return sessionObject == null ?
-                            Collections.<SessionEntry>emptyList()
-                            : decode(sessionObject);
-                } else {
-                    return Collections.emptyList();
+        if (sessionIdFilter != null && !sessionIdFilter.mightContain(sessionId)) {
+            return Collections.emptyList();
+        }
+        final SessionIdKey key = SessionIdKey.of(sessionId, userSessionSchema);
+        if (!key.isValid()) {
+            return Collections.emptyList();
+        }
+        final SlowOperationLogger.Operation operation = startOperation("load", sessionId)
+                .setSql(selectUserSessionSql);
+        final DeltaBaseUpdates deltaBases = new DeltaBaseUpdates();
+        try {
+            final List<SessionEntry> entries = doTransaction(operation,
+                    new SimpleDbTransactionExecutor<List<SessionEntry>>(dbManager) {
+                @Override
+                public List<SessionEntry> execute(AppDbConnection connection) {
+                    if (localTier != null) {
+                        return loadThroughLocalTier(key, operation, deltaBases, connection);
+                    }
+                    return loadUserSession(key, operation, deltaBases, connection);
                 }
-            }
-        }.doTransaction();
+            });
+            deltaBases.publish();
+            operation.addRows(entries.isEmpty() ? 0 : 1);
+            return entries;
+        } finally {
+            operation.end();
+        }
+    }
 
+    /**
+     * ユーザセッションテーブルからセッションを読み込む。
+     * <p/>
+     * ユーザセッションテーブルに有効な行が存在しない場合は、コールドテーブルから戻して読み込む。
+     *
+     * @param key セッションID
+     * @param operation 計測中の処理
+     * @param deltaBases 差分の作成元の更新
+     * @param connection {@link AppDbConnection}
+     * @return セッションに保存された情報
+     */
+    private List<SessionEntry> loadUserSession(final SessionIdKey key, final SlowOperationLogger.Operation operation,
+            final DeltaBaseUpdates deltaBases, final AppDbConnection connection) {
+        final SqlPStatement prepared = connection.prepareStatement(selectUserSessionSql);
+        key.bind(prepared, 1);
+        bindNow(prepared, 2, SystemTimeUtil.getTimestamp().getTime());
+        final ResultSetIterator iterator = prepared.executeQuery();
+        if (iterator.next()) {
+            final byte[] sessionObject = iterator.getBytes(1);
+            operation.setEncodedSize(sessionObject == null ? 0 : sessionObject.length);
+            return toSessionEntries(key.getSessionId(), sessionObject, readVersion(iterator, 2), deltaBases,
+                    connection);
+        }
+        return loadMissing(key, deltaBases, connection);
     }
 
     /**
-     * ユーザセッションテーブルにセッション情報を保存する。
-     * <p>
-     * 新規でセッション情報を保存する場合で複数スレッドから同時に本処理が呼び出された場合、
-     * 登録処理(insert)が同時実行され片方の処理が一意制約違反となる。
-     * このため、一意制約違反が発生した場合には、1回だけリトライを実施する。
+     * ユーザセッションテーブルに有効な行が存在しないセッションを読み込む。
+     * <p/>
+     * コールドテーブルに退避されている場合は、ユーザセッションテーブルに戻して読み込む。
+     *
+     * @param key セッションID
+     * @param deltaBases 差分の作成元の更新
+     * @param connection {@link AppDbConnection}
+     * @return セッションに保存された情報。存在しない場合は空のリスト
      */
-    @Override
-    public void save(final String sessionId, final List<SessionEntry> entries,
-                       ExecutionContext executionContext) {
-        try {
-            saveSession(sessionId, entries);
-        } catch (DuplicateStatementException e) {
-            // 一意制約違反発生時には、一度だけリトライを行う。
-            saveSession(sessionId, entries);
+    private List<SessionEntry> loadMissing(final SessionIdKey key, final DeltaBaseUpdates deltaBases,
+            final AppDbConnection connection) {
+        if (coldTier != null) {
+            final List<SessionEntry> promoted = promote(key, deltaBases, connection);
+            if (promoted != null) {
+                return promoted;
+            }
         }
+        if (sessionDeltaSchema != null) {
+            deltaBaseCache.remove(cacheKey(key.getSessionId()));
+        }
+        return Collections.emptyList();
     }
 
-    @Override
-    public void delete(final String sessionId, final ExecutionContext executionContext) {
-        new SimpleDbTransactionExecutor<Void>(dbManager) {
-            @Override
-            public Void execute(AppDbConnection connection) {
-                deleteUserSession(sessionId, connection);
-                return null;
+    /**
+     * ローカルファイルに保持した内容を使用してセッションを読み込む。
+     * <p/>
+     * ローカルファイルに保持したバージョンを条件に、バージョンが異なる場合だけセッションオブジェクトを取得する。
+     * 1回の検索で、一致した場合はローカルファイルの内容を使用し、異なる場合は取得した内容をローカルファイルに保持する。
+     *
+     * @param key セッションID
+     * @param operation 計測中の処理
+     * @param deltaBases 差分の作成元の更新
+     * @param connection {@link AppDbConnection}
+     * @return セッションに保存された情報
+     */
+    private List<SessionEntry> loadThroughLocalTier(final SessionIdKey key,
+            final SlowOperationLogger.Operation operation, final DeltaBaseUpdates deltaBases,
+            final AppDbConnection connection) {
+        final String sessionId = key.getSessionId();
+        final long localVersion = localTier.versionOf(cacheKey(sessionId));
+        final SqlPStatement select = connection.prepareStatement(selectVersionedSessionSql);
+        select.setLong(1, localVersion);
+        key.bind(select, 2);
+        bindNow(select, 3, SystemTimeUtil.getTimestamp().getTime());
+        final ResultSetIterator iterator = select.executeQuery();
+        if (!iterator.next()) {
+            return loadMissing(key, deltaBases, connection);
+        }
+        final Long version = iterator.getLong(1);
+        final byte[] storedObject = iterator.getBytes(2);
+        if (storedObject == null && version != null && version == localVersion) {
+            final byte[] local = localTier.get(cacheKey(sessionId), localVersion);
+            if (local != null) {
+                return decodeResolved(sessionId, local, connection);
             }
-        }.doTransaction();
+            // 検索の間に他のスレッドがローカルファイルの内容を置き換えた場合は、改めて読み込む
+            return loadUserSession(key, operation, deltaBases, connection);
+        }
+        localTier.recordMiss();
+        operation.setEncodedSize(storedObject == null ? 0 : storedObject.length);
+        final byte[] sessionObject = resolveSessionObject(sessionId, storedObject, version, deltaBases, connection);
+        if (sessionObject == null) {
+            return Collections.emptyList();
+        }
+        if (version != null) {
+            localTier.put(cacheKey(sessionId), version, sessionObject);
+        }
+        return decodeResolved(sessionId, sessionObject, connection);
     }
 
-    @Override
-    public void invalidate(final String sessionId, final ExecutionContext executionContext) {
-        delete(sessionId, executionContext);
+    /**
+     * コールドテーブルに退避されたセッションを、ユーザセッションテーブルに戻して読み込む。
+     * <p/>
+     * 他のスレッドが同時に戻した場合は、戻された後のユーザセッションテーブルの内容を読み込む。
+     *
+     * @param key セッションID
+     * @param deltaBases 差分の作成元の更新
+     * @param connection {@link AppDbConnection}
+     * @return セッションに保存された情報。コールドテーブルにも存在しない場合は{@code null}
+     */
+    private List<SessionEntry> promote(final SessionIdKey key, final DeltaBaseUpdates deltaBases,
+            final AppDbConnection connection) {
+        final String sessionId = key.getSessionId();
+        final long now = SystemTimeUtil.getTimestamp().getTime();
+        final ColdSessionTier.ColdSession cold = coldTier.take(sessionId, now, connection);
+        if (cold == null) {
+            return null;
+        }
+        if (cold.taken) {
+            if (cold.sessionObject == null) {
+                return Collections.emptyList();
+            }
+            // 有効期限切れの行が残っている場合は上書きする
+            final SessionEncodeBuffer sessionObject = SessionEncodeBuffer.wrap(cold.sessionObject);
+            final long version = newVersion();
+            if (updateUserSession(key, sessionObject, cold.ownerId, version, connection) == 0) {
+                insertUserSession(key, sessionObject, cold.ownerId, version, connection);
+            }
+            restoreExpiration(key, cold.expiration, connection);
+            return toSessionEntries(sessionId, cold.sessionObject, version, deltaBases, connection);
+        }
+        final SqlPStatement select = connection.prepareStatement(selectUserSessionSql);
+        key.bind(select, 1);
+        bindNow(select, 2, now);
+        final ResultSetIterator iterator = select.executeQuery();
+        return iterator.next()
+                ? toSessionEntries(sessionId, iterator.getBytes(1), readVersion(iterator, 2), deltaBases, connection)
+                : null;
     }
 
     /**
-     * ユーザセッションテーブルにセッション情報を登録する。
-     * <p>
-     * 保存対象のセッション情報が空の場合は、テーブルからレコードを削除する。
-     * それ以外の場合は、更新処理を行う。更新対象が存在しない場合には、新規にセッションが追加された場合なので、レコードの追加を行う。
+     * アクセスのないセッションをコールドテーブルに移動する。
+     * <p/>
+     * 最終アクセスから{@link #setArchiveIdleSeconds(long)}以上経過した、有効期限切れでないセッションが対象となる。
+     * (最終アクセス日時は、有効期限からセッションの有効期間を引いて求める)
+     * {@link #setArchiveBatchSize(int)}件ごとにトランザクションをコミットし、対象がなくなるまで繰り返す。
+     * 移動したセッションは、次に読み込まれた際に退避した時点の有効期限でユーザセッションテーブルに戻される。
+     * <p/>
+     * 共有値テーブルを使用する場合は、コールドテーブルにある間に参照している値が削除されないよう、
+     * 移動したセッションが参照している値の有効期限をセッションの有効期限まで延長する。
+     * <p/>
+     * 移動が終わった後、有効期限切れのセッションをコールドテーブルから削除する。
+     * ({@link ExpiredSessionPurger}はユーザセッションテーブルだけを対象とするため、コールドテーブルの削除は本メソッドで行う)
+     * <p/>
+     * 定期的に実行するバッチなどから呼び出すこと。
      *
-     * @param sessionId セッションID
-     * @param entries セッションに保存する情報
+     * @return 移動の対象として取得したセッションの数
      */
-    private void saveSession(final String sessionId, final List<SessionEntry> entries) {
-        new SimpleDbTransactionExecutor<Void>(dbManager) {
-            @Override
-            public Void execute(AppDbConnection connection) {
-                // セッションが空の場合は削除のみ
-                if (entries == null || entries.isEmpty()) {
-                    deleteUserSession(sessionId, connection);
-                    return null;
+    public int archiveIdleSessions() {
+        if (coldTier == null) {
+            throw new IllegalStateException("coldSessionSchema was not specified.");
+        }
+        int total = 0;
+        while (true) {
+            final List<SharedSessionValues.Stored> extendedValues = new ArrayList<SharedSessionValues.Stored>();
+            final int count = doTransaction(new SimpleDbTransactionExecutor<Integer>(dbManager) {
+                @Override
+                public Integer execute(AppDbConnection connection) {
+                    extendedValues.clear();
+                    final long now = SystemTimeUtil.getTimestamp().getTime();
+                    final long idleBefore = now + getExpiresMilliSeconds() - archiveIdleSeconds * 1000L;
+                    final List<ColdSessionTier.ArchivedSession> archived =
+                            new ArrayList<ColdSessionTier.ArchivedSession>();
+                    final int fetched = coldTier.archive(now, idleBefore, archiveBatchSize, archived, connection);
+                    if (sharedValues != null) {
+                        for (ColdSessionTier.ArchivedSession session : archived) {
+                            extendSharedValues(session, extendedValues, connection);
+                        }
+                    }
+                    return fetched;
                 }
+            });
+            if (sharedValues != null) {
+                sharedValues.commit(extendedValues);
+            }
+            total += count;
+            if (count < archiveBatchSize) {
+                break;
+            }
+        }
+        doTransaction(new SimpleDbTransactionExecutor<Integer>(dbManager) {
+            @Override
+            public Integer execute(AppDbConnection connection) {
+                return coldTier.purgeExpired(SystemTimeUtil.getTimestamp().getTime(), connection);
+            }
+        });
+        return total;
+    }
 
-                // 更新処理を行い更新対象がない場合は登録処理を行う
-                final int count = updateUserSession(sessionId, entries, connection);
-                if (count == 0) {
-                    insertUserSession(sessionId, entries, connection);
-                } 
-                return null;
+    /**
+     * コールドテーブルに移動したセッションが参照している共有値の有効期限を、セッションの有効期限まで延長する。
+     *
+     * @param session コールドテーブルに移動したセッション
+     * @param extendedValues キャッシュに反映する値を追加するリスト
+     * @param connection {@link AppDbConnection}
+     */
+    private void extendSharedValues(final ColdSessionTier.ArchivedSession session,
+            final List<SharedSessionValues.Stored> extendedValues, final AppDbConnection connection) {
+        if (session.sessionObject == null) {
+            return;
+        }
+        // 差分はコールドテーブルに移動しないため、反映してから参照しているハッシュ値を取得する
+        final byte[] sessionObject = resolveSessionObject(
+                session.sessionId, session.sessionObject, null, new DeltaBaseUpdates(), connection);
+        if (sessionObject == null || !startsWith(sessionObject, SHARED_FORMAT_HEADER)) {
+            return;
+        }
+        for (String hash : sharedHashesOf(sessionObject)) {
+            final SharedSessionValues.Stored extended = sharedValues.extend(hash, session.expiration, connection);
+            if (extended != null) {
+                extendedValues.add(extended);
             }
-        }.doTransaction();
+        }
     }
 
     /**
-     * ユーザセッションを更新する。
-     * @param sessionId セッションID
-     * @param entries セッションエントリ
+     * コールドテーブルから戻したセッションの有効期限(と有効期限バケット)を、退避した時点のものに戻す。
+     * <p/>
+     * 有効期限はデータベースの時計を使用する場合も、退避した時点の値をそのまま使用する。
+     *
+     * @param key セッションID
+     * @param expiration 退避した時点の有効期限
      * @param connection {@link AppDbConnection}
-     * @return 更新件数
      */
-    private int updateUserSession(final String sessionId, final List<SessionEntry> entries,
+    private void restoreExpiration(final SessionIdKey key, final long expiration,
             final AppDbConnection connection) {
-        final SqlPStatement update = connection.prepareStatement(updateUserSessionSql);
-        update.setBytes(1, encode(entries));
-        update.setTimestamp(2, new Timestamp(SystemTimeUtil.getTimestamp().getTime()
-                + getExpiresMilliSeconds()));
-        update.setString(3, sessionId);
+        final SqlPStatement update = connection.prepareStatement(restoreExpirationSql);
+        int index = 1;
+        update.setTimestamp(index++, new Timestamp(expiration));
+        if (userSessionSchema.getExpirationBucketName() != null) {
+            update.setLong(index++, userSessionSchema.toExpirationBucket(expiration));
+        }
+        key.bind(update, index);
+        update.executeUpdate();
+    }
 
-        return update.executeUpdate();
+    /**
+     * 有効期限を過ぎた共有値テーブルの値を削除する。
+     * <p/>
+     * 定期的に実行するバッチなどから呼び出すこと。
+     *
+     * @return 削除件数
+     */
+    public int purgeSharedValues() {
+        if (sharedValues == null) {
+            throw new IllegalStateException("sharedValueSchema was not specified.");
+        }
+        return doTransaction(new SimpleDbTransactionExecutor<Integer>(dbManager) {
+            @Override
+            public Integer execute(AppDbConnection connection) {
+                return sharedValues.purgeExpired(SystemTimeUtil.getTimestamp().getTime(), connection);
+            }
+        });
     }
 
     /**
-     * ユーザセッションテーブルにセッションの内容を挿入する。
+     * ユーザセッションテーブルの内容からセッションに保存された情報を復元する。
      *
      * @param sessionId セッションID
-     * @param entries セッションエントリ
+     * @param storedObject ユーザセッションテーブルのセッションオブジェクト
+     * @param rowVersion ユーザセッションテーブルのバージョン(不明な場合は{@code null})
+     * @param deltaBases 差分の作成元の更新
      * @param connection {@link AppDbConnection}
+     * @return セッションに保存された情報
      */
-    private void insertUserSession(
-            final String sessionId, final List<SessionEntry> entries, final AppDbConnection connection) {
-        final SqlPStatement insertStatement = connection.prepareStatement(insertUserSessionSql);
-        insertStatement.setString(1, sessionId);
-        insertStatement.setBytes(2, encode(entries));
-        insertStatement.setTimestamp(3, new Timestamp(SystemTimeUtil.getTimestamp().getTime()
-                + getExpiresMilliSeconds()));
-        insertStatement.executeUpdate();
+    private List<SessionEntry> toSessionEntries(final String sessionId, final byte[] storedObject,
+            final Long rowVersion, final DeltaBaseUpdates deltaBases, final AppDbConnection connection) {
+        return decodeResolved(sessionId,
+                resolveSessionObject(sessionId, storedObject, rowVersion, deltaBases, connection), connection);
     }
 
     /**
-     * ユーザセッションテーブルからセッションの内容を削除する。
+     * ユーザセッションテーブルの内容に、{@link SessionOverflowStore}の内容やセッション差分テーブルの差分を反映する。
      *
      * @param sessionId セッションID
+     * @param storedObject ユーザセッションテーブルのセッションオブジェクト
+     * @param rowVersion ユーザセッションテーブルのバージョン(不明な場合は{@code null})
+     * @param deltaBases 差分の作成元の更新
      * @param connection {@link AppDbConnection}
+     * @return セッションオブジェクト
      */
-    private void deleteUserSession(final String sessionId, final AppDbConnection connection) {
-        final SqlPStatement deleteStatement = connection
-                .prepareStatement(deleteUserSessionSql);
-        deleteStatement.setString(1, sessionId);
-        deleteStatement.executeUpdate();
+    private byte[] resolveSessionObject(final String sessionId, final byte[] storedObject,
+            final Long rowVersion, final DeltaBaseUpdates deltaBases, final AppDbConnection connection) {
+        byte[] sessionObject = storedObject;
+        final String version = overflowVersionOf(sessionObject);
+        if (version != null) {
+            sessionObject = loadOverflow(sessionId, version, connection);
+        }
+        if (sessionObject != null && sessionDeltaSchema != null) {
+            sessionObject = applyDeltas(sessionId, sessionObject, rowVersion, deltaBases, connection);
+        }
+        return sessionObject;
     }
 
     /**
-     * 初期化処理。
+     * 検索結果からユーザセッションテーブルのバージョンを取得する。
+     *
+     * @param iterator 検索結果
+     * @param index バージョンカラムのインデックス
+     * @return バージョン。バージョンカラムが設定されていない場合や、値が{@code null}の場合は{@code null}
      */
-    public void initialize() {
-        if (userSessionSchema == null) {
-            // デフォルトのユーザセッションスキーマをセットする
-            userSessionSchema = new UserSessionSchema();
-            userSessionSchema.setTableName("USER_SESSION");
-            userSessionSchema.setSessionIdName("SESSION_ID");
-            userSessionSchema.setSessionObjectName("SESSION_OBJECT");
-            userSessionSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+    private Long readVersion(final ResultSetIterator iterator, final int index) {
+        return userSessionSchema.getVersionName() == null ? null : iterator.getLong(index);
+    }
+
+    /**
+     * {@link #resolveSessionObject(String, byte[], Long, DeltaBaseUpdates, AppDbConnection)}で反映したセッションオブジェクトをデコードする。
+     *
+     * @param sessionId セッションID
+     * @param sessionObject セッションオブジェクト
+     * @param connection {@link AppDbConnection}
+     * @return セッションに保存された情報
+     */
+    private List<SessionEntry> decodeResolved(final String sessionId, final byte[] sessionObject,
+            final AppDbConnection connection) {
+        if (sessionObject != null && sharedValues != null && startsWith(sessionObject, SHARED_FORMAT_HEADER)) {
+            return decodeShared(sessionId, sessionObject, connection);
         }
+        return sessionObject == null ?
+                Collections.<SessionEntry>emptyList()
+                : decode(sessionObject);
+    }
 
-        // SQL文を初期化する。
-        selectUserSessionSql = "SELECT " + userSessionSchema.getSessionObjectName()
-                + " FROM " + userSessionSchema.getTableName() + " " + " WHERE "
-                + userSessionSchema.getSessionIdName() + " = ? " + " AND "
-                + userSessionSchema.getExpirationDatetimeName() + " >= ?";
+    /**
+     * 複数のセッションを一括で読み込む。
+     * <p/>
+     * {@link #setBulkChunkSize(int)}の数ごとに、IN句でセッションIDを指定したSQLで読み込む。
+     * 全てのSQLは1つのトランザクションで実行する。
+     *
+     * @param sessionIds セッションID
+     * @param executionContext 実行コンテキスト
+     * @return セッションIDとセッションに保存された情報のマップ(有効なセッションが存在しないセッションIDは含まない)
+     */
+    public Map<String, List<SessionEntry>> loadAll(final Collection<String> sessionIds,
+            ExecutionContext executionContext) {
+        final List<SessionIdKey> keys = new ArrayList<SessionIdKey>(sessionIds.size());
+        for (String sessionId : sessionIds) {
+            final SessionIdKey key = SessionIdKey.of(sessionId, userSessionSchema);
+            if (key.isValid() && (sessionIdFilter == null || sessionIdFilter.mightContain(sessionId))) {
+                keys.add(key);
+            }
+        }
+        if (keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final SlowOperationLogger.Operation operation = startOperation("loadAll", null).setSql(selectUserSessionsSql);
+        final DeltaBaseUpdates deltaBases = new DeltaBaseUpdates();
+        try {
+            final Map<String, List<SessionEntry>> loaded = doTransaction(operation,
+                    new SimpleDbTransactionExecutor<Map<String, List<SessionEntry>>>(dbManager) {
+                @Override
+                public Map<String, List<SessionEntry>> execute(AppDbConnection connection) {
+                    final Map<String, List<SessionEntry>> result = new LinkedHashMap<String, List<SessionEntry>>();
+                    final long now = SystemTimeUtil.getTimestamp().getTime();
+                    for (int from = 0; from < keys.size(); from += bulkChunkSize) {
+                        final List<SessionIdKey> chunk = keys.subList(from, Math.min(from + bulkChunkSize, keys.size()));
+                        final SqlPStatement select = connection.prepareStatement(chunk.size() == bulkChunkSize
+                                ? selectUserSessionsSql
+                                : createSelectUserSessionsSql(chunk.size()));
+                        int index = 1;
+                        for (SessionIdKey key : chunk) {
+                            key.bind(select, index++);
+                        }
+                        bindNow(select, index, now);
+                        final ResultSetIterator iterator = select.executeQuery();
+                        while (iterator.next()) {
+                            final String sessionId = readSessionId(iterator, 1);
+                            final List<SessionEntry> entries = toSessionEntries(
+                                    sessionId, iterator.getBytes(2), readVersion(iterator, 3), deltaBases, connection);
+                            if (!entries.isEmpty()) {
+                                result.put(sessionId, entries);
+                            }
+                        }
+                    }
+                    return result;
+                }
+            });
+            deltaBases.publish();
+            operation.addRows(loaded.size());
+            return loaded;
+        } finally {
+            operation.end();
+        }
+    }
 
-        insertUserSessionSql = "INSERT INTO "
-                + userSessionSchema.getTableName() + " ( "
-                + userSessionSchema.getSessionIdName() + ", "
-                + userSessionSchema.getSessionObjectName() + ", "
-                + userSessionSchema.getExpirationDatetimeName()
-                + ") VALUES (?,?,?)";
+    /**
+     * 複数のセッションを一括で削除する。
+     * <p/>
+     * ユーザセッションテーブルの削除はバッチで実行し、全ての削除を1つのトランザクションで行う。
+     * 削除したセッションIDは、削除件数が分かる場合だけ{@link SessionIdFilter}から取り除く。
+     * (ドライバが削除件数を返さない場合は、次の再構築で取り除かれる)
+     *
+     * @param sessionIds セッションID
+     * @param executionContext 実行コンテキスト
+     */
+    public void deleteAll(final Collection<String> sessionIds, ExecutionContext executionContext) {
+        final List<SessionIdKey> keys = new ArrayList<SessionIdKey>(sessionIds.size());
+        for (String sessionId : sessionIds) {
+            final SessionIdKey key = SessionIdKey.of(sessionId, userSessionSchema);
+            if (key.isValid()) {
+                keys.add(key);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        final SlowOperationLogger.Operation operation = startOperation("deleteAll", null).setSql(deleteUserSessionSql);
+        final OverflowUpdates overflow = new OverflowUpdates();
+        final List<String> removedIds = new ArrayList<String>();
+        final int deleted;
+        try {
+            deleted = doTransaction(operation, new SimpleDbTransactionExecutor<Integer>(dbManager) {
+                @Override
+                public Integer execute(AppDbConnection connection) {
+                    removedIds.clear();
+                    for (SessionIdKey key : keys) {
+                        overflow.remove(key, connection);
+                    }
+                    final SqlPStatement delete = connection.prepareStatement(deleteUserSessionSql);
+                    for (SessionIdKey key : keys) {
+                        key.bind(delete, 1);
+                        delete.addBatch();
+                    }
+                    final int[] counts = delete.executeBatch();
+                    int result = 0;
+                    for (int i = 0; i < keys.size(); i++) {
+                        final String sessionId = keys.get(i).getSessionId();
+                        int count = Math.max(counts[i], 0);
+                        if (coldTier != null) {
+                            count += coldTier.delete(sessionId, connection);
+                        }
+                        // 件数が分からない場合(Statement.SUCCESS_NO_INFO)は削除されたものとして扱う
+                        if (count > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                            deleteAttachments(sessionId, connection);
+                        }
+                        if (count > 0) {
+                            removedIds.add(sessionId);
+                        }
+                        result += count;
+                    }
+                    return result;
+                }
+            });
+            overflow.commit();
+            for (String sessionId : removedIds) {
+                removeFromFilter(sessionId);
+            }
+            operation.addRows(deleted);
+        } finally {
+            operation.end();
+        }
+    }
 
-        deleteUserSessionSql = "DELETE FROM "
-                + userSessionSchema.getTableName() + " WHERE "
+    /**
+     * 所有者のセッションを全て無効化する。
+     * <p/>
+     * ユーザセッションテーブルのスキーマに所有者IDカラム({@link UserSessionSchema#setOwnerIdName(String)})が
+     * 設定されていることを前提とする。
+     * パスワード変更やアカウントロックの際に、全ての端末のセッションを無効化するために使用する。
+     * <p/>
+     * 所有者IDカラムの索引を使用した1つのDELETE文で削除する。
+     * {@link SessionOverflowStore}、差分保存モード、変更ログのいずれかを使用している場合は、
+     * それらの後始末のために、同じトランザクションで事前に対象のセッションIDを取得する。
+     * セッションIDごとの削除件数が分からないため、{@link SessionIdFilter}からは取り除かない(次の再構築で取り除かれる)。
+     *
+     * @param ownerId 所有者ID
+     * @return 無効化したセッションの数
+     */
+    public int invalidateByOwner(final String ownerId) {
+        if (deleteUserSessionsByOwnerSql == null) {
+            throw new IllegalStateException("ownerIdName of userSessionSchema was not specified.");
+        }
+        final Set<String> sessionIds = new LinkedHashSet<String>();
+        final SlowOperationLogger.Operation operation = startOperation("invalidateByOwner", null)
+                .setSql(deleteUserSessionsByOwnerSql);
+        final OverflowUpdates overflow = new OverflowUpdates();
+        final int count;
+        try {
+            count = doTransaction(operation, new SimpleDbTransactionExecutor<Integer>(dbManager) {
+                @Override
+                public Integer execute(AppDbConnection connection) {
+                    if (overflowStore != null || sessionDeltaSchema != null || changeLog != null) {
+                        sessionIds.addAll(findSessionIdsByOwner(ownerId, connection));
+                        for (String sessionId : sessionIds) {
+                            overflow.remove(SessionIdKey.of(sessionId, userSessionSchema), connection);
+                        }
+                        if (coldTier != null) {
+                            sessionIds.addAll(coldTier.findSessionIdsByOwner(ownerId, connection));
+                        }
+                    }
+                    final SqlPStatement delete = connection.prepareStatement(deleteUserSessionsByOwnerSql);
+                    delete.setString(1, ownerId);
+                    int deleted = delete.executeUpdate();
+                    if (coldTier != null) {
+                        deleted += coldTier.deleteByOwner(ownerId, connection);
+                    }
+                    for (String sessionId : sessionIds) {
+                        deleteAttachments(sessionId, connection);
+                    }
+                    return deleted;
+                }
+            });
+            overflow.commit();
+            operation.addRows(count);
+        } finally {
+            operation.end();
+        }
+        return count;
+    }
+
+    /**
+     * 所有者のセッションIDを取得する。
+     * <p/>
+     * 有効期限切れのセッションも含む。
+     * ユーザセッションテーブルのスキーマに所有者IDカラムが設定されていることを前提とする。
+     *
+     * @param ownerId 所有者ID
+     * @return セッションID
+     */
+    public List<String> findSessionIdsByOwner(final String ownerId) {
+        if (selectSessionIdsByOwnerSql == null) {
+            throw new IllegalStateException("ownerIdName of userSessionSchema was not specified.");
+        }
+        return doTransaction(new SimpleDbTransactionExecutor<List<String>>(dbManager) {
+            @Override
+            public List<String> execute(AppDbConnection connection) {
+                return findSessionIdsByOwner(ownerId, connection);
+            }
+        });
+    }
+
+    /**
+     * 所有者のセッションIDを取得する。
+     *
+     * @param ownerId 所有者ID
+     * @param connection {@link AppDbConnection}
+     * @return セッションID
+     */
+    private List<String> findSessionIdsByOwner(final String ownerId, final AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectSessionIdsByOwnerSql);
+        select.setString(1, ownerId);
+        final ResultSetIterator iterator = select.executeQuery();
+        final List<String> sessionIds = new ArrayList<String>();
+        while (iterator.next()) {
+            sessionIds.add(readSessionId(iterator, 1));
+        }
+        return sessionIds;
+    }
+
+    /**
+     * 検索結果からセッションIDを取得する。
+     *
+     * @param iterator 検索結果
+     * @param index カラムのインデックス
+     * @return セッションID
+     */
+    private String readSessionId(final ResultSetIterator iterator, final int index) {
+        return userSessionSchema.isBinarySessionId()
+                ? SessionIdKey.toSessionId(iterator.getBytes(index))
+                : iterator.getString(index);
+    }
+
+    /**
+     * アクセスのないセッションを退避するコールドテーブルのスキーマをセットする。
+     * <p/>
+     * 設定した場合、{@link #archiveIdleSessions()}でアクセスのないセッションをコールドテーブルに移動できる。
+     * ユーザセッションテーブルに存在しないセッションを読み込む際はコールドテーブルを参照し、
+     * 存在する場合はユーザセッションテーブルに戻してから返す。
+     * これにより、ユーザセッションテーブルを頻繁にアクセスされるセッションだけの小さなテーブルに保つことができる。
+     * <p/>
+     * コールドテーブルのセッションオブジェクトカラム以外の構成は、ユーザセッションテーブルと同じにすること。
+     * ユーザセッションテーブルに所有者IDカラムを設定している場合は、コールドテーブルにも設定すること。
+     * {@link #loadAll(Collection, ExecutionContext)}はコールドテーブルを参照しない。
+     * <p/>
+     * 有効期限の管理に、ユーザセッションテーブルを参照する{@link nablarch.common.web.session.DbManagedExpiration}を
+     * 使用している場合、移動したセッションは有効期限切れと判定されるため、本機能は使用できない。
+     * {@link SessionIdFilter}を使用する場合は、{@link SessionIdFilter#setColdSessionSchema(UserSessionSchema)}にも
+     * 同じスキーマを設定すること。
+     *
+     * @param coldSessionSchema コールドテーブルのスキーマ
+     */
+    public void setColdSessionSchema(UserSessionSchema coldSessionSchema) {
+        this.coldSessionSchema = coldSessionSchema;
+    }
+
+    /**
+     * コールドテーブルに移動するまでの、最終アクセスからの経過時間(秒)をセットする。
+     * <p/>
+     * デフォルトは1200秒(20分)。
+     *
+     * @param archiveIdleSeconds 最終アクセスからの経過時間(秒)
+     */
+    public void setArchiveIdleSeconds(long archiveIdleSeconds) {
+        this.archiveIdleSeconds = archiveIdleSeconds;
+    }
+
+    /**
+     * コールドテーブルに移動する際に、1トランザクションで処理する件数をセットする。
+     * <p/>
+     * デフォルトは500。
+     *
+     * @param archiveBatchSize 1トランザクションで処理する件数
+     */
+    public void setArchiveBatchSize(int archiveBatchSize) {
+        this.archiveBatchSize = archiveBatchSize;
+    }
+
+    /**
+     * コールドテーブルに移動する際に、セッションオブジェクトを圧縮するか否かをセットする。
+     * <p/>
+     * 圧縮の有無に関わらず、どちらの形式も読み込むことができる。
+     * デフォルトは{@code false}。
+     *
+     * @param compressArchive 圧縮する場合は{@code true}
+     */
+    public void setCompressArchive(boolean compressArchive) {
+        this.compressArchive = compressArchive;
+    }
+
+    /**
+     * セッションに保存された値のサイズを集計する{@link SessionSizeStatistics}をセットする。
+     * <p/>
+     * 設定した場合、保存時にサンプリングしてキーごと・値のクラスごとのサイズを記録する。
+     * 設定されていない場合は集計しない。
+     *
+     * @param sizeStatistics セッションに保存された値のサイズの集計
+     */
+    public void setSizeStatistics(SessionSizeStatistics sizeStatistics) {
+        this.sizeStatistics = sizeStatistics;
+    }
+
+    /**
+     * セッションごとのサイズの上限を設定する{@link SessionQuota}をセットする。
+     * <p/>
+     * 設定した場合、保存時にデータベースへアクセスする前にエンコードしたサイズを判定する。
+     * 上限を超えたセッションを{@link OverflowQuotaPolicy}で扱う場合は、{@link #setOverflowStore(SessionOverflowStore)}も設定すること。
+     * 設定されていない場合は上限を設けない。
+     *
+     * @param quota セッションごとのサイズの上限
+     */
+    public void setQuota(SessionQuota quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * 最近使用したセッションオブジェクトをノードのローカルファイルに保持する{@link MappedSessionTier}をセットする。
+     * <p/>
+     * 設定した場合、読み込み時にはローカルファイルに保持したバージョンを条件にユーザセッションテーブルを検索し、
+     * バージョンが一致すればセッションオブジェクトをデータベースから取得せずに使用する。
+     * バージョンが異なる場合は、同じ検索でセッションオブジェクトを取得し、ローカルファイルに保持する。
+     * 保存時には、保存した内容と採番したバージョンをローカルファイルに書き込む。
+     * <p/>
+     * ユーザセッションテーブルのスキーマにバージョンカラム({@link UserSessionSchema#setVersionName(String)})が
+     * 設定されていることを前提とする。
+     * <p/>
+     * {@link RoutingDbStore}で保存先を分ける場合は、保存先ごとにキーを分けて同じファイルを使用する。
+     * 設定されていない場合は、常にデータベースから読み込む。
+     *
+     * @param localTier ノードのローカルファイルに保持する層
+     */
+    public void setLocalTier(MappedSessionTier localTier) {
+        this.localTier = localTier;
+    }
+
+    /**
+     * 共有値テーブルのスキーマをセットする。
+     * <p/>
+     * 設定した場合、エンコードしたサイズが{@link #setSharedValueThreshold(int)}以上の値を、
+     * ハッシュ値をキーとして共有値テーブルに1行だけ保存し、ユーザセッションテーブルにはハッシュ値だけを保存する。
+     * 多くのセッションが同じ内容の大きな値(コードマスタの一覧など)を保持する場合に、保存するサイズを削減できる。
+     * 読み込んだ値はノードごとにキャッシュするため、同じ値の読み込みではデータベースにアクセスしない。
+     * <p/>
+     * 共有値テーブルの行は、参照するセッションの保存時に、セッションの有効期限から更に有効期間だけ後まで延長する。
+     * (既に有効期限の方が長い場合は短縮しない)
+     * 有効期限を過ぎた行は{@link #purgeSharedValues()}で削除する。
+     * {@link nablarch.common.web.session.DbManagedExpiration}で有効期限だけを延長しても共有値テーブルの行は延長しないため、
+     * セッションは有効期間の2倍を超えて保存されない状態が続かないこと(リクエストごとに保存されること)を前提とする。
+     * 参照する値が削除されたセッションは、無効なセッションとして扱う。
+     * 設定されていない場合は値を共有しない。
+     *
+     * @param sharedValueSchema 共有値テーブルのスキーマ
+     */
+    public void setSharedValueSchema(SharedSessionValueSchema sharedValueSchema) {
+        this.sharedValueSchema = sharedValueSchema;
+    }
+
+    /**
+     * 共有値テーブルに保存する値のサイズの閾値(バイト)をセットする。
+     * <p/>
+     * デフォルトは4KB。
+     *
+     * @param sharedValueThreshold 共有値テーブルに保存する値のサイズの閾値
+     */
+    public void setSharedValueThreshold(int sharedValueThreshold) {
+        this.sharedValueThreshold = sharedValueThreshold;
+    }
+
+    /**
+     * 共有値テーブルの値を保持するキャッシュの最大バイト数をセットする。
+     * <p/>
+     * {@link RoutingDbStore}で保存先を分けた場合も、すべての保存先の合計の上限となる。
+     * デフォルトは32MB。
+     *
+     * @param sharedValueCacheMaxBytes 共有値テーブルの値を保持するキャッシュの最大バイト数
+     */
+    public void setSharedValueCacheMaxBytes(long sharedValueCacheMaxBytes) {
+        this.sharedValueCacheMaxBytes = sharedValueCacheMaxBytes;
+    }
+
+    /**
+     * 有効期限の算出と判定に使用する{@link DatabaseClock}をセットする。
+     * <p/>
+     * 設定した場合、ユーザセッションテーブルの読み込みと有効期限の更新で、
+     * アプリケーションの時刻をバインドせずにデータベースの現在日時を使用する。
+     * 有効期限バケットとコールドテーブルへの移動は、引き続きアプリケーションの時刻で算出する。
+     * このため、有効期限バケットが有効期限と一致しないことがある。
+     * {@link ExpiredSessionPurger}には同じ{@link DatabaseClock}を設定し、行ごとの有効期限で削除を判定させること。
+     * 設定されていない場合は、アプリケーションの時刻を使用する。
+     *
+     * @param databaseClock データベースの時計
+     */
+    public void setDatabaseClock(DatabaseClock databaseClock) {
+        this.databaseClock = databaseClock;
+    }
+
+    /**
+     * 時間がかかった処理をログに出力する{@link SlowOperationLogger}をセットする。
+     * <p/>
+     * 設定した場合、読み込み・保存・削除と一括処理の時間を計測する。
+     * 設定されていない場合は出力しない。
+     *
+     * @param slowOperationLogger 時間がかかった処理のログ出力
+     */
+    public void setSlowOperationLogger(SlowOperationLogger slowOperationLogger) {
+        this.slowOperationLogger = slowOperationLogger;
+    }
+
+    /**
+     * セッション変更ログテーブルのスキーマをセットする。
+     * <p/>
+     * 設定した場合、セッションの保存・削除と同じトランザクションで変更ログを追記する。
+     * 他のノードでの変更は{@link SessionChangeLogPoller}で受け取ることができる。
+     * 保存先が複数ある場合は、保存先ごとのデータベースの変更ログテーブルに記録するため、
+     * 保存先ごとに{@link SessionChangeLogPoller}を設定すること。
+     * 設定されていない場合は記録しない。
+     *
+     * @param changeLogSchema セッション変更ログテーブルのスキーマ
+     */
+    public void setChangeLogSchema(SessionChangeLogSchema changeLogSchema) {
+        this.changeLogSchema = changeLogSchema;
+    }
+
+    /**
+     * 一括読み込みで、1回のSQLで指定するセッションIDの数をセットする。
+     * <p/>
+     * データベースのIN句やバインド変数の数の上限を超えないよう指定すること。
+     * デフォルトは100。
+     *
+     * @param bulkChunkSize 1回のSQLで指定するセッションIDの数
+     */
+    public void setBulkChunkSize(int bulkChunkSize) {
+        this.bulkChunkSize = bulkChunkSize;
+    }
+
+    /**
+     * ユーザセッションテーブルにセッション情報を保存する。
+     * <p>
+     * 新規でセッション情報を保存する場合で複数スレッドから同時に本処理が呼び出された場合、
+     * 登録処理(insert)が同時実行され片方の処理が一意制約違反となる。
+     * このため、一意制約違反が発生した場合には、1回だけリトライを実施する。
+     * <p>
+     * セッションIDをバイナリで保存する設定で、セッションIDがUUID形式でない場合は、
+     * {@link #load(String, ExecutionContext)}で読み込めないため保存しない。
+     */
+    @Override
+    public void save(final String sessionId, final List<SessionEntry> entries,
+                       ExecutionContext executionContext) {
+        final SessionIdKey key = SessionIdKey.of(sessionId, userSessionSchema);
+        if (!key.isValid()) {
+            return;
+        }
+        if (sizeStatistics != null) {
+            sizeStatistics.sample(entries, stateEncoder);
+        }
+        // サイズの上限を超える場合は、データベースへアクセスする前に扱いを決定する
+        List<SessionEntry> toSave = entries;
+        byte[] encoded = null;
+        boolean forceOverflow = false;
+        if (quota != null && entries != null && !entries.isEmpty()) {
+            encoded = encodeForSave(entries);
+            final SessionQuotaDecision decision = quota.check(sessionId, entries, encoded.length, stateEncoder);
+            if (decision != null && decision.isOverflow()) {
+                if (overflowStore == null) {
+                    throw new IllegalStateException("overflowStore must be specified to overflow sessions exceeding the quota.");
+                }
+                forceOverflow = true;
+            } else if (decision != null) {
+                toSave = decision.getEntries();
+                encoded = toSave.isEmpty() ? null : encodeForSave(toSave);
+                quota.verify(sessionId, encoded == null ? 0 : encoded.length);
+            }
+        }
+        final SlowOperationLogger.Operation operation = startOperation("save", sessionId)
+                .setSql(updateUserSessionSql);
+        try {
+            saveSession(key, toSave, encoded, forceOverflow, operation);
+        } catch (DuplicateStatementException e) {
+            // 一意制約違反発生時には、一度だけリトライを行う。
+            duplicateRetryCount.incrementAndGet();
+            operation.retried();
+            saveSession(key, toSave, encoded, forceOverflow, operation);
+        } finally {
+            operation.end();
+        }
+    }
+
+    /**
+     * 一意制約違反によりリトライした回数を取得する。
+     *
+     * @return リトライした回数
+     */
+    public long getDuplicateRetryCount() {
+        return duplicateRetryCount.get();
+    }
+
+    @Override
+    public void delete(final String sessionId, final ExecutionContext executionContext) {
+        final SessionIdKey key = SessionIdKey.of(sessionId, userSessionSchema);
+        if (!key.isValid()) {
+            return;
+        }
+        final SlowOperationLogger.Operation operation = startOperation("delete", sessionId)
+                .setSql(deleteUserSessionSql);
+        final OverflowUpdates overflow = new OverflowUpdates();
+        final int count;
+        try {
+            count = doTransaction(operation, new SimpleDbTransactionExecutor<Integer>(dbManager) {
+                @Override
+                public Integer execute(AppDbConnection connection) {
+                    return deleteUserSession(key, overflow, connection);
+                }
+            });
+            overflow.commit();
+            if (count > 0) {
+                removeFromFilter(sessionId);
+            }
+            operation.addRows(count);
+        } finally {
+            operation.end();
+        }
+        if (localTier != null) {
+            localTier.remove(cacheKey(sessionId));
+        }
+    }
+
+    @Override
+    public void invalidate(final String sessionId, final ExecutionContext executionContext) {
+        delete(sessionId, executionContext);
+    }
+
+    /**
+     * ユーザセッションテーブルにセッション情報を登録する。
+     * <p>
+     * 保存対象のセッション情報が空の場合は、テーブルからレコードを削除する。
+     * それ以外の場合は、更新処理を行う。更新対象が存在しない場合には、新規にセッションが追加された場合なので、レコードの追加を行う。
+     *
+     * @param key セッションID
+     * @param entries セッションに保存する情報
+     * @param encoded エンコード済みのセッションオブジェクト(未エンコードの場合は{@code null})
+     * @param forceOverflow サイズに関わらず{@link SessionOverflowStore}に保存する場合は{@code true}
+     * @param operation 計測中の処理
+     */
+    private void saveSession(final SessionIdKey key, final List<SessionEntry> entries,
+            final byte[] encoded, final boolean forceOverflow, final SlowOperationLogger.Operation operation) {
+        final String sessionId = key.getSessionId();
+        final List<SharedSessionValues.Stored> storedValues = new ArrayList<SharedSessionValues.Stored>();
+        final LocalTierWrite localWrite = new LocalTierWrite();
+        final DeltaBaseUpdates deltaBases = new DeltaBaseUpdates();
+        final OverflowUpdates overflow = new OverflowUpdates();
+        final long version = newVersion();
+        final boolean ownChange = changeLog != null && entries != null && !entries.isEmpty();
+        if (ownChange) {
+            // 変更ログはコミットされると通知されうるため、コミット前に記録する
+            countOwnChange(sessionId, 1);
+        }
+        try {
+            final int deleted = doTransaction(operation, new SimpleDbTransactionExecutor<Integer>(dbManager) {
+                @Override
+                public Integer execute(AppDbConnection connection) {
+                    // セッションが空の場合は削除のみ
+                    if (entries == null || entries.isEmpty()) {
+                        return deleteUserSession(key, overflow, connection);
+                    }
+                    if (changeLog != null) {
+                        changeLog.append(sessionId, SessionChangeType.SAVE, connection);
+                    }
+
+                    if (encoded == null && encodeBufferPool != null && sessionDeltaSchema == null
+                            && sharedValues == null && localTier == null) {
+                        savePooled(key, entries, overflow, operation, connection);
+                        return 0;
+                    }
+
+                    // 値を共有する場合は、サイズの判定に使用したエンコード結果は使用しない
+                    final byte[] sessionObject = sharedValues != null
+                            ? encodeShared(entries, storedValues, connection)
+                            : encoded != null ? encoded : encodeForSave(entries);
+                    operation.setEncodedSize(sessionObject.length);
+                    if (!forceOverflow && sessionDeltaSchema != null
+                            && saveDelta(key, sessionObject, version, deltaBases, connection)) {
+                        localWrite.prepare(sessionObject, version);
+                        return 0;
+                    }
+
+                    // 更新処理を行い更新対象がない場合は登録処理を行う
+                    writeUserSession(key, SessionEncodeBuffer.wrap(
+                            overflow.store(key, sessionObject, forceOverflow, connection)), version, connection);
+                    if (sessionDeltaSchema != null) {
+                        deleteDeltas(sessionId, connection);
+                        deltaBases.stage(sessionId, new DeltaBase(sessionObject, version, 0, 0, 0));
+                    }
+                    localWrite.prepare(sessionObject, version);
+                    return 0;
+                }
+            });
+            operation.addRows(entries == null || entries.isEmpty() ? deleted : 1);
+            if (deleted > 0) {
+                removeFromFilter(sessionId);
+            }
+            if (sharedValues != null) {
+                sharedValues.commit(storedValues);
+            }
+            deltaBases.publish();
+            overflow.commit();
+            localWrite.commit(sessionId);
+        } catch (RuntimeException e) {
+            if (ownChange) {
+                countOwnChange(sessionId, -1);
+            }
+            // コミットされたか分からない内容を差分の作成元として使わないよう破棄する
+            if (sessionDeltaSchema != null) {
+                deltaBaseCache.remove(cacheKey(sessionId));
+            }
+            if (localTier != null) {
+                localTier.remove(cacheKey(sessionId));
+            }
+            overflow.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * プールしたバッファにエンコードしたセッションオブジェクトを保存する。
+     * <p/>
+     * サイズが閾値を超え{@link SessionOverflowStore}に保存する場合を除き、バッファの内容はコピーしない。
+     *
+     * @param key セッションID
+     * @param entries セッションに保存する情報
+     * @param overflow {@link SessionOverflowStore}の更新
+     * @param operation 計測中の処理
+     * @param connection {@link AppDbConnection}
+     */
+    private void savePooled(final SessionIdKey key, final List<SessionEntry> entries, final OverflowUpdates overflow,
+            final SlowOperationLogger.Operation operation, final AppDbConnection connection) {
+        final SessionEncodeBuffer buffer = encodeBufferPool.acquire();
+        try {
+            encodePooled(entries, buffer);
+            operation.setEncodedSize(buffer.size());
+            if (overflowStore != null && buffer.size() > overflowThreshold) {
+                writeUserSession(key, SessionEncodeBuffer.wrap(
+                        overflow.store(key, buffer.toByteArray(), false, connection)), newVersion(), connection);
+            } else {
+                overflow.remove(key, connection);
+                writeUserSession(key, buffer, newVersion(), connection);
+            }
+        } finally {
+            encodeBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * 保存する形式でエンコードする。
+     *
+     * @param entries セッションに保存する情報
+     * @return エンコードしたセッションオブジェクト
+     */
+    private byte[] encodeForSave(final List<SessionEntry> entries) {
+        if (encodeBufferPool != null) {
+            return encodePooledToBytes(entries);
+        }
+        if (parallelCodec != null) {
+            final SessionEncodeBuffer buffer = new SessionEncodeBuffer(1024);
+            encodePooled(entries, buffer);
+            return buffer.toByteArray();
+        }
+        return encode(entries);
+    }
+
+    /**
+     * プールしたバッファを使用してエンコードし、バイト配列にコピーする。
+     *
+     * @param entries セッションに保存する情報
+     * @return エンコードしたセッションオブジェクト
+     */
+    private byte[] encodePooledToBytes(final List<SessionEntry> entries) {
+        final SessionEncodeBuffer buffer = encodeBufferPool.acquire();
+        try {
+            encodePooled(entries, buffer);
+            return buffer.toByteArray();
+        } finally {
+            encodeBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * セッションに保存する情報をバッファにエンコードする。
+     * <p/>
+     * 形式はヘッダに続いて、エントリごとにキー、値のクラス名、値のバイト数、値({@link StateEncoder}でエンコードしたもの)を並べたもの。
+     * 値が{@code null}の場合、クラス名は空文字列とする。
+     * 値はエントリごとに独立してエンコードするため、{@link ParallelSessionCodec}を設定した場合は並列にエンコードする。
+     *
+     * @param entries セッションに保存する情報
+     * @param buffer バッファ
+     */
+    void encodePooled(final List<SessionEntry> entries, final SessionEncodeBuffer buffer) {
+        final byte[][] encodedValues = parallelCodec == null ? null : parallelCodec.encode(keysOf(entries), valuesOf(entries), stateEncoder);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.write(POOLED_FORMAT_HEADER);
+            for (int i = 0; i < entries.size(); i++) {
+                final SessionEntry entry = entries.get(i);
+                final Object value = entry.getValue();
+                out.writeUTF(entry.getKey());
+                if (value == null) {
+                    out.writeUTF("");
+                    out.writeInt(0);
+                } else {
+                    final byte[] encoded = encodedValues == null ? stateEncoder.encode(value) : encodedValues[i];
+                    out.writeUTF(value.getClass().getName());
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStreamへの書き込みでは発生しない
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * セッションに保存するキーを取得する。
+     *
+     * @param entries セッションに保存する情報
+     * @return エントリごとのキー
+     */
+    private static List<String> keysOf(final List<SessionEntry> entries) {
+        final List<String> keys = new ArrayList<String>(entries.size());
+        for (SessionEntry entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * セッションに保存する値を取得する。
+     *
+     * @param entries セッションに保存する情報
+     * @return エントリごとの値
+     */
+    private static List<Object> valuesOf(final List<SessionEntry> entries) {
+        final List<Object> values = new ArrayList<Object>(entries.size());
+        for (SessionEntry entry : entries) {
+            values.add(entry.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * セッションオブジェクトをデコードする。
+     * <p/>
+     * プールしたバッファでエンコードした形式の場合は本クラスでデコードし、
+     * それ以外の場合は{@link SessionStore}の実装でデコードする。
+     *
+     * @param encoded エンコードしたセッションオブジェクト
+     * @return セッションに保存する情報
+     */
+    @Override
+    protected List<SessionEntry> decode(byte[] encoded) {
+        if (!startsWith(encoded, POOLED_FORMAT_HEADER)) {
+            return super.decode(encoded);
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                encoded, POOLED_FORMAT_HEADER.length, encoded.length - POOLED_FORMAT_HEADER.length));
+        final List<SessionEntry> entries = new ArrayList<SessionEntry>();
+        final List<String> keys = new ArrayList<String>();
+        final List<byte[]> values = new ArrayList<byte[]>();
+        final List<Class<?>> types = new ArrayList<Class<?>>();
+        try {
+            while (in.available() > 0) {
+                final String key = in.readUTF();
+                final String className = in.readUTF();
+                final byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                if (parallelCodec == null) {
+                    entries.add(new SessionEntry(key,
+                            className.length() == 0 ? null : stateEncoder.decode(value, loadClass(className)), this));
+                } else {
+                    // クラスはリクエストスレッドのクラスローダでロードしておく
+                    keys.add(key);
+                    values.add(value);
+                    types.add(className.length() == 0 ? null : loadClass(className));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to decode session object.", e);
+        }
+        if (parallelCodec == null) {
+            return entries;
+        }
+        final Object[] decoded = parallelCodec.decode(keys, values, types, stateEncoder);
+        for (int i = 0; i < keys.size(); i++) {
+            entries.add(new SessionEntry(keys.get(i), decoded[i], this));
+        }
+        return entries;
+    }
+
+    /**
+     * 大きな値を共有値テーブルに保存し、ハッシュ値で参照する形式でエンコードする。
+     * <p/>
+     * 形式はヘッダに続いて、エントリごとにキー、値のクラス名、エントリの種類を並べ、
+     * 種類に応じて値のバイト数と値、または値のハッシュ値を続けたもの。
+     * 値が{@code null}の場合、クラス名は空文字列とする。
+     *
+     * @param entries セッションに保存する情報
+     * @param storedValues 共有値テーブルに保存した値を追加するリスト
+     * @param connection {@link AppDbConnection}
+     * @return エンコードしたセッションオブジェクト
+     */
+    private byte[] encodeShared(final List<SessionEntry> entries,
+            final List<SharedSessionValues.Stored> storedValues, final AppDbConnection connection) {
+        storedValues.clear();
+        final long sessionExpiration = SystemTimeUtil.getTimestamp().getTime() + getExpiresMilliSeconds();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(SHARED_FORMAT_HEADER);
+            for (SessionEntry entry : entries) {
+                final Object value = entry.getValue();
+                final byte[] encoded = value == null ? new byte[0] : stateEncoder.encode(value);
+                out.writeUTF(entry.getKey());
+                out.writeUTF(value == null ? "" : value.getClass().getName());
+                if (encoded.length < sharedValueThreshold) {
+                    out.writeByte(ENTRY_INLINE);
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                } else {
+                    final String hash = SharedSessionValues.hash(encoded);
+                    final SharedSessionValues.Stored stored =
+                            sharedValues.store(hash, encoded, sessionExpiration, connection);
+                    if (stored != null) {
+                        storedValues.add(stored);
+                    }
+                    out.writeByte(ENTRY_SHARED);
+                    out.writeUTF(hash);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStreamへの書き込みでは発生しない
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 共有値テーブルの値を参照する形式のセッションオブジェクトをデコードする。
+     * <p/>
+     * 参照する値が共有値テーブルに存在しない場合(有効期限切れで削除された場合など)は、
+     * 一部のエントリだけを復元するとアプリケーションが不整合な状態を参照するため、
+     * ログを出力し、セッション全体を無効(空)として扱う。
+     *
+     * @param sessionId セッションID
+     * @param encoded エンコードしたセッションオブジェクト
+     * @param connection {@link AppDbConnection}
+     * @return セッションに保存する情報
+     */
+    private List<SessionEntry> decodeShared(final String sessionId, final byte[] encoded,
+            final AppDbConnection connection) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                encoded, SHARED_FORMAT_HEADER.length, encoded.length - SHARED_FORMAT_HEADER.length));
+        final List<String> keys = new ArrayList<String>();
+        final List<String> classNames = new ArrayList<String>();
+        final List<Object> values = new ArrayList<Object>();
+        final List<String> hashes = new ArrayList<String>();
+        try {
+            while (in.available() > 0) {
+                keys.add(in.readUTF());
+                classNames.add(in.readUTF());
+                if (in.readByte() == ENTRY_INLINE) {
+                    final byte[] value = new byte[in.readInt()];
+                    in.readFully(value);
+                    values.add(value);
+                } else {
+                    final String hash = in.readUTF();
+                    values.add(hash);
+                    hashes.add(hash);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to decode session object.", e);
+        }
+        final Map<String, byte[]> shared = hashes.isEmpty()
+                ? Collections.<String, byte[]>emptyMap()
+                : sharedValues.load(hashes, connection);
+
+        final List<SessionEntry> entries = new ArrayList<SessionEntry>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final Object value = values.get(i);
+            final byte[] bytes = value instanceof String ? shared.get(value) : (byte[]) value;
+            if (bytes == null) {
+                LOGGER.logWarn("shared session value was not found. the session is treated as invalid."
+                        + " session id hash = " + SlowOperationLogger.hash(sessionId)
+                        + ", key = " + keys.get(i) + ", hash = " + value);
+                return Collections.emptyList();
+            }
+            final String className = classNames.get(i);
+            entries.add(new SessionEntry(keys.get(i),
+                    className.length() == 0 ? null : stateEncoder.decode(bytes, loadClass(className)), this));
+        }
+        return entries;
+    }
+
+    /**
+     * 共有値テーブルの値を参照する形式のセッションオブジェクトから、参照しているハッシュ値を取得する。
+     *
+     * @param encoded エンコードしたセッションオブジェクト
+     * @return ハッシュ値
+     */
+    private static Set<String> sharedHashesOf(final byte[] encoded) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                encoded, SHARED_FORMAT_HEADER.length, encoded.length - SHARED_FORMAT_HEADER.length));
+        final Set<String> hashes = new LinkedHashSet<String>();
+        try {
+            while (in.available() > 0) {
+                in.readUTF();
+                in.readUTF();
+                if (in.readByte() == ENTRY_INLINE) {
+                    in.skipBytes(in.readInt());
+                } else {
+                    hashes.add(in.readUTF());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to decode session object.", e);
+        }
+        return hashes;
+    }
+
+    /**
+     * クラスをロードする。
+     *
+     * @param className クラス名
+     * @return クラス
+     */
+    private static Class<?> loadClass(final String className) {
+        try {
+            final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            return loader == null ? Class.forName(className) : Class.forName(className, true, loader);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("failed to load class of session entry. class = " + className, e);
+        }
+    }
+
+    /**
+     * バイト配列が指定したバイト列で始まるかを判定する。
+     *
+     * @param bytes バイト配列
+     * @param prefix 先頭のバイト列
+     * @return 始まる場合は{@code true}
+     */
+    private static boolean startsWith(final byte[] bytes, final byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ユーザセッションテーブルの内容が、他のテーブルやファイルを参照する形式の場合は、その形式の名前を取得する。
+     * <p/>
+     * 参照する形式の内容は、参照先と合わせて移さないと復元できないため、
+     * {@link UserSessionTransfer}で移すことができるかの判定に使用する。
+     *
+     * @param storedObject ユーザセッションテーブルの内容
+     * @return 形式の名前。参照しない形式の場合は{@code null}
+     */
+    static String referencingFormatOf(final byte[] storedObject) {
+        if (storedObject == null) {
+            return null;
+        }
+        if (startsWith(storedObject, OVERFLOW_REFERENCE)) {
+            return "overflow reference";
+        }
+        if (startsWith(storedObject, SHARED_FORMAT_HEADER)) {
+            return "shared value";
+        }
+        return null;
+    }
+
+    /**
+     * ユーザセッションテーブルを更新し、更新対象がない場合は登録する。
+     *
+     * @param key セッションID
+     * @param sessionObject セッションオブジェクト
+     * @param version バージョン
+     * @param connection {@link AppDbConnection}
+     */
+    private void writeUserSession(final SessionIdKey key, final SessionEncodeBuffer sessionObject,
+            final long version, final AppDbConnection connection) {
+        final String ownerId = ThreadContext.getUserId();
+        final int count = updateUserSession(key, sessionObject, ownerId, version, connection);
+        if (count == 0) {
+            if (coldTier != null) {
+                // コールドテーブルに退避されていた古い内容は破棄する
+                coldTier.delete(key.getSessionId(), connection);
+            }
+            insertUserSession(key, sessionObject, ownerId, version, connection);
+        }
+    }
+
+    /**
+     * 前回保存した内容からの差分を保存する。
+     * <p/>
+     * 前回保存した内容がキャッシュにない場合や、全体を書き込むべき場合は何もせずに{@code false}を返す。
+     * ユーザセッションテーブルのバージョンが前回保存した内容のバージョンと一致しない場合
+     * (他のノードやスレッドが保存した場合や、セッションが削除された場合)も、{@code false}を返す。
+     *
+     * @param key セッションID
+     * @param sessionObject セッションオブジェクト
+     * @param version バージョン
+     * @param deltaBases 差分の作成元の更新
+     * @param connection {@link AppDbConnection}
+     * @return 差分を保存した場合は{@code true}
+     */
+    private boolean saveDelta(final SessionIdKey key, final byte[] sessionObject, final long version,
+            final DeltaBaseUpdates deltaBases, final AppDbConnection connection) {
+        final String sessionId = key.getSessionId();
+        final DeltaBase base = deltaBaseCache.get(cacheKey(sessionId));
+        if (base == null || base.count >= maxDeltaCount) {
+            return false;
+        }
+        if (Arrays.equals(base.sessionObject, sessionObject)) {
+            // 内容に変更がない場合は有効期限の更新だけを行う(バージョンは変えない)
+            final SqlPStatement update = connection.prepareStatement(updateExpirationSql);
+            final int index = bindExpiration(update, 1);
+            key.bind(update, index);
+            update.setLong(index + 1, base.version);
+            return update.executeUpdate() != 0;
+        }
+        final byte[] delta = BinaryDelta.diff(base.sessionObject, sessionObject);
+        final long totalDeltaBytes = base.totalDeltaBytes + delta.length;
+        if (totalDeltaBytes > sessionObject.length * deltaCompactionRatio) {
+            return false;
+        }
+        final SqlPStatement update = connection.prepareStatement(updateVersionSql);
+        final int index = bindVersion(update, bindExpiration(update, 1), version);
+        key.bind(update, index);
+        update.setLong(index + 1, base.version);
+        if (update.executeUpdate() == 0) {
+            return false;
+        }
+        final int sequence = base.sequence + 1;
+        final SqlPStatement insert = connection.prepareStatement(insertDeltaSql);
+        insert.setString(1, sessionId);
+        insert.setInt(2, sequence);
+        insert.setBytes(3, delta);
+        insert.executeUpdate();
+        deltaBases.stage(sessionId,
+                new DeltaBase(sessionObject, version, sequence, base.count + 1, totalDeltaBytes));
+        return true;
+    }
+
+    /**
+     * セッションオブジェクトにセッション差分テーブルの差分を適用する。
+     * <p/>
+     * 差分はユーザセッションテーブルのバージョンを条件に追記するため、通常は全ての差分を適用できる。
+     * 作成元と一致しない差分が含まれていた場合はそれ以降を適用せず、次回の保存時に全体を書き込むようにする。
+     * ユーザセッションテーブルのバージョンが不明な場合は、差分の作成元をキャッシュしない。
+     *
+     * @param sessionId セッションID
+     * @param sessionObject ユーザセッションテーブルのセッションオブジェクト
+     * @param rowVersion ユーザセッションテーブルのバージョン(不明な場合は{@code null})
+     * @param deltaBases 差分の作成元の更新
+     * @param connection {@link AppDbConnection}
+     * @return 差分を適用したセッションオブジェクト
+     */
+    private byte[] applyDeltas(final String sessionId, final byte[] sessionObject, final Long rowVersion,
+            final DeltaBaseUpdates deltaBases, final AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectDeltaSql);
+        select.setString(1, sessionId);
+        final ResultSetIterator iterator = select.executeQuery();
+
+        byte[] current = sessionObject;
+        int sequence = 0;
+        int count = 0;
+        long totalDeltaBytes = 0;
+        boolean applicable = true;
+        while (iterator.next()) {
+            sequence = iterator.getInteger(1);
+            count++;
+            final byte[] delta = iterator.getBytes(2);
+            totalDeltaBytes += delta.length;
+            if (applicable) {
+                final byte[] applied = BinaryDelta.apply(current, delta);
+                if (applied == null) {
+                    applicable = false;
+                } else {
+                    current = applied;
+                }
+            }
+        }
+        if (rowVersion != null) {
+            deltaBases.stage(sessionId, new DeltaBase(current, rowVersion, sequence,
+                    applicable ? count : maxDeltaCount, totalDeltaBytes));
+        }
+        return current;
+    }
+
+    /**
+     * ユーザセッションテーブルの内容が{@link SessionOverflowStore}への参照である場合は、参照先のバージョンを取得する。
+     * <p/>
+     * 参照の形式は、ヘッダに続いてバージョンを並べたもの。
+     *
+     * @param storedObject ユーザセッションテーブルの内容
+     * @return 参照先のバージョン。参照でない場合は{@code null}
+     */
+    private String overflowVersionOf(final byte[] storedObject) {
+        if (overflowStore == null || storedObject == null || !startsWith(storedObject, OVERFLOW_REFERENCE)) {
+            return null;
+        }
+        try {
+            return new DataInputStream(new ByteArrayInputStream(storedObject,
+                    OVERFLOW_REFERENCE.length, storedObject.length - OVERFLOW_REFERENCE.length)).readUTF();
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read overflow reference.", e);
+        }
+    }
+
+    /**
+     * {@link SessionOverflowStore}への参照を作成する。
+     *
+     * @param version 参照先のバージョン
+     * @return ユーザセッションテーブルに保存する参照
+     */
+    private static byte[] toOverflowReference(final String version) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(OVERFLOW_REFERENCE);
+            out.writeUTF(version);
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStreamへの書き込みでは発生しない
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * {@link SessionOverflowStore}からセッションオブジェクトを読み込む。
+     * <p/>
+     * ユーザセッションテーブルを読み込んだ後に他のスレッドの保存がコミットされ、参照先が削除されていた場合は、
+     * ユーザセッションテーブルを読み直して、新しい内容を読み込む。
+     *
+     * @param sessionId セッションID
+     * @param version 参照先のバージョン
+     * @param connection {@link AppDbConnection}
+     * @return セッションオブジェクト。存在しない場合は{@code null}
+     */
+    private byte[] loadOverflow(final String sessionId, final String version, final AppDbConnection connection) {
+        final byte[] sessionObject = overflowStore.load(sessionId, version, connection);
+        if (sessionObject != null) {
+            return sessionObject;
+        }
+        final byte[] reloaded = selectStoredObject(SessionIdKey.of(sessionId, userSessionSchema), connection);
+        final String reloadedVersion = overflowVersionOf(reloaded);
+        if (reloadedVersion == null) {
+            return reloaded;
+        }
+        return reloadedVersion.equals(version) ? null : overflowStore.load(sessionId, reloadedVersion, connection);
+    }
+
+    /**
+     * ユーザセッションテーブルのセッションオブジェクトを、有効期限に関わらず取得する。
+     *
+     * @param key セッションID
+     * @param connection {@link AppDbConnection}
+     * @return セッションオブジェクト。行が存在しない場合は{@code null}
+     */
+    private byte[] selectStoredObject(final SessionIdKey key, final AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectStoredObjectSql);
+        key.bind(select, 1);
+        final ResultSetIterator iterator = select.executeQuery();
+        return iterator.next() ? iterator.getBytes(1) : null;
+    }
+
+    /**
+     * セッション差分テーブルからセッションの差分を削除する。
+     *
+     * @param sessionId セッションID
+     * @param connection {@link AppDbConnection}
+     */
+    private void deleteDeltas(final String sessionId, final AppDbConnection connection) {
+        final SqlPStatement delete = connection.prepareStatement(deleteDeltaSql);
+        delete.setString(1, sessionId);
+        delete.executeUpdate();
+    }
+
+    /**
+     * トランザクションを実行する。
+     * <p/>
+     * DBアクセスの同時実行数の制限が設定されている場合は、その範囲内で実行する。
+     *
+     * @param executor 実行するトランザクション
+     * @param <T> トランザクションの実行結果の型
+     * @return トランザクションの実行結果
+     */
+    private <T> T doTransaction(SimpleDbTransactionExecutor<T> executor) {
+        if (dbAccessLimiter == null) {
+            return executor.doTransaction();
+        }
+        return dbAccessLimiter.doTransaction(executor);
+    }
+
+    /**
+     * コネクションの取得とトランザクション内の処理の時間を計測しながら、トランザクションを実行する。
+     *
+     * @param operation 計測中の処理
+     * @param executor 実行するトランザクション
+     * @param <T> トランザクションの実行結果の型
+     * @return トランザクションの実行結果
+     */
+    private <T> T doTransaction(SlowOperationLogger.Operation operation, SimpleDbTransactionExecutor<T> executor) {
+        return doTransaction(operation.wrap(dbManager, executor));
+    }
+
+    /**
+     * セッションの変更を受け取り、このノードで保持している内容を破棄する。
+     * <p/>
+     * {@link SessionChangeLogPoller#setListeners(List)}に本ストアを設定して使用する。
+     * 保存・削除の変更を受け取った場合は、差分の作成元、{@link SessionOverflowStore}の参照先のバージョン、
+     * ローカルファイルに保持した内容を破棄する。
+     * (これらは読み込み時にバージョンなどを確認するため、破棄しなくても古い内容は使用されないが、
+     * 他のノードでの変更後に不要となった内容を保持し続けないよう破棄する)
+     * このノードで保存した変更は、保存時にキャッシュへ反映済みのため破棄しない。
+     * 有効期限の更新では内容が変わらないため何もしない。
+     * 共有値テーブルの値はハッシュ値をキーとしており、セッションの変更によって内容が変わることはないため破棄しない。
+     *
+     * @param sessionId セッションID
+     * @param changeType 変更の種類
+     */
+    @Override
+    public void sessionChanged(String sessionId, SessionChangeType changeType) {
+        if (changeType != SessionChangeType.EXPIRATION
+                && !(changeType == SessionChangeType.SAVE && countOwnChange(sessionId, -1))) {
+            if (deltaBaseCache != null) {
+                deltaBaseCache.remove(cacheKey(sessionId));
+            }
+            if (overflowVersionCache != null) {
+                overflowVersionCache.remove(cacheKey(sessionId));
+            }
+            if (localTier != null) {
+                localTier.remove(cacheKey(sessionId));
+            }
+        }
+    }
+
+    /**
+     * このノードで記録した、まだ通知されていない保存の変更ログの件数を増減する。
+     * <p/>
+     * 件数を減らす場合、記録した件数がなければ何もしない。
+     * 保持するセッションIDの数には上限があり、上限を超えた分は破棄する。
+     * (破棄した場合は、このノードでの変更を他のノードでの変更として扱い、キャッシュを破棄するだけとなる)
+     *
+     * @param sessionId セッションID
+     * @param delta 増減する件数
+     * @return 件数を増減した場合は{@code true}
+     */
+    private boolean countOwnChange(final String sessionId, final int delta) {
+        if (pendingOwnChanges == null) {
+            return false;
+        }
+        synchronized (pendingOwnChanges) {
+            final Integer current = pendingOwnChanges.get(sessionId);
+            final int count = (current == null ? 0 : current) + delta;
+            if (count < 0) {
+                return false;
+            }
+            if (count == 0) {
+                pendingOwnChanges.remove(sessionId);
+            } else {
+                pendingOwnChanges.put(sessionId, count, 1L);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 保存先のユーザセッションテーブル(とデータベース)を使用する{@link DbStore}を生成する。
+     * <p/>
+     * 本オブジェクトの設定を全て引き継ぎ、ユーザセッションテーブルとデータベースだけを保存先のものに置き換える。
+     * (設定を追加した場合は、本メソッドでも引き継ぐこと)
+     * 保存先は最初に使用した時点で生成されるため、ウォームアップは行わない。
+     * ノードで保持するキャッシュとバッファは、保存先ごとに生成せず本オブジェクトのものを共有する。
+     *
+     * @param route セッションの保存先
+     * @param prefix 保存先ごとに異なるキャッシュのキーの接頭辞
+     * @return 初期化済みの{@link DbStore}
+     * @throws IllegalStateException 保存先ごとに使用できない設定がされている場合
+     */
+    DbStore copyFor(final SessionStorageRoute route, final String prefix) {
+        verifyRoutable();
+        final DbStore store = new DbStore();
+        store.setName(getName());
+        store.setExpires(getExpiresMilliSeconds() / 1000L);
+        store.setStateEncoder(stateEncoder);
+        store.setDbManager(route.getDbManager() == null ? dbManager : route.getDbManager());
+        store.setUserSessionSchema(route.getUserSessionSchema());
+        store.setDbAccessLimiter(dbAccessLimiter);
+        store.setSessionDeltaSchema(sessionDeltaSchema);
+        store.setMaxDeltaCount(maxDeltaCount);
+        store.setDeltaCompactionRatio(deltaCompactionRatio);
+        store.setDeltaBaseCacheMaxBytes(deltaBaseCacheMaxBytes);
+        store.setOverflowStore(overflowStore);
+        store.setOverflowThreshold(overflowThreshold);
+        store.setColdSessionSchema(coldSessionSchema);
+        store.setArchiveIdleSeconds(archiveIdleSeconds);
+        store.setArchiveBatchSize(archiveBatchSize);
+        store.setCompressArchive(compressArchive);
+        store.setSizeStatistics(sizeStatistics);
+        store.setQuota(quota);
+        store.setLocalTier(localTier);
+        store.setSharedValueSchema(sharedValueSchema);
+        store.setSharedValueThreshold(sharedValueThreshold);
+        store.setSharedValueCacheMaxBytes(sharedValueCacheMaxBytes);
+        store.setDatabaseClock(databaseClock);
+        store.setSlowOperationLogger(slowOperationLogger);
+        store.setChangeLogSchema(changeLogSchema);
+        store.setBulkChunkSize(bulkChunkSize);
+        store.setPooledEncoding(pooledEncoding);
+        store.setEncodeBufferMaxRetainedBytes(encodeBufferMaxRetainedBytes);
+        store.setParallelCodec(parallelCodec);
+        store.setWarmUpEncodeRounds(warmUpEncodeRounds);
+        store.setValidateSchema(validateSchema);
+        store.initialize();
+        store.shareNodeCaches(this, prefix);
+        return store;
+    }
+
+    /**
+     * 保存先ごとに使用できない設定がされていないことを検証する。
+     * <p/>
+     * {@link SessionIdFilter}は1つのユーザセッションテーブルから再構築するため、保存先ごとには使用できない。
+     *
+     * @throws IllegalStateException 保存先ごとに使用できない設定がされている場合
+     */
+    void verifyRoutable() {
+        if (sessionIdFilter != null) {
+            throw new IllegalStateException("sessionIdFilter cannot be used with storageResolver.");
+        }
+    }
+
+    /**
+     * 既定の保存先の{@link DbStore}が保持するキャッシュとバッファを共有する。
+     * <p/>
+     * 保存先ごとに登録済みの内容が異なるキャッシュは、キーに接頭辞を付けて保存先ごとに分ける。
+     * このため、キャッシュの最大バイト数は保存先の数によらずノード全体の上限となる。
+     *
+     * @param base 既定の保存先の{@link DbStore}
+     * @param prefix 保存先ごとに異なるキャッシュのキーの接頭辞
+     */
+    private void shareNodeCaches(final DbStore base, final String prefix) {
+        cacheKeyPrefix = prefix;
+        encodeBufferPool = base.encodeBufferPool;
+        overflowVersionCache = base.overflowVersionCache;
+        deltaBaseCache = base.deltaBaseCache;
+        if (base.sharedValues != null) {
+            sharedValues = base.sharedValues.shareCache(sharedValueSchema, prefix);
+        }
+    }
+
+    /**
+     * ノードで共有するキャッシュのキーを取得する。
+     *
+     * @param sessionId セッションID
+     * @return 保存先ごとの接頭辞を付けたセッションID
+     */
+    private String cacheKey(final String sessionId) {
+        return cacheKeyPrefix + sessionId;
+    }
+
+    /**
+     * 処理の計測を開始する。
+     *
+     * @param operation 処理の種類
+     * @param sessionId セッションID
+     * @return 計測中の処理(ログを出力しない場合は{@link SlowOperationLogger.Operation#NONE})
+     */
+    private SlowOperationLogger.Operation startOperation(String operation, String sessionId) {
+        return slowOperationLogger == null
+                ? SlowOperationLogger.Operation.NONE
+                : slowOperationLogger.start(operation, sessionId);
+    }
+
+    /**
+     * ユーザセッションを更新する。
+     * @param key セッションID
+     * @param sessionObject セッションオブジェクト
+     * @param ownerId 所有者ID
+     * @param version バージョン
+     * @param connection {@link AppDbConnection}
+     * @return 更新件数
+     */
+    private int updateUserSession(final SessionIdKey key, final SessionEncodeBuffer sessionObject,
+            final String ownerId, final long version, final AppDbConnection connection) {
+        final SqlPStatement update = connection.prepareStatement(updateUserSessionSql);
+        sessionObject.bind(update, 1);
+        final int index = bindVersion(update, bindOwner(update, bindExpiration(update, 2), ownerId), version);
+        key.bind(update, index);
+
+        return update.executeUpdate();
+    }
+
+    /**
+     * ユーザセッションテーブルにセッションの内容を挿入する。
+     *
+     * @param key セッションID
+     * @param sessionObject セッションオブジェクト
+     * @param ownerId 所有者ID
+     * @param version バージョン
+     * @param connection {@link AppDbConnection}
+     */
+    private void insertUserSession(final SessionIdKey key, final SessionEncodeBuffer sessionObject,
+            final String ownerId, final long version, final AppDbConnection connection) {
+        final SqlPStatement insertStatement = connection.prepareStatement(insertUserSessionSql);
+        key.bind(insertStatement, 1);
+        sessionObject.bind(insertStatement, 2);
+        bindVersion(insertStatement, bindOwner(insertStatement, bindExpiration(insertStatement, 3), ownerId), version);
+        insertStatement.executeUpdate();
+        if (sessionIdFilter != null) {
+            sessionIdFilter.add(key.getSessionId());
+        }
+    }
+
+    /**
+     * 有効期限(と有効期限バケット)をバインドする。
+     *
+     * @param statement {@link SqlPStatement}
+     * @param index 有効期限をバインドするインデックス
+     * @return 次にバインドするインデックス
+     */
+    private int bindExpiration(final SqlPStatement statement, final int index) {
+        final long expiration = SystemTimeUtil.getTimestamp().getTime() + getExpiresMilliSeconds();
+        int next = index;
+        if (databaseClock == null) {
+            statement.setTimestamp(next++, new Timestamp(expiration));
+        }
+        if (userSessionSchema.getExpirationBucketName() != null) {
+            statement.setLong(next++, userSessionSchema.toExpirationBucket(expiration));
+        }
+        return next;
+    }
+
+    /**
+     * 有効期限の判定に使用する現在日時をバインドする。
+     * <p/>
+     * データベースの時計を使用する場合は、SQLに現在日時の式が含まれるためバインドしない。
+     *
+     * @param statement {@link SqlPStatement}
+     * @param index 現在日時をバインドするインデックス
+     * @param now 現在日時
+     * @return 次にバインドするインデックス
+     */
+    private int bindNow(final SqlPStatement statement, final int index, final long now) {
+        if (databaseClock != null) {
+            return index;
+        }
+        statement.setTimestamp(index, new Timestamp(now));
+        return index + 1;
+    }
+
+    /**
+     * 有効期限の判定に使用する現在日時のSQL表現を取得する。
+     *
+     * @return データベースの時計を使用する場合は現在日時の式、それ以外はバインド変数
+     */
+    private String nowExpression() {
+        return databaseClock == null ? "?" : databaseClock.now();
+    }
+
+    /**
+     * 更新する有効期限のSQL表現を取得する。
+     *
+     * @return データベースの時計を使用する場合は現在日時に有効期間を加算する式、それ以外はバインド変数
+     */
+    private String expirationExpression() {
+        return databaseClock == null ? "?" : databaseClock.plusSeconds(getExpiresMilliSeconds() / 1000L);
+    }
+
+    /**
+     * 所有者IDカラムが設定されている場合は、所有者IDをバインドする。
+     *
+     * @param statement {@link SqlPStatement}
+     * @param index 所有者IDをバインドするインデックス
+     * @param ownerId 所有者ID
+     * @return 次にバインドするインデックス
+     */
+    private int bindOwner(final SqlPStatement statement, final int index, final String ownerId) {
+        if (userSessionSchema.getOwnerIdName() == null) {
+            return index;
+        }
+        statement.setString(index, ownerId);
+        return index + 1;
+    }
+
+    /**
+     * バージョンカラムが設定されている場合は、バージョンをバインドする。
+     *
+     * @param statement {@link SqlPStatement}
+     * @param index バージョンをバインドするインデックス
+     * @param version バージョン
+     * @return 次にバインドするインデックス
+     */
+    private int bindVersion(final SqlPStatement statement, final int index, final long version) {
+        if (userSessionSchema.getVersionName() == null) {
+            return index;
+        }
+        statement.setLong(index, version);
+        return index + 1;
+    }
+
+    /**
+     * セッションオブジェクトを書き込むたびに変わるバージョンを採番する。
+     * <p/>
+     * ノード間で重複しないよう、ランダムな値とする。
+     *
+     * @return バージョン(0以上)
+     */
+    static long newVersion() {
+        return UUID.randomUUID().getLeastSignificantBits() & Long.MAX_VALUE;
+    }
+
+    /**
+     * ユーザセッションテーブルからセッションの内容を削除する。
+     *
+     * @param key セッションID
+     * @param overflow {@link SessionOverflowStore}の更新
+     * @param connection {@link AppDbConnection}
+     * @return 削除件数
+     */
+    private int deleteUserSession(final SessionIdKey key, final OverflowUpdates overflow,
+            final AppDbConnection connection) {
+        final String sessionId = key.getSessionId();
+        overflow.remove(key, connection);
+        final SqlPStatement deleteStatement = connection
+                .prepareStatement(deleteUserSessionSql);
+        key.bind(deleteStatement, 1);
+        int count = deleteStatement.executeUpdate();
+        if (coldTier != null) {
+            count += coldTier.delete(sessionId, connection);
+        }
+        if (count > 0) {
+            deleteAttachments(sessionId, connection);
+        }
+        return count;
+    }
+
+    /**
+     * 削除がコミットされたセッションIDを{@link SessionIdFilter}から取り除く。
+     *
+     * @param sessionId ユーザセッションテーブル(コールドテーブル)から削除したセッションID
+     */
+    private void removeFromFilter(final String sessionId) {
+        if (sessionIdFilter != null) {
+            sessionIdFilter.remove(sessionId);
+        }
+    }
+
+    /**
+     * 削除したセッションに付随する差分を削除する。
+     * <p/>
+     * {@link SessionOverflowStore}の内容は、{@link OverflowUpdates}でコミット後に削除する。
+     * <p/>
+     * 変更ログを記録する場合は、削除の変更ログを追記する。
+     * ユーザセッションテーブル(コールドテーブル)から削除されたセッションに対してのみ呼び出すこと。
+     *
+     * @param sessionId セッションID
+     * @param connection {@link AppDbConnection}
+     */
+    private void deleteAttachments(final String sessionId, final AppDbConnection connection) {
+        if (changeLog != null) {
+            changeLog.append(sessionId, SessionChangeType.DELETE, connection);
+        }
+        if (sessionDeltaSchema != null) {
+            deleteDeltas(sessionId, connection);
+            deltaBaseCache.remove(cacheKey(sessionId));
+        }
+    }
+
+    /**
+     * プールしたバッファでエンコードするか否かをセットする。
+     * <p/>
+     * {@code true}の場合、セッションオブジェクトをスレッドごとに再利用するバッファにエンコードし、
+     * バッファの内容をコピーせずにステートメントにバインドする。
+     * 保存のたびにバッファを拡張・コピーすることによるガベージを削減できる。
+     * <p/>
+     * この設定で保存したセッションオブジェクトは独自の形式となり、本設定に対応していないバージョンでは読み込めない。
+     * (本設定に対応したバージョンであれば、本設定に関わらず、どちらの形式も読み込むことができる)
+     * このため、次の手順で切り替えること。
+     * <ol>
+     * <li>本設定を無効のまま、全てのノードを本設定に対応したバージョンに更新する。</li>
+     * <li>全てのノードの更新が完了した後に、本設定を有効にする。</li>
+     * </ol>
+     * ローリングアップデート中に本設定を有効にすると、更新前のノードが更新後のノードで保存したセッションを読み込めず、
+     * セッションの内容が失われる。
+     * 同様に、本設定を有効にした後で本設定に対応していないバージョンに戻す場合は、
+     * 先に本設定を無効にし、この形式で保存したセッションが全て有効期限切れとなるまで待つ必要がある。
+     * {@link #setParallelCodec(ParallelSessionCodec)}を設定した場合も同じ形式で保存するため、同じ手順で切り替えること。
+     * 差分保存モードでは、差分の作成元として保持するためにバッファの内容をコピーする。
+     * デフォルトは{@code false}。
+     *
+     * @param pooledEncoding プールしたバッファでエンコードする場合は{@code true}
+     */
+    public void setPooledEncoding(boolean pooledEncoding) {
+        this.pooledEncoding = pooledEncoding;
+    }
+
+    /**
+     * 再利用するエンコード用バッファの最大バイト数をセットする。
+     * <p/>
+     * これより大きなセッションオブジェクトをエンコードしたバッファは、再利用せずに破棄する。
+     * バッファはスレッドごとに保持するため、スレッド数を掛けた値が最大のメモリ使用量となる。
+     * デフォルトは1MB。
+     *
+     * @param encodeBufferMaxRetainedBytes 再利用するバッファの最大バイト数
+     */
+    public void setEncodeBufferMaxRetainedBytes(int encodeBufferMaxRetainedBytes) {
+        this.encodeBufferMaxRetainedBytes = encodeBufferMaxRetainedBytes;
+    }
+
+    /**
+     * エントリごとに並列にエンコード・デコードを行うコーデックをセットする。
+     * <p/>
+     * 設定した場合、{@link #setPooledEncoding(boolean)}に関わらず、エントリごとに独立してエンコードした形式で保存する。
+     * この形式は{@link #setPooledEncoding(boolean)}を設定した場合と同じ。
+     * 値を共有値テーブルに保存する形式では並列に処理しない。
+     *
+     * @param parallelCodec エントリごとに並列にエンコード・デコードを行うコーデック
+     */
+    public void setParallelCodec(ParallelSessionCodec parallelCodec) {
+        this.parallelCodec = parallelCodec;
+    }
+
+    @Override
+    public void setStateEncoder(StateEncoder stateEncoder) {
+        super.setStateEncoder(stateEncoder);
+        this.stateEncoder = stateEncoder;
+    }
+
+    /**
+     * 初期化時のウォームアップでコネクションを取得する回数をセットする。
+     * <p/>
+     * 1以上を設定した場合、初期化時に指定した回数だけコネクションを1つずつ取得して全てのSQL文を準備し、
+     * {@link #setWarmUpEncodeRounds(int)}の回数だけエンコード・デコードを行う(ウォームアップ)。
+     * デプロイ直後のリクエストで発生する、SQL文の準備やJITコンパイルの待ち時間を減らすことができる。
+     * 同時に保持するコネクションは1つだけのため、コネクションプールの最大数を超える値を設定しても待機は発生しない。
+     * デフォルトは0(ウォームアップを行わない)。
+     *
+     * @param warmUpConnections ウォームアップでコネクションを取得する回数
+     * @see UserSessionTableInspector#warmUp(SimpleDbTransactionManager, int, String...)
+     */
+    public void setWarmUpConnections(int warmUpConnections) {
+        this.warmUpConnections = warmUpConnections;
+    }
+
+    /**
+     * ウォームアップで行うエンコード・デコードの回数をセットする。
+     * <p/>
+     * デフォルトは1000。
+     *
+     * @param warmUpEncodeRounds エンコード・デコードの回数
+     */
+    public void setWarmUpEncodeRounds(int warmUpEncodeRounds) {
+        this.warmUpEncodeRounds = warmUpEncodeRounds;
+    }
+
+    /**
+     * 初期化時にユーザセッションテーブルの定義を検証するか否かをセットする。
+     * <p/>
+     * {@code true}の場合、主キーと有効期限カラムの索引が存在することを検証し、
+     * 存在しない場合はWARNレベルでログに出力する。
+     * 詳細は{@link UserSessionTableInspector#validate(SimpleDbTransactionManager, UserSessionSchema)}を参照。
+     * デフォルトは{@code false}。
+     *
+     * @param validateSchema ユーザセッションテーブルの定義を検証する場合は{@code true}
+     */
+    public void setValidateSchema(boolean validateSchema) {
+        this.validateSchema = validateSchema;
+    }
+
+    /**
+     * ウォームアップを行う。
+     * <p/>
+     * コネクションを確立して全てのSQL文を準備した後、ダミーのセッションのエンコード・デコードを行う。
+     */
+    private void warmUp() {
+        final List<String> sqls = new ArrayList<String>(Arrays.asList(
+                selectUserSessionSql, insertUserSessionSql, updateUserSessionSql,
+                deleteUserSessionSql, updateExpirationSql, updateVersionSql, selectUserSessionsSql,
+                selectSessionIdsByOwnerSql, deleteUserSessionsByOwnerSql,
+                selectDeltaSql, insertDeltaSql, deleteDeltaSql));
+        if (coldTier != null) {
+            sqls.add(restoreExpirationSql);
+            sqls.addAll(coldTier.getSqls());
+        }
+        UserSessionTableInspector.warmUp(dbManager, warmUpConnections, sqls.toArray(new String[sqls.size()]));
+
+        final List<SessionEntry> entries = Arrays.asList(
+                new SessionEntry("warmUpKey", "warmUpValue", this),
+                new SessionEntry("warmUpNumber", Integer.valueOf(1), this));
+        for (int i = 0; i < warmUpEncodeRounds; i++) {
+            decode(encodeForSave(entries));
+        }
+    }
+
+    /**
+     * セッションIDを指定した数だけIN句で指定して、ユーザセッションテーブルを取得するSQLを生成する。
+     *
+     * @param count セッションIDの数
+     * @return SQL
+     */
+    private String createSelectUserSessionsSql(final int count) {
+        final StringBuilder sql = new StringBuilder()
+                .append("SELECT ").append(userSessionSchema.getSessionIdName())
+                .append(", ").append(userSessionSchema.getSessionObjectName())
+                .append(userSessionSchema.getVersionName() == null ? "" : ", " + userSessionSchema.getVersionName())
+                .append(" FROM ").append(userSessionSchema.getTableName())
+                .append(" WHERE ").append(userSessionSchema.getSessionIdName()).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(") AND ").append(userSessionSchema.getExpirationDatetimeName()).append(" >= ")
+                .append(nowExpression())
+                .toString();
+    }
+
+    /**
+     * 初期化処理。
+     */
+    public void initialize() {
+        if (userSessionSchema == null) {
+            // デフォルトのユーザセッションスキーマをセットする
+            userSessionSchema = new UserSessionSchema();
+            userSessionSchema.setTableName("USER_SESSION");
+            userSessionSchema.setSessionIdName("SESSION_ID");
+            userSessionSchema.setSessionObjectName("SESSION_OBJECT");
+            userSessionSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        }
+
+        // SQL文を初期化する。
+        final String versionName = userSessionSchema.getVersionName();
+        selectUserSessionSql = "SELECT " + userSessionSchema.getSessionObjectName()
+                + (versionName == null ? "" : ", " + versionName)
+                + " FROM " + userSessionSchema.getTableName() + " " + " WHERE "
+                + userSessionSchema.getSessionIdName() + " = ? " + " AND "
+                + userSessionSchema.getExpirationDatetimeName() + " >= " + nowExpression();
+
+        selectStoredObjectSql = "SELECT " + userSessionSchema.getSessionObjectName()
+                + " FROM " + userSessionSchema.getTableName()
+                + " WHERE " + userSessionSchema.getSessionIdName() + " = ?";
+
+        final String bucketName = userSessionSchema.getExpirationBucketName();
+        final String ownerIdName = userSessionSchema.getOwnerIdName();
+        if (localTier != null && versionName == null) {
+            throw new IllegalStateException("versionName of userSessionSchema must be specified when localTier is set.");
+        }
+        if (sessionDeltaSchema != null && versionName == null) {
+            throw new IllegalStateException(
+                    "versionName of userSessionSchema must be specified when sessionDeltaSchema is set.");
+        }
+        selectVersionedSessionSql = versionName == null ? null : "SELECT " + versionName
+                + ", CASE WHEN " + versionName + " = ? THEN NULL ELSE "
+                + userSessionSchema.getSessionObjectName() + " END"
+                + " FROM " + userSessionSchema.getTableName() + " WHERE "
+                + userSessionSchema.getSessionIdName() + " = ? " + " AND "
+                + userSessionSchema.getExpirationDatetimeName() + " >= " + nowExpression();
+
+        insertUserSessionSql = "INSERT INTO "
+                + userSessionSchema.getTableName() + " ( "
+                + userSessionSchema.getSessionIdName() + ", "
+                + userSessionSchema.getSessionObjectName() + ", "
+                + userSessionSchema.getExpirationDatetimeName()
+                + (bucketName == null ? "" : ", " + bucketName)
+                + (ownerIdName == null ? "" : ", " + ownerIdName)
+                + (versionName == null ? "" : ", " + versionName)
+                + ") VALUES (?,?," + expirationExpression()
+                + (bucketName == null ? "" : ",?")
+                + (ownerIdName == null ? "" : ",?")
+                + (versionName == null ? "" : ",?")
+                + ")";
+
+        deleteUserSessionSql = "DELETE FROM "
+                + userSessionSchema.getTableName() + " WHERE "
                 + userSessionSchema.getSessionIdName() + " = ?";
         
         updateUserSessionSql = "UPDATE " + userSessionSchema.getTableName()
                 + " SET " + userSessionSchema.getSessionObjectName() + "=?,"
-                + userSessionSchema.getExpirationDatetimeName() + "=?"
+                + userSessionSchema.getExpirationDatetimeName() + "=" + expirationExpression()
+                + (bucketName == null ? "" : "," + bucketName + "=?")
+                + (ownerIdName == null ? "" : "," + ownerIdName + "=?")
+                + (versionName == null ? "" : "," + versionName + "=?")
+                + " WHERE " + userSessionSchema.getSessionIdName() + " = ?";
+
+        selectUserSessionsSql = createSelectUserSessionsSql(bulkChunkSize);
+
+        changeLog = changeLogSchema == null ? null : new SessionChangeLog(changeLogSchema);
+        pendingOwnChanges = changeLog == null ? null
+                : new WeightedLruCache<Integer>(PENDING_OWN_CHANGES_MAX_ENTRIES);
+
+        coldTier = coldSessionSchema == null
+                ? null
+                : new ColdSessionTier(userSessionSchema, coldSessionSchema, compressArchive);
+        restoreExpirationSql = coldTier == null ? null : "UPDATE " + userSessionSchema.getTableName()
+                + " SET " + userSessionSchema.getExpirationDatetimeName() + "=?"
+                + (bucketName == null ? "" : "," + bucketName + "=?")
                 + " WHERE " + userSessionSchema.getSessionIdName() + " = ?";
 
+        if (ownerIdName != null) {
+            selectSessionIdsByOwnerSql = "SELECT " + userSessionSchema.getSessionIdName()
+                    + " FROM " + userSessionSchema.getTableName()
+                    + " WHERE " + ownerIdName + " = ?";
+
+            deleteUserSessionsByOwnerSql = "DELETE FROM " + userSessionSchema.getTableName()
+                    + " WHERE " + ownerIdName + " = ?";
+        }
+
+        if (sessionDeltaSchema != null) {
+            selectDeltaSql = "SELECT " + sessionDeltaSchema.getSequenceName() + ", "
+                    + sessionDeltaSchema.getDeltaObjectName()
+                    + " FROM " + sessionDeltaSchema.getTableName()
+                    + " WHERE " + sessionDeltaSchema.getSessionIdName() + " = ?"
+                    + " ORDER BY " + sessionDeltaSchema.getSequenceName();
+
+            insertDeltaSql = "INSERT INTO " + sessionDeltaSchema.getTableName() + " ( "
+                    + sessionDeltaSchema.getSessionIdName() + ", "
+                    + sessionDeltaSchema.getSequenceName() + ", "
+                    + sessionDeltaSchema.getDeltaObjectName()
+                    + ") VALUES (?,?,?)";
+
+            deleteDeltaSql = "DELETE FROM " + sessionDeltaSchema.getTableName()
+                    + " WHERE " + sessionDeltaSchema.getSessionIdName() + " = ?";
+
+            final String setExpiration = "UPDATE " + userSessionSchema.getTableName()
+                    + " SET " + userSessionSchema.getExpirationDatetimeName() + "=" + expirationExpression()
+                    + (bucketName == null ? "" : "," + bucketName + "=?");
+            final String whereVersion = " WHERE " + userSessionSchema.getSessionIdName() + " = ?"
+                    + " AND " + versionName + " = ?";
+            updateExpirationSql = setExpiration + whereVersion;
+            updateVersionSql = setExpiration + "," + versionName + "=?" + whereVersion;
+
+            deltaBaseCache = new WeightedLruCache<DeltaBase>(deltaBaseCacheMaxBytes);
+        }
+
+        overflowVersionCache = overflowStore == null ? null
+                : new WeightedLruCache<String>(OVERFLOW_VERSION_CACHE_MAX_BYTES);
+
+        sharedValues = sharedValueSchema == null ? null
+                : new SharedSessionValues(sharedValueSchema, getExpiresMilliSeconds(), sharedValueCacheMaxBytes);
+
+        if (validateSchema) {
+            UserSessionTableInspector.validate(dbManager, userSessionSchema);
+        }
+        encodeBufferPool = pooledEncoding ? new SessionEncodeBufferPool(encodeBufferMaxRetainedBytes) : null;
+
+        if (warmUpConnections > 0) {
+            warmUp();
+        }
+    }
+
+    /**
+     * 保存した内容をローカルファイルに書き込むための情報。
+     * <p/>
+     * 保存のトランザクション内で保存した内容とバージョンを記録し、コミットされた後にローカルファイルに書き込む。
+     */
+    private final class LocalTierWrite {
+
+        /** 保存したセッションオブジェクト */
+        private byte[] sessionObject;
+
+        /** 保存したバージョン */
+        private long version = -1L;
+
+        /**
+         * 保存した内容とバージョンを記録する。
+         *
+         * @param sessionObject 保存したセッションオブジェクト
+         * @param version 保存したバージョン
+         */
+        private void prepare(final byte[] sessionObject, final long version) {
+            if (localTier == null) {
+                return;
+            }
+            this.sessionObject = sessionObject;
+            this.version = version;
+        }
+
+        /**
+         * コミットされた内容をローカルファイルに書き込む。
+         * <p/>
+         * 保存した内容がない場合(セッションを削除した場合)は、ローカルファイルの内容を破棄する。
+         *
+         * @param sessionId セッションID
+         */
+        private void commit(final String sessionId) {
+            if (localTier == null) {
+                return;
+            }
+            if (sessionObject == null || version < 0) {
+                localTier.remove(cacheKey(sessionId));
+            } else {
+                localTier.put(cacheKey(sessionId), version, sessionObject);
+            }
+        }
+    }
+
+    /**
+     * {@link SessionOverflowStore}の更新。
+     * <p/>
+     * トランザクション内で新しいバージョンを保存し、以前のバージョンはコミットされた後に削除する。
+     * ロールバックされた場合は、保存したバージョンを削除する。
+     * これにより、{@link SessionOverflowStore}がトランザクションに参加しない場合でも、
+     * コミットされた参照の参照先が存在しなくなることはない。
+     */
+    private final class OverflowUpdates {
+
+        /** セッションIDと、コミット後のバージョン(参照を保存しない場合は{@link #NO_OVERFLOW}) */
+        private final Map<String, String> versions = new LinkedHashMap<String, String>();
+
+        /** コミット後に削除するバージョン */
+        private final List<OverflowObject> obsolete = new ArrayList<OverflowObject>();
+
+        /** ロールバック後に削除するバージョン */
+        private final List<OverflowObject> written = new ArrayList<OverflowObject>();
+
+        /**
+         * サイズが閾値を超えるセッションオブジェクトを、新しいバージョンとして{@link SessionOverflowStore}に保存する。
+         *
+         * @param key セッションID
+         * @param sessionObject セッションオブジェクト
+         * @param force 閾値に関わらず{@link SessionOverflowStore}に保存する場合は{@code true}
+         * @param connection {@link AppDbConnection}
+         * @return ユーザセッションテーブルに保存する内容
+         */
+        private byte[] store(final SessionIdKey key, final byte[] sessionObject,
+                final boolean force, final AppDbConnection connection) {
+            if (overflowStore == null) {
+                return sessionObject;
+            }
+            if (!force && sessionObject.length <= overflowThreshold) {
+                remove(key, connection);
+                return sessionObject;
+            }
+            final String sessionId = key.getSessionId();
+            final String previous = previousVersion(key, connection);
+            final String version = UUID.randomUUID().toString();
+            overflowStore.save(sessionId, version, sessionObject, connection);
+            written.add(new OverflowObject(sessionId, version));
+            replace(sessionId, previous, version);
+            return toOverflowReference(version);
+        }
+
+        /**
+         * セッションが{@link SessionOverflowStore}を参照しなくなることを記録する。
+         * <p/>
+         * ユーザセッションテーブルを更新・削除する前に呼び出すこと。
+         *
+         * @param key セッションID
+         * @param connection {@link AppDbConnection}
+         */
+        private void remove(final SessionIdKey key, final AppDbConnection connection) {
+            if (overflowStore == null) {
+                return;
+            }
+            replace(key.getSessionId(), previousVersion(key, connection), NO_OVERFLOW);
+        }
+
+        /**
+         * 更新前の参照先のバージョンを取得する。
+         * <p/>
+         * このノードで保存したセッションの場合はキャッシュから取得し、それ以外の場合はユーザセッションテーブルから読み込む。
+         *
+         * @param key セッションID
+         * @param connection {@link AppDbConnection}
+         * @return 参照先のバージョン。参照を保存していない場合は{@code null}
+         */
+        private String previousVersion(final SessionIdKey key, final AppDbConnection connection) {
+            final String cached = overflowVersionCache.get(cacheKey(key.getSessionId()));
+            if (cached != null) {
+                return cached.length() == 0 ? null : cached;
+            }
+            return overflowVersionOf(selectStoredObject(key, connection));
+        }
+
+        /**
+         * セッションの参照先の変更を記録する。
+         *
+         * @param sessionId セッションID
+         * @param previous 更新前のバージョン
+         * @param version 更新後のバージョン
+         */
+        private void replace(final String sessionId, final String previous, final String version) {
+            if (previous != null && !previous.equals(version)) {
+                obsolete.add(new OverflowObject(sessionId, previous));
+            }
+            versions.put(sessionId, version);
+        }
+
+        /**
+         * コミットされた参照をキャッシュに反映し、以前のバージョンを削除する。
+         */
+        private void commit() {
+            if (overflowStore == null) {
+                return;
+            }
+            for (Map.Entry<String, String> entry : versions.entrySet()) {
+                overflowVersionCache.put(cacheKey(entry.getKey()), entry.getValue(),
+                        entry.getKey().length() + entry.getValue().length());
+            }
+            deleteQuietly(obsolete);
+        }
+
+        /**
+         * ロールバックされた場合に、保存したバージョンを削除する。
+         */
+        private void rollback() {
+            if (overflowStore == null) {
+                return;
+            }
+            for (String sessionId : versions.keySet()) {
+                overflowVersionCache.remove(cacheKey(sessionId));
+            }
+            deleteQuietly(written);
+        }
+
+        /**
+         * {@link SessionOverflowStore}からセッションオブジェクトを削除する。
+         * <p/>
+         * 削除に失敗しても、参照されない内容が残るだけのため、ログを出力して処理を続ける。
+         *
+         * @param objects 削除するバージョン
+         */
+        private void deleteQuietly(final List<OverflowObject> objects) {
+            if (objects.isEmpty()) {
+                return;
+            }
+            try {
+                doTransaction(new SimpleDbTransactionExecutor<Void>(dbManager) {
+                    @Override
+                    public Void execute(AppDbConnection connection) {
+                        for (OverflowObject object : objects) {
+                            overflowStore.delete(object.sessionId, object.version, connection);
+                        }
+                        return null;
+                    }
+                });
+            } catch (RuntimeException e) {
+                LOGGER.logWarn("failed to delete unreferenced session object. count = " + objects.size(), e);
+            }
+        }
+    }
+
+    /**
+     * {@link SessionOverflowStore}に保存したセッションオブジェクトのバージョン。
+     */
+    private static final class OverflowObject {
+
+        /** セッションID */
+        private final String sessionId;
+
+        /** バージョン */
+        private final String version;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param sessionId セッションID
+         * @param version バージョン
+         */
+        private OverflowObject(String sessionId, String version) {
+            this.sessionId = sessionId;
+            this.version = version;
+        }
+    }
+
+    /**
+     * 差分の作成元の更新。
+     * <p/>
+     * トランザクション内で更新内容を保持し、コミットされた後にキャッシュに反映する。
+     * コミット前にキャッシュに反映すると、同じノードの他のスレッドがロールバックされる内容を差分の作成元とし、
+     * バージョンが一致せずに全体を書き込むことになるため。
+     */
+    private final class DeltaBaseUpdates {
+
+        /** セッションIDと、反映する差分の作成元 */
+        private final Map<String, DeltaBase> staged = new LinkedHashMap<String, DeltaBase>();
+
+        /**
+         * 差分の作成元の更新を保持する。
+         *
+         * @param sessionId セッションID
+         * @param base 差分の作成元
+         */
+        private void stage(final String sessionId, final DeltaBase base) {
+            staged.put(sessionId, base);
+        }
+
+        /**
+         * コミットされた差分の作成元をキャッシュに反映する。
+         */
+        private void publish() {
+            if (deltaBaseCache == null) {
+                return;
+            }
+            for (Map.Entry<String, DeltaBase> entry : staged.entrySet()) {
+                deltaBaseCache.put(cacheKey(entry.getKey()), entry.getValue(),
+                        entry.getValue().sessionObject.length);
+            }
+        }
+    }
+
+    /**
+     * 差分の作成元となる、前回保存(または読み込み)したセッションの状態。
+     */
+    private static final class DeltaBase {
+
+        /** セッションオブジェクト(差分を適用した後の内容) */
+        private final byte[] sessionObject;
+
+        /** セッションオブジェクトに対応するユーザセッションテーブルのバージョン */
+        private final long version;
+
+        /** 最後の差分の連番 */
+        private final int sequence;
+
+        /** 差分の件数 */
+        private final int count;
+
+        /** 差分の合計サイズ */
+        private final long totalDeltaBytes;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param sessionObject セッションオブジェクト
+         * @param version ユーザセッションテーブルのバージョン
+         * @param sequence 最後の差分の連番
+         * @param count 差分の件数
+         * @param totalDeltaBytes 差分の合計サイズ
+         */
+        private DeltaBase(byte[] sessionObject, long version, int sequence, int count, long totalDeltaBytes) {
+            this.sessionObject = sessionObject;
+            this.version = version;
+            this.sequence = sequence;
+            this.count = count;
+            this.totalDeltaBytes = totalDeltaBytes;
+        }
     }
 }
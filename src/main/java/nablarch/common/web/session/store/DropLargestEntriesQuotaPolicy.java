@@ -0,0 +1,88 @@
+package nablarch.common.web.session.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.StateEncoder;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * サイズが上限を超えたセッションから、値のサイズが大きいエントリを上限に収まるまで除いて保存する{@link SessionQuotaPolicy}。
+ * <p/>
+ * 除いたエントリのキーはWARNレベルでログに出力する。
+ * 除いたエントリはストアに保存されないため、次のリクエストでは存在しないものとして扱われる。
+ *
+ * @author TIS
+ */
+public class DropLargestEntriesQuotaPolicy implements SessionQuotaPolicy {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(DropLargestEntriesQuotaPolicy.class);
+
+    @Override
+    public SessionQuotaDecision onHardLimitExceeded(String sessionId, List<SessionEntry> entries,
+            int encodedSize, int hardLimitBytes, StateEncoder stateEncoder) {
+        final List<SizedEntry> sized = new ArrayList<SizedEntry>(entries.size());
+        for (SessionEntry entry : entries) {
+            final Object value = entry.getValue();
+            sized.add(new SizedEntry(entry, value == null ? 0 : stateEncoder.encode(value).length));
+        }
+        Collections.sort(sized, new Comparator<SizedEntry>() {
+            @Override
+            public int compare(SizedEntry o1, SizedEntry o2) {
+                return o1.size < o2.size ? 1 : (o1.size == o2.size ? 0 : -1);
+            }
+        });
+
+        // エントリの値のサイズ分だけ全体のサイズが小さくなるものとして、上限に収まるまで除く
+        long remaining = encodedSize;
+        final List<SessionEntry> dropped = new ArrayList<SessionEntry>();
+        for (SizedEntry entry : sized) {
+            if (remaining <= hardLimitBytes) {
+                break;
+            }
+            dropped.add(entry.entry);
+            remaining -= entry.size;
+        }
+        final List<SessionEntry> kept = new ArrayList<SessionEntry>(entries);
+        kept.removeAll(dropped);
+
+        if (LOGGER.isWarnEnabled()) {
+            final List<String> keys = new ArrayList<String>(dropped.size());
+            for (SessionEntry entry : dropped) {
+                keys.add(entry.getKey());
+            }
+            LOGGER.logWarn("session size exceeded the hard limit. dropped entries = " + keys
+                    + ", session id hash = " + SlowOperationLogger.hash(sessionId)
+                    + ", size = " + encodedSize + ", hard limit = " + hardLimitBytes);
+        }
+        return SessionQuotaDecision.save(kept);
+    }
+
+    /**
+     * 値のサイズとエントリの組。
+     */
+    private static final class SizedEntry {
+
+        /** エントリ */
+        private final SessionEntry entry;
+
+        /** 値のサイズ */
+        private final int size;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param entry エントリ
+         * @param size 値のサイズ
+         */
+        private SizedEntry(SessionEntry entry, int size) {
+            this.entry = entry;
+            this.size = size;
+        }
+    }
+}
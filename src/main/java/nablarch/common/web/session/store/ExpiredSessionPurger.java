@@ -0,0 +1,284 @@
+package nablarch.common.web.session.store;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import nablarch.core.date.SystemTimeUtil;
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.initialization.Initializable;
+
+/**
+ * 有効期限切れのセッションを有効期限バケット単位で一括削除するクラス。
+ * <p/>
+ * ユーザセッションテーブルのスキーマに有効期限バケットカラム
+ * ({@link UserSessionSchema#setExpirationBucketName(String)})が設定されていることを前提とする。
+ * 有効期限バケットが現在日時のバケットより前のセッションを、バケット単位で削除する。
+ * 処理時間は削除する行数ではなく、バケットの数に比例する。
+ * <p/>
+ * 有効期限バケットはアプリケーションの時刻で算出するが、
+ * {@link DatabaseClock}を使用している場合の有効期限はデータベースの時刻で算出されるため、
+ * ノード間やデータベースとの時刻のずれにより、前のバケットに有効期限切れでないセッションが含まれることがある。
+ * このため、削除時には行ごとの有効期限も判定し、有効期限切れでないセッションは削除しない。
+ * 残ったセッションは、有効期限が切れた後の削除で取り除かれる。
+ * <p/>
+ * ユーザセッションテーブルを有効期限バケットでパーティション分割している場合は、
+ * {@link #setPartitionPurgeSqlTemplate(String)}にパーティションを切り捨てるSQLを設定する。
+ * (例: {@code ALTER TABLE USER_SESSION TRUNCATE PARTITION P_{bucket}})
+ * パーティションに有効期限切れでないセッションが含まれる場合は、切り捨てずにDELETE文で削除する。
+ * 設定されていない場合は、有効期限バケットカラムの索引を使用したDELETE文で削除する。
+ * <p/>
+ * {@link #setSessionDeltaSchema(SessionDeltaSchema)}を設定した場合は、
+ * ユーザセッションテーブル(とコールドテーブル)に存在しないセッションの差分も削除する。
+ * セッションチャンクテーブルなど、その他の付随するテーブルの行は削除しない。
+ *
+ * @author TIS
+ */
+public class ExpiredSessionPurger implements Initializable {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(ExpiredSessionPurger.class);
+
+    /** SQLテンプレートの有効期限バケットのプレースホルダ */
+    private static final String BUCKET_PLACEHOLDER = "{bucket}";
+
+    /** SimpleDbTransactionManagerのインスタンス */
+    private SimpleDbTransactionManager dbManager;
+
+    /** ユーザセッションテーブルのスキーマ */
+    private UserSessionSchema userSessionSchema;
+
+    /** パーティションを切り捨てるSQLのテンプレート */
+    private String partitionPurgeSqlTemplate;
+
+    /** 有効期限切れの有効期限バケットを取得するSQL */
+    private String selectExpiredBucketSql;
+
+    /** 有効期限バケットの有効期限切れの行を削除するSQL */
+    private String deleteBucketSql;
+
+    /** 有効期限バケットの有効期限切れでない行の有無を取得するSQL */
+    private String selectAliveInBucketSql;
+
+    /** 有効期限の判定に使用する{@link DatabaseClock} */
+    private DatabaseClock databaseClock;
+
+    /** セッション差分テーブルのスキーマ */
+    private SessionDeltaSchema sessionDeltaSchema;
+
+    /** コールドテーブルのスキーマ */
+    private UserSessionSchema coldSessionSchema;
+
+    /** セッションが存在しない差分を削除するSQL */
+    private String deleteOrphanDeltaSql;
+
+    /**
+     * DbManagerのインスタンスをセットする。
+     *
+     * @param dbManager SimpleDbTransactionManagerのインスタンス
+     */
+    public void setDbManager(SimpleDbTransactionManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * ユーザセッションテーブルのスキーマをセットする。
+     *
+     * @param userSessionSchema ユーザセッションテーブルのスキーマ
+     */
+    public void setUserSessionSchema(UserSessionSchema userSessionSchema) {
+        this.userSessionSchema = userSessionSchema;
+    }
+
+    /**
+     * パーティションを切り捨てるSQLのテンプレートをセットする。
+     * <p/>
+     * テンプレート中の{@code {bucket}}は、有効期限バケットの値に置き換えられる。
+     *
+     * @param partitionPurgeSqlTemplate パーティションを切り捨てるSQLのテンプレート
+     */
+    public void setPartitionPurgeSqlTemplate(String partitionPurgeSqlTemplate) {
+        this.partitionPurgeSqlTemplate = partitionPurgeSqlTemplate;
+    }
+
+    /**
+     * 有効期限の判定に使用する{@link DatabaseClock}をセットする。
+     * <p/>
+     * {@link DbStore#setDatabaseClock(DatabaseClock)}に設定したものと同じものを設定すること。
+     * 設定されていない場合は、アプリケーションの時刻で判定する。
+     *
+     * @param databaseClock データベースの時計
+     */
+    public void setDatabaseClock(DatabaseClock databaseClock) {
+        this.databaseClock = databaseClock;
+    }
+
+    /**
+     * セッション差分テーブルのスキーマをセットする。
+     * <p/>
+     * 設定した場合は、ユーザセッションテーブル(とコールドテーブル)に存在しないセッションの差分を削除する。
+     * {@link DbStore#setSessionDeltaSchema(SessionDeltaSchema)}に設定したものと同じものを設定すること。
+     * 差分テーブルのセッションIDは文字列のため、セッションIDをバイナリで保存する場合は使用できない。
+     *
+     * @param sessionDeltaSchema セッション差分テーブルのスキーマ
+     */
+    public void setSessionDeltaSchema(SessionDeltaSchema sessionDeltaSchema) {
+        this.sessionDeltaSchema = sessionDeltaSchema;
+    }
+
+    /**
+     * コールドテーブルのスキーマをセットする。
+     * <p/>
+     * {@link DbStore#setColdSessionSchema(UserSessionSchema)}を使用している場合は、同じものを設定すること。
+     * コールドテーブルに退避されたセッションの差分は、戻された際に適用するため削除しない。
+     * コールドテーブルの有効期限切れのセッションは、{@link DbStore#archiveIdleSessions()}で削除される。
+     *
+     * @param coldSessionSchema コールドテーブルのスキーマ
+     */
+    public void setColdSessionSchema(UserSessionSchema coldSessionSchema) {
+        this.coldSessionSchema = coldSessionSchema;
+    }
+
+    /**
+     * 有効期限切れのセッションを有効期限バケット単位で削除する。
+     * <p/>
+     * バケットごとにトランザクションをコミットする。
+     *
+     * @return 削除した有効期限バケットの数
+     */
+    public int purge() {
+        final Timestamp now = SystemTimeUtil.getTimestamp();
+        final long currentBucket = userSessionSchema.toExpirationBucket(now.getTime());
+        final List<Long> buckets = new SimpleDbTransactionExecutor<List<Long>>(dbManager) {
+            @Override
+            public List<Long> execute(AppDbConnection connection) {
+                final SqlPStatement select = connection.prepareStatement(selectExpiredBucketSql);
+                select.setLong(1, currentBucket);
+                final ResultSetIterator iterator = select.executeQuery();
+                final List<Long> result = new ArrayList<Long>();
+                while (iterator.next()) {
+                    result.add(iterator.getLong(1));
+                }
+                return result;
+            }
+        }.doTransaction();
+
+        for (final Long bucket : buckets) {
+            new SimpleDbTransactionExecutor<Void>(dbManager) {
+                @Override
+                public Void execute(AppDbConnection connection) {
+                    if (partitionPurgeSqlTemplate != null && !containsAlive(bucket, now, connection)) {
+                        connection.prepareStatement(
+                                partitionPurgeSqlTemplate.replace(BUCKET_PLACEHOLDER, String.valueOf(bucket)))
+                                .executeUpdate();
+                    } else {
+                        final SqlPStatement delete = connection.prepareStatement(deleteBucketSql);
+                        delete.setLong(1, bucket);
+                        bindNow(delete, 2, now);
+                        delete.executeUpdate();
+                    }
+                    return null;
+                }
+            }.doTransaction();
+        }
+        if (deleteOrphanDeltaSql != null) {
+            new SimpleDbTransactionExecutor<Void>(dbManager) {
+                @Override
+                public Void execute(AppDbConnection connection) {
+                    connection.prepareStatement(deleteOrphanDeltaSql).executeUpdate();
+                    return null;
+                }
+            }.doTransaction();
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.logDebug("purged expired session buckets. count = " + buckets.size());
+        }
+        return buckets.size();
+    }
+
+    /**
+     * 有効期限バケットに有効期限切れでないセッションが含まれるかを判定する。
+     *
+     * @param bucket 有効期限バケット
+     * @param now 現在日時
+     * @param connection {@link AppDbConnection}
+     * @return 有効期限切れでないセッションが含まれる場合は{@code true}
+     */
+    private boolean containsAlive(final Long bucket, final Timestamp now, final AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectAliveInBucketSql);
+        select.setLong(1, bucket);
+        bindNow(select, 2, now);
+        select.setMaxRows(1);
+        return select.executeQuery().next();
+    }
+
+    /**
+     * 有効期限の判定に使用する現在日時をバインドする。
+     * <p/>
+     * データベースの時計を使用する場合は、SQLに現在日時の式が含まれるためバインドしない。
+     *
+     * @param statement {@link SqlPStatement}
+     * @param index 現在日時をバインドするインデックス
+     * @param now 現在日時
+     */
+    private void bindNow(final SqlPStatement statement, final int index, final Timestamp now) {
+        if (databaseClock == null) {
+            statement.setTimestamp(index, now);
+        }
+    }
+
+    /**
+     * 初期化処理。
+     */
+    @Override
+    public void initialize() {
+        if (userSessionSchema == null || userSessionSchema.getExpirationBucketName() == null) {
+            throw new IllegalStateException("expirationBucketName of userSessionSchema was not specified.");
+        }
+
+        // SQL文を初期化する。
+        final String bucketName = userSessionSchema.getExpirationBucketName();
+        selectExpiredBucketSql = "SELECT DISTINCT " + bucketName
+                + " FROM " + userSessionSchema.getTableName()
+                + " WHERE " + bucketName + " < ?"
+                + " ORDER BY " + bucketName;
+
+        final String bucketCondition = " WHERE " + bucketName + " = ?"
+                + " AND " + userSessionSchema.getExpirationDatetimeName();
+        final String now = databaseClock == null ? "?" : databaseClock.now();
+        deleteBucketSql = "DELETE FROM " + userSessionSchema.getTableName()
+                + bucketCondition + " < " + now;
+        selectAliveInBucketSql = "SELECT " + bucketName + " FROM " + userSessionSchema.getTableName()
+                + bucketCondition + " >= " + now;
+
+        if (sessionDeltaSchema != null) {
+            if (userSessionSchema.isBinarySessionId()
+                    || (coldSessionSchema != null && coldSessionSchema.isBinarySessionId())) {
+                throw new IllegalStateException("sessionDeltaSchema cannot be used with binarySessionId.");
+            }
+            final String deltaSessionId = sessionDeltaSchema.getTableName() + "."
+                    + sessionDeltaSchema.getSessionIdName();
+            deleteOrphanDeltaSql = "DELETE FROM " + sessionDeltaSchema.getTableName()
+                    + " WHERE " + notExists(userSessionSchema, deltaSessionId)
+                    + (coldSessionSchema == null ? "" : " AND " + notExists(coldSessionSchema, deltaSessionId));
+        }
+    }
+
+    /**
+     * セッションがテーブルに存在しないことを判定する条件を生成する。
+     *
+     * @param schema ユーザセッションテーブル(またはコールドテーブル)のスキーマ
+     * @param deltaSessionId 差分テーブルのセッションIDカラム
+     * @return 条件
+     */
+    private static String notExists(final UserSessionSchema schema, final String deltaSessionId) {
+        return "NOT EXISTS (SELECT 1 FROM " + schema.getTableName()
+                + " WHERE " + schema.getTableName() + "." + schema.getSessionIdName() + " = " + deltaSessionId + ")";
+    }
+}
@@ -0,0 +1,163 @@
+package nablarch.common.web.session.store;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.repository.initialization.Initializable;
+import nablarch.core.util.FileUtil;
+
+/**
+ * セッションオブジェクトをディレクトリ配下のファイルに保存する{@link SessionOverflowStore}。
+ * <p/>
+ * セッションのバージョンごとに1ファイルを作成し、読み込みはメモリマップドファイルで行う。
+ * 複数のノードで使用する場合は、共有ファイルシステム上のディレクトリを指定すること。
+ * <p/>
+ * ファイルは一意な名前の一時ファイルに書き込んだ後に、バージョンのファイル名に変更する。
+ * バージョンごとにファイルが異なるため、読み込み中のファイルが置き換えられたり、削除されてから作成されるまでの間に
+ * ファイルが存在しなくなったりすることはない。
+ * <p/>
+ * {@link DbStore}以外で削除されたユーザセッションテーブルの行(有効期限切れで一括削除されたものなど)のファイルや、
+ * 異常終了により残った一時ファイルは削除されないため、{@link #deleteFilesOlderThan(long)}などで定期的に削除すること。
+ *
+ * @author TIS
+ */
+public class FileSessionOverflowStore implements SessionOverflowStore, Initializable {
+
+    /** ファイル名の文字コード */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** 16進数の文字 */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** 保存先のディレクトリ */
+    private File directory;
+
+    /**
+     * 保存先のディレクトリのパスをセットする。
+     *
+     * @param directory 保存先のディレクトリのパス
+     */
+    public void setDirectory(String directory) {
+        this.directory = new File(directory);
+    }
+
+    @Override
+    public void save(String sessionId, String version, byte[] sessionObject, AppDbConnection connection) {
+        final File file = toFile(sessionId, version);
+        // 共有ファイルシステム上で他のノードと衝突しない名前とする
+        final File temp = new File(directory, file.getName() + ".tmp" + UUID.randomUUID());
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(sessionObject);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write session object. file = " + temp.getAbsolutePath(), e);
+        } finally {
+            FileUtil.closeQuietly(out);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IllegalStateException(
+                    "failed to rename session object file. file = " + file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public byte[] load(String sessionId, String version, AppDbConnection connection) {
+        final File file = toFile(sessionId, version);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final byte[] sessionObject = new byte[buffer.remaining()];
+            buffer.get(sessionObject);
+            return sessionObject;
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read session object. file = " + file.getAbsolutePath(), e);
+        } finally {
+            FileUtil.closeQuietly(raf);
+        }
+    }
+
+    @Override
+    public void delete(String sessionId, String version, AppDbConnection connection) {
+        toFile(sessionId, version).delete();
+    }
+
+    /**
+     * 指定した期間より前に更新されたファイルを削除する。
+     * <p/>
+     * ファイルは保存後に更新されないため、期間はセッションの有効期間より十分長く指定すること。
+     * 差分保存モード({@link DbStore#setSessionDeltaSchema(SessionDeltaSchema)})では、
+     * 差分を追記している間は新しいファイルが作成されないため、さらに長く指定すること。
+     *
+     * @param millis 期間(ミリ秒)
+     * @return 削除したファイルの数
+     */
+    public int deleteFilesOlderThan(long millis) {
+        final long threshold = System.currentTimeMillis() - millis;
+        final File[] files = directory.listFiles();
+        int count = 0;
+        if (files == null) {
+            return count;
+        }
+        for (File file : files) {
+            if (file.isFile() && file.lastModified() < threshold && file.delete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * セッションIDとバージョンに対応するファイルを取得する。
+     * <p/>
+     * ファイル名にはセッションIDのSHA-256ハッシュ値とバージョンを使用する。
+     *
+     * @param sessionId セッションID
+     * @param version バージョン
+     * @return ファイル
+     */
+    private File toFile(String sessionId, String version) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(sessionId.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final char[] name = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            name[i * 2] = HEX[(digest[i] >> 4) & 0x0F];
+            name[i * 2 + 1] = HEX[digest[i] & 0x0F];
+        }
+        return new File(directory, new String(name) + '-' + version);
+    }
+
+    /**
+     * 初期化処理。
+     * <p/>
+     * 保存先のディレクトリが存在しない場合は作成する。
+     */
+    @Override
+    public void initialize() {
+        if (directory == null) {
+            throw new IllegalStateException("directory was not specified.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("failed to create directory. directory = " + directory.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package nablarch.common.web.session.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.initialization.Initializable;
+import nablarch.core.util.FileUtil;
+
+/**
+ * 最近使用したセッションオブジェクトを、ノードのローカルファイルに保持するクラス。
+ * <p/>
+ * {@link DbStore#setLocalTier(MappedSessionTier)}に設定すると、{@link DbStore}は読み込み時に
+ * このファイルに保持したバージョンを条件にユーザセッションテーブルを検索し、
+ * バージョンが一致すればセッションオブジェクトをデータベースから取得せずに使用する。
+ * バージョンは{@link UserSessionSchema#setVersionName(String)}のカラムに、セッションオブジェクトを書き込むたびに採番して保存する。
+ * このため、他のノードで更新されたセッションや削除されたセッションを誤って使用することはなく、
+ * 有効期限だけの更新({@link nablarch.common.web.session.DbManagedExpiration}など)では保持した内容を引き続き使用できる。
+ * <p/>
+ * ファイルはメモリマップした追記型のファイルで、メモリ上にはセッションIDと位置の索引だけを保持する。
+ * JVMを再起動しても内容が残るため、ローリング再起動の直後にデータベースへの負荷が集中することを防ぐ。
+ * 起動時にファイルを先頭から読み込んで索引を再構築し、チェックサムが一致しないレコード以降は破棄する。
+ * <p/>
+ * ファイルの末尾に達した場合は、各セッションの最新のレコードだけを残すよう、バックグラウンドのスレッドで詰め直す。
+ * 詰め直しても{@link #setMaxBytes(long)}の半分を超える場合は、書き込んだ時刻の古いレコードから破棄する。
+ * 詰め直している間はリクエストのスレッドを待たせず、保持した内容を使用しない(データベースから読み込む)。
+ * <p/>
+ * 1つのファイルは1つのJVMからのみ使用すること。
+ *
+ * @author TIS
+ */
+public class MappedSessionTier implements Initializable {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(MappedSessionTier.class);
+
+    /** ファイルの先頭に付与するヘッダ */
+    private static final byte[] FILE_HEADER = {(byte) 0xFF, (byte) 0xF9, 'L', 'T'};
+
+    /** レコードのヘッダ(レコードの長さとチェックサム)のバイト数 */
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    /** 文字コード */
+    private static final String UTF_8 = "UTF-8";
+
+    /** ファイルを保存するディレクトリ */
+    private File directory;
+
+    /** ファイル名 */
+    private String fileName = "session-tier.dat";
+
+    /** ファイルの最大バイト数 */
+    private long maxBytes = 64L * 1024 * 1024;
+
+    /** 保持するセッションオブジェクトの最大バイト数 */
+    private int maxEntryBytes = 1024 * 1024;
+
+    /** メモリマップしたファイル */
+    private MappedByteBuffer buffer;
+
+    /** セッションIDとレコードの位置 */
+    private final Map<String, Location> index = new HashMap<String, Location>();
+
+    /** 次に書き込む位置 */
+    private int writePosition;
+
+    /** 書き込んだレコードの数(書き込んだ順序を表す) */
+    private long writeCount;
+
+    /** 使用できた回数 */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** 使用できなかった回数 */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /** 詰め直している間は{@code true} */
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * ファイルを保存するディレクトリをセットする。
+     *
+     * @param directory ファイルを保存するディレクトリ
+     */
+    public void setDirectory(String directory) {
+        this.directory = new File(directory);
+    }
+
+    /**
+     * ファイル名をセットする。
+     * <p/>
+     * デフォルトは{@code session-tier.dat}。
+     *
+     * @param fileName ファイル名
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * ファイルの最大バイト数をセットする。
+     * <p/>
+     * デフォルトは64MB。2GB未満とすること。
+     *
+     * @param maxBytes ファイルの最大バイト数
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 保持するセッションオブジェクトの最大バイト数をセットする。
+     * <p/>
+     * これを超えるセッションオブジェクトは保持しない。
+     * デフォルトは1MB。
+     *
+     * @param maxEntryBytes 保持するセッションオブジェクトの最大バイト数
+     */
+    public void setMaxEntryBytes(int maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * 保持しているセッションオブジェクトを使用できた回数を取得する。
+     *
+     * @return 使用できた回数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 保持しているセッションオブジェクトを使用できなかった回数を取得する。
+     *
+     * @return 使用できなかった回数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 保持しているセッションの数を取得する。
+     *
+     * @return 保持しているセッションの数
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * 保持しているセッションオブジェクトのバージョンを取得する。
+     *
+     * @param sessionId セッションID
+     * @return バージョン。保持していない場合や詰め直している場合は-1
+     */
+    long versionOf(String sessionId) {
+        if (compacting.get()) {
+            return -1L;
+        }
+        synchronized (this) {
+            final Location location = index.get(sessionId);
+            return location == null ? -1L : location.version;
+        }
+    }
+
+    /**
+     * 指定したバージョンのセッションオブジェクトを取得する。
+     *
+     * @param sessionId セッションID
+     * @param version バージョン
+     * @return セッションオブジェクト。保持していない場合やバージョンが異なる場合は{@code null}
+     */
+    byte[] get(String sessionId, long version) {
+        if (compacting.get()) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        synchronized (this) {
+            final Location location = index.get(sessionId);
+            if (location == null || location.version != version) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            final ByteBuffer record = buffer.duplicate();
+            record.position(location.objectOffset);
+            final byte[] sessionObject = new byte[location.objectLength];
+            record.get(sessionObject);
+            hitCount.incrementAndGet();
+            return sessionObject;
+        }
+    }
+
+    /**
+     * 保持している内容を使用できなかったこと(バージョンが異なっていたこと)を記録する。
+     */
+    void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    /**
+     * セッションオブジェクトを保持する。
+     * <p/>
+     * 同じセッションIDのレコードを追記し、索引を新しいレコードに置き換える。
+     * ファイルの末尾に達した場合は保持せず、バックグラウンドで詰め直す。
+     * 詰め直している間は保持しない(以前のレコードが残っても、バージョンが異なるため使用されない)。
+     *
+     * @param sessionId セッションID
+     * @param version バージョン
+     * @param sessionObject セッションオブジェクト
+     */
+    void put(String sessionId, long version, byte[] sessionObject) {
+        if (compacting.get()) {
+            return;
+        }
+        synchronized (this) {
+            if (sessionObject.length > maxEntryBytes) {
+                index.remove(sessionId);
+                return;
+            }
+            final byte[] id = toBytes(sessionId);
+            final int recordLength = RECORD_HEADER_BYTES + 2 + id.length + 8 + sessionObject.length;
+            if (writePosition + recordLength + 4 > buffer.capacity()) {
+                index.remove(sessionId);
+                if (FILE_HEADER.length + recordLength + 4 <= buffer.capacity()) {
+                    startCompaction();
+                }
+                return;
+            }
+            append(sessionId, id, version, sessionObject);
+        }
+    }
+
+    /**
+     * セッションオブジェクトを破棄する。
+     * <p/>
+     * 索引から削除するだけで、ファイルのレコードは詰め直すまで残る。
+     * 再起動後に索引に戻っても、バージョンが一致しないため使用されない。
+     *
+     * @param sessionId セッションID
+     */
+    synchronized void remove(String sessionId) {
+        index.remove(sessionId);
+    }
+
+    /**
+     * 各セッションの最新のレコードだけを残すよう、ファイルを詰め直す。
+     * <p/>
+     * 呼び出したスレッドで詰め直す。
+     * 詰め直している間は、他のスレッドは保持した内容を使用しない。
+     */
+    public void compact() {
+        compacting.set(true);
+        try {
+            synchronized (this) {
+                compactLocked();
+            }
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * 詰め直している最中かを判定する。
+     *
+     * @return 詰め直している場合は{@code true}
+     */
+    boolean isCompacting() {
+        return compacting.get();
+    }
+
+    /**
+     * バックグラウンドのスレッドで詰め直しを開始する。
+     * <p/>
+     * 既に詰め直している場合は何もしない。
+     */
+    private void startCompaction() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (MappedSessionTier.this) {
+                        compactLocked();
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.logWarn("failed to compact local session tier.", e);
+                } finally {
+                    compacting.set(false);
+                }
+            }
+        }, "local-session-tier-compaction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * ファイルを詰め直す。
+     * <p/>
+     * 詰め直した後のサイズが最大バイト数の半分を超える場合は、書き込んだ時刻の古いレコードから破棄する。
+     * 本オブジェクトのロックを取得して呼び出すこと。
+     */
+    private void compactLocked() {
+        final List<Map.Entry<String, Location>> live = new ArrayList<Map.Entry<String, Location>>(index.entrySet());
+        Collections.sort(live, new Comparator<Map.Entry<String, Location>>() {
+            @Override
+            public int compare(Map.Entry<String, Location> o1, Map.Entry<String, Location> o2) {
+                final long s1 = o1.getValue().sequence;
+                final long s2 = o2.getValue().sequence;
+                return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+            }
+        });
+        final long limit = buffer.capacity() / 2;
+        long total = FILE_HEADER.length;
+        for (Map.Entry<String, Location> entry : live) {
+            total += entry.getValue().recordLength;
+        }
+        int from = 0;
+        while (total > limit && from < live.size()) {
+            total -= live.get(from++).getValue().recordLength;
+        }
+
+        // 残すレコードをコピーしてから先頭から書き直す
+        final List<String> ids = new ArrayList<String>();
+        final List<Long> versions = new ArrayList<Long>();
+        final List<byte[]> objects = new ArrayList<byte[]>();
+        for (Map.Entry<String, Location> entry : live.subList(from, live.size())) {
+            final Location location = entry.getValue();
+            final ByteBuffer record = buffer.duplicate();
+            record.position(location.objectOffset);
+            final byte[] sessionObject = new byte[location.objectLength];
+            record.get(sessionObject);
+            ids.add(entry.getKey());
+            versions.add(location.version);
+            objects.add(sessionObject);
+        }
+        // 書き直しの途中で停止した場合に以前のレコードが読み込まれても、バージョンの確認により誤って使用されることはない
+        index.clear();
+        writePosition = FILE_HEADER.length;
+        buffer.putInt(writePosition, 0);
+        for (int i = 0; i < ids.size(); i++) {
+            append(ids.get(i), toBytes(ids.get(i)), versions.get(i), objects.get(i));
+        }
+        LOGGER.logInfo("compacted local session tier. retained = " + ids.size()
+                + ", dropped = " + from + ", bytes = " + writePosition);
+    }
+
+    /**
+     * レコードを追記し、索引を更新する。
+     * <p/>
+     * レコードの形式は、長さ、チェックサム、セッションIDのバイト数、セッションID、バージョン、セッションオブジェクト。
+     * 長さとチェックサムは、セッションIDのバイト数以降を対象とする。
+     * 次のレコードの長さを0にしておき、ファイルの終端とする。
+     *
+     * @param sessionId セッションID
+     * @param id セッションIDのバイト列
+     * @param version バージョン
+     * @param sessionObject セッションオブジェクト
+     */
+    private void append(String sessionId, byte[] id, long version, byte[] sessionObject) {
+        final int bodyLength = 2 + id.length + 8 + sessionObject.length;
+        final ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        body.putShort((short) id.length);
+        body.put(id);
+        body.putLong(version);
+        body.put(sessionObject);
+        final CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        final ByteBuffer record = buffer.duplicate();
+        record.position(writePosition);
+        record.putInt(bodyLength);
+        record.putInt((int) crc.getValue());
+        record.put(body.array());
+        if (record.remaining() >= 4) {
+            record.putInt(record.position(), 0);
+        }
+        final int objectOffset = writePosition + RECORD_HEADER_BYTES + 2 + id.length + 8;
+        index.put(sessionId, new Location(writeCount++, version, objectOffset, sessionObject.length,
+                RECORD_HEADER_BYTES + bodyLength));
+        writePosition += RECORD_HEADER_BYTES + bodyLength;
+    }
+
+    /**
+     * ファイルを先頭から読み込み、索引を再構築する。
+     * <p/>
+     * 長さが0のレコードか、長さやチェックサムが不正なレコードに達した時点で終了する。
+     */
+    private void recover() {
+        final ByteBuffer record = buffer.duplicate();
+        final byte[] header = new byte[FILE_HEADER.length];
+        record.get(header);
+        if (!Arrays.equals(header, FILE_HEADER)) {
+            // 新しいファイルか、形式の異なるファイル
+            buffer.duplicate().put(FILE_HEADER).putInt(0);
+            writePosition = FILE_HEADER.length;
+            return;
+        }
+        int position = FILE_HEADER.length;
+        while (position + RECORD_HEADER_BYTES <= record.capacity()) {
+            final int bodyLength = record.getInt(position);
+            if (bodyLength <= 10 || position + RECORD_HEADER_BYTES + bodyLength > record.capacity()) {
+                break;
+            }
+            final byte[] body = new byte[bodyLength];
+            record.position(position + RECORD_HEADER_BYTES);
+            record.get(body);
+            final CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != record.getInt(position + 4)) {
+                break;
+            }
+            final ByteBuffer fields = ByteBuffer.wrap(body);
+            final byte[] id = new byte[fields.getShort() & 0xFFFF];
+            if (id.length + 10 > bodyLength) {
+                break;
+            }
+            fields.get(id);
+            final long version = fields.getLong();
+            final int objectOffset = position + RECORD_HEADER_BYTES + fields.position();
+            index.put(toString(id), new Location(writeCount++, version, objectOffset, fields.remaining(),
+                    RECORD_HEADER_BYTES + bodyLength));
+            position += RECORD_HEADER_BYTES + bodyLength;
+        }
+        writePosition = position;
+        if (position + 4 <= record.capacity()) {
+            record.putInt(position, 0);
+        }
+    }
+
+    /**
+     * 初期化処理。
+     * <p/>
+     * ファイルをメモリマップし、索引を再構築する。
+     */
+    @Override
+    public synchronized void initialize() {
+        if (directory == null) {
+            throw new IllegalStateException("directory was not specified.");
+        }
+        if (maxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maxBytes must be less than 2GB. maxBytes = " + maxBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("failed to create directory. directory = " + directory.getAbsolutePath());
+        }
+        final File file = new File(directory, fileName);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(maxBytes);
+            // マップしたバッファはチャネルを閉じた後も有効
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to map file. file = " + file.getAbsolutePath(), e);
+        } finally {
+            FileUtil.closeQuietly(raf);
+        }
+        index.clear();
+        writeCount = 0;
+        recover();
+        LOGGER.logInfo("opened local session tier. sessions = " + index.size()
+                + ", bytes = " + writePosition + ", file = " + file.getAbsolutePath());
+    }
+
+    /**
+     * 文字列をバイト列に変換する。
+     *
+     * @param value 文字列
+     * @return バイト列
+     */
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * バイト列を文字列に変換する。
+     *
+     * @param value バイト列
+     * @return 文字列
+     */
+    private static String toString(byte[] value) {
+        try {
+            return new String(value, UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * レコードの位置。
+     */
+    private static final class Location {
+
+        /** 書き込んだ順序 */
+        private final long sequence;
+
+        /** バージョン */
+        private final long version;
+
+        /** セッションオブジェクトの位置 */
+        private final int objectOffset;
+
+        /** セッションオブジェクトのバイト数 */
+        private final int objectLength;
+
+        /** レコード全体のバイト数 */
+        private final int recordLength;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param sequence 書き込んだ順序
+         * @param version バージョン
+         * @param objectOffset セッションオブジェクトの位置
+         * @param objectLength セッションオブジェクトのバイト数
+         * @param recordLength レコード全体のバイト数
+         */
+        private Location(long sequence, long version, int objectOffset, int objectLength, int recordLength) {
+            this.sequence = sequence;
+            this.version = version;
+            this.objectOffset = objectOffset;
+            this.objectLength = objectLength;
+            this.recordLength = recordLength;
+        }
+    }
+}
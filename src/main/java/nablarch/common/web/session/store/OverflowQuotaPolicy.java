@@ -0,0 +1,23 @@
+package nablarch.common.web.session.store;
+
+import java.util.List;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.StateEncoder;
+
+/**
+ * サイズが上限を超えたセッションを{@link SessionOverflowStore}に保存する{@link SessionQuotaPolicy}。
+ * <p/>
+ * ユーザセッションテーブルには参照だけを保存するため、共有するテーブルの行サイズを抑えられる。
+ * {@link DbStore#setOverflowStore(SessionOverflowStore)}が設定されていることを前提とする。
+ *
+ * @author TIS
+ */
+public class OverflowQuotaPolicy implements SessionQuotaPolicy {
+
+    @Override
+    public SessionQuotaDecision onHardLimitExceeded(String sessionId, List<SessionEntry> entries,
+            int encodedSize, int hardLimitBytes, StateEncoder stateEncoder) {
+        return SessionQuotaDecision.overflow();
+    }
+}
@@ -0,0 +1,377 @@
+package nablarch.common.web.session.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.common.web.session.StateEncoder;
+import nablarch.core.repository.disposal.Disposable;
+import nablarch.core.repository.initialization.Initializable;
+
+/**
+ * セッションに保存された値のエンコード・デコードを、エントリごとに並列に行うクラス。
+ * <p/>
+ * {@link DbStore#setParallelCodec(ParallelSessionCodec)}に設定して使用する。
+ * 値はエントリごとに独立してエンコードし、バイト数を前置して並べた形式で保存するため、エントリ単位で並列に処理できる。
+ * <p/>
+ * デコードは、バイト数が{@link #setParallelThresholdBytes(int)}以上のエントリが2つ以上ある場合に並列に行う。
+ * エンコードはエンコード前にサイズがわからないため、キーごとに前回エンコード・デコードした際のバイト数を記録しておき、
+ * そのバイト数が閾値以上のエントリが2つ以上ある場合に並列に行う。
+ * バイト数を記録していないキーは小さいものとして扱うため、小さなエントリが多いだけのセッションは並列に処理しない。
+ * それ以外のセッションは、これまでどおりリクエストスレッドだけで処理する。
+ * <p/>
+ * 並列処理には、スレッド数とキューの長さを制限したスレッドプールを使用する。
+ * リクエストスレッドも処理の一部を受け持ち、キューがいっぱいの場合はリクエストスレッドで処理するため、
+ * 負荷が高い状況でも逐次処理より遅くなることはない。
+ * プールのスレッドでは、リクエストスレッドのコンテキストクラスローダを使用する。
+ * <p/>
+ * スレッドプールは{@link #dispose()}で終了する。
+ * 終了した後は、すべてのエントリをリクエストスレッドで処理する。
+ *
+ * @author TIS
+ */
+public class ParallelSessionCodec implements Initializable, Disposable {
+
+    /** スレッド名の連番 */
+    private static final AtomicInteger THREAD_SEQUENCE = new AtomicInteger();
+
+    /** 並列処理に使用するスレッド数 */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /** 並列処理を待つタスクの最大数 */
+    private int queueCapacity = 64;
+
+    /** 並列にデコードするエントリのバイト数の閾値 */
+    private int parallelThresholdBytes = 16 * 1024;
+
+    /** バイト数を記録するキーの最大数 */
+    private int maxTrackedKeys = 1024;
+
+    /** キーごとの前回エンコード・デコードした際のバイト数 */
+    private final ConcurrentMap<String, Integer> encodedSizes = new ConcurrentHashMap<String, Integer>();
+
+    /** 並列処理に使用するスレッドプール */
+    private ThreadPoolExecutor executor;
+
+    /** 並列に処理したセッションの数 */
+    private final AtomicLong parallelCount = new AtomicLong();
+
+    /**
+     * 並列処理に使用するスレッド数をセットする。
+     * <p/>
+     * デフォルトは利用可能なプロセッサ数。
+     *
+     * @param parallelism 並列処理に使用するスレッド数
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 並列処理を待つタスクの最大数をセットする。
+     * <p/>
+     * これを超えたタスクはリクエストスレッドで処理する。
+     * デフォルトは64。
+     *
+     * @param queueCapacity 並列処理を待つタスクの最大数
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * 並列にデコードするエントリのバイト数の閾値をセットする。
+     * <p/>
+     * デフォルトは16KB。
+     *
+     * @param parallelThresholdBytes 並列にデコードするエントリのバイト数の閾値
+     */
+    public void setParallelThresholdBytes(int parallelThresholdBytes) {
+        this.parallelThresholdBytes = parallelThresholdBytes;
+    }
+
+    /**
+     * バイト数を記録するキーの最大数をセットする。
+     * <p/>
+     * これを超えたキーはバイト数を記録せず、エンコードの際は小さいものとして扱う。
+     * デフォルトは1024。
+     *
+     * @param maxTrackedKeys バイト数を記録するキーの最大数
+     */
+    public void setMaxTrackedKeys(int maxTrackedKeys) {
+        this.maxTrackedKeys = maxTrackedKeys;
+    }
+
+    /**
+     * 並列に処理したセッションの数を取得する。
+     *
+     * @return 並列に処理したセッションの数
+     */
+    public long getParallelCount() {
+        return parallelCount.get();
+    }
+
+    /**
+     * 値をエンコードする。
+     * <p/>
+     * 並列に処理するかは、キーごとに前回エンコード・デコードした際のバイト数で判定する。
+     *
+     * @param keys キー
+     * @param values 値(要素が{@code null}の場合はエンコードしない)
+     * @param stateEncoder エンコーダ
+     * @return エンコードした値(値が{@code null}の要素は{@code null})
+     */
+    byte[][] encode(final List<String> keys, final List<?> values, final StateEncoder stateEncoder) {
+        final byte[][] encoded = new byte[values.size()][];
+        final int[] sizes = new int[values.size()];
+        final List<Integer> indexes = new ArrayList<Integer>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) != null) {
+                final Integer size = encodedSizes.get(keys.get(i));
+                sizes[i] = size == null ? 0 : size;
+                indexes.add(i);
+            }
+        }
+        runBySize(indexes, sizes, new IndexedTask() {
+            @Override
+            void run(int index) {
+                encoded[index] = stateEncoder.encode(values.get(index));
+            }
+        });
+        for (Integer index : indexes) {
+            recordSize(keys.get(index), encoded[index].length);
+        }
+        return encoded;
+    }
+
+    /**
+     * 値をデコードする。
+     * <p/>
+     * クラスはリクエストスレッドでロードしたものを指定すること。
+     *
+     * @param keys キー
+     * @param values エンコードした値
+     * @param types 値のクラス(要素が{@code null}の場合はデコードしない)
+     * @param stateEncoder エンコーダ
+     * @return デコードした値(クラスが{@code null}の要素は{@code null})
+     */
+    Object[] decode(final List<String> keys, final List<byte[]> values, final List<Class<?>> types,
+            final StateEncoder stateEncoder) {
+        final Object[] decoded = new Object[values.size()];
+        final int[] sizes = new int[values.size()];
+        final List<Integer> indexes = new ArrayList<Integer>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            if (types.get(i) != null) {
+                sizes[i] = values.get(i).length;
+                indexes.add(i);
+                recordSize(keys.get(i), sizes[i]);
+            }
+        }
+        runBySize(indexes, sizes, new IndexedTask() {
+            @Override
+            void run(int index) {
+                decoded[index] = stateEncoder.decode(values.get(index), types.get(index));
+            }
+        });
+        return decoded;
+    }
+
+    /**
+     * キーのバイト数を記録する。
+     * <p/>
+     * 記録しているキーの数が最大数に達している場合は、新しいキーを記録しない。
+     *
+     * @param key キー
+     * @param size バイト数
+     */
+    private void recordSize(final String key, final int size) {
+        if (encodedSizes.size() < maxTrackedKeys || encodedSizes.containsKey(key)) {
+            encodedSizes.put(key, size);
+        }
+    }
+
+    /**
+     * バイト数が閾値未満の要素をリクエストスレッドで処理し、閾値以上の要素が2つ以上ある場合は並列に処理する。
+     *
+     * @param indexes 処理するインデックス
+     * @param sizes インデックスごとの(見込みの)バイト数
+     * @param task インデックスごとの処理
+     */
+    private void runBySize(final List<Integer> indexes, final int[] sizes, final IndexedTask task) {
+        final List<Integer> large = new ArrayList<Integer>();
+        for (Integer index : indexes) {
+            if (sizes[index] >= parallelThresholdBytes) {
+                large.add(index);
+            } else {
+                task.run(index);
+            }
+        }
+        // 大きいものから順に割り当て、タスクごとのバイト数の偏りを抑える
+        Collections.sort(large, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                final int size1 = sizes[o1];
+                final int size2 = sizes[o2];
+                return size1 > size2 ? -1 : size1 == size2 ? 0 : 1;
+            }
+        });
+        runPartitioned(large, large.size() >= 2, task);
+    }
+
+    /**
+     * インデックスをタスクに振り分けて処理する。
+     * <p/>
+     * 並列に処理する場合は、最初のタスクをリクエストスレッドで処理し、残りをスレッドプールで処理する。
+     *
+     * @param indexes 処理するインデックス
+     * @param parallel 並列に処理する場合は{@code true}
+     * @param task インデックスごとの処理
+     */
+    private void runPartitioned(final List<Integer> indexes, final boolean parallel, final IndexedTask task) {
+        final int partitions = parallel && !executor.isShutdown() ? Math.min(parallelism + 1, indexes.size()) : 1;
+        if (partitions <= 1) {
+            for (Integer index : indexes) {
+                task.run(index);
+            }
+            return;
+        }
+        parallelCount.incrementAndGet();
+        final List<List<Integer>> assigned = new ArrayList<List<Integer>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            assigned.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < indexes.size(); i++) {
+            assigned.get(i % partitions).add(indexes.get(i));
+        }
+
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(partitions - 1);
+        try {
+            for (int i = 1; i < partitions; i++) {
+                futures.add(executor.submit(task.partition(assigned.get(i), loader)));
+            }
+            for (Integer index : assigned.get(0)) {
+                task.run(index);
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 初期化処理。
+     * <p/>
+     * 並列処理に使用するスレッドプールを生成する。
+     * スレッドはデーモンスレッドとし、一定時間使用されない場合は終了する。
+     * キューがいっぱいの場合や、スレッドプールを終了した後に投入したタスクはリクエストスレッドで処理する。
+     */
+    @Override
+    public void initialize() {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive. parallelism = " + parallelism);
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        executor = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueCapacity, 1)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "parallel-session-codec-" + THREAD_SEQUENCE.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor rejected) {
+                        // 終了した後も待ち合わせているタスクが完了するよう、破棄せずに処理する
+                        runnable.run();
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 並列処理に使用するスレッドプールを終了する。
+     * <p/>
+     * 処理中のタスクの完了は待たない。
+     */
+    @Override
+    public void dispose() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * インデックスごとの処理。
+     */
+    private abstract static class IndexedTask {
+
+        /**
+         * 指定したインデックスの要素を処理する。
+         *
+         * @param index インデックス
+         */
+        abstract void run(int index);
+
+        /**
+         * 指定したインデックスの要素を、指定したコンテキストクラスローダで処理するタスクを生成する。
+         *
+         * @param indexes インデックス
+         * @param loader コンテキストクラスローダ
+         * @return タスク
+         */
+        Callable<Void> partition(final List<Integer> indexes, final ClassLoader loader) {
+            return new Callable<Void>() {
+                @Override
+                public Void call() {
+                    final Thread thread = Thread.currentThread();
+                    final ClassLoader original = thread.getContextClassLoader();
+                    thread.setContextClassLoader(loader);
+                    try {
+                        for (Integer index : indexes) {
+                            run(index);
+                        }
+                    } finally {
+                        thread.setContextClassLoader(original);
+                    }
+                    return null;
+                }
+            };
+        }
+    }
+}
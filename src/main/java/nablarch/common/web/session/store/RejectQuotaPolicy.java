@@ -0,0 +1,24 @@
+package nablarch.common.web.session.store;
+
+import java.util.List;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.StateEncoder;
+
+/**
+ * サイズが上限を超えたセッションの保存を拒否する{@link SessionQuotaPolicy}。
+ * <p/>
+ * {@link SessionQuota}のデフォルトのポリシー。
+ *
+ * @author TIS
+ */
+public class RejectQuotaPolicy implements SessionQuotaPolicy {
+
+    @Override
+    public SessionQuotaDecision onHardLimitExceeded(String sessionId, List<SessionEntry> entries,
+            int encodedSize, int hardLimitBytes, StateEncoder stateEncoder) {
+        throw new SessionQuotaExceededException("session size exceeded the hard limit. session id hash = "
+                + SlowOperationLogger.hash(sessionId)
+                + ", size = " + encodedSize + ", hard limit = " + hardLimitBytes);
+    }
+}
@@ -0,0 +1,52 @@
+package nablarch.common.web.session.store;
+
+import java.util.Collections;
+import java.util.Map;
+
+import nablarch.fw.ExecutionContext;
+
+/**
+ * リクエストスコープの値(テナントIDなど)をキーに、セッションの保存先を決定するクラス。
+ * <p/>
+ * {@link #setAttributeName(String)}で指定したリクエストスコープの値を{@link #setRoutes(Map)}のキーとし、
+ * 対応する保存先を返す。値が設定されていない場合や、対応する保存先がない場合は既定の保存先を使用する。
+ * <p/>
+ * リクエストスコープの値は、セッションストアを使用するハンドラより前のハンドラで設定すること。
+ *
+ * @author TIS
+ */
+public class RequestAttributeStorageResolver implements SessionStorageResolver {
+
+    /** 保存先のキーを保持するリクエストスコープの変数名 */
+    private String attributeName;
+
+    /** キーと保存先のマップ */
+    private Map<String, SessionStorageRoute> routes = Collections.emptyMap();
+
+    /**
+     * 保存先のキーを保持するリクエストスコープの変数名をセットする。
+     *
+     * @param attributeName 変数名
+     */
+    public void setAttributeName(String attributeName) {
+        this.attributeName = attributeName;
+    }
+
+    /**
+     * キーと保存先のマップをセットする。
+     *
+     * @param routes キーと保存先のマップ
+     */
+    public void setRoutes(Map<String, SessionStorageRoute> routes) {
+        this.routes = routes;
+    }
+
+    @Override
+    public SessionStorageRoute resolve(ExecutionContext context) {
+        if (context == null) {
+            return null;
+        }
+        final Object key = context.getRequestScopedVar(attributeName);
+        return key == null ? null : routes.get(key.toString());
+    }
+}
@@ -0,0 +1,210 @@
+package nablarch.common.web.session.store;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.SessionStore;
+import nablarch.core.repository.initialization.Initializable;
+import nablarch.fw.ExecutionContext;
+
+/**
+ * リクエストごとに決定した保存先の{@link DbStore}に処理を委譲する{@link SessionStore}実装クラス。
+ * <p/>
+ * テナントごとにユーザセッションテーブルやデータベースを分ける場合に使用する。
+ * {@link #setStorageResolver(SessionStorageResolver)}で実行コンテキストから保存先を決定し、
+ * 保存先が決定されない場合は{@link #setDefaultStore(DbStore)}に設定した既定の保存先を使用する。
+ * <p/>
+ * 保存先ごとの{@link DbStore}は、最初に使用した時点で既定の保存先の設定を全て引き継いで生成し、
+ * ユーザセッションテーブルとデータベースだけを保存先のものに置き換える。
+ * 差分保存モード、コールドテーブル、変更ログ、共有値テーブルを使用する場合は、保存先のデータベースにもそれらのテーブルを作成すること。
+ * {@link SessionIdFilter}は1つのユーザセッションテーブルから再構築するため、既定の保存先に設定されている場合は初期化時に例外を送出する。
+ * <p/>
+ * 共有値のキャッシュ、差分の作成元のキャッシュ、{@link SessionOverflowStore}のバージョンのキャッシュ、
+ * エンコードに使用するバッファのプール、{@link MappedSessionTier}は、保存先ごとに生成せず既定の保存先のものを
+ * キーを分けて共有するため、保存先の数が増えてもノードで使用するメモリは増えない。
+ * <p/>
+ * 有効期間は既定の保存先に設定したものを使用する。
+ * 既定の保存先の{@link DbStore}も、初期化対象のコンポーネントに含めること。
+ *
+ * @author TIS
+ */
+public class RoutingDbStore extends SessionStore implements Initializable, SessionChangeListener {
+
+    /** 既定の保存先 */
+    private DbStore defaultStore;
+
+    /** リクエストごとにセッションの保存先を決定するリゾルバ */
+    private SessionStorageResolver storageResolver;
+
+    /** 保存先ごとの{@link DbStore}(SQLは保存先ごとに生成してキャッシュする) */
+    private final ConcurrentMap<SessionStorageRoute, DbStore> routedStores =
+            new ConcurrentHashMap<SessionStorageRoute, DbStore>();
+
+    /** 保存先ごとの{@link DbStore}の連番(共有するキャッシュのキーを保存先ごとに分けるために使用する) */
+    private final AtomicInteger routeSequence = new AtomicInteger();
+
+    /**
+     * コンストラクタ。
+     */
+    public RoutingDbStore() {
+        super("db");
+    }
+
+    /**
+     * 既定の保存先をセットする。
+     *
+     * @param defaultStore 既定の保存先
+     */
+    public void setDefaultStore(DbStore defaultStore) {
+        this.defaultStore = defaultStore;
+    }
+
+    /**
+     * リクエストごとにセッションの保存先を決定する{@link SessionStorageResolver}をセットする。
+     *
+     * @param storageResolver セッションの保存先を決定するリゾルバ
+     */
+    public void setStorageResolver(SessionStorageResolver storageResolver) {
+        this.storageResolver = storageResolver;
+    }
+
+    @Override
+    public List<SessionEntry> load(String sessionId, ExecutionContext executionContext) {
+        return getStore(executionContext).load(sessionId, executionContext);
+    }
+
+    @Override
+    public void save(String sessionId, List<SessionEntry> entries, ExecutionContext executionContext) {
+        getStore(executionContext).save(sessionId, entries, executionContext);
+    }
+
+    @Override
+    public void delete(String sessionId, ExecutionContext executionContext) {
+        getStore(executionContext).delete(sessionId, executionContext);
+    }
+
+    @Override
+    public void invalidate(String sessionId, ExecutionContext executionContext) {
+        getStore(executionContext).invalidate(sessionId, executionContext);
+    }
+
+    /**
+     * 実行コンテキストから決定した保存先で、複数のセッションを一括で読み込む。
+     *
+     * @param sessionIds セッションID
+     * @param executionContext 実行コンテキスト
+     * @return セッションIDとセッションに保存された情報のマップ(有効なセッションが存在しないセッションIDは含まない)
+     * @see DbStore#loadAll(Collection, ExecutionContext)
+     */
+    public Map<String, List<SessionEntry>> loadAll(Collection<String> sessionIds, ExecutionContext executionContext) {
+        return getStore(executionContext).loadAll(sessionIds, executionContext);
+    }
+
+    /**
+     * 実行コンテキストから決定した保存先で、複数のセッションを一括で削除する。
+     *
+     * @param sessionIds セッションID
+     * @param executionContext 実行コンテキスト
+     * @see DbStore#deleteAll(Collection, ExecutionContext)
+     */
+    public void deleteAll(Collection<String> sessionIds, ExecutionContext executionContext) {
+        getStore(executionContext).deleteAll(sessionIds, executionContext);
+    }
+
+    /**
+     * 実行コンテキストから決定した保存先で、所有者のセッションを全て無効化する。
+     *
+     * @param ownerId 所有者ID
+     * @param executionContext 実行コンテキスト
+     * @return 無効化したセッションの数
+     * @see DbStore#invalidateByOwner(String)
+     */
+    public int invalidateByOwner(String ownerId, ExecutionContext executionContext) {
+        return getStore(executionContext).invalidateByOwner(ownerId);
+    }
+
+    /**
+     * 一意制約違反によりリトライした回数を取得する。
+     * <p/>
+     * 全ての保存先でリトライした回数の合計を返す。
+     *
+     * @return リトライした回数
+     */
+    public long getDuplicateRetryCount() {
+        long count = defaultStore.getDuplicateRetryCount();
+        for (DbStore routed : routedStores.values()) {
+            count += routed.getDuplicateRetryCount();
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 既定の保存先と、生成済みの全ての保存先に通知する。
+     */
+    @Override
+    public void sessionChanged(String sessionId, SessionChangeType changeType) {
+        defaultStore.sessionChanged(sessionId, changeType);
+        for (DbStore routed : routedStores.values()) {
+            routed.sessionChanged(sessionId, changeType);
+        }
+    }
+
+    /**
+     * 既定の保存先に設定された有効期間を返す。
+     *
+     * @return 有効期間(ミリ秒)
+     */
+    @Override
+    public long getExpiresMilliSeconds() {
+        return defaultStore.getExpiresMilliSeconds();
+    }
+
+    /**
+     * 実行コンテキストからセッションの保存先を決定し、保存先の{@link DbStore}を取得する。
+     * <p/>
+     * コールドテーブルへの移動や共有値の削除など、保存先ごとの管理処理を行う場合に使用する。
+     *
+     * @param executionContext 実行コンテキスト(実行コンテキストを伴わない処理の場合は{@code null})
+     * @return 保存先の{@link DbStore}。保存先が決定されない場合は既定の保存先
+     */
+    public DbStore getStore(ExecutionContext executionContext) {
+        final SessionStorageRoute route = storageResolver.resolve(executionContext);
+        if (route == null) {
+            return defaultStore;
+        }
+        DbStore routed = routedStores.get(route);
+        if (routed == null) {
+            final DbStore created = defaultStore.copyFor(route, "route" + routeSequence.incrementAndGet() + ':');
+            routed = routedStores.putIfAbsent(route, created);
+            if (routed == null) {
+                routed = created;
+            }
+        }
+        return routed;
+    }
+
+    /**
+     * 初期化処理。
+     * <p/>
+     * 既定の保存先に、保存先ごとに使用できない設定がされていないことを検証する。
+     *
+     * @throws IllegalStateException 必須の設定がされていない場合や、保存先ごとに使用できない設定がされている場合
+     */
+    @Override
+    public void initialize() {
+        if (defaultStore == null) {
+            throw new IllegalStateException("defaultStore was not specified.");
+        }
+        if (storageResolver == null) {
+            throw new IllegalStateException("storageResolver was not specified.");
+        }
+        defaultStore.verifyRoutable();
+    }
+}
@@ -0,0 +1,21 @@
+package nablarch.common.web.session.store;
+
+/**
+ * 他のノードを含むセッションの変更を受け取るインタフェース。
+ * <p/>
+ * ノードごとにキャッシュしているセッションの情報を破棄するために実装する。
+ * 同じ変更が複数回通知されることはないが、自ノードでの変更も通知される。
+ *
+ * @author TIS
+ * @see SessionChangeLogPoller#setListeners(java.util.List)
+ */
+public interface SessionChangeListener {
+
+    /**
+     * セッションが変更されたことを通知する。
+     *
+     * @param sessionId セッションID
+     * @param changeType 変更の種類
+     */
+    void sessionChanged(String sessionId, SessionChangeType changeType);
+}
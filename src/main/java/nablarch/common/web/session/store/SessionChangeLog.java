@@ -0,0 +1,186 @@
+package nablarch.common.web.session.store;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import nablarch.core.date.SystemTimeUtil;
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+
+/**
+ * セッション変更ログテーブルへのアクセスを行うクラス。
+ * <p/>
+ * 変更ログは、セッションを変更するトランザクションの{@link AppDbConnection}で追記する。
+ * このため、変更がコミットされた場合にのみ変更ログが残る。
+ *
+ * @author TIS
+ */
+public final class SessionChangeLog {
+
+    /** 変更ログを追記するSQL */
+    private final String insertSql;
+
+    /** 連番の最大値を取得するSQL */
+    private final String selectMaxSequenceSql;
+
+    /** 指定した連番より後の変更ログを取得するSQL */
+    private final String selectAfterSql;
+
+    /** 連番を指定して変更ログを取得するSQLの接頭辞(IN句の前まで) */
+    private final String selectInSqlPrefix;
+
+    /** 指定した日時より前の変更ログを削除するSQL */
+    private final String deleteBeforeSql;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param schema セッション変更ログテーブルのスキーマ
+     */
+    public SessionChangeLog(SessionChangeLogSchema schema) {
+        final String sequenceExpression = schema.getSequenceExpression();
+        insertSql = "INSERT INTO " + schema.getTableName() + " ("
+                + (sequenceExpression == null ? "" : schema.getSequenceName() + ", ")
+                + schema.getSessionIdName() + ", "
+                + schema.getChangeTypeName() + ", "
+                + schema.getChangedAtName()
+                + ") VALUES ("
+                + (sequenceExpression == null ? "" : sequenceExpression + ", ")
+                + "?, ?, ?)";
+
+        selectMaxSequenceSql = "SELECT MAX(" + schema.getSequenceName() + ") FROM " + schema.getTableName();
+
+        final String select = "SELECT " + schema.getSequenceName() + ", "
+                + schema.getSessionIdName() + ", "
+                + schema.getChangeTypeName()
+                + " FROM " + schema.getTableName();
+        selectAfterSql = select + " WHERE " + schema.getSequenceName() + " > ?"
+                + " ORDER BY " + schema.getSequenceName();
+        selectInSqlPrefix = select + " WHERE " + schema.getSequenceName() + " IN (";
+
+        deleteBeforeSql = "DELETE FROM " + schema.getTableName()
+                + " WHERE " + schema.getChangedAtName() + " < ?";
+    }
+
+    /**
+     * 変更ログを追記する。
+     *
+     * @param sessionId セッションID
+     * @param changeType 変更の種類
+     * @param connection セッションを変更しているトランザクションの{@link AppDbConnection}
+     */
+    public void append(String sessionId, SessionChangeType changeType, AppDbConnection connection) {
+        final SqlPStatement insert = connection.prepareStatement(insertSql);
+        insert.setString(1, sessionId);
+        insert.setString(2, changeType.getCode());
+        insert.setTimestamp(3, new Timestamp(SystemTimeUtil.getTimestamp().getTime()));
+        insert.executeUpdate();
+    }
+
+    /**
+     * 連番の最大値を取得する。
+     *
+     * @param connection {@link AppDbConnection}
+     * @return 連番の最大値。変更ログが存在しない場合は0
+     */
+    long selectMaxSequence(AppDbConnection connection) {
+        final ResultSetIterator iterator = connection.prepareStatement(selectMaxSequenceSql).executeQuery();
+        if (!iterator.next()) {
+            return 0L;
+        }
+        final Long max = iterator.getLong(1);
+        return max == null ? 0L : max;
+    }
+
+    /**
+     * 指定した連番より後の変更ログを、連番の昇順に取得する。
+     *
+     * @param sequence 連番
+     * @param maxRows 取得する最大件数
+     * @param connection {@link AppDbConnection}
+     * @return 変更ログ
+     */
+    List<Entry> selectAfter(long sequence, int maxRows, AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectAfterSql);
+        select.setLong(1, sequence);
+        select.setMaxRows(maxRows);
+        return toEntries(select.executeQuery());
+    }
+
+    /**
+     * 連番を指定して変更ログを取得する。
+     *
+     * @param sequences 連番
+     * @param connection {@link AppDbConnection}
+     * @return 変更ログ(存在するもののみ)
+     */
+    List<Entry> selectIn(List<Long> sequences, AppDbConnection connection) {
+        final StringBuilder sql = new StringBuilder(selectInSqlPrefix);
+        for (int i = 0; i < sequences.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        final SqlPStatement select = connection.prepareStatement(sql.append(')').toString());
+        for (int i = 0; i < sequences.size(); i++) {
+            select.setLong(i + 1, sequences.get(i));
+        }
+        return toEntries(select.executeQuery());
+    }
+
+    /**
+     * 指定した日時より前の変更ログを削除する。
+     *
+     * @param before 日時
+     * @param connection {@link AppDbConnection}
+     * @return 削除件数
+     */
+    int deleteBefore(long before, AppDbConnection connection) {
+        final SqlPStatement delete = connection.prepareStatement(deleteBeforeSql);
+        delete.setTimestamp(1, new Timestamp(before));
+        return delete.executeUpdate();
+    }
+
+    /**
+     * 取得結果を変更ログに変換する。
+     *
+     * @param iterator 取得結果
+     * @return 変更ログ
+     */
+    private static List<Entry> toEntries(ResultSetIterator iterator) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        while (iterator.next()) {
+            entries.add(new Entry(iterator.getLong(1), iterator.getString(2),
+                    SessionChangeType.fromCode(iterator.getString(3))));
+        }
+        return entries;
+    }
+
+    /**
+     * 変更ログの1件。
+     */
+    static final class Entry {
+
+        /** 連番 */
+        final long sequence;
+
+        /** セッションID */
+        final String sessionId;
+
+        /** 変更の種類 */
+        final SessionChangeType changeType;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param sequence 連番
+         * @param sessionId セッションID
+         * @param changeType 変更の種類
+         */
+        Entry(long sequence, String sessionId, SessionChangeType changeType) {
+            this.sequence = sequence;
+            this.sessionId = sessionId;
+            this.changeType = changeType;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package nablarch.common.web.session.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.initialization.Initializable;
+
+/**
+ * セッション変更ログテーブルを定期的に読み込み、新しい変更を{@link SessionChangeListener}に通知するクラス。
+ * <p/>
+ * 前回読み込んだ連番より後の変更ログだけを取得するため、1回のポーリングは小さな範囲検索で済む。
+ * 初期化時点の変更ログは通知せず、初期化以降に追記されたものから通知する。
+ * <p/>
+ * 連番はコミット順に並ぶとは限らないため、読み込んだ連番の間に欠番がある場合は、
+ * {@link #setLookbackMillis(long)}の間だけ欠番を再確認し、後からコミットされた変更も通知する。
+ * この時間はセッションを変更するトランザクションの最大の所要時間より長くすること。
+ * (ロールバックなどで永久に欠番となる連番は、この時間が経過した時点で確認をやめる)
+ * <p/>
+ * 変更ログは{@link #setRetentionSeconds(long)}より古いものを定期的に削除する。
+ *
+ * @author TIS
+ */
+public class SessionChangeLogPoller implements Initializable {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SessionChangeLogPoller.class);
+
+    /** 1回のSQLで再確認する欠番の数 */
+    private static final int GAP_CHUNK_SIZE = 100;
+
+    /** SimpleDbTransactionManagerのインスタンス */
+    private SimpleDbTransactionManager dbManager;
+
+    /** セッション変更ログテーブルのスキーマ */
+    private SessionChangeLogSchema changeLogSchema;
+
+    /** 変更を通知するリスナ */
+    private List<SessionChangeListener> listeners = Collections.emptyList();
+
+    /** ポーリングの間隔(ミリ秒) */
+    private long pollIntervalMillis = 1000L;
+
+    /** 欠番を再確認する時間(ミリ秒) */
+    private long lookbackMillis = 10000L;
+
+    /** 1回のポーリングで取得する最大件数 */
+    private int maxRowsPerPoll = 1000;
+
+    /** 追跡する欠番の最大数 */
+    private int maxTrackedGaps = 10000;
+
+    /** 変更ログを保持する時間(秒) */
+    private long retentionSeconds = 3600L;
+
+    /** 変更ログテーブルへのアクセス */
+    private SessionChangeLog changeLog;
+
+    /** 読み込んだ連番の最大値 */
+    private long highestSequence;
+
+    /** 再確認中の欠番と、欠番を検出した時刻 */
+    private final TreeMap<Long, Long> gaps = new TreeMap<Long, Long>();
+
+    /** 最後に古い変更ログを削除した時刻 */
+    private long lastPurgedAt;
+
+    /** ポーリングを行うタイマー */
+    private Timer timer;
+
+    /**
+     * DbManagerのインスタンスをセットする。
+     *
+     * @param dbManager SimpleDbTransactionManagerのインスタンス
+     */
+    public void setDbManager(SimpleDbTransactionManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * セッション変更ログテーブルのスキーマをセットする。
+     *
+     * @param changeLogSchema セッション変更ログテーブルのスキーマ
+     */
+    public void setChangeLogSchema(SessionChangeLogSchema changeLogSchema) {
+        this.changeLogSchema = changeLogSchema;
+    }
+
+    /**
+     * 変更を通知するリスナをセットする。
+     *
+     * @param listeners 変更を通知するリスナ
+     */
+    public void setListeners(List<SessionChangeListener> listeners) {
+        this.listeners = listeners;
+    }
+
+    /**
+     * ポーリングの間隔(ミリ秒)をセットする。
+     * <p/>
+     * 0以下の場合は定期的なポーリングを行わない({@link #poll()}を明示的に呼び出す)。
+     * デフォルトは1000ミリ秒。
+     *
+     * @param pollIntervalMillis ポーリングの間隔(ミリ秒)
+     */
+    public void setPollIntervalMillis(long pollIntervalMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    /**
+     * 欠番を再確認する時間(ミリ秒)をセットする。
+     * <p/>
+     * デフォルトは10000ミリ秒。
+     *
+     * @param lookbackMillis 欠番を再確認する時間(ミリ秒)
+     */
+    public void setLookbackMillis(long lookbackMillis) {
+        this.lookbackMillis = lookbackMillis;
+    }
+
+    /**
+     * 1回のポーリングで取得する最大件数をセットする。
+     * <p/>
+     * 超えた分は次回のポーリングで取得する。
+     * デフォルトは1000。
+     *
+     * @param maxRowsPerPoll 1回のポーリングで取得する最大件数
+     */
+    public void setMaxRowsPerPoll(int maxRowsPerPoll) {
+        this.maxRowsPerPoll = maxRowsPerPoll;
+    }
+
+    /**
+     * 追跡する欠番の最大数をセットする。
+     * <p/>
+     * シーケンスのキャッシュなどにより連番が大きく飛んだ場合、この数を超える欠番は再確認しない。
+     * デフォルトは10000。
+     *
+     * @param maxTrackedGaps 追跡する欠番の最大数
+     */
+    public void setMaxTrackedGaps(int maxTrackedGaps) {
+        this.maxTrackedGaps = maxTrackedGaps;
+    }
+
+    /**
+     * 変更ログを保持する時間(秒)をセットする。
+     * <p/>
+     * 0以下の場合は変更ログを削除しない。
+     * デフォルトは3600秒。
+     *
+     * @param retentionSeconds 変更ログを保持する時間(秒)
+     */
+    public void setRetentionSeconds(long retentionSeconds) {
+        this.retentionSeconds = retentionSeconds;
+    }
+
+    /**
+     * 新しい変更ログを読み込み、リスナに通知する。
+     * <p/>
+     * リスナが例外を送出した場合は、ログを出力して残りのリスナ・変更の通知を続ける。
+     *
+     * @return 通知した変更の数
+     */
+    public synchronized int poll() {
+        final long now = System.currentTimeMillis();
+        final long after = highestSequence;
+        final List<Long> gapSequences = new ArrayList<Long>(gaps.keySet());
+        final boolean purge = retentionSeconds > 0 && now - lastPurgedAt >= retentionSeconds * 1000L / 10;
+        final List<SessionChangeLog.Entry> entries = new SimpleDbTransactionExecutor<List<SessionChangeLog.Entry>>(dbManager) {
+            @Override
+            public List<SessionChangeLog.Entry> execute(AppDbConnection connection) {
+                final List<SessionChangeLog.Entry> result = new ArrayList<SessionChangeLog.Entry>();
+                for (int from = 0; from < gapSequences.size(); from += GAP_CHUNK_SIZE) {
+                    result.addAll(changeLog.selectIn(
+                            gapSequences.subList(from, Math.min(from + GAP_CHUNK_SIZE, gapSequences.size())),
+                            connection));
+                }
+                result.addAll(changeLog.selectAfter(after, maxRowsPerPoll, connection));
+                if (purge) {
+                    changeLog.deleteBefore(now - retentionSeconds * 1000L, connection);
+                }
+                return result;
+            }
+        }.doTransaction();
+
+        // 読み込みが成功した場合にのみ状態を更新する
+        if (purge) {
+            lastPurgedAt = now;
+        }
+        for (SessionChangeLog.Entry entry : entries) {
+            if (entry.sequence <= after) {
+                gaps.remove(entry.sequence);
+            } else {
+                trackGaps(entry.sequence, now);
+            }
+        }
+        // 再確認の期間を過ぎた欠番は破棄する
+        final Iterator<Map.Entry<Long, Long>> iterator = gaps.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() > lookbackMillis) {
+                iterator.remove();
+            }
+        }
+
+        // 状態は更新済みのため、リスナの例外で残りの変更の通知が失われないよう、リスナごとに例外を捕捉する
+        for (SessionChangeLog.Entry entry : entries) {
+            for (SessionChangeListener listener : listeners) {
+                try {
+                    listener.sessionChanged(entry.sessionId, entry.changeType);
+                } catch (RuntimeException e) {
+                    LOGGER.logWarn("session change listener failed. sessionId = " + entry.sessionId
+                            + ", changeType = " + entry.changeType, e);
+                }
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * 読み込んだ連番までの欠番を記録し、読み込んだ連番の最大値を更新する。
+     *
+     * @param sequence 読み込んだ連番
+     * @param now 現在時刻
+     */
+    private void trackGaps(long sequence, long now) {
+        if (sequence - highestSequence - 1 <= maxTrackedGaps - gaps.size()) {
+            for (long missing = highestSequence + 1; missing < sequence; missing++) {
+                gaps.put(missing, now);
+            }
+        }
+        highestSequence = Math.max(highestSequence, sequence);
+    }
+
+    /**
+     * 初期化処理。
+     * <p/>
+     * 現在の連番の最大値を取得し、定期的なポーリングを開始する。
+     */
+    @Override
+    public void initialize() {
+        changeLog = new SessionChangeLog(changeLogSchema);
+        highestSequence = new SimpleDbTransactionExecutor<Long>(dbManager) {
+            @Override
+            public Long execute(AppDbConnection connection) {
+                return changeLog.selectMaxSequence(connection);
+            }
+        }.doTransaction();
+        gaps.clear();
+
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (pollIntervalMillis > 0) {
+            timer = new Timer("session-change-log-poller", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        poll();
+                    } catch (RuntimeException e) {
+                        LOGGER.logWarn("failed to poll session change log.", e);
+                    }
+                }
+            }, pollIntervalMillis, pollIntervalMillis);
+        }
+    }
+}
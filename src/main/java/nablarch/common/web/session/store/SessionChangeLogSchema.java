@@ -0,0 +1,128 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.schema.TableSchema;
+
+/**
+ * セッション変更ログテーブルのスキーマ情報を保持するクラス。
+ * <p/>
+ * セッション変更ログテーブルは、連番を主キーとし、セッションの保存・削除・有効期限の更新を追記する。
+ * 連番は{@link #setSequenceExpression(String)}で指定した式(シーケンスの採番など)で採番する。
+ * 式を指定しない場合は、連番カラムをデータベースの自動採番(IDENTITYカラムなど)で採番すること。
+ *
+ * @author TIS
+ * @see DbStore#setChangeLogSchema(SessionChangeLogSchema)
+ * @see SessionChangeLogPoller
+ */
+public final class SessionChangeLogSchema extends TableSchema {
+
+    /** 連番カラムの名前 */
+    private String sequenceName;
+
+    /** セッションIDカラムの名前 */
+    private String sessionIdName;
+
+    /** 変更の種類カラムの名前 */
+    private String changeTypeName;
+
+    /** 変更日時カラムの名前 */
+    private String changedAtName;
+
+    /** 連番を採番する式 */
+    private String sequenceExpression;
+
+    /**
+     * 連番カラムの名前を取得する。
+     *
+     * @return 連番カラムの名前
+     */
+    public String getSequenceName() {
+        return sequenceName;
+    }
+
+    /**
+     * 連番カラムの名前を設定する。
+     *
+     * @param sequenceName 連番カラムの名前
+     */
+    public void setSequenceName(String sequenceName) {
+        this.sequenceName = sequenceName;
+    }
+
+    /**
+     * セッションIDカラムの名前を取得する。
+     *
+     * @return セッションIDカラムの名前
+     */
+    public String getSessionIdName() {
+        return sessionIdName;
+    }
+
+    /**
+     * セッションIDカラムの名前を設定する。
+     *
+     * @param sessionIdName セッションIDカラムの名前
+     */
+    public void setSessionIdName(String sessionIdName) {
+        this.sessionIdName = sessionIdName;
+    }
+
+    /**
+     * 変更の種類カラムの名前を取得する。
+     *
+     * @return 変更の種類カラムの名前
+     */
+    public String getChangeTypeName() {
+        return changeTypeName;
+    }
+
+    /**
+     * 変更の種類カラムの名前を設定する。
+     * <p/>
+     * 変更の種類は{@link SessionChangeType#getCode()}の1文字で保存する。
+     *
+     * @param changeTypeName 変更の種類カラムの名前
+     */
+    public void setChangeTypeName(String changeTypeName) {
+        this.changeTypeName = changeTypeName;
+    }
+
+    /**
+     * 変更日時カラムの名前を取得する。
+     *
+     * @return 変更日時カラムの名前
+     */
+    public String getChangedAtName() {
+        return changedAtName;
+    }
+
+    /**
+     * 変更日時カラムの名前を設定する。
+     *
+     * @param changedAtName 変更日時カラムの名前
+     */
+    public void setChangedAtName(String changedAtName) {
+        this.changedAtName = changedAtName;
+    }
+
+    /**
+     * 連番を採番する式を取得する。
+     *
+     * @return 連番を採番する式
+     */
+    public String getSequenceExpression() {
+        return sequenceExpression;
+    }
+
+    /**
+     * 連番を採番する式を設定する。
+     * <p/>
+     * 例えばOracleでは{@code SESSION_CHANGE_SEQ.NEXTVAL}、PostgreSQLでは{@code nextval('session_change_seq')}、
+     * H2やDB2では{@code NEXT VALUE FOR SESSION_CHANGE_SEQ}のように指定する。
+     * 設定されていない場合は、連番カラムを指定せずに登録する。
+     *
+     * @param sequenceExpression 連番を採番する式
+     */
+    public void setSequenceExpression(String sequenceExpression) {
+        this.sequenceExpression = sequenceExpression;
+    }
+}
@@ -0,0 +1,54 @@
+package nablarch.common.web.session.store;
+
+/**
+ * セッション変更ログに記録する変更の種類。
+ *
+ * @author TIS
+ */
+public enum SessionChangeType {
+
+    /** セッションの保存 */
+    SAVE("S"),
+
+    /** セッションの削除 */
+    DELETE("D"),
+
+    /** 有効期限の更新 */
+    EXPIRATION("E");
+
+    /** 変更ログに保存するコード */
+    private final String code;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param code 変更ログに保存するコード
+     */
+    SessionChangeType(String code) {
+        this.code = code;
+    }
+
+    /**
+     * 変更ログに保存するコードを取得する。
+     *
+     * @return コード
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * コードに対応する変更の種類を取得する。
+     *
+     * @param code コード
+     * @return 変更の種類
+     */
+    public static SessionChangeType fromCode(String code) {
+        for (SessionChangeType type : values()) {
+            if (type.code.equals(code)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("unknown change type. code = " + code);
+    }
+}
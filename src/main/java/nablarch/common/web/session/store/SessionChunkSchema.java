@@ -0,0 +1,101 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.schema.TableSchema;
+
+/**
+ * セッションチャンクテーブルのスキーマ情報を保持するクラス。
+ * <p/>
+ * セッションチャンクテーブルは、セッションID、バージョン、チャンク番号を主キーとし、
+ * セッションオブジェクトを一定サイズごとに分割したチャンクを保持する。
+ *
+ * @author TIS
+ * @see DbSessionOverflowStore
+ */
+public final class SessionChunkSchema extends TableSchema {
+
+    /** セッションIDカラムの名前 */
+    private String sessionIdName;
+
+    /** バージョンカラムの名前 */
+    private String versionName;
+
+    /** チャンク番号カラムの名前 */
+    private String chunkNumberName;
+
+    /** チャンクカラムの名前 */
+    private String chunkDataName;
+
+    /**
+     * セッションIDカラムの名前を取得する。
+     *
+     * @return セッションIDカラムの名前
+     */
+    public String getSessionIdName() {
+        return sessionIdName;
+    }
+
+    /**
+     * セッションIDカラムの名前を設定する。
+     *
+     * @param sessionIdName セッションIDカラムの名前
+     */
+    public void setSessionIdName(String sessionIdName) {
+        this.sessionIdName = sessionIdName;
+    }
+
+    /**
+     * バージョンカラムの名前を取得する。
+     *
+     * @return バージョンカラムの名前
+     */
+    public String getVersionName() {
+        return versionName;
+    }
+
+    /**
+     * バージョンカラムの名前を設定する。
+     * <p/>
+     * バージョンはUUIDの文字列表現(36文字)とする。
+     *
+     * @param versionName バージョンカラムの名前
+     */
+    public void setVersionName(String versionName) {
+        this.versionName = versionName;
+    }
+
+    /**
+     * チャンク番号カラムの名前を取得する。
+     *
+     * @return チャンク番号カラムの名前
+     */
+    public String getChunkNumberName() {
+        return chunkNumberName;
+    }
+
+    /**
+     * チャンク番号カラムの名前を設定する。
+     *
+     * @param chunkNumberName チャンク番号カラムの名前
+     */
+    public void setChunkNumberName(String chunkNumberName) {
+        this.chunkNumberName = chunkNumberName;
+    }
+
+    /**
+     * チャンクカラムの名前を取得する。
+     *
+     * @return チャンクカラムの名前
+     */
+    public String getChunkDataName() {
+        return chunkDataName;
+    }
+
+    /**
+     * チャンクカラムの名前を設定する。
+     *
+     * @param chunkDataName チャンクカラムの名前
+     */
+    public void setChunkDataName(String chunkDataName) {
+        this.chunkDataName = chunkDataName;
+    }
+}
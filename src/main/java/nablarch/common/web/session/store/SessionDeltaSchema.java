@@ -0,0 +1,78 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.schema.TableSchema;
+
+/**
+ * セッション差分テーブルのスキーマ情報を保持するクラス。
+ * <p/>
+ * セッション差分テーブルは、セッションIDと差分の連番を主キーとし、
+ * ユーザセッションテーブルに保存したセッションオブジェクトからの差分を保持する。
+ *
+ * @author TIS
+ * @see DbStore#setSessionDeltaSchema(SessionDeltaSchema)
+ */
+public final class SessionDeltaSchema extends TableSchema {
+
+    /** セッションIDカラムの名前 */
+    private String sessionIdName;
+
+    /** 差分の連番カラムの名前 */
+    private String sequenceName;
+
+    /** 差分カラムの名前 */
+    private String deltaObjectName;
+
+    /**
+     * セッションIDカラムの名前を取得する。
+     *
+     * @return セッションIDカラムの名前
+     */
+    public String getSessionIdName() {
+        return sessionIdName;
+    }
+
+    /**
+     * セッションIDカラムの名前を設定する。
+     *
+     * @param sessionIdName セッションIDカラムの名前
+     */
+    public void setSessionIdName(String sessionIdName) {
+        this.sessionIdName = sessionIdName;
+    }
+
+    /**
+     * 差分の連番カラムの名前を取得する。
+     *
+     * @return 差分の連番カラムの名前
+     */
+    public String getSequenceName() {
+        return sequenceName;
+    }
+
+    /**
+     * 差分の連番カラムの名前を設定する。
+     *
+     * @param sequenceName 差分の連番カラムの名前
+     */
+    public void setSequenceName(String sequenceName) {
+        this.sequenceName = sequenceName;
+    }
+
+    /**
+     * 差分カラムの名前を取得する。
+     *
+     * @return 差分カラムの名前
+     */
+    public String getDeltaObjectName() {
+        return deltaObjectName;
+    }
+
+    /**
+     * 差分カラムの名前を設定する。
+     *
+     * @param deltaObjectName 差分カラムの名前
+     */
+    public void setDeltaObjectName(String deltaObjectName) {
+        this.deltaObjectName = deltaObjectName;
+    }
+}
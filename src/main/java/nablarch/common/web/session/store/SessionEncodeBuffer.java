@@ -0,0 +1,61 @@
+package nablarch.common.web.session.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import nablarch.core.db.statement.SqlPStatement;
+
+/**
+ * セッションオブジェクトをエンコードするバッファ。
+ * <p/>
+ * 書き込んだ内容を{@link #toByteArray()}でコピーせずに、そのままステートメントにバインドできる。
+ *
+ * @author TIS
+ */
+final class SessionEncodeBuffer extends ByteArrayOutputStream {
+
+    /**
+     * 指定した容量でバッファを生成する。
+     *
+     * @param capacity 容量
+     */
+    SessionEncodeBuffer(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * バイト配列をコピーせずに保持するバッファを生成する。
+     *
+     * @param bytes バイト配列
+     * @return バッファ
+     */
+    static SessionEncodeBuffer wrap(byte[] bytes) {
+        final SessionEncodeBuffer buffer = new SessionEncodeBuffer(0);
+        buffer.buf = bytes;
+        buffer.count = bytes.length;
+        return buffer;
+    }
+
+    /**
+     * バッファの容量を取得する。
+     *
+     * @return 容量
+     */
+    int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * 書き込んだ内容をコピーせずにバインドする。
+     *
+     * @param statement {@link SqlPStatement}
+     * @param index インデックス
+     */
+    void bind(SqlPStatement statement, int index) {
+        if (count == buf.length) {
+            statement.setBytes(index, buf);
+        } else {
+            statement.setBinaryStream(index, new ByteArrayInputStream(buf, 0, count), count);
+        }
+    }
+}
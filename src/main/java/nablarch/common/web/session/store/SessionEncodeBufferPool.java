@@ -0,0 +1,82 @@
+package nablarch.common.web.session.store;
+
+/**
+ * スレッドごとに{@link SessionEncodeBuffer}を再利用するプール。
+ * <p/>
+ * 新しく生成するバッファの容量は、最近エンコードしたセッションオブジェクトの最大サイズから決定する。
+ * 最大サイズは徐々に減衰させるため、一時的に大きなセッションがあっても、その後は小さい容量に戻る。
+ * 容量が{@code maxRetainedBytes}を超えるバッファは再利用せずに破棄する。
+ *
+ * @author TIS
+ */
+final class SessionEncodeBufferPool {
+
+    /** バッファの最小容量 */
+    private static final int MIN_CAPACITY = 256;
+
+    /** 再利用するバッファの最大容量 */
+    private final int maxRetainedBytes;
+
+    /** スレッドごとのバッファ */
+    private final ThreadLocal<SessionEncodeBuffer> buffers = new ThreadLocal<SessionEncodeBuffer>();
+
+    /** 最近エンコードしたセッションオブジェクトの最大サイズ(減衰させる) */
+    private volatile int recentPeakSize = MIN_CAPACITY;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param maxRetainedBytes 再利用するバッファの最大容量
+     */
+    SessionEncodeBufferPool(int maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * バッファを取得する。
+     * <p/>
+     * 使用後は{@link #release(SessionEncodeBuffer)}で返却すること。
+     * 返却されるまでは、同じスレッドで再度取得しても別のバッファを返す。
+     *
+     * @return 空のバッファ
+     */
+    SessionEncodeBuffer acquire() {
+        final int expected = expectedCapacity();
+        final SessionEncodeBuffer buffer = buffers.get();
+        if (buffer != null) {
+            buffers.remove();
+            if (buffer.capacity() >= expected) {
+                buffer.reset();
+                return buffer;
+            }
+        }
+        return new SessionEncodeBuffer(expected);
+    }
+
+    /**
+     * バッファを返却する。
+     *
+     * @param buffer {@link #acquire()}で取得したバッファ
+     */
+    void release(SessionEncodeBuffer buffer) {
+        final int size = buffer.size();
+        final int peak = recentPeakSize;
+        recentPeakSize = Math.max(MIN_CAPACITY, Math.max(size, peak - (peak >> 4)));
+
+        // 必要以上に大きなバッファを保持し続けないよう、最近の最大サイズの4倍を超える場合も破棄する
+        final int capacity = buffer.capacity();
+        if (capacity <= maxRetainedBytes && capacity <= expectedCapacity() * 4) {
+            buffers.set(buffer);
+        }
+    }
+
+    /**
+     * 新しく生成するバッファの容量を算出する。
+     *
+     * @return 容量
+     */
+    private int expectedCapacity() {
+        final int peak = recentPeakSize;
+        return Math.min(maxRetainedBytes, peak + (peak >> 3));
+    }
+}
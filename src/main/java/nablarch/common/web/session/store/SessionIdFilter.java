@@ -0,0 +1,404 @@
+package nablarch.common.web.session.store;
+
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.disposal.Disposable;
+import nablarch.core.repository.initialization.Initializable;
+
+/**
+ * ユーザセッションテーブルに存在しないセッションIDを、DBにアクセスせずに判定するためのフィルタ。
+ * <p/>
+ * ノード内に削除に対応したブルームフィルタ(カウンティングブルームフィルタ)を保持し、
+ * {@link DbStore}や{@link nablarch.common.web.session.DbManagedExpiration}での登録、
+ * {@link DbStore}での削除に合わせて更新する。
+ * フィルタに含まれないセッションIDはテーブルに存在しないものとして扱い、DBへのアクセスを省略する。
+ * フィルタは{@link #setRebuildIntervalSeconds(long)}の間隔で、テーブルの内容から再構築する。
+ * <p/>
+ * 他のノードで登録されたセッションIDは、次に再構築するまでフィルタに含まれない。
+ * このため、本フィルタはシングルノード構成か、スティッキーセッションなど
+ * 同じセッションが同じノードで処理される環境でのみ使用できる。
+ * 上記以外の環境で使用すると、他のノードで作成されたセッションが存在しないものとして扱われ、
+ * 利用者のセッションが失われる(スティッキーセッションでも、ノードの障害で別のノードに切り替わった場合は同様)。
+ * 誤って使用しないよう、{@link #setLocalSessionsOnly(boolean)}に{@code true}を設定していない場合は初期化時に例外を送出する。
+ * <p/>
+ * 削除したセッションIDは、{@link DbStore}で削除したことが確実な場合(削除件数が分かる場合)だけフィルタから取り除き、
+ * それ以外(一括での所有者ごとの無効化や、有効期限切れのセッションの削除処理など)は次に再構築するまで残す。
+ * 追加していないセッションIDを取り除くと、他のセッションIDが存在しないものと判定されるため。
+ * このため、再構築時は有効期限に関わらずテーブルに存在する全てのセッションIDをフィルタに追加する。
+ * (有効期限の判定を行わないため、データベースの時計を使用する場合も再構築の内容は変わらない)
+ * フィルタに残っているセッションIDは、通常どおりDBにアクセスして判定する。
+ * <p/>
+ * 定期的な再構築に使用するタイマーは{@link #dispose()}で停止する。
+ *
+ * @author TIS
+ */
+public class SessionIdFilter implements Initializable, Disposable {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SessionIdFilter.class);
+
+    /**
+     * 再構築時に、再構築開始前に追加したセッションIDを再度追加する期間(ミリ秒)。
+     * <p/>
+     * 再構築開始時にコミットされていなかった登録をフィルタに反映するため。
+     */
+    private static final long REPLAY_MILLIS = 60000L;
+
+    /** SimpleDbTransactionManagerのインスタンス */
+    private SimpleDbTransactionManager dbManager;
+
+    /** ユーザセッションテーブルのスキーマ */
+    private UserSessionSchema userSessionSchema;
+
+    /** 想定するセッション数 */
+    private long expectedInsertions = 100000L;
+
+    /** 偽陽性率 */
+    private double falsePositiveRate = 0.01;
+
+    /** フィルタが使用する最大バイト数 */
+    private long maxMemoryBytes = 4L * 1024 * 1024;
+
+    /** 再構築する間隔(秒) */
+    private long rebuildIntervalSeconds = 300L;
+
+    /** コールドテーブルのスキーマ */
+    private UserSessionSchema coldSessionSchema;
+
+    /** 全てのセッションが本ノードで登録される環境か否か */
+    private boolean localSessionsOnly = false;
+
+    /** セッションIDを取得するSQL */
+    private String selectSessionIdSql;
+
+    /** コールドテーブルからセッションIDを取得するSQL */
+    private String selectColdSessionIdSql;
+
+    /** 現在のフィルタ */
+    private volatile CountingBloomFilter current;
+
+    /** 再構築中のフィルタ(再構築中でない場合は{@code null}) */
+    private volatile CountingBloomFilter building;
+
+    /** 最近追加したセッションID */
+    private final ConcurrentLinkedQueue<Addition> recentAdditions = new ConcurrentLinkedQueue<Addition>();
+
+    /** 再構築を行うタイマー */
+    private Timer timer;
+
+    /**
+     * DbManagerのインスタンスをセットする。
+     *
+     * @param dbManager SimpleDbTransactionManagerのインスタンス
+     */
+    public void setDbManager(SimpleDbTransactionManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * ユーザセッションテーブルのスキーマをセットする。
+     *
+     * @param userSessionSchema ユーザセッションテーブルのスキーマ
+     */
+    public void setUserSessionSchema(UserSessionSchema userSessionSchema) {
+        this.userSessionSchema = userSessionSchema;
+    }
+
+    /**
+     * {@link DbStore#setColdSessionSchema(UserSessionSchema)}に設定したコールドテーブルのスキーマをセットする。
+     * <p/>
+     * 設定した場合、再構築時にコールドテーブルのセッションIDもフィルタに追加する。
+     *
+     * @param coldSessionSchema コールドテーブルのスキーマ
+     */
+    public void setColdSessionSchema(UserSessionSchema coldSessionSchema) {
+        this.coldSessionSchema = coldSessionSchema;
+    }
+
+    /**
+     * 全てのセッションが本ノードで登録される環境か否かをセットする。
+     * <p/>
+     * シングルノード構成か、スティッキーセッションなど同じセッションが同じノードで処理される環境の場合に
+     * {@code true}を設定する。
+     * 本フィルタは上記の環境でのみ使用できるため、{@code true}を設定していない場合は初期化時に例外を送出する。
+     * デフォルトは{@code false}。
+     *
+     * @param localSessionsOnly 全てのセッションが本ノードで登録される環境の場合は{@code true}
+     */
+    public void setLocalSessionsOnly(boolean localSessionsOnly) {
+        this.localSessionsOnly = localSessionsOnly;
+    }
+
+    /**
+     * 想定するセッション数をセットする。
+     * <p/>
+     * デフォルトは100000。
+     *
+     * @param expectedInsertions 想定するセッション数
+     */
+    public void setExpectedInsertions(long expectedInsertions) {
+        this.expectedInsertions = expectedInsertions;
+    }
+
+    /**
+     * 偽陽性率(存在しないセッションIDを存在する可能性があると判定する確率)をセットする。
+     * <p/>
+     * デフォルトは0.01。
+     *
+     * @param falsePositiveRate 偽陽性率
+     */
+    public void setFalsePositiveRate(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * フィルタが使用する最大バイト数をセットする。
+     * <p/>
+     * 想定するセッション数と偽陽性率から算出したサイズがこの値を超える場合は、この値に切り詰める。
+     * (その場合、偽陽性率は指定した値より高くなる)
+     * 削除に対応するため、1つのセッションあたり通常のブルームフィルタの4倍のサイズを使用する。
+     * デフォルトは4MB。
+     *
+     * @param maxMemoryBytes 最大バイト数
+     */
+    public void setMaxMemoryBytes(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * 再構築する間隔(秒)をセットする。
+     * <p/>
+     * 0以下の場合は定期的な再構築を行わない。
+     * デフォルトは300秒。
+     *
+     * @param rebuildIntervalSeconds 再構築する間隔(秒)
+     */
+    public void setRebuildIntervalSeconds(long rebuildIntervalSeconds) {
+        this.rebuildIntervalSeconds = rebuildIntervalSeconds;
+    }
+
+    /**
+     * セッションIDがユーザセッションテーブルに存在する可能性があるかを判定する。
+     *
+     * @param sessionId セッションID
+     * @return 存在する可能性がある場合は{@code true}、確実に存在しない場合は{@code false}
+     */
+    public boolean mightContain(String sessionId) {
+        return current.mightContain(sessionId);
+    }
+
+    /**
+     * ユーザセッションテーブルに登録したセッションIDを追加する。
+     *
+     * @param sessionId セッションID
+     */
+    public void add(String sessionId) {
+        // 再構築中のフィルタに確実に反映されるよう、記録、再構築中のフィルタ、現在のフィルタの順に追加する
+        final long now = System.currentTimeMillis();
+        recentAdditions.add(new Addition(sessionId, now));
+        final CountingBloomFilter rebuilding = building;
+        if (rebuilding != null) {
+            rebuilding.add(sessionId);
+        } else {
+            // 再構築中でなければ、再度追加する必要のなくなった記録を破棄する
+            Addition oldest = recentAdditions.peek();
+            while (oldest != null && oldest.time < now - REPLAY_MILLIS) {
+                recentAdditions.remove(oldest);
+                oldest = recentAdditions.peek();
+            }
+        }
+        current.add(sessionId);
+    }
+
+    /**
+     * ユーザセッションテーブルから削除したセッションIDを取り除く。
+     * <p/>
+     * ユーザセッションテーブル(またはコールドテーブル)から削除されたことが確実なセッションIDについて、
+     * 削除がコミットされた後に呼び出すこと。
+     * 再構築中の場合、再構築中のフィルタからは取り除かない。
+     * (再構築中のフィルタに含まれているか分からないため。含まれていた場合は次の再構築で取り除かれる)
+     *
+     * @param sessionId セッションID
+     */
+    public void remove(String sessionId) {
+        current.remove(sessionId);
+    }
+
+    /**
+     * ユーザセッションテーブルのセッションIDからフィルタを再構築する。
+     */
+    public synchronized void rebuild() {
+        final long startTime = System.currentTimeMillis();
+        final CountingBloomFilter rebuilding = newFilter();
+        building = rebuilding;
+        try {
+            final int count = new SimpleDbTransactionExecutor<Integer>(dbManager) {
+                @Override
+                public Integer execute(AppDbConnection connection) {
+                    int count = addSessionIds(rebuilding, selectSessionIdSql, userSessionSchema, connection);
+                    if (selectColdSessionIdSql != null) {
+                        count += addSessionIds(rebuilding, selectColdSessionIdSql, coldSessionSchema, connection);
+                    }
+                    return count;
+                }
+            }.doTransaction();
+            replayRecentAdditions(rebuilding, startTime - REPLAY_MILLIS);
+            current = rebuilding;
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.logDebug("rebuilt session id filter. sessions = " + count
+                        + ", bytes = " + rebuilding.byteSize());
+            }
+        } finally {
+            building = null;
+        }
+    }
+
+    /**
+     * テーブルのセッションIDをフィルタに追加する。
+     *
+     * @param filter フィルタ
+     * @param sql セッションIDを取得するSQL
+     * @param schema テーブルのスキーマ
+     * @param connection {@link AppDbConnection}
+     * @return 追加したセッションIDの数
+     */
+    private static int addSessionIds(CountingBloomFilter filter, String sql, UserSessionSchema schema,
+            AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(sql);
+        final ResultSetIterator iterator = select.executeQuery();
+        int count = 0;
+        final boolean binary = schema.isBinarySessionId();
+        while (iterator.next()) {
+            filter.add(binary
+                    ? SessionIdKey.toSessionId(iterator.getBytes(1))
+                    : iterator.getString(1));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 指定した日時以降に追加したセッションIDをフィルタに再度追加する。
+     * <p/>
+     * 指定した日時より前の記録は破棄する。
+     *
+     * @param filter フィルタ
+     * @param since 日時
+     */
+    private void replayRecentAdditions(CountingBloomFilter filter, long since) {
+        for (Iterator<Addition> iterator = recentAdditions.iterator(); iterator.hasNext();) {
+            final Addition addition = iterator.next();
+            if (addition.time < since) {
+                iterator.remove();
+            } else {
+                filter.add(addition.sessionId);
+            }
+        }
+    }
+
+    /**
+     * 設定値からフィルタを生成する。
+     *
+     * @return フィルタ
+     */
+    private CountingBloomFilter newFilter() {
+        return new CountingBloomFilter(expectedInsertions, falsePositiveRate, maxMemoryBytes);
+    }
+
+    /**
+     * 初期化処理。
+     * <p/>
+     * テーブルの内容からフィルタを構築し、定期的な再構築を開始する。
+     *
+     * @throws IllegalStateException {@link #setLocalSessionsOnly(boolean)}に{@code true}が設定されていない場合
+     */
+    @Override
+    public void initialize() {
+        if (!localSessionsOnly) {
+            throw new IllegalStateException("SessionIdFilter can only be used when all sessions are created"
+                    + " on this node. set localSessionsOnly to true to use it.");
+        }
+        if (userSessionSchema == null) {
+            // デフォルトのユーザセッションスキーマをセットする
+            userSessionSchema = new UserSessionSchema();
+            userSessionSchema.setTableName("USER_SESSION");
+            userSessionSchema.setSessionIdName("SESSION_ID");
+            userSessionSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        }
+
+        // SQL文を初期化する。
+        selectSessionIdSql = "SELECT " + userSessionSchema.getSessionIdName()
+                + " FROM " + userSessionSchema.getTableName();
+
+        if (coldSessionSchema != null) {
+            selectColdSessionIdSql = "SELECT " + coldSessionSchema.getSessionIdName()
+                    + " FROM " + coldSessionSchema.getTableName();
+        }
+
+        current = newFilter();
+        rebuild();
+
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (rebuildIntervalSeconds > 0) {
+            final long interval = rebuildIntervalSeconds * 1000L;
+            timer = new Timer("session-id-filter-rebuild", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        rebuild();
+                    } catch (RuntimeException e) {
+                        LOGGER.logWarn("failed to rebuild session id filter.", e);
+                    }
+                }
+            }, interval, interval);
+        }
+    }
+
+    /**
+     * 定期的な再構築を停止する。
+     * <p/>
+     * 実行中の再構築の完了は待たない。
+     */
+    @Override
+    public void dispose() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    /**
+     * セッションIDを追加した記録。
+     */
+    private static final class Addition {
+
+        /** セッションID */
+        private final String sessionId;
+
+        /** 追加した日時 */
+        private final long time;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param sessionId セッションID
+         * @param time 追加した日時
+         */
+        private Addition(String sessionId, long time) {
+            this.sessionId = sessionId;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package nablarch.common.web.session.store;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import nablarch.core.db.statement.SqlPStatement;
+
+/**
+ * ユーザセッションテーブルのセッションIDカラムにバインドする値。
+ * <p/>
+ * {@link UserSessionSchema#isBinarySessionId()}が{@code true}の場合は、
+ * UUID形式のセッションIDを16バイトのバイナリに変換してバインドする。
+ * 変換は生成時に1回だけ行う。
+ *
+ * @author TIS
+ */
+public final class SessionIdKey {
+
+    /** UUIDの文字列表現の長さ */
+    private static final int UUID_LENGTH = 36;
+
+    /** 16進数の文字 */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** セッションID */
+    private final String sessionId;
+
+    /** バイナリに変換したセッションID(文字列でバインドする場合は{@code null}) */
+    private final byte[] binary;
+
+    /** バインドできる値か否か */
+    private final boolean valid;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param sessionId セッションID
+     * @param binary バイナリに変換したセッションID
+     * @param valid バインドできる値か否か
+     */
+    private SessionIdKey(String sessionId, byte[] binary, boolean valid) {
+        this.sessionId = sessionId;
+        this.binary = binary;
+        this.valid = valid;
+    }
+
+    /**
+     * セッションIDカラムにバインドする値を生成する。
+     *
+     * @param sessionId セッションID
+     * @param schema ユーザセッションテーブルのスキーマ
+     * @return セッションIDカラムにバインドする値
+     */
+    public static SessionIdKey of(String sessionId, UserSessionSchema schema) {
+        if (!schema.isBinarySessionId()) {
+            return new SessionIdKey(sessionId, null, true);
+        }
+        final byte[] binary = toBinary(sessionId);
+        return new SessionIdKey(sessionId, binary, binary != null);
+    }
+
+    /**
+     * セッションIDを取得する。
+     *
+     * @return セッションID
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * バインドできる値であるかを判定する。
+     * <p/>
+     * バイナリで保存する設定で、セッションIDがUUID形式でない場合は{@code false}を返す。
+     * このようなセッションIDはテーブルに存在し得ない。
+     *
+     * @return バインドできる場合は{@code true}
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * セッションIDをバインドする。
+     *
+     * @param statement {@link SqlPStatement}
+     * @param index インデックス
+     * @throws IllegalArgumentException バインドできない値の場合
+     */
+    public void bind(SqlPStatement statement, int index) {
+        if (!valid) {
+            throw new IllegalArgumentException("session id must be UUID format. session id = " + sessionId);
+        }
+        if (binary == null) {
+            statement.setString(index, sessionId);
+        } else {
+            statement.setBytes(index, binary);
+        }
+    }
+
+    /**
+     * バイナリで保存したセッションIDを文字列に変換する。
+     *
+     * @param binary バイナリで保存したセッションID
+     * @return セッションID
+     */
+    public static String toSessionId(byte[] binary) {
+        final ByteBuffer buffer = ByteBuffer.wrap(binary);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+
+    /**
+     * UUID形式のセッションIDをバイナリに変換する。
+     * <p/>
+     * 小文字の正規形式(UUID#toString()の形式)以外の場合は、変換前後で値が変わらないよう変換しない。
+     *
+     * @param sessionId セッションID
+     * @return バイナリ。UUID形式でない場合は{@code null}
+     */
+    private static byte[] toBinary(String sessionId) {
+        if (sessionId == null || sessionId.length() != UUID_LENGTH) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            final char c = sessionId.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return null;
+                }
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0 || HEX[digit] != c) {
+                return null;
+            }
+            value = (value << 4) | digit;
+            if (++digits == 16) {
+                buffer.putLong(value);
+                value = 0;
+                digits = 0;
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,55 @@
+package nablarch.common.web.session.store;
+
+import nablarch.core.db.connection.AppDbConnection;
+
+/**
+ * サイズの大きいセッションオブジェクトを、ユーザセッションテーブルとは別の場所に保存するインタフェース。
+ * <p/>
+ * {@link DbStore}は、サイズが閾値を超えたセッションオブジェクトを本インタフェースの実装に保存し、
+ * ユーザセッションテーブルには参照(バージョン)だけを保存する。
+ * <p/>
+ * {@link DbStore}は保存のたびに新しいバージョンを採番するため、保存済みのバージョンの内容が書き換えられることはない。
+ * 以前のバージョンは、ユーザセッションテーブルの更新がコミットされた後に削除し、
+ * 更新がロールバックされた場合は、保存したバージョンを削除する。
+ * このため、実装はユーザセッションテーブルのトランザクションに参加しなくてもよいが、
+ * 保存の途中の内容が読み込まれないようにすること。
+ * <p/>
+ * 各メソッドには、ユーザセッションテーブルを更新しているトランザクション
+ * (コミット後・ロールバック後の削除の場合は、削除のためのトランザクション)の{@link AppDbConnection}が渡される。
+ *
+ * @author TIS
+ * @see DbStore#setOverflowStore(SessionOverflowStore)
+ */
+public interface SessionOverflowStore {
+
+    /**
+     * セッションオブジェクトを保存する。
+     *
+     * @param sessionId セッションID
+     * @param version バージョン
+     * @param sessionObject セッションオブジェクト
+     * @param connection {@link AppDbConnection}
+     */
+    void save(String sessionId, String version, byte[] sessionObject, AppDbConnection connection);
+
+    /**
+     * セッションオブジェクトを読み込む。
+     *
+     * @param sessionId セッションID
+     * @param version バージョン
+     * @param connection {@link AppDbConnection}
+     * @return セッションオブジェクト。存在しない場合は{@code null}
+     */
+    byte[] load(String sessionId, String version, AppDbConnection connection);
+
+    /**
+     * セッションオブジェクトを削除する。
+     * <p/>
+     * 存在しない場合は何もしない。
+     *
+     * @param sessionId セッションID
+     * @param version バージョン
+     * @param connection {@link AppDbConnection}
+     */
+    void delete(String sessionId, String version, AppDbConnection connection);
+}
@@ -0,0 +1,144 @@
+package nablarch.common.web.session.store;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.StateEncoder;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * セッションごとに、エンコードしたセッションオブジェクトのサイズの上限を設定するクラス。
+ * <p/>
+ * {@link DbStore#setQuota(SessionQuota)}に設定すると、保存時にデータベースへアクセスする前にサイズを判定する。
+ * <ul>
+ * <li>{@link #setSoftLimitBytes(int)}を超えた場合は、WARNレベルでログに出力し、そのまま保存する。</li>
+ * <li>{@link #setHardLimitBytes(int)}を超えた場合は、{@link #setPolicy(SessionQuotaPolicy)}に従って扱いを決定する。</li>
+ * </ul>
+ * ログにはセッションIDそのものではなく、セッションIDのハッシュ値を出力する。
+ *
+ * @author TIS
+ */
+public class SessionQuota {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SessionQuota.class);
+
+    /** 警告を出力するサイズ(バイト) */
+    private int softLimitBytes;
+
+    /** サイズの上限(バイト) */
+    private int hardLimitBytes;
+
+    /** 上限を超えた場合の扱いを決定するポリシー */
+    private SessionQuotaPolicy policy = new RejectQuotaPolicy();
+
+    /** 警告を出力するサイズを超えた回数 */
+    private final AtomicLong softLimitExceededCount = new AtomicLong();
+
+    /** 上限を超えた回数 */
+    private final AtomicLong hardLimitExceededCount = new AtomicLong();
+
+    /**
+     * 警告を出力するサイズ(バイト)をセットする。
+     * <p/>
+     * 0以下の場合は警告を出力しない。デフォルトは0。
+     *
+     * @param softLimitBytes 警告を出力するサイズ(バイト)
+     */
+    public void setSoftLimitBytes(int softLimitBytes) {
+        this.softLimitBytes = softLimitBytes;
+    }
+
+    /**
+     * サイズの上限(バイト)をセットする。
+     * <p/>
+     * 0以下の場合は上限を設けない。デフォルトは0。
+     *
+     * @param hardLimitBytes サイズの上限(バイト)
+     */
+    public void setHardLimitBytes(int hardLimitBytes) {
+        this.hardLimitBytes = hardLimitBytes;
+    }
+
+    /**
+     * 上限を超えた場合の扱いを決定するポリシーをセットする。
+     * <p/>
+     * デフォルトは{@link RejectQuotaPolicy}(保存を拒否する)。
+     *
+     * @param policy 上限を超えた場合の扱いを決定するポリシー
+     */
+    public void setPolicy(SessionQuotaPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * 警告を出力するサイズを超えた回数を取得する。
+     *
+     * @return 警告を出力するサイズを超えた回数
+     */
+    public long getSoftLimitExceededCount() {
+        return softLimitExceededCount.get();
+    }
+
+    /**
+     * 上限を超えた回数を取得する。
+     *
+     * @return 上限を超えた回数
+     */
+    public long getHardLimitExceededCount() {
+        return hardLimitExceededCount.get();
+    }
+
+    /**
+     * エンコードしたサイズを判定する。
+     *
+     * @param sessionId セッションID
+     * @param entries セッションに保存する情報
+     * @param encodedSize エンコードしたサイズ
+     * @param stateEncoder 値のエンコーダ
+     * @return 上限を超えた場合はポリシーが決定したセッションの扱い、上限以内の場合は{@code null}
+     */
+    SessionQuotaDecision check(String sessionId, List<SessionEntry> entries, int encodedSize,
+            StateEncoder stateEncoder) {
+        if (softLimitBytes > 0 && encodedSize > softLimitBytes) {
+            softLimitExceededCount.incrementAndGet();
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.logWarn("session size exceeded the soft limit. session id hash = "
+                        + SlowOperationLogger.hash(sessionId)
+                        + ", size = " + encodedSize + ", soft limit = " + softLimitBytes);
+            }
+        }
+        if (!isOverHardLimit(encodedSize)) {
+            return null;
+        }
+        hardLimitExceededCount.incrementAndGet();
+        return policy.onHardLimitExceeded(sessionId, entries, encodedSize, hardLimitBytes, stateEncoder);
+    }
+
+    /**
+     * ポリシーが決定したセッションの情報を再度エンコードしたサイズが、上限以内であることを確認する。
+     *
+     * @param sessionId セッションID
+     * @param encodedSize 再度エンコードしたサイズ
+     * @throws SessionQuotaExceededException 上限を超えている場合
+     */
+    void verify(String sessionId, int encodedSize) {
+        if (isOverHardLimit(encodedSize)) {
+            throw new SessionQuotaExceededException("session size still exceeds the hard limit after applying the policy."
+                    + " session id hash = " + SlowOperationLogger.hash(sessionId)
+                    + ", size = " + encodedSize + ", hard limit = " + hardLimitBytes);
+        }
+    }
+
+    /**
+     * サイズが上限を超えているかを判定する。
+     *
+     * @param encodedSize エンコードしたサイズ
+     * @return 上限を超えている場合は{@code true}
+     */
+    private boolean isOverHardLimit(int encodedSize) {
+        return hardLimitBytes > 0 && encodedSize > hardLimitBytes;
+    }
+}
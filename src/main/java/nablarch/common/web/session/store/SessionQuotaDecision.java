@@ -0,0 +1,70 @@
+package nablarch.common.web.session.store;
+
+import java.util.List;
+
+import nablarch.common.web.session.SessionEntry;
+
+/**
+ * サイズの上限を超えたセッションの扱いを表すクラス。
+ *
+ * @author TIS
+ * @see SessionQuotaPolicy
+ */
+public final class SessionQuotaDecision {
+
+    /** {@link SessionOverflowStore}に保存する */
+    private static final SessionQuotaDecision OVERFLOW = new SessionQuotaDecision(null);
+
+    /** 保存するセッションの情報({@link SessionOverflowStore}に保存する場合は{@code null}) */
+    private final List<SessionEntry> entries;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param entries 保存するセッションの情報
+     */
+    private SessionQuotaDecision(List<SessionEntry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * 指定したセッションの情報を保存する。
+     * <p/>
+     * 保存するセッションの情報は再度エンコードし、なお上限を超える場合は保存を拒否する。
+     *
+     * @param entries 保存するセッションの情報
+     * @return セッションの扱い
+     */
+    public static SessionQuotaDecision save(List<SessionEntry> entries) {
+        return new SessionQuotaDecision(entries);
+    }
+
+    /**
+     * セッションの情報をそのまま{@link SessionOverflowStore}に保存する。
+     * <p/>
+     * {@link DbStore#setOverflowStore(SessionOverflowStore)}が設定されていることを前提とする。
+     *
+     * @return セッションの扱い
+     */
+    public static SessionQuotaDecision overflow() {
+        return OVERFLOW;
+    }
+
+    /**
+     * {@link SessionOverflowStore}に保存するか否か。
+     *
+     * @return {@link SessionOverflowStore}に保存する場合は{@code true}
+     */
+    public boolean isOverflow() {
+        return entries == null;
+    }
+
+    /**
+     * 保存するセッションの情報を取得する。
+     *
+     * @return 保存するセッションの情報
+     */
+    public List<SessionEntry> getEntries() {
+        return entries;
+    }
+}
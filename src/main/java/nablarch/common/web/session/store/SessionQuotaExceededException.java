@@ -0,0 +1,19 @@
+package nablarch.common.web.session.store;
+
+/**
+ * セッションに保存する情報のサイズが上限を超えたため、保存を拒否したことを示す例外。
+ *
+ * @author TIS
+ * @see SessionQuota
+ */
+public class SessionQuotaExceededException extends RuntimeException {
+
+    /**
+     * コンストラクタ。
+     *
+     * @param message メッセージ
+     */
+    public SessionQuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,30 @@
+package nablarch.common.web.session.store;
+
+import java.util.List;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.StateEncoder;
+
+/**
+ * セッションに保存する情報のサイズが上限を超えた場合の扱いを決定するインタフェース。
+ *
+ * @author TIS
+ * @see SessionQuota#setPolicy(SessionQuotaPolicy)
+ */
+public interface SessionQuotaPolicy {
+
+    /**
+     * サイズが上限を超えたセッションの扱いを決定する。
+     * <p/>
+     * 保存を拒否する場合は{@link SessionQuotaExceededException}を送出する。
+     *
+     * @param sessionId セッションID
+     * @param entries セッションに保存する情報
+     * @param encodedSize エンコードしたサイズ
+     * @param hardLimitBytes サイズの上限
+     * @param stateEncoder 値のエンコーダ
+     * @return セッションの扱い
+     */
+    SessionQuotaDecision onHardLimitExceeded(String sessionId, List<SessionEntry> entries,
+            int encodedSize, int hardLimitBytes, StateEncoder stateEncoder);
+}
@@ -0,0 +1,368 @@
+package nablarch.common.web.session.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.StateEncoder;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.initialization.Initializable;
+
+/**
+ * セッションに保存された値のサイズを、キーごと・値のクラスごとに集計するクラス。
+ * <p/>
+ * {@link DbStore#setSizeStatistics(SessionSizeStatistics)}に設定すると、
+ * {@link #setSampleInterval(int)}回に1回の保存で、各エントリの値を{@link StateEncoder}でエンコードしたサイズを記録する。
+ * 記録のためのエンコードは保存とは別に行うため、サンプリングした保存ではエンコードのコストが増える。
+ * <p/>
+ * 集計結果は{@link #getTopKeys()}などで取得できるほか、
+ * {@link #setLogIntervalSeconds(long)}の間隔でINFOレベルのログに出力する。
+ * ログに出力した時点で集計結果はリセットされ、次の期間の集計を開始する。
+ *
+ * @author TIS
+ */
+public class SessionSizeStatistics implements Initializable {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SessionSizeStatistics.class);
+
+    /** ヒストグラムのバケット数(2の累乗ごと) */
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    /** サイズの大きい順に並べる{@link Comparator} */
+    private static final Comparator<Stats> BY_TOTAL_BYTES = new Comparator<Stats>() {
+        @Override
+        public int compare(Stats o1, Stats o2) {
+            final long t1 = o1.getTotalBytes();
+            final long t2 = o2.getTotalBytes();
+            return t1 < t2 ? 1 : (t1 == t2 ? o1.getName().compareTo(o2.getName()) : -1);
+        }
+    };
+
+    /** 記録する間隔(保存の回数) */
+    private int sampleInterval = 100;
+
+    /** 取得・ログ出力する上位の件数 */
+    private int topN = 10;
+
+    /** ログに出力する間隔(秒) */
+    private long logIntervalSeconds = 600L;
+
+    /** 保存の回数 */
+    private final AtomicLong saveCount = new AtomicLong();
+
+    /** 現在の期間の集計結果 */
+    private volatile Window window = new Window();
+
+    /** ログを出力するタイマー */
+    private Timer timer;
+
+    /**
+     * 記録する間隔をセットする。
+     * <p/>
+     * 指定した回数の保存ごとに1回記録する。1を指定した場合は全ての保存を記録する。
+     * デフォルトは100。
+     *
+     * @param sampleInterval 記録する間隔(保存の回数)
+     */
+    public void setSampleInterval(int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * 取得・ログ出力する上位の件数をセットする。
+     * <p/>
+     * デフォルトは10。
+     *
+     * @param topN 上位の件数
+     */
+    public void setTopN(int topN) {
+        this.topN = topN;
+    }
+
+    /**
+     * ログに出力する間隔(秒)をセットする。
+     * <p/>
+     * 0以下の場合は定期的なログ出力を行わない。
+     * デフォルトは600秒。
+     *
+     * @param logIntervalSeconds ログに出力する間隔(秒)
+     */
+    public void setLogIntervalSeconds(long logIntervalSeconds) {
+        this.logIntervalSeconds = logIntervalSeconds;
+    }
+
+    /**
+     * サンプリングの対象であれば、セッションに保存する値のサイズを記録する。
+     *
+     * @param entries セッションに保存する情報
+     * @param stateEncoder 値のエンコーダ
+     */
+    public void sample(List<SessionEntry> entries, StateEncoder stateEncoder) {
+        if (entries == null || saveCount.incrementAndGet() % Math.max(1, sampleInterval) != 0) {
+            return;
+        }
+        final Window current = window;
+        long total = 0;
+        for (SessionEntry entry : entries) {
+            final Object value = entry.getValue();
+            final int size = value == null ? 0 : stateEncoder.encode(value).length;
+            total += size;
+            current.record(current.keys, entry.getKey(), size);
+            current.record(current.valueClasses, value == null ? "null" : value.getClass().getName(), size);
+        }
+        current.sessions.record(total);
+    }
+
+    /**
+     * 現在の期間で、値のサイズの合計が大きいキーを上位の件数だけ取得する。
+     *
+     * @return キーごとの集計結果
+     */
+    public List<Stats> getTopKeys() {
+        return top(window.keys);
+    }
+
+    /**
+     * 現在の期間で、値のサイズの合計が大きい値のクラスを上位の件数だけ取得する。
+     *
+     * @return 値のクラスごとの集計結果
+     */
+    public List<Stats> getTopValueClasses() {
+        return top(window.valueClasses);
+    }
+
+    /**
+     * 現在の期間の、セッション全体(値のサイズの合計)の集計結果を取得する。
+     *
+     * @return セッション全体の集計結果
+     */
+    public Stats getSessionStats() {
+        return window.sessions;
+    }
+
+    /**
+     * 現在の期間の集計結果をログに出力し、集計結果をリセットする。
+     */
+    public void logAndReset() {
+        final Window previous = window;
+        window = new Window();
+        if (previous.sessions.getCount() == 0 || !LOGGER.isInfoEnabled()) {
+            return;
+        }
+        final StringBuilder message = new StringBuilder("session size statistics. sessions: ")
+                .append(previous.sessions);
+        message.append("\n  top keys:");
+        for (Stats stats : top(previous.keys)) {
+            message.append("\n    ").append(stats);
+        }
+        message.append("\n  top value classes:");
+        for (Stats stats : top(previous.valueClasses)) {
+            message.append("\n    ").append(stats);
+        }
+        LOGGER.logInfo(message.toString());
+    }
+
+    /**
+     * 値のサイズの合計が大きいものを上位の件数だけ取得する。
+     *
+     * @param statsMap 集計結果
+     * @return 上位の集計結果
+     */
+    private List<Stats> top(ConcurrentMap<String, Stats> statsMap) {
+        final List<Stats> list = new ArrayList<Stats>(statsMap.values());
+        Collections.sort(list, BY_TOTAL_BYTES);
+        return list.size() > topN ? new ArrayList<Stats>(list.subList(0, topN)) : list;
+    }
+
+    /**
+     * 初期化処理。
+     * <p/>
+     * 定期的なログ出力を開始する。
+     */
+    @Override
+    public void initialize() {
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (logIntervalSeconds > 0) {
+            final long interval = logIntervalSeconds * 1000L;
+            timer = new Timer("session-size-statistics", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        logAndReset();
+                    } catch (RuntimeException e) {
+                        LOGGER.logWarn("failed to log session size statistics.", e);
+                    }
+                }
+            }, interval, interval);
+        }
+    }
+
+    /**
+     * 1つの期間の集計結果。
+     */
+    private static final class Window {
+
+        /** キーごとの集計結果 */
+        private final ConcurrentMap<String, Stats> keys = new ConcurrentHashMap<String, Stats>();
+
+        /** 値のクラスごとの集計結果 */
+        private final ConcurrentMap<String, Stats> valueClasses = new ConcurrentHashMap<String, Stats>();
+
+        /** セッション全体の集計結果 */
+        private final Stats sessions = new Stats("session");
+
+        /**
+         * サイズを記録する。
+         *
+         * @param statsMap 集計結果
+         * @param name 名前
+         * @param size サイズ
+         */
+        private void record(ConcurrentMap<String, Stats> statsMap, String name, long size) {
+            Stats stats = statsMap.get(name);
+            if (stats == null) {
+                final Stats created = new Stats(name);
+                stats = statsMap.putIfAbsent(name, created);
+                if (stats == null) {
+                    stats = created;
+                }
+            }
+            stats.record(size);
+        }
+    }
+
+    /**
+     * 名前(キーまたは値のクラス)ごとのサイズの集計結果。
+     */
+    public static final class Stats {
+
+        /** 名前 */
+        private final String name;
+
+        /** 件数 */
+        private long count;
+
+        /** サイズの合計 */
+        private long totalBytes;
+
+        /** サイズの最大値 */
+        private long maxBytes;
+
+        /** サイズのヒストグラム(i番目は2^(i-1)以上2^i未満の件数。0番目はサイズ0の件数) */
+        private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+        /**
+         * コンストラクタ。
+         *
+         * @param name 名前
+         */
+        private Stats(String name) {
+            this.name = name;
+        }
+
+        /**
+         * サイズを記録する。
+         *
+         * @param size サイズ
+         */
+        private synchronized void record(long size) {
+            count++;
+            totalBytes += size;
+            maxBytes = Math.max(maxBytes, size);
+            histogram[Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(size))]++;
+        }
+
+        /**
+         * 名前を取得する。
+         *
+         * @return 名前
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 件数を取得する。
+         *
+         * @return 件数
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * サイズの合計を取得する。
+         *
+         * @return サイズの合計
+         */
+        public synchronized long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * サイズの最大値を取得する。
+         *
+         * @return サイズの最大値
+         */
+        public synchronized long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /**
+         * サイズの平均値を取得する。
+         *
+         * @return サイズの平均値
+         */
+        public synchronized long getAverageBytes() {
+            return count == 0 ? 0 : totalBytes / count;
+        }
+
+        /**
+         * サイズのヒストグラムを取得する。
+         * <p/>
+         * i番目の要素は、サイズが2^(i-1)以上2^i未満の件数(0番目はサイズが0の件数)。
+         *
+         * @return サイズのヒストグラム
+         */
+        public synchronized long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        /**
+         * サイズのパーセンタイル値の上限をヒストグラムから求める。
+         *
+         * @param percentile パーセンタイル(0〜100)
+         * @return パーセンタイル値を含むバケットの上限
+         */
+        private synchronized long percentileUpperBound(double percentile) {
+            final long threshold = (long) Math.ceil(count * percentile / 100);
+            long cumulative = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                cumulative += histogram[i];
+                if (cumulative >= threshold) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return maxBytes;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + " count=" + count + " total=" + totalBytes + " avg=" + getAverageBytes()
+                    + " p50<=" + percentileUpperBound(50) + " p95<=" + percentileUpperBound(95)
+                    + " max=" + maxBytes;
+        }
+    }
+}
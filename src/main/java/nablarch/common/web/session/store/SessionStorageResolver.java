@@ -0,0 +1,25 @@
+package nablarch.common.web.session.store;
+
+import nablarch.fw.ExecutionContext;
+
+/**
+ * リクエストごとにセッションの保存先を決定するインタフェース。
+ * <p/>
+ * テナントごとにユーザセッションテーブルやデータベースを分ける場合に実装する。
+ *
+ * @author TIS
+ * @see RoutingDbStore#setStorageResolver(SessionStorageResolver)
+ * @see nablarch.common.web.session.RoutingDbManagedExpiration#setStorageResolver(SessionStorageResolver)
+ */
+public interface SessionStorageResolver {
+
+    /**
+     * セッションの保存先を決定する。
+     * <p/>
+     * 同じ保存先には常に同じインスタンスを返すこと。
+     *
+     * @param context 実行コンテキスト(実行コンテキストを伴わない処理の場合は{@code null})
+     * @return セッションの保存先。既定の保存先を使用する場合は{@code null}
+     */
+    SessionStorageRoute resolve(ExecutionContext context);
+}
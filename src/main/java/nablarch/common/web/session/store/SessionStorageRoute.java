@@ -0,0 +1,59 @@
+package nablarch.common.web.session.store;
+
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+
+/**
+ * セッションの保存先(ユーザセッションテーブルとデータベース)を保持するクラス。
+ * <p/>
+ * {@link SessionStorageResolver}が返す保存先ごとに、{@link RoutingDbStore}と
+ * {@link nablarch.common.web.session.RoutingDbManagedExpiration}は保存先の{@link DbStore}などを生成してキャッシュする。
+ * キャッシュはインスタンスごとに行うため、同じ保存先には常に同じインスタンスを返すこと。
+ *
+ * @author TIS
+ */
+public class SessionStorageRoute {
+
+    /** ユーザセッションテーブルのスキーマ */
+    private UserSessionSchema userSessionSchema;
+
+    /** SimpleDbTransactionManagerのインスタンス(設定されていない場合は既定のものを使用する) */
+    private SimpleDbTransactionManager dbManager;
+
+    /**
+     * ユーザセッションテーブルのスキーマを取得する。
+     *
+     * @return ユーザセッションテーブルのスキーマ
+     */
+    public UserSessionSchema getUserSessionSchema() {
+        return userSessionSchema;
+    }
+
+    /**
+     * ユーザセッションテーブルのスキーマをセットする。
+     *
+     * @param userSessionSchema ユーザセッションテーブルのスキーマ
+     */
+    public void setUserSessionSchema(UserSessionSchema userSessionSchema) {
+        this.userSessionSchema = userSessionSchema;
+    }
+
+    /**
+     * SimpleDbTransactionManagerのインスタンスを取得する。
+     *
+     * @return SimpleDbTransactionManagerのインスタンス
+     */
+    public SimpleDbTransactionManager getDbManager() {
+        return dbManager;
+    }
+
+    /**
+     * SimpleDbTransactionManagerのインスタンスをセットする。
+     * <p/>
+     * 設定されていない場合は、既定の保存先の{@link DbStore}などに設定されたものを使用する。
+     *
+     * @param dbManager SimpleDbTransactionManagerのインスタンス
+     */
+    public void setDbManager(SimpleDbTransactionManager dbManager) {
+        this.dbManager = dbManager;
+    }
+}
@@ -0,0 +1,80 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.schema.TableSchema;
+
+/**
+ * 共有値テーブルのスキーマ情報を保持するクラス。
+ * <p/>
+ * 共有値テーブルは、エンコードした値のハッシュ値を主キーとし、
+ * 複数のセッションで同じ内容の値を1行だけ保持する。
+ *
+ * @author TIS
+ * @see DbStore#setSharedValueSchema(SharedSessionValueSchema)
+ */
+public final class SharedSessionValueSchema extends TableSchema {
+
+    /** ハッシュ値カラムの名前 */
+    private String hashName;
+
+    /** 値カラムの名前 */
+    private String valueObjectName;
+
+    /** 有効期限カラムの名前 */
+    private String expirationDatetimeName;
+
+    /**
+     * ハッシュ値カラムの名前を取得する。
+     *
+     * @return ハッシュ値カラムの名前
+     */
+    public String getHashName() {
+        return hashName;
+    }
+
+    /**
+     * ハッシュ値カラムの名前を設定する。
+     * <p/>
+     * ハッシュ値はSHA-256の16進数表現(64文字)で保存する。
+     *
+     * @param hashName ハッシュ値カラムの名前
+     */
+    public void setHashName(String hashName) {
+        this.hashName = hashName;
+    }
+
+    /**
+     * 値カラムの名前を取得する。
+     *
+     * @return 値カラムの名前
+     */
+    public String getValueObjectName() {
+        return valueObjectName;
+    }
+
+    /**
+     * 値カラムの名前を設定する。
+     *
+     * @param valueObjectName 値カラムの名前
+     */
+    public void setValueObjectName(String valueObjectName) {
+        this.valueObjectName = valueObjectName;
+    }
+
+    /**
+     * 有効期限カラムの名前を取得する。
+     *
+     * @return 有効期限カラムの名前
+     */
+    public String getExpirationDatetimeName() {
+        return expirationDatetimeName;
+    }
+
+    /**
+     * 有効期限カラムの名前を設定する。
+     *
+     * @param expirationDatetimeName 有効期限カラムの名前
+     */
+    public void setExpirationDatetimeName(String expirationDatetimeName) {
+        this.expirationDatetimeName = expirationDatetimeName;
+    }
+}
@@ -0,0 +1,348 @@
+package nablarch.common.web.session.store;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.db.statement.exception.DuplicateStatementException;
+
+/**
+ * 複数のセッションで同じ内容の値を1行だけ保持する共有値テーブルへのアクセスを行うクラス。
+ * <p/>
+ * {@link DbStore}から使用する。
+ * 共有値テーブルの行は、参照するセッションを保存するたびに有効期限を延長し、
+ * 有効期限を過ぎた行は{@link #purgeExpired(long, AppDbConnection)}で削除する。
+ * 有効期限は延長するだけで短縮しないため、より長く有効なセッションが参照している値が先に削除されることはない。
+ * セッションを保存せずに参照する値を延長する場合は、{@link #extend(String, long, AppDbConnection)}で延長する。
+ * 読み込んだ値と保存した値は、ノードごとのキャッシュに保持する。
+ * 保存先が複数ある場合は、{@link #shareCache(SharedSessionValueSchema, String)}で保存先ごとにキーを分けて1つのキャッシュを共有する。
+ *
+ * @author TIS
+ */
+final class SharedSessionValues {
+
+    /** 1回のSQLで取得する値の数 */
+    private static final int SELECT_CHUNK_SIZE = 100;
+
+    /** 16進数の文字 */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** 有効期限を短縮せずに延長するSQL */
+    private final String extendExpirationSql;
+
+    /** 値の有無を取得するSQL */
+    private final String selectExistsSql;
+
+    /** 値を登録するSQL */
+    private final String insertSql;
+
+    /** ハッシュ値を指定して値を取得するSQLの接頭辞(IN句の前まで) */
+    private final String selectInSqlPrefix;
+
+    /** 有効期限を過ぎた値を削除するSQL */
+    private final String deleteExpiredSql;
+
+    /** 有効期限に加算する猶予(ミリ秒) */
+    private final long graceMillis;
+
+    /** 値のキャッシュ */
+    private final WeightedLruCache<SharedValue> cache;
+
+    /** キャッシュのキーの接頭辞(保存先ごとに異なる) */
+    private final String cacheKeyPrefix;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param schema 共有値テーブルのスキーマ
+     * @param graceMillis 有効期限に加算する猶予(ミリ秒)
+     * @param cacheMaxBytes キャッシュの最大バイト数
+     */
+    SharedSessionValues(SharedSessionValueSchema schema, long graceMillis, long cacheMaxBytes) {
+        this(schema, graceMillis, new WeightedLruCache<SharedValue>(cacheMaxBytes), "");
+    }
+
+    /**
+     * キャッシュを指定してインスタンスを生成する。
+     *
+     * @param schema 共有値テーブルのスキーマ
+     * @param graceMillis 有効期限に加算する猶予(ミリ秒)
+     * @param cache 値のキャッシュ
+     * @param cacheKeyPrefix キャッシュのキーの接頭辞
+     */
+    private SharedSessionValues(SharedSessionValueSchema schema, long graceMillis,
+            WeightedLruCache<SharedValue> cache, String cacheKeyPrefix) {
+        this.graceMillis = graceMillis;
+        this.cache = cache;
+        this.cacheKeyPrefix = cacheKeyPrefix;
+        extendExpirationSql = "UPDATE " + schema.getTableName()
+                + " SET " + schema.getExpirationDatetimeName() + " = ?"
+                + " WHERE " + schema.getHashName() + " = ?"
+                + " AND " + schema.getExpirationDatetimeName() + " < ?";
+        selectExistsSql = "SELECT " + schema.getHashName()
+                + " FROM " + schema.getTableName()
+                + " WHERE " + schema.getHashName() + " = ?";
+        insertSql = "INSERT INTO " + schema.getTableName() + " ("
+                + schema.getHashName() + ", "
+                + schema.getValueObjectName() + ", "
+                + schema.getExpirationDatetimeName()
+                + ") VALUES (?, ?, ?)";
+        selectInSqlPrefix = "SELECT " + schema.getHashName() + ", " + schema.getValueObjectName()
+                + " FROM " + schema.getTableName()
+                + " WHERE " + schema.getHashName() + " IN (";
+        deleteExpiredSql = "DELETE FROM " + schema.getTableName()
+                + " WHERE " + schema.getExpirationDatetimeName() + " < ?";
+    }
+
+    /**
+     * 本インスタンスとキャッシュを共有する、別の保存先の共有値テーブルへのアクセスを生成する。
+     * <p/>
+     * 保存先ごとに登録済みの値が異なるため、キャッシュのキーは接頭辞で分ける。
+     * キャッシュの最大バイト数は、共有するすべての保存先の合計となる。
+     *
+     * @param schema 保存先の共有値テーブルのスキーマ
+     * @param cacheKeyPrefix 保存先ごとに異なるキャッシュのキーの接頭辞
+     * @return 保存先の共有値テーブルへのアクセス
+     */
+    SharedSessionValues shareCache(SharedSessionValueSchema schema, String cacheKeyPrefix) {
+        return new SharedSessionValues(schema, graceMillis, cache, cacheKeyPrefix);
+    }
+
+    /**
+     * 値のハッシュ値を求める。
+     *
+     * @param value エンコードした値
+     * @return SHA-256ハッシュ値の16進数表現
+     */
+    static String hash(byte[] value) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(value);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX[digest[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * 値を保存し、参照するセッションの有効期限まで保持されるようにする。
+     * <p/>
+     * このノードで既に有効期限を延長済みの場合は、データベースにアクセスしない。
+     * 共有値テーブルの有効期限の方が長い場合は更新しない。
+     * 他のスレッドが同時に同じ値を登録し一意制約違反となった場合は、登録された行の有効期限を延長する。
+     * (一意制約違反の後にSQLを実行できないデータベースの場合は、一意制約違反の例外をそのまま送出する)
+     * トランザクションがコミットされた後に、戻り値を{@link #commit(List)}に渡してキャッシュに反映すること。
+     *
+     * @param hash ハッシュ値
+     * @param value エンコードした値
+     * @param sessionExpiration 参照するセッションの有効期限
+     * @param connection セッションを保存しているトランザクションの{@link AppDbConnection}
+     * @return 保存した値。データベースにアクセスしなかった場合は{@code null}
+     */
+    Stored store(String hash, byte[] value, long sessionExpiration, AppDbConnection connection) {
+        final SharedValue cached = cache.get(cacheKeyPrefix + hash);
+        if (cached != null && cached.expiration >= sessionExpiration) {
+            return null;
+        }
+        final long expiration = sessionExpiration + graceMillis;
+        if (extendExpiration(hash, expiration, connection) == 0 && !exists(hash, connection)) {
+            final SqlPStatement insert = connection.prepareStatement(insertSql);
+            insert.setString(1, hash);
+            insert.setBytes(2, value);
+            insert.setTimestamp(3, new Timestamp(expiration));
+            try {
+                insert.executeUpdate();
+            } catch (DuplicateStatementException e) {
+                try {
+                    extendExpiration(hash, expiration, connection);
+                } catch (RuntimeException ignored) {
+                    // トランザクションが中断された場合は、保存全体のリトライに任せる
+                    throw e;
+                }
+            }
+        }
+        return new Stored(hash, new SharedValue(value, expiration));
+    }
+
+    /**
+     * 値の有効期限を、短縮しないように延長する。
+     *
+     * @param hash ハッシュ値
+     * @param expiration 延長後の有効期限
+     * @param connection {@link AppDbConnection}
+     * @return 更新件数(存在しない場合や、既に有効期限の方が長い場合は0)
+     */
+    private int extendExpiration(String hash, long expiration, AppDbConnection connection) {
+        final SqlPStatement update = connection.prepareStatement(extendExpirationSql);
+        update.setTimestamp(1, new Timestamp(expiration));
+        update.setString(2, hash);
+        update.setTimestamp(3, new Timestamp(expiration));
+        return update.executeUpdate();
+    }
+
+    /**
+     * 値が共有値テーブルに存在するか否かを判定する。
+     *
+     * @param hash ハッシュ値
+     * @param connection {@link AppDbConnection}
+     * @return 存在する場合は{@code true}
+     */
+    private boolean exists(String hash, AppDbConnection connection) {
+        final SqlPStatement select = connection.prepareStatement(selectExistsSql);
+        select.setString(1, hash);
+        return select.executeQuery().next();
+    }
+
+    /**
+     * 値の有効期限を、参照するセッションの有効期限まで延長する。
+     * <p/>
+     * このノードで既に有効期限を延長済みの場合は、データベースにアクセスしない。
+     * 共有値テーブルの有効期限の方が長い場合は更新しない。
+     * トランザクションがコミットされた後に、戻り値を{@link #commit(List)}に渡してキャッシュに反映すること。
+     *
+     * @param hash ハッシュ値
+     * @param sessionExpiration 参照するセッションの有効期限
+     * @param connection {@link AppDbConnection}
+     * @return キャッシュに反映する値。反映するものがない場合は{@code null}
+     */
+    Stored extend(String hash, long sessionExpiration, AppDbConnection connection) {
+        final SharedValue cached = cache.get(cacheKeyPrefix + hash);
+        if (cached != null && cached.expiration >= sessionExpiration) {
+            return null;
+        }
+        final long expiration = sessionExpiration + graceMillis;
+        if (extendExpiration(hash, expiration, connection) == 0 || cached == null) {
+            // 延長済みか存在しない場合、またはキャッシュにない場合はキャッシュを更新しない
+            return null;
+        }
+        return new Stored(hash, new SharedValue(cached.value, expiration));
+    }
+
+    /**
+     * コミットされた値をキャッシュに反映する。
+     * <p/>
+     * ロールバックされた値をキャッシュに反映すると、登録されていない値を登録済みと判断してしまうため、
+     * コミットされた後に呼び出すこと。
+     *
+     * @param stored {@link #store(String, byte[], long, AppDbConnection)}で保存した値
+     */
+    void commit(List<Stored> stored) {
+        for (Stored value : stored) {
+            cache.put(cacheKeyPrefix + value.hash, value.value, value.value.value.length);
+        }
+    }
+
+    /**
+     * ハッシュ値を指定して値を取得する。
+     * <p/>
+     * キャッシュにない値だけを、データベースから取得する。
+     *
+     * @param hashes ハッシュ値
+     * @param connection {@link AppDbConnection}
+     * @return ハッシュ値と値(共有値テーブルに存在しない値は含まない)
+     */
+    Map<String, byte[]> load(Collection<String> hashes, AppDbConnection connection) {
+        final Map<String, byte[]> values = new HashMap<String, byte[]>();
+        final List<String> missing = new ArrayList<String>();
+        for (String hash : hashes) {
+            final SharedValue cached = cache.get(cacheKeyPrefix + hash);
+            if (cached != null) {
+                values.put(hash, cached.value);
+            } else if (!missing.contains(hash)) {
+                missing.add(hash);
+            }
+        }
+        for (int from = 0; from < missing.size(); from += SELECT_CHUNK_SIZE) {
+            final List<String> chunk = missing.subList(from, Math.min(from + SELECT_CHUNK_SIZE, missing.size()));
+            final StringBuilder sql = new StringBuilder(selectInSqlPrefix);
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            final SqlPStatement select = connection.prepareStatement(sql.append(')').toString());
+            for (int i = 0; i < chunk.size(); i++) {
+                select.setString(i + 1, chunk.get(i));
+            }
+            final ResultSetIterator iterator = select.executeQuery();
+            while (iterator.next()) {
+                final String hash = iterator.getString(1);
+                final byte[] value = iterator.getBytes(2);
+                values.put(hash, value);
+                // 有効期限は不明なため、保存時には延長するよう0とする
+                cache.put(cacheKeyPrefix + hash, new SharedValue(value, 0L), value.length);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 有効期限を過ぎた値を削除する。
+     *
+     * @param now 現在日時
+     * @param connection {@link AppDbConnection}
+     * @return 削除件数
+     */
+    int purgeExpired(long now, AppDbConnection connection) {
+        final SqlPStatement delete = connection.prepareStatement(deleteExpiredSql);
+        delete.setTimestamp(1, new Timestamp(now));
+        return delete.executeUpdate();
+    }
+
+    /**
+     * 保存した値。
+     */
+    static final class Stored {
+
+        /** ハッシュ値 */
+        private final String hash;
+
+        /** キャッシュする値 */
+        private final SharedValue value;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param hash ハッシュ値
+         * @param value キャッシュする値
+         */
+        private Stored(String hash, SharedValue value) {
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    /**
+     * キャッシュした値。
+     */
+    private static final class SharedValue {
+
+        /** エンコードした値 */
+        private final byte[] value;
+
+        /** 共有値テーブルの有効期限(このノードで延長した値。不明な場合は0) */
+        private final long expiration;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param value エンコードした値
+         * @param expiration 共有値テーブルの有効期限
+         */
+        private SharedValue(byte[] value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+}
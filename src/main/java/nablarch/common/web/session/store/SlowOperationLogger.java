@@ -0,0 +1,347 @@
+package nablarch.common.web.session.store;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * セッションストアの処理のうち、時間がかかったものをログに出力するクラス。
+ * <p/>
+ * {@link DbStore#setSlowOperationLogger(SlowOperationLogger)}や
+ * {@link nablarch.common.web.session.DbManagedExpiration#setSlowOperationLogger(SlowOperationLogger)}に設定すると、
+ * 処理時間が{@link #setThresholdMillis(long)}以上の処理を、WARNレベルで以下の内容とともにログに出力する。
+ * <ul>
+ * <li>処理の種類と、主に実行したSQL</li>
+ * <li>セッションIDのハッシュ値(セッションIDそのものは出力しない)</li>
+ * <li>エンコードしたセッションオブジェクトのサイズと、処理した行数</li>
+ * <li>コネクションの取得(同時実行数の制限による待ちを含む)にかかった時間と、SQLの実行にかかった時間</li>
+ * <li>一意制約違反によるリトライの回数</li>
+ * </ul>
+ * 障害時に大量の処理が遅延してもログ出力がボトルネックにならないよう、
+ * 1秒あたりの出力件数を{@link #setMaxLogsPerSecond(int)}に制限する。
+ * 制限により出力しなかった件数の累計は、以降に出力するログに含める。
+ *
+ * @author TIS
+ */
+public class SlowOperationLogger {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SlowOperationLogger.class);
+
+    /** ハッシュ値のうちログに出力するバイト数 */
+    private static final int HASH_BYTES = 8;
+
+    /** 16進数の文字 */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** ログに出力する処理時間の閾値(ナノ秒) */
+    private long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(1000L);
+
+    /** 1秒あたりに出力するログの上限 */
+    private int maxLogsPerSecond = 10;
+
+    /** 現在の期間(秒) */
+    private final AtomicLong currentSecond = new AtomicLong();
+
+    /** 現在の期間に出力したログの件数 */
+    private final AtomicInteger loggedInSecond = new AtomicInteger();
+
+    /** 出力を制限したログの件数 */
+    private final AtomicLong suppressedCount = new AtomicLong();
+
+    /** 閾値を超えた処理の件数 */
+    private final AtomicLong slowCount = new AtomicLong();
+
+    /**
+     * ログに出力する処理時間の閾値(ミリ秒)をセットする。
+     * <p/>
+     * デフォルトは1000ミリ秒。
+     *
+     * @param thresholdMillis 処理時間の閾値(ミリ秒)
+     */
+    public void setThresholdMillis(long thresholdMillis) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    /**
+     * 1秒あたりに出力するログの上限をセットする。
+     * <p/>
+     * デフォルトは10。
+     *
+     * @param maxLogsPerSecond 1秒あたりに出力するログの上限
+     */
+    public void setMaxLogsPerSecond(int maxLogsPerSecond) {
+        this.maxLogsPerSecond = maxLogsPerSecond;
+    }
+
+    /**
+     * 処理の計測を開始する。
+     *
+     * @param operation 処理の種類
+     * @param sessionId セッションID(特定のセッションに対する処理でない場合は{@code null})
+     * @return 計測中の処理
+     */
+    public Operation start(String operation, String sessionId) {
+        return new Operation(this, operation, sessionId);
+    }
+
+    /**
+     * 閾値を超えた処理の件数を取得する。
+     * <p/>
+     * 出力を制限した件数も含む。
+     *
+     * @return 閾値を超えた処理の件数
+     */
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+
+    /**
+     * 出力を制限したログの件数を取得する。
+     *
+     * @return 出力を制限したログの件数
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    /**
+     * 閾値を超えた処理であれば、出力件数の上限の範囲でログに出力する。
+     *
+     * @param operation 終了した処理
+     * @param totalNanos 処理時間(ナノ秒)
+     */
+    private void finish(Operation operation, long totalNanos) {
+        if (totalNanos < thresholdNanos) {
+            return;
+        }
+        slowCount.incrementAndGet();
+        if (!tryAcquireLog()) {
+            suppressedCount.incrementAndGet();
+            return;
+        }
+        if (LOGGER.isWarnEnabled()) {
+            LOGGER.logWarn(operation.toMessage(totalNanos));
+        }
+    }
+
+    /**
+     * 現在の期間の出力件数が上限に達していなければ、1件分を確保する。
+     *
+     * @return 確保できた場合は{@code true}
+     */
+    private boolean tryAcquireLog() {
+        final long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        final long current = currentSecond.get();
+        if (second != current && currentSecond.compareAndSet(current, second)) {
+            loggedInSecond.set(0);
+        }
+        return loggedInSecond.incrementAndGet() <= maxLogsPerSecond;
+    }
+
+    /**
+     * セッションIDのハッシュ値を求める。
+     *
+     * @param sessionId セッションID
+     * @return SHA-256ハッシュ値の先頭8バイトの16進数表現
+     */
+    static String hash(String sessionId) {
+        if (sessionId == null) {
+            return "-";
+        }
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(sessionId.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        final char[] hex = new char[HASH_BYTES * 2];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX[digest[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * 計測中の処理。
+     * <p/>
+     * 1つの処理は1つのスレッドから使用すること。
+     */
+    public static final class Operation {
+
+        /** 計測を行わない処理 */
+        public static final Operation NONE = new Operation(null, null, null);
+
+        /** 出力先({@link #NONE}の場合は{@code null}) */
+        private final SlowOperationLogger logger;
+
+        /** 処理の種類 */
+        private final String operation;
+
+        /** セッションID */
+        private final String sessionId;
+
+        /** 開始時刻(ナノ秒) */
+        private final long startNanos;
+
+        /** 主に実行したSQL */
+        private String sql;
+
+        /** エンコードしたセッションオブジェクトのサイズ(不明な場合は-1) */
+        private long encodedSize = -1;
+
+        /** 処理した行数 */
+        private int rows;
+
+        /** リトライの回数 */
+        private int retries;
+
+        /** コネクションの取得にかかった時間(ナノ秒) */
+        private long waitNanos;
+
+        /** トランザクション内の処理にかかった時間(ナノ秒) */
+        private long executeNanos;
+
+        /** 全てのトランザクションが処理を終えたか否か */
+        private boolean completed = true;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param logger 出力先
+         * @param operation 処理の種類
+         * @param sessionId セッションID
+         */
+        private Operation(SlowOperationLogger logger, String operation, String sessionId) {
+            this.logger = logger;
+            this.operation = operation;
+            this.sessionId = sessionId;
+            this.startNanos = logger == null ? 0L : System.nanoTime();
+        }
+
+        /**
+         * 主に実行したSQLを記録する。
+         *
+         * @param sql SQL
+         * @return 本オブジェクト
+         */
+        public Operation setSql(String sql) {
+            if (logger != null) {
+                this.sql = sql;
+            }
+            return this;
+        }
+
+        /**
+         * エンコードしたセッションオブジェクトのサイズを記録する。
+         *
+         * @param encodedSize サイズ
+         */
+        public void setEncodedSize(long encodedSize) {
+            if (logger != null) {
+                this.encodedSize = encodedSize;
+            }
+        }
+
+        /**
+         * 処理した行数を加算する。
+         *
+         * @param count 行数
+         */
+        public void addRows(int count) {
+            if (logger != null) {
+                rows += count;
+            }
+        }
+
+        /**
+         * リトライしたことを記録する。
+         */
+        public void retried() {
+            if (logger != null) {
+                retries++;
+            }
+        }
+
+        /**
+         * コネクションの取得とトランザクション内の処理の時間を計測するよう、トランザクションをラップする。
+         *
+         * @param dbManager トランザクションで使用する{@link SimpleDbTransactionManager}
+         * @param executor 実行するトランザクション
+         * @param <T> トランザクションの実行結果の型
+         * @return ラップしたトランザクション(計測を行わない場合は引数のトランザクション)
+         */
+        public <T> SimpleDbTransactionExecutor<T> wrap(SimpleDbTransactionManager dbManager,
+                final SimpleDbTransactionExecutor<T> executor) {
+            if (logger == null) {
+                return executor;
+            }
+            final long begin = System.nanoTime();
+            completed = false;
+            return new SimpleDbTransactionExecutor<T>(dbManager) {
+                @Override
+                public T execute(AppDbConnection connection) {
+                    final long executeStart = System.nanoTime();
+                    waitNanos += executeStart - begin;
+                    try {
+                        final T result = executor.execute(connection);
+                        completed = true;
+                        return result;
+                    } finally {
+                        executeNanos += System.nanoTime() - executeStart;
+                    }
+                }
+            };
+        }
+
+        /**
+         * 計測を終了し、閾値を超えていればログに出力する。
+         */
+        public void end() {
+            if (logger != null) {
+                logger.finish(this, System.nanoTime() - startNanos);
+            }
+        }
+
+        /**
+         * ログに出力するメッセージを組み立てる。
+         *
+         * @param totalNanos 処理時間(ナノ秒)
+         * @return メッセージ
+         */
+        private String toMessage(long totalNanos) {
+            final StringBuilder message = new StringBuilder("slow session store operation.")
+                    .append(" operation = ").append(operation)
+                    .append(", session id hash = ").append(hash(sessionId))
+                    .append(", encoded size = ").append(encodedSize < 0 ? "-" : String.valueOf(encodedSize))
+                    .append(", rows = ").append(rows)
+                    .append(", retries = ").append(retries)
+                    .append(", total = ").append(TimeUnit.NANOSECONDS.toMillis(totalNanos)).append("ms")
+                    .append(", connection wait = ").append(TimeUnit.NANOSECONDS.toMillis(waitNanos)).append("ms")
+                    .append(", execute = ").append(TimeUnit.NANOSECONDS.toMillis(executeNanos)).append("ms");
+            if (!completed) {
+                message.append(", failed");
+            }
+            final long suppressed = logger.suppressedCount.get();
+            if (suppressed > 0) {
+                message.append(", suppressed so far = ").append(suppressed);
+            }
+            if (sql != null) {
+                message.append(", sql = ").append(sql);
+            }
+            return message.toString();
+        }
+    }
+}
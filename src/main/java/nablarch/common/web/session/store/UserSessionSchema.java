@@ -18,6 +18,21 @@ public final class UserSessionSchema extends TableSchema {
     /** 有効期限（DATETIME）カラムの名前 */
     private String expirationDatetimeName;
 
+    /** 有効期限バケットカラムの名前 */
+    private String expirationBucketName;
+
+    /** 有効期限バケットの幅（秒） */
+    private long expirationBucketSeconds = 3600L;
+
+    /** セッションIDをバイナリで保存するか否か */
+    private boolean binarySessionId;
+
+    /** 所有者IDカラムの名前 */
+    private String ownerIdName;
+
+    /** バージョンカラムの名前 */
+    private String versionName;
+
     /**
      * セッションIDカラムの名前を取得する。
      * @return セッションIDカラムの名前
@@ -71,5 +86,129 @@ public final class UserSessionSchema extends TableSchema {
         this.expirationDatetimeName = expirationDatetimeName;
     }
 
+    /**
+     * 所有者IDカラムの名前を取得する。
+     *
+     * @return 所有者IDカラムの名前(設定されていない場合は{@code null})
+     */
+    public String getOwnerIdName() {
+        return ownerIdName;
+    }
+
+    /**
+     * 所有者IDカラムの名前を設定する。
+     * <p/>
+     * 設定した場合、{@link DbStore}はセッションの保存時に
+     * {@link nablarch.core.ThreadContext#getUserId()}の値を所有者IDとして保存する。
+     * 所有者IDで{@link DbStore#invalidateByOwner(String)}を使用する場合は、このカラムに索引を作成すること。
+     * 設定されていない場合、所有者IDは保存しない。
+     *
+     * @param ownerIdName 所有者IDカラムの名前
+     */
+    public void setOwnerIdName(String ownerIdName) {
+        this.ownerIdName = ownerIdName;
+    }
+
+    /**
+     * バージョンカラムの名前を取得する。
+     *
+     * @return バージョンカラムの名前(設定されていない場合は{@code null})
+     */
+    public String getVersionName() {
+        return versionName;
+    }
+
+    /**
+     * バージョンカラムの名前を設定する。
+     * <p/>
+     * 設定した場合、{@link DbStore}はセッションオブジェクトを書き込むたび(差分保存モードで差分を追記する場合を含む)に、
+     * 新しいバージョン({@code BIGINT}などの整数)を保存する。
+     * 内容に変更がなく有効期限だけを更新する場合や、
+     * {@link nablarch.common.web.session.DbManagedExpiration}による有効期限の更新ではバージョンは変わらない。
+     * {@link DbStore#setLocalTier(MappedSessionTier)}や{@link DbStore#setSessionDeltaSchema(SessionDeltaSchema)}を
+     * 使用する場合は必須。
+     * 設定されていない場合、バージョンは保存しない。
+     *
+     * @param versionName バージョンカラムの名前
+     */
+    public void setVersionName(String versionName) {
+        this.versionName = versionName;
+    }
+
+    /**
+     * セッションIDをバイナリで保存するか否かを取得する。
+     *
+     * @return セッションIDをバイナリで保存する場合は{@code true}
+     */
+    public boolean isBinarySessionId() {
+        return binarySessionId;
+    }
+
+    /**
+     * セッションIDをバイナリで保存するか否かを設定する。
+     * <p/>
+     * {@code true}を設定した場合、UUID形式のセッションIDを16バイトのバイナリに変換して
+     * セッションIDカラム（{@code BINARY(16)}など）に保存する。
+     * 可変長の文字列で保存する場合に比べて、主キーの索引を小さくできる。
+     * デフォルトは{@code false}（文字列で保存する）。
+     *
+     * @param binarySessionId セッションIDをバイナリで保存する場合は{@code true}
+     */
+    public void setBinarySessionId(boolean binarySessionId) {
+        this.binarySessionId = binarySessionId;
+    }
+
+    /**
+     * 有効期限バケットカラムの名前を取得する。
+     *
+     * @return 有効期限バケットカラムの名前。有効期限バケットを使用しない場合は{@code null}
+     */
+    public String getExpirationBucketName() {
+        return expirationBucketName;
+    }
+
+    /**
+     * 有効期限バケットカラムの名前を設定する。
+     * <p/>
+     * 設定した場合、登録・更新時に有効期限を{@link #setExpirationBucketSeconds(long)}の幅で区切った値
+     * （有効期限バケット）を合わせて保存する。
+     * 有効期限バケット単位での一括削除は{@link ExpiredSessionPurger}で行う。
+     *
+     * @param expirationBucketName 有効期限バケットカラムの名前
+     */
+    public void setExpirationBucketName(String expirationBucketName) {
+        this.expirationBucketName = expirationBucketName;
+    }
+
+    /**
+     * 有効期限バケットの幅（秒）を取得する。
+     *
+     * @return 有効期限バケットの幅（秒）
+     */
+    public long getExpirationBucketSeconds() {
+        return expirationBucketSeconds;
+    }
+
+    /**
+     * 有効期限バケットの幅（秒）を設定する。
+     * <p/>
+     * デフォルトは3600秒（1時間）。
+     *
+     * @param expirationBucketSeconds 有効期限バケットの幅（秒）
+     */
+    public void setExpirationBucketSeconds(long expirationBucketSeconds) {
+        this.expirationBucketSeconds = expirationBucketSeconds;
+    }
+
+    /**
+     * 有効期限を有効期限バケットに変換する。
+     *
+     * @param expiration 有効期限（エポックミリ秒）
+     * @return 有効期限バケット
+     */
+    public long toExpirationBucket(long expiration) {
+        return expiration / (expirationBucketSeconds * 1000L);
+    }
+
 
 }
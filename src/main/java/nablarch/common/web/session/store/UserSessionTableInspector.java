@@ -0,0 +1,214 @@
+package nablarch.common.web.session.store;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.connection.TransactionManagerConnection;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * 起動時にユーザセッションテーブルの定義を検証し、DBアクセスをウォームアップするユーティリティ。
+ * <p/>
+ * {@link DbStore}と{@link nablarch.common.web.session.DbManagedExpiration}の初期化処理から使用する。
+ *
+ * @author TIS
+ */
+public final class UserSessionTableInspector {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(UserSessionTableInspector.class);
+
+    /**
+     * 隠蔽コンストラクタ。
+     */
+    private UserSessionTableInspector() {
+    }
+
+    /**
+     * ユーザセッションテーブルに主キーと有効期限カラムの索引が定義されていることを、
+     * {@link DatabaseMetaData}を使用して検証する。
+     * <p/>
+     * 見つからなかった定義はWARNレベルでログに出力する。
+     * コネクションから{@link DatabaseMetaData}を取得できない場合は検証を行わない。
+     *
+     * @param dbManager SimpleDbTransactionManagerのインスタンス
+     * @param schema ユーザセッションテーブルのスキーマ
+     * @return 見つからなかった定義の説明(問題がない場合は空のリスト)
+     */
+    public static List<String> validate(SimpleDbTransactionManager dbManager, final UserSessionSchema schema) {
+        final List<String> problems = new SimpleDbTransactionExecutor<List<String>>(dbManager) {
+            @Override
+            public List<String> execute(AppDbConnection connection) {
+                final List<String> result = new ArrayList<String>();
+                if (!(connection instanceof TransactionManagerConnection)) {
+                    LOGGER.logWarn("skipped user session table validation. DatabaseMetaData is not available.");
+                    return result;
+                }
+                try {
+                    final DatabaseMetaData metaData =
+                            ((TransactionManagerConnection) connection).getConnection().getMetaData();
+                    final String tableName = findTableName(metaData, schema.getTableName());
+                    if (tableName == null) {
+                        result.add("table " + schema.getTableName() + " was not found.");
+                        return result;
+                    }
+                    final Set<String> primaryKeys = getPrimaryKeyColumns(metaData, tableName);
+                    if (primaryKeys.size() != 1 || !containsIgnoreCase(primaryKeys, schema.getSessionIdName())) {
+                        result.add("primary key of " + schema.getTableName() + " must be "
+                                + schema.getSessionIdName() + ". actual = " + primaryKeys);
+                    }
+                    if (!containsIgnoreCase(getIndexLeadingColumns(metaData, tableName),
+                            schema.getExpirationDatetimeName())) {
+                        result.add("index on " + schema.getTableName() + "("
+                                + schema.getExpirationDatetimeName() + ") was not found.");
+                    }
+                } catch (SQLException e) {
+                    throw new IllegalStateException("failed to read metadata of " + schema.getTableName(), e);
+                }
+                return result;
+            }
+        }.doTransaction();
+
+        for (String problem : problems) {
+            LOGGER.logWarn("user session table validation: " + problem);
+        }
+        return problems;
+    }
+
+    /**
+     * 指定した回数だけコネクションを取得し、それぞれでSQL文を準備して返却する。
+     * <p/>
+     * SQL文の準備にかかる処理をウォームアップする。SQL文は実行しない。
+     * コネクションは1つずつ取得して返却するため、同時に保持するコネクションは1つだけとなり、
+     * 指定した回数がコネクションプールの最大数を超えても、他の処理がコネクションを待つことはない。
+     * コネクションプールによっては同じコネクションが返されるため、
+     * 事前に確立するコネクションの数はコネクションプールの初期サイズで設定すること。
+     * コネクションの取得やSQL文の準備に失敗した場合は、WARNレベルでログに出力してウォームアップを終了する。
+     *
+     * @param dbManager SimpleDbTransactionManagerのインスタンス
+     * @param connections コネクションを取得する回数
+     * @param sqls 準備するSQL文({@code null}は無視する)
+     */
+    public static void warmUp(final SimpleDbTransactionManager dbManager, int connections, final String... sqls) {
+        final int count = Math.max(1, connections);
+        for (int i = 0; i < count; i++) {
+            try {
+                new SimpleDbTransactionExecutor<Void>(dbManager) {
+                    @Override
+                    public Void execute(AppDbConnection connection) {
+                        for (String sql : sqls) {
+                            if (sql != null) {
+                                connection.prepareStatement(sql);
+                            }
+                        }
+                        return null;
+                    }
+                }.doTransaction();
+            } catch (RuntimeException e) {
+                LOGGER.logWarn("failed to warm up session store connection.", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * データベース上のテーブル名を取得する。
+     * <p/>
+     * 識別子の大文字・小文字の扱いはデータベースによって異なるため、指定された名前、大文字、小文字の順に検索する。
+     *
+     * @param metaData {@link DatabaseMetaData}
+     * @param tableName テーブル名
+     * @return データベース上のテーブル名。存在しない場合は{@code null}
+     * @throws SQLException データベースアクセスエラー
+     */
+    private static String findTableName(DatabaseMetaData metaData, String tableName) throws SQLException {
+        final Set<String> candidates = new LinkedHashSet<String>();
+        candidates.add(tableName);
+        candidates.add(tableName.toUpperCase());
+        candidates.add(tableName.toLowerCase());
+        for (String candidate : candidates) {
+            final ResultSet rs = metaData.getTables(null, null, candidate, null);
+            try {
+                if (rs.next()) {
+                    return rs.getString("TABLE_NAME");
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 主キーのカラム名を取得する。
+     *
+     * @param metaData {@link DatabaseMetaData}
+     * @param tableName データベース上のテーブル名
+     * @return 主キーのカラム名
+     * @throws SQLException データベースアクセスエラー
+     */
+    private static Set<String> getPrimaryKeyColumns(DatabaseMetaData metaData, String tableName) throws SQLException {
+        final Set<String> columns = new LinkedHashSet<String>();
+        final ResultSet rs = metaData.getPrimaryKeys(null, null, tableName);
+        try {
+            while (rs.next()) {
+                columns.add(rs.getString("COLUMN_NAME"));
+            }
+        } finally {
+            rs.close();
+        }
+        return columns;
+    }
+
+    /**
+     * 索引の先頭のカラム名を取得する。
+     * <p/>
+     * 先頭のカラム以外は範囲検索に使用できないため、対象としない。
+     *
+     * @param metaData {@link DatabaseMetaData}
+     * @param tableName データベース上のテーブル名
+     * @return 索引の先頭のカラム名
+     * @throws SQLException データベースアクセスエラー
+     */
+    private static Set<String> getIndexLeadingColumns(DatabaseMetaData metaData, String tableName)
+            throws SQLException {
+        final Set<String> columns = new LinkedHashSet<String>();
+        final ResultSet rs = metaData.getIndexInfo(null, null, tableName, false, true);
+        try {
+            while (rs.next()) {
+                final String column = rs.getString("COLUMN_NAME");
+                if (column != null && rs.getShort("ORDINAL_POSITION") == 1) {
+                    columns.add(column);
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        return columns;
+    }
+
+    /**
+     * 大文字・小文字を区別せずに、名前が含まれているかを判定する。
+     *
+     * @param names 名前
+     * @param name 判定する名前
+     * @return 含まれている場合は{@code true}
+     */
+    private static boolean containsIgnoreCase(Set<String> names, String name) {
+        for (String each : names) {
+            if (each.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,585 @@
+package nablarch.common.web.session.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nablarch.core.date.SystemTimeUtil;
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.initialization.Initializable;
+import nablarch.core.util.FileUtil;
+
+/**
+ * ユーザセッションテーブルの有効なセッションを、ファイルへエクスポート・ファイルからインポートするクラス。
+ * <p/>
+ * データベースやスキーマを移行する際に、セッションを引き継ぐために使用する。
+ * <ul>
+ * <li>エクスポートは有効期限内の行だけをカーソルで読み込み({@link #setFetchSize(int)})、
+ * 1行ずつファイルに書き出すため、全件をメモリに保持しない。</li>
+ * <li>インポートは{@link #setBatchSize(int)}件ずつバッチで登録し、バッチごとにコミットする。</li>
+ * <li>セッションIDの範囲で{@link #setParallelism(int)}個に分割し、範囲ごとに並列に処理する。
+ * 範囲ごとに1つのファイルを出力する。</li>
+ * </ul>
+ * セッションオブジェクトはデコードせず、バイト列のまま移す。
+ * セッションIDは文字列に変換してファイルに書き出すため、移行元と移行先で
+ * {@link UserSessionSchema#setBinarySessionId(boolean)}の設定が異なってもよい。
+ * 所有者IDは両方のスキーマに所有者IDカラムが設定されている場合に移し、
+ * 有効期限バケットは移行先のスキーマの設定に従って算出し直す。
+ * 移行先のスキーマにバージョンカラムが設定されている場合は、新しいバージョンを採番して登録する。
+ * (移行元のバージョンは移さないため、移行先のノードのキャッシュに残った内容が使用されることはない)
+ * <p/>
+ * {@link DbStore}の差分保存モードを使用している場合は、{@link #setSessionDeltaSchema(SessionDeltaSchema)}を設定すること。
+ * エクスポート時に差分を反映したセッションオブジェクトを書き出すため、移行先に差分テーブルの内容を移す必要はない。
+ * 設定しない場合は差分が反映されず、差分を保存した後の内容が失われる。
+ * <p/>
+ * {@link SessionOverflowStore}や共有値テーブルを参照する形式のセッションオブジェクトは、
+ * 参照先を移さないと復元できないため、エクスポート時に見つかった場合は例外を送出する。
+ * これらの機能を使用している場合は、機能の使用を止めて全てのセッションが保存し直された後に移行すること。
+ * コールドテーブルに退避されたセッションは移さない。
+ * インポート先のテーブルに同じセッションIDの行がある場合は、一意制約違反となる。
+ *
+ * @author TIS
+ */
+public class UserSessionTransfer implements Initializable {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(UserSessionTransfer.class);
+
+    /** ファイルの先頭に付与するヘッダ */
+    private static final byte[] FILE_HEADER = {(byte) 0xFF, (byte) 0xFA, 'U', 'S'};
+
+    /** ファイル名の接頭辞 */
+    private static final String FILE_PREFIX = "user-session-";
+
+    /** ファイル名の接尾辞 */
+    private static final String FILE_SUFFIX = ".dat";
+
+    /** SimpleDbTransactionManagerのインスタンス */
+    private SimpleDbTransactionManager dbManager;
+
+    /** ユーザセッションテーブルのスキーマ */
+    private UserSessionSchema userSessionSchema;
+
+    /** エクスポート時のフェッチサイズ */
+    private int fetchSize = 1000;
+
+    /** インポート時のバッチサイズ */
+    private int batchSize = 500;
+
+    /** 並列数 */
+    private int parallelism = 1;
+
+    /** セッション差分テーブルのスキーマ(差分保存モードを使用しない場合は{@code null}) */
+    private SessionDeltaSchema sessionDeltaSchema;
+
+    /** 有効なセッションを取得するSQL(セッションIDの範囲の条件を除く) */
+    private String selectLiveSql;
+
+    /** セッションの差分を取得するSQL */
+    private String selectDeltaSql;
+
+    /** セッションを登録するSQL */
+    private String insertSql;
+
+    /**
+     * DbManagerのインスタンスをセットする。
+     *
+     * @param dbManager SimpleDbTransactionManagerのインスタンス
+     */
+    public void setDbManager(SimpleDbTransactionManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * ユーザセッションテーブルのスキーマをセットする。
+     *
+     * @param userSessionSchema ユーザセッションテーブルのスキーマ
+     */
+    public void setUserSessionSchema(UserSessionSchema userSessionSchema) {
+        this.userSessionSchema = userSessionSchema;
+    }
+
+    /**
+     * エクスポート時のフェッチサイズをセットする。
+     * <p/>
+     * デフォルトは1000。
+     *
+     * @param fetchSize エクスポート時のフェッチサイズ
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * インポート時のバッチサイズをセットする。
+     * <p/>
+     * デフォルトは500。
+     *
+     * @param batchSize インポート時のバッチサイズ
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 並列数をセットする。
+     * <p/>
+     * エクスポートでは、UUID形式のセッションIDの先頭1バイトの値でセッションIDの範囲を等分し、範囲ごとに並列に読み込む。
+     * (UUID形式でないセッションIDも、いずれかの範囲に含まれる)
+     * インポートでは、ファイルごとに並列に登録する。
+     * デフォルトは1(分割しない)。
+     *
+     * @param parallelism 並列数(1以上256以下)
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * {@link DbStore#setSessionDeltaSchema(SessionDeltaSchema)}に設定したセッション差分テーブルのスキーマをセットする。
+     * <p/>
+     * 設定した場合、エクスポート時にセッションの差分を反映したセッションオブジェクトを書き出す。
+     *
+     * @param sessionDeltaSchema セッション差分テーブルのスキーマ
+     */
+    public void setSessionDeltaSchema(SessionDeltaSchema sessionDeltaSchema) {
+        this.sessionDeltaSchema = sessionDeltaSchema;
+    }
+
+    /**
+     * 有効なセッションを指定したディレクトリにエクスポートする。
+     *
+     * @param directory 出力先のディレクトリ
+     * @return エクスポートした件数
+     * @throws IllegalStateException 他のテーブルやファイルを参照する形式のセッションオブジェクトが見つかった場合
+     */
+    public long exportTo(final File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("failed to create directory. directory = " + directory.getAbsolutePath());
+        }
+        final long now = SystemTimeUtil.getTimestamp().getTime();
+        final List<String> boundaries = createBoundaries();
+        final List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < parallelism; i++) {
+            final String lower = i == 0 ? null : boundaries.get(i - 1);
+            final String upper = i == parallelism - 1 ? null : boundaries.get(i);
+            final File file = new File(directory, String.format("%s%03d%s", FILE_PREFIX, i, FILE_SUFFIX));
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return exportRange(lower, upper, now, file);
+                }
+            });
+        }
+        final long count = runAll(tasks);
+        LOGGER.logInfo("exported user sessions. count = " + count + ", directory = " + directory.getAbsolutePath());
+        return count;
+    }
+
+    /**
+     * 指定したディレクトリにエクスポートしたセッションをインポートする。
+     *
+     * @param directory エクスポートしたディレクトリ
+     * @return インポートした件数
+     */
+    public long importFrom(final File directory) {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IllegalStateException("directory was not found. directory = " + directory.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        final List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (final File file : files) {
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return importFile(file);
+                }
+            });
+        }
+        final long count = runAll(tasks);
+        LOGGER.logInfo("imported user sessions. count = " + count + ", directory = " + directory.getAbsolutePath());
+        return count;
+    }
+
+    /**
+     * セッションIDの範囲の有効なセッションをファイルに書き出す。
+     *
+     * @param lower 範囲の下限(この値を含む。下限がない場合は{@code null})
+     * @param upper 範囲の上限(この値を含まない。上限がない場合は{@code null})
+     * @param now 現在日時
+     * @param file 出力先のファイル
+     * @return 書き出した件数
+     */
+    private long exportRange(final String lower, final String upper, final long now, final File file) {
+        final String sql = selectLiveSql
+                + (lower == null ? "" : " AND " + userSessionSchema.getSessionIdName() + " >= ?")
+                + (upper == null ? "" : " AND " + userSessionSchema.getSessionIdName() + " < ?");
+        final boolean hasOwner = userSessionSchema.getOwnerIdName() != null;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.write(FILE_HEADER);
+            final DataOutputStream output = out;
+            final long count = new SimpleDbTransactionExecutor<Long>(dbManager) {
+                @Override
+                public Long execute(AppDbConnection connection) {
+                    final SqlPStatement select = connection.prepareStatement(sql);
+                    select.setFetchSize(fetchSize);
+                    int index = 1;
+                    select.setTimestamp(index++, new Timestamp(now));
+                    if (lower != null) {
+                        SessionIdKey.of(lower, userSessionSchema).bind(select, index++);
+                    }
+                    if (upper != null) {
+                        SessionIdKey.of(upper, userSessionSchema).bind(select, index);
+                    }
+                    final SqlPStatement selectDelta = selectDeltaSql == null
+                            ? null
+                            : connection.prepareStatement(selectDeltaSql);
+                    final ResultSetIterator rows = select.executeQuery();
+                    long written = 0;
+                    try {
+                        while (rows.next()) {
+                            final String sessionId = readSessionId(rows);
+                            writeRecord(output, sessionId, rows.getTimestamp(3).getTime(),
+                                    hasOwner ? rows.getString(4) : null,
+                                    resolveSessionObject(sessionId, rows.getBytes(2), selectDelta));
+                            written++;
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException("failed to write user sessions. file = "
+                                + file.getAbsolutePath(), e);
+                    } finally {
+                        rows.close();
+                    }
+                    return written;
+                }
+            }.doTransaction();
+            out.writeBoolean(false);
+            out.flush();
+            return count;
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write user sessions. file = " + file.getAbsolutePath(), e);
+        } finally {
+            FileUtil.closeQuietly(out);
+        }
+    }
+
+    /**
+     * エクスポートするセッションオブジェクトを取得する。
+     * <p/>
+     * 差分保存モードの場合は、{@link DbStore}での読み込みと同様に差分を順に反映する。
+     * (反映できない差分があった場合は、それ以降の差分を反映しない)
+     *
+     * @param sessionId セッションID
+     * @param storedObject ユーザセッションテーブルのセッションオブジェクト
+     * @param selectDelta セッションの差分を取得する{@link SqlPStatement}(差分保存モードでない場合は{@code null})
+     * @return エクスポートするセッションオブジェクト
+     * @throws IllegalStateException 他のテーブルやファイルを参照する形式の場合
+     */
+    private static byte[] resolveSessionObject(String sessionId, byte[] storedObject, SqlPStatement selectDelta) {
+        final String format = DbStore.referencingFormatOf(storedObject);
+        if (format != null) {
+            throw new IllegalStateException("session object of " + format + " format cannot be exported."
+                    + " session id hash = " + SlowOperationLogger.hash(sessionId));
+        }
+        if (selectDelta == null) {
+            return storedObject;
+        }
+        selectDelta.setString(1, sessionId);
+        final ResultSetIterator deltas = selectDelta.executeQuery();
+        byte[] current = storedObject;
+        try {
+            while (deltas.next()) {
+                final byte[] applied = BinaryDelta.apply(current, deltas.getBytes(1));
+                if (applied == null) {
+                    break;
+                }
+                current = applied;
+            }
+        } finally {
+            deltas.close();
+        }
+        return current;
+    }
+
+    /**
+     * ファイルのセッションを登録する。
+     *
+     * @param file エクスポートしたファイル
+     * @return 登録した件数
+     */
+    private long importFile(final File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final byte[] header = new byte[FILE_HEADER.length];
+            in.readFully(header);
+            if (!Arrays.equals(header, FILE_HEADER)) {
+                throw new IllegalStateException("not an exported user session file. file = " + file.getAbsolutePath());
+            }
+            long count = 0;
+            final List<Record> batch = new ArrayList<Record>(batchSize);
+            while (in.readBoolean()) {
+                batch.add(readRecord(in));
+                if (batch.size() >= batchSize) {
+                    count += insertBatch(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                count += insertBatch(batch);
+            }
+            return count;
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read user sessions. file = " + file.getAbsolutePath(), e);
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * セッションをバッチで登録し、コミットする。
+     *
+     * @param batch 登録するセッション
+     * @return 登録した件数
+     */
+    private int insertBatch(final List<Record> batch) {
+        final String bucketName = userSessionSchema.getExpirationBucketName();
+        final String ownerIdName = userSessionSchema.getOwnerIdName();
+        final String versionName = userSessionSchema.getVersionName();
+        new SimpleDbTransactionExecutor<Void>(dbManager) {
+            @Override
+            public Void execute(AppDbConnection connection) {
+                final SqlPStatement insert = connection.prepareStatement(insertSql);
+                for (Record record : batch) {
+                    SessionIdKey.of(record.sessionId, userSessionSchema).bind(insert, 1);
+                    insert.setBytes(2, record.sessionObject);
+                    insert.setTimestamp(3, new Timestamp(record.expiration));
+                    int index = 4;
+                    if (bucketName != null) {
+                        insert.setLong(index++, userSessionSchema.toExpirationBucket(record.expiration));
+                    }
+                    if (ownerIdName != null) {
+                        insert.setString(index++, record.ownerId);
+                    }
+                    if (versionName != null) {
+                        insert.setLong(index, DbStore.newVersion());
+                    }
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                return null;
+            }
+        }.doTransaction();
+        return batch.size();
+    }
+
+    /**
+     * 1件のセッションを書き出す。
+     * <p/>
+     * 形式は、レコードの有無(boolean)、セッションID、有効期限、所有者IDの有無と所有者ID、
+     * セッションオブジェクトのバイト数とセッションオブジェクト。
+     *
+     * @param out 出力先
+     * @param sessionId セッションID
+     * @param expiration 有効期限
+     * @param ownerId 所有者ID
+     * @param sessionObject セッションオブジェクト
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private static void writeRecord(DataOutputStream out, String sessionId, long expiration, String ownerId,
+            byte[] sessionObject) throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(sessionId);
+        out.writeLong(expiration);
+        out.writeBoolean(ownerId != null);
+        if (ownerId != null) {
+            out.writeUTF(ownerId);
+        }
+        out.writeInt(sessionObject.length);
+        out.write(sessionObject);
+    }
+
+    /**
+     * 1件のセッションを読み込む。
+     *
+     * @param in 入力元
+     * @return セッション
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        final String sessionId = in.readUTF();
+        final long expiration = in.readLong();
+        final String ownerId = in.readBoolean() ? in.readUTF() : null;
+        final byte[] sessionObject = new byte[in.readInt()];
+        in.readFully(sessionObject);
+        return new Record(sessionId, expiration, ownerId, sessionObject);
+    }
+
+    /**
+     * 検索結果からセッションIDを取得する。
+     *
+     * @param rows 検索結果
+     * @return セッションID
+     */
+    private String readSessionId(ResultSetIterator rows) {
+        return userSessionSchema.isBinarySessionId()
+                ? SessionIdKey.toSessionId(rows.getBytes(1))
+                : rows.getString(1);
+    }
+
+    /**
+     * セッションIDの範囲の境界を生成する。
+     *
+     * @return 境界(並列数-1個)
+     */
+    private List<String> createBoundaries() {
+        final List<String> boundaries = new ArrayList<String>();
+        for (int i = 1; i < parallelism; i++) {
+            boundaries.add(String.format("%02x000000-0000-0000-0000-000000000000", i * 256 / parallelism));
+        }
+        return boundaries;
+    }
+
+    /**
+     * タスクを並列に実行し、結果の合計を返す。
+     *
+     * @param tasks タスク
+     * @return 結果の合計
+     */
+    private long runAll(List<Callable<Long>> tasks) {
+        if (tasks.isEmpty()) {
+            return 0L;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            final List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (Callable<Long> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            long total = 0;
+            for (Future<Long> future : futures) {
+                total += future.get();
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 初期化処理。
+     */
+    @Override
+    public void initialize() {
+        if (parallelism < 1 || parallelism > 256) {
+            throw new IllegalArgumentException("parallelism must be between 1 and 256. parallelism = " + parallelism);
+        }
+        if (userSessionSchema == null) {
+            // デフォルトのユーザセッションスキーマをセットする
+            userSessionSchema = new UserSessionSchema();
+            userSessionSchema.setTableName("USER_SESSION");
+            userSessionSchema.setSessionIdName("SESSION_ID");
+            userSessionSchema.setSessionObjectName("SESSION_OBJECT");
+            userSessionSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        }
+        final String bucketName = userSessionSchema.getExpirationBucketName();
+        final String ownerIdName = userSessionSchema.getOwnerIdName();
+        final String versionName = userSessionSchema.getVersionName();
+        selectLiveSql = "SELECT " + userSessionSchema.getSessionIdName() + ", "
+                + userSessionSchema.getSessionObjectName() + ", "
+                + userSessionSchema.getExpirationDatetimeName()
+                + (ownerIdName == null ? "" : ", " + ownerIdName)
+                + " FROM " + userSessionSchema.getTableName()
+                + " WHERE " + userSessionSchema.getExpirationDatetimeName() + " >= ?";
+        insertSql = "INSERT INTO " + userSessionSchema.getTableName() + " ("
+                + userSessionSchema.getSessionIdName() + ", "
+                + userSessionSchema.getSessionObjectName() + ", "
+                + userSessionSchema.getExpirationDatetimeName()
+                + (bucketName == null ? "" : ", " + bucketName)
+                + (ownerIdName == null ? "" : ", " + ownerIdName)
+                + (versionName == null ? "" : ", " + versionName)
+                + ") VALUES (?, ?, ?"
+                + (bucketName == null ? "" : ", ?")
+                + (ownerIdName == null ? "" : ", ?")
+                + (versionName == null ? "" : ", ?")
+                + ")";
+        selectDeltaSql = sessionDeltaSchema == null ? null : "SELECT " + sessionDeltaSchema.getDeltaObjectName()
+                + " FROM " + sessionDeltaSchema.getTableName()
+                + " WHERE " + sessionDeltaSchema.getSessionIdName() + " = ?"
+                + " ORDER BY " + sessionDeltaSchema.getSequenceName();
+    }
+
+    /**
+     * ファイルから読み込んだ1件のセッション。
+     */
+    private static final class Record {
+
+        /** セッションID */
+        private final String sessionId;
+
+        /** 有効期限 */
+        private final long expiration;
+
+        /** 所有者ID */
+        private final String ownerId;
+
+        /** セッションオブジェクト */
+        private final byte[] sessionObject;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param sessionId セッションID
+         * @param expiration 有効期限
+         * @param ownerId 所有者ID
+         * @param sessionObject セッションオブジェクト
+         */
+        private Record(String sessionId, long expiration, String ownerId, byte[] sessionObject) {
+            this.sessionId = sessionId;
+            this.expiration = expiration;
+            this.ownerId = ownerId;
+            this.sessionObject = sessionObject;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package nablarch.common.web.session.store;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 保持する値の重み(バイト数など)の合計で上限を設けたLRUキャッシュ。
+ * <p/>
+ * 重みの合計が上限を超えた場合は、最も長い間参照されていない値から破棄する。
+ * スレッドセーフである。
+ *
+ * @param <V> 値の型
+ * @author TIS
+ */
+final class WeightedLruCache<V> {
+
+    /** 値と重み */
+    private final LinkedHashMap<String, Weighted<V>> entries =
+            new LinkedHashMap<String, Weighted<V>>(16, 0.75f, true);
+
+    /** 重みの合計の上限 */
+    private final long maxWeight;
+
+    /** 重みの合計 */
+    private long totalWeight;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param maxWeight 重みの合計の上限
+     */
+    WeightedLruCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * 値を取得する。
+     *
+     * @param key キー
+     * @return 値。存在しない場合は{@code null}
+     */
+    synchronized V get(String key) {
+        final Weighted<V> weighted = entries.get(key);
+        return weighted == null ? null : weighted.value;
+    }
+
+    /**
+     * 値を格納する。
+     * <p/>
+     * 重みが上限を超える値は格納しない(同じキーの値は破棄する)。
+     *
+     * @param key キー
+     * @param value 値
+     * @param weight 重み
+     */
+    synchronized void put(String key, V value, long weight) {
+        remove(key);
+        if (weight > maxWeight) {
+            return;
+        }
+        entries.put(key, new Weighted<V>(value, weight));
+        totalWeight += weight;
+        final Iterator<Map.Entry<String, Weighted<V>>> iterator = entries.entrySet().iterator();
+        while (totalWeight > maxWeight && iterator.hasNext()) {
+            totalWeight -= iterator.next().getValue().weight;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 値を破棄する。
+     *
+     * @param key キー
+     */
+    synchronized void remove(String key) {
+        final Weighted<V> removed = entries.remove(key);
+        if (removed != null) {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    /**
+     * 全ての値を破棄する。
+     */
+    synchronized void clear() {
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    /**
+     * 重みの合計を取得する。
+     *
+     * @return 重みの合計
+     */
+    synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * 値と重みの組。
+     *
+     * @param <V> 値の型
+     */
+    private static final class Weighted<V> {
+
+        /** 値 */
+        private final V value;
+
+        /** 重み */
+        private final long weight;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param value 値
+         * @param weight 重み
+         */
+        private Weighted(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
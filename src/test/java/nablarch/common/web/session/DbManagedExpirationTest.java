@@ -1,7 +1,14 @@
 package nablarch.common.web.session;
 
+import mockit.Invocation;
+import mockit.Mock;
+import mockit.MockUp;
 import nablarch.common.web.session.store.ChangeUserSession;
 import nablarch.common.web.session.store.UserSession;
+import nablarch.common.web.session.store.UserSessionSchema;
+import nablarch.core.db.statement.BasicSqlPStatement;
+import nablarch.core.db.statement.exception.DuplicateStatementException;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
 import nablarch.fw.ExecutionContext;
 import nablarch.test.support.SystemRepositoryResource;
 import nablarch.test.support.db.helper.DatabaseTestRunner;
@@ -11,13 +18,16 @@ import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.sql.SQLException;
 import java.sql.Timestamp;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * {@link DbManagedExpiration}のテスト。
@@ -172,4 +182,101 @@ public class DbManagedExpirationTest {
         DbManagedExpiration expiration = repositoryResource.getComponent(DEFAULT_SCHEMA_COMPONENT);
         assertFalse(expiration.isDeterminable(SESSION_ID, unused));
     }
+
+    /**
+     * データベースの時計を使用する場合、引数の現在日時ではなくデータベースの現在日時で有効期限切れを判定し、
+     * 有効期限はデータベースの現在日時に残りの有効期間を加算した値で保存されること。
+     */
+    @Test
+    public void testDatabaseClock() {
+        VariousDbTestHelper.setUpTable(new UserSession(SESSION_ID, null, BASE_TIMESTAMP));
+
+        DbManagedExpiration expiration = repositoryResource.getComponent("databaseClock");
+        assertTrue("データベースの現在日時で判定されること", expiration.isExpired(SESSION_ID, 0, unused));
+
+        final long now = System.currentTimeMillis();
+        expiration.saveExpirationDateTime(SESSION_ID, now + 1800000L, unused);
+        final long saved = VariousDbTestHelper.findById(UserSession.class, SESSION_ID).expirationDatetime.getTime();
+        assertTrue(String.valueOf(saved - now), Math.abs(saved - (now + 1800000L)) < 10000L);
+        assertFalse(expiration.isExpired(SESSION_ID, Long.MAX_VALUE, unused));
+        assertTrue(expiration.isDeterminable(SESSION_ID, unused));
+    }
+
+    /**
+     * 新規のセッションの登録が一意制約違反となった場合、1回だけリトライして保存され、リトライ回数が記録されること。
+     * <p/>
+     * 他のスレッドが同時に登録した状況を再現するため、最初の登録(2回目の更新系SQL)だけ一意制約違反とする。
+     */
+    @Test
+    public void testSaveExpirationDateTimeRetriesOnDuplicate() {
+        DbManagedExpiration expiration = repositoryResource.getComponent(DEFAULT_SCHEMA_COMPONENT);
+        final long retriesBefore = expiration.getDuplicateRetryCount();
+        failInsertsOnDuplicate(1);
+
+        expiration.saveExpirationDateTime(SESSION_ID, 1000, unused);
+        assertThat(VariousDbTestHelper.findById(UserSession.class, SESSION_ID).expirationDatetime,
+                is(new Timestamp(1000)));
+        assertThat(expiration.getDuplicateRetryCount() - retriesBefore, is(1L));
+    }
+
+    /**
+     * リトライでも一意制約違反となった場合は、例外が送出されること。
+     */
+    @Test
+    public void testSaveExpirationDateTimeRetriesOnlyOnce() {
+        DbManagedExpiration expiration = repositoryResource.getComponent(DEFAULT_SCHEMA_COMPONENT);
+        final long retriesBefore = expiration.getDuplicateRetryCount();
+        failInsertsOnDuplicate(2);
+
+        try {
+            expiration.saveExpirationDateTime(SESSION_ID, 1000, unused);
+            fail("リトライは1回だけであること");
+        } catch (DuplicateStatementException e) {
+            assertThat(expiration.getDuplicateRetryCount() - retriesBefore, is(1L));
+        }
+        assertNull(VariousDbTestHelper.findById(UserSession.class, SESSION_ID));
+    }
+
+    /**
+     * セッションIDをバイナリで保存する設定で、UUID形式でないセッションIDの有効期限を保存しようとした場合、
+     * 例外とならずに何も保存されないこと。
+     */
+    @Test
+    public void testSaveExpirationDateTimeWithInvalidBinarySessionId() {
+        final UserSessionSchema schema = new UserSessionSchema();
+        schema.setTableName("USER_SESSION");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSessionObjectName("SESSION_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        schema.setBinarySessionId(true);
+        final DbManagedExpiration expiration = new DbManagedExpiration();
+        expiration.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        expiration.setUserSessionSchema(schema);
+        expiration.initialize();
+
+        expiration.saveExpirationDateTime("not-a-uuid", 1000, unused);
+        assertThat(VariousDbTestHelper.findAll(UserSession.class).size(), is(0));
+        assertTrue(expiration.isExpired("not-a-uuid", 0, unused));
+        assertFalse(expiration.isDeterminable("not-a-uuid", unused));
+    }
+
+    /**
+     * 更新系SQLのうち、更新(奇数回目)の後に行う登録(偶数回目)を、指定した回数だけ一意制約違反とする。
+     *
+     * @param failures 一意制約違反とする回数
+     */
+    private static void failInsertsOnDuplicate(final int failures) {
+        new MockUp<BasicSqlPStatement>() {
+            private int calls;
+
+            @Mock
+            public int executeUpdate(Invocation invocation) {
+                calls++;
+                if (calls % 2 == 0 && calls / 2 <= failures) {
+                    throw new DuplicateStatementException("duplicate", new SQLException("duplicate", "23505"));
+                }
+                return invocation.<Integer>proceed();
+            }
+        };
+    }
 }
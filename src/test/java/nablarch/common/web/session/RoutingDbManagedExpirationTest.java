@@ -0,0 +1,206 @@
+package nablarch.common.web.session;
+
+import nablarch.common.web.session.store.ChangeUserSession;
+import nablarch.common.web.session.store.DatabaseClock;
+import nablarch.common.web.session.store.DbAccessLimiter;
+import nablarch.common.web.session.store.RequestAttributeStorageResolver;
+import nablarch.common.web.session.store.SessionChangeLogSchema;
+import nablarch.common.web.session.store.SessionIdFilter;
+import nablarch.common.web.session.store.SessionStorageRoute;
+import nablarch.common.web.session.store.SlowOperationLogger;
+import nablarch.common.web.session.store.UserSession;
+import nablarch.common.web.session.store.UserSessionChangeLog;
+import nablarch.common.web.session.store.UserSessionSchema;
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link RoutingDbManagedExpiration}のテスト。
+ *
+ * @author TIS
+ */
+@RunWith(DatabaseTestRunner.class)
+public class RoutingDbManagedExpirationTest {
+
+    @ClassRule
+    public static SystemRepositoryResource repositoryResource = new SystemRepositoryResource(
+            "nablarch/common/web/session/store/db-store-test.xml");
+
+    private static final String SESSION_ID = "sessionId";
+
+    @Before
+    public void setUp() {
+        VariousDbTestHelper.createTable(UserSession.class);
+        VariousDbTestHelper.createTable(ChangeUserSession.class);
+    }
+
+    /**
+     * 実行コンテキストから決定した保存先のテーブルが使用され、
+     * 保存先でも変更ログが記録されること。
+     */
+    @Test
+    public void testRoute() {
+        VariousDbTestHelper.createTable(UserSessionChangeLog.class);
+        new SimpleDbTransactionExecutor<Void>(getDbManager()) {
+            @Override
+            public Void execute(AppDbConnection connection) {
+                connection.prepareStatement("CREATE SEQUENCE IF NOT EXISTS USER_SESSION_CHANGE_SEQ").executeUpdate();
+                return null;
+            }
+        }.doTransaction();
+        final SessionChangeLogSchema changeLogSchema = new SessionChangeLogSchema();
+        changeLogSchema.setTableName("USER_SESSION_CHANGE_LOG");
+        changeLogSchema.setSequenceName("CHANGE_SEQ");
+        changeLogSchema.setSessionIdName("SESSION_ID");
+        changeLogSchema.setChangeTypeName("CHANGE_TYPE");
+        changeLogSchema.setChangedAtName("CHANGED_AT");
+        changeLogSchema.setSequenceExpression("NEXT VALUE FOR USER_SESSION_CHANGE_SEQ");
+
+        final DbManagedExpiration defaultExpiration = createExpiration();
+        defaultExpiration.setChangeLogSchema(changeLogSchema);
+        defaultExpiration.initialize();
+        final RoutingDbManagedExpiration expiration = createRoutingExpiration(defaultExpiration);
+        final ExecutionContext tenantCtx = new ExecutionContext();
+        tenantCtx.setRequestScopedVar("tenantId", "tenantA");
+
+        expiration.saveExpirationDateTime(SESSION_ID, 1000, tenantCtx);
+        final ChangeUserSession saved = VariousDbTestHelper.findById(ChangeUserSession.class, SESSION_ID);
+        assertNotNull(saved);
+        assertThat(saved.expirationDatetime, is(new Timestamp(1000)));
+        assertNull("既定の保存先には保存されないこと", VariousDbTestHelper.findById(UserSession.class, SESSION_ID));
+        assertThat("保存先でも変更ログが記録されること",
+                VariousDbTestHelper.findAll(UserSessionChangeLog.class).size(), is(1));
+
+        assertFalse(expiration.isExpired(SESSION_ID, 0, tenantCtx));
+        assertTrue(expiration.isDeterminable(SESSION_ID, tenantCtx));
+        assertFalse("既定の保存先では判定できないこと", expiration.isDeterminable(SESSION_ID, new ExecutionContext()));
+    }
+
+    /**
+     * 保存先ごとの{@link DbManagedExpiration}には、既定の保存先の設定が全て引き継がれること。
+     * <p/>
+     * 既定の保存先には全ての設定をデフォルトと異なる値で設定し、
+     * 設定を追加した際に引き継ぎ漏れがあれば失敗するよう、セッターに対応するフィールドを全て比較する。
+     */
+    @Test
+    public void testCopiesAllSettings() throws Exception {
+        final DatabaseClock clock = new DatabaseClock();
+        clock.setDialect("h2");
+        final DbManagedExpiration defaultExpiration = createExpiration();
+        defaultExpiration.setDbAccessLimiter(new DbAccessLimiter());
+        defaultExpiration.setValidateSchema(true);
+        defaultExpiration.setDatabaseClock(clock);
+        defaultExpiration.setSlowOperationLogger(new SlowOperationLogger());
+        defaultExpiration.setChangeLogSchema(new SessionChangeLogSchema());
+        defaultExpiration.initialize();
+        final ExecutionContext tenantCtx = new ExecutionContext();
+        tenantCtx.setRequestScopedVar("tenantId", "tenantA");
+        final DbManagedExpiration routed = createRoutingExpiration(defaultExpiration).getExpiration(tenantCtx);
+
+        final List<String> notCopied = Arrays.asList(
+                "dbManager", "userSessionSchema", "sessionIdFilter", "warmUpConnections");
+        final DbManagedExpiration unconfigured = new DbManagedExpiration();
+        for (Method setter : DbManagedExpiration.class.getDeclaredMethods()) {
+            if (!setter.getName().startsWith("set") || !Modifier.isPublic(setter.getModifiers())) {
+                continue;
+            }
+            final String name = Character.toLowerCase(setter.getName().charAt(3)) + setter.getName().substring(4);
+            if (notCopied.contains(name)) {
+                continue;
+            }
+            final Field field = DbManagedExpiration.class.getDeclaredField(name);
+            field.setAccessible(true);
+            assertThat("デフォルトと異なる値を設定していること: " + name,
+                    field.get(defaultExpiration).equals(field.get(unconfigured)), is(false));
+            assertThat("設定が引き継がれること: " + name, field.get(routed), is(field.get(defaultExpiration)));
+        }
+    }
+
+    /**
+     * 既定の保存先に{@link SessionIdFilter}が設定されている場合、初期化時に例外が送出されること。
+     */
+    @Test
+    public void testSessionIdFilter() {
+        final DbManagedExpiration defaultExpiration = createExpiration();
+        defaultExpiration.setSessionIdFilter(new SessionIdFilter());
+        final RoutingDbManagedExpiration expiration = new RoutingDbManagedExpiration();
+        expiration.setDefaultExpiration(defaultExpiration);
+        expiration.setStorageResolver(new RequestAttributeStorageResolver());
+        try {
+            expiration.initialize();
+            fail("保存先ごとに使用できない設定の場合は例外が送出されること");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("sessionIdFilter cannot be used with storageResolver."));
+        }
+    }
+
+    /**
+     * テスト用のデータベースを使用する、初期化していない{@link DbManagedExpiration}を生成する。
+     *
+     * @return {@link DbManagedExpiration}
+     */
+    private DbManagedExpiration createExpiration() {
+        final DbManagedExpiration expiration = new DbManagedExpiration();
+        expiration.setDbManager(getDbManager());
+        return expiration;
+    }
+
+    /**
+     * "tenantId"が"tenantA"の場合に{@link ChangeUserSession}のテーブルを使用する、
+     * {@link RoutingDbManagedExpiration}を生成する。
+     *
+     * @param defaultExpiration 既定の保存先
+     * @return {@link RoutingDbManagedExpiration}
+     */
+    private RoutingDbManagedExpiration createRoutingExpiration(DbManagedExpiration defaultExpiration) {
+        final UserSessionSchema tenantSchema = new UserSessionSchema();
+        tenantSchema.setTableName("USER_SESSION_DB");
+        tenantSchema.setSessionIdName("SESSION_ID_COL");
+        tenantSchema.setExpirationDatetimeName("EXPIRATION_DATETIME_COL");
+        final SessionStorageRoute tenantRoute = new SessionStorageRoute();
+        tenantRoute.setUserSessionSchema(tenantSchema);
+        final RequestAttributeStorageResolver resolver = new RequestAttributeStorageResolver();
+        resolver.setAttributeName("tenantId");
+        resolver.setRoutes(Collections.singletonMap("tenantA", tenantRoute));
+
+        final RoutingDbManagedExpiration expiration = new RoutingDbManagedExpiration();
+        expiration.setDefaultExpiration(defaultExpiration);
+        expiration.setStorageResolver(resolver);
+        expiration.initialize();
+        return expiration;
+    }
+
+    /**
+     * テスト用のデータベースの{@link SimpleDbTransactionManager}を取得する。
+     *
+     * @return {@link SimpleDbTransactionManager}
+     */
+    private static SimpleDbTransactionManager getDbManager() {
+        return repositoryResource.getComponent("transaction");
+    }
+}
@@ -0,0 +1,59 @@
+package nablarch.common.web.session.store;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link BinaryDelta}のテスト。
+ *
+ * @author TIS
+ */
+public class BinaryDeltaTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * 差分を適用すると変更後のバイト列が復元されること。
+     */
+    @Test
+    public void testDiffAndApply() {
+        assertRoundTrip("0123456789", "0123abc6789");
+        assertRoundTrip("0123456789", "01236789");
+        assertRoundTrip("0123456789", "0123456789");
+        assertRoundTrip("", "0123");
+        assertRoundTrip("0123", "");
+        assertRoundTrip("aaaa", "aaaaaa");
+    }
+
+    /**
+     * 差分は変更された部分だけを保持すること。
+     */
+    @Test
+    public void testDeltaContainsChangedPartOnly() {
+        final byte[] base = new byte[10000];
+        final byte[] target = base.clone();
+        target[5000] = 1;
+        assertTrue(BinaryDelta.diff(base, target).length < 32);
+    }
+
+    /**
+     * 作成元と異なるバイト列には適用されないこと。
+     */
+    @Test
+    public void testApplyToAnotherBase() {
+        final byte[] delta = BinaryDelta.diff("0123456789".getBytes(UTF8), "0123abc6789".getBytes(UTF8));
+        assertThat(BinaryDelta.apply("0123456780".getBytes(UTF8), delta), is(nullValue()));
+        assertThat(BinaryDelta.apply("012345678".getBytes(UTF8), delta), is(nullValue()));
+    }
+
+    private static void assertRoundTrip(String base, String target) {
+        final byte[] delta = BinaryDelta.diff(base.getBytes(UTF8), target.getBytes(UTF8));
+        assertThat(new String(BinaryDelta.apply(base.getBytes(UTF8), delta), UTF8), is(target));
+    }
+}
@@ -0,0 +1,41 @@
+package nablarch.common.web.session.store;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * 有効期限バケットを持つユーザセッションテーブル
+ *
+ */
+@Entity
+@Table(name = "USER_SESSION_BUCKETED")
+public class BucketedUserSession {
+
+    public BucketedUserSession() {
+    };
+
+    public BucketedUserSession(String sessionId, Timestamp expirationDatetime, Long expirationBucket) {
+        this.sessionId = sessionId;
+        this.expirationDatetime = expirationDatetime;
+        this.expirationBucket = expirationBucket;
+    }
+
+    @Id
+    @Column(name = "SESSION_ID", nullable = false)
+    public String sessionId;
+
+    @Lob
+    @Column(name = "SESSION_OBJECT")
+    public byte[] sessionObject;
+
+    @Column(name = "EXPIRATION_DATETIME")
+    public Timestamp expirationDatetime;
+
+    @Column(name = "EXPIRATION_BUCKET")
+    public Long expirationBucket;
+}
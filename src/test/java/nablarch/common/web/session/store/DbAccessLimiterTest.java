@@ -0,0 +1,121 @@
+package nablarch.common.web.session.store;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link DbAccessLimiter}のテスト。
+ *
+ * @author TIS
+ */
+public class DbAccessLimiterTest {
+
+    /**
+     * 上限に達していない場合、トランザクションが実行され結果が返されること。
+     */
+    @Test
+    public void testDoTransaction() {
+        final DbAccessLimiter sut = new DbAccessLimiter();
+        sut.setMaxConcurrency(1);
+
+        final String actual = sut.doTransaction(new StubExecutor<String>() {
+            @Override
+            public String doTransaction() {
+                return "result";
+            }
+        });
+        assertThat(actual, is("result"));
+        assertThat(sut.getActiveCount(), is(0));
+        assertThat(sut.getRejectedCount(), is(0L));
+    }
+
+    /**
+     * 上限に達している状態で待ち時間を過ぎた場合、例外が送出され打ち切り件数がカウントされること。
+     */
+    @Test
+    public void testRejected() throws Exception {
+        final DbAccessLimiter sut = new DbAccessLimiter();
+        sut.setMaxConcurrency(1);
+        sut.setQueueTimeoutMillis(10);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Void> future = executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sut.doTransaction(new StubExecutor<Void>() {
+                        @Override
+                        public Void doTransaction() {
+                            started.countDown();
+                            try {
+                                release.await(5, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }, null);
+            started.await(5, TimeUnit.SECONDS);
+            assertThat(sut.getActiveCount(), is(1));
+
+            try {
+                sut.doTransaction(new StubExecutor<Void>());
+                fail("上限に達しているので例外が発生すること");
+            } catch (DbAccessLimitExceededException e) {
+                assertThat(sut.getRejectedCount(), is(1L));
+                assertThat(sut.getQueueDepth(), is(0));
+            }
+
+            release.countDown();
+            future.get(5, TimeUnit.SECONDS);
+            assertThat(sut.getActiveCount(), is(0));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * 同時実行数に0以下を設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxConcurrency() {
+        new DbAccessLimiter().setMaxConcurrency(0);
+    }
+
+    /**
+     * DBにアクセスしないトランザクション。
+     *
+     * @param <T> 実行結果の型
+     */
+    private static class StubExecutor<T> extends SimpleDbTransactionExecutor<T> {
+
+        StubExecutor() {
+            super(null);
+        }
+
+        @Override
+        public T execute(AppDbConnection connection) {
+            return null;
+        }
+
+        @Override
+        public T doTransaction() {
+            return null;
+        }
+    }
+}
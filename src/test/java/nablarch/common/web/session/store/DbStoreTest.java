@@ -2,10 +2,15 @@ package nablarch.common.web.session.store;
 
 import mockit.Expectations;
 import mockit.Mocked;
+import nablarch.common.web.session.DbManagedExpiration;
 import nablarch.common.web.session.SessionEntry;
 import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import nablarch.core.ThreadContext;
 import nablarch.core.date.SystemTimeProvider;
 import nablarch.core.date.SystemTimeUtil;
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
 import nablarch.core.util.StringUtil;
 import nablarch.fw.ExecutionContext;
 import nablarch.test.support.SystemRepositoryResource;
@@ -14,18 +19,28 @@ import nablarch.test.support.db.helper.VariousDbTestHelper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -40,6 +55,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * {@link DbStore}のテスト。
@@ -62,6 +78,9 @@ public class DbStoreTest {
     public void tearDown() throws Exception {
     }
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Mocked
     private SystemTimeProvider mockSystemTimeProvider;
 
@@ -378,6 +397,1269 @@ public class DbStoreTest {
         ));
     }
 
+    /**
+     * 差分保存モードで、差分が追記され、読み込み時に差分が適用されること。
+     * 差分の件数が上限に達した場合は全体が書き込まれ、差分が削除されること。
+     */
+    @Test
+    public void testDeltaSave() throws Exception {
+        VariousDbTestHelper.createTable(VersionedUserSession.class);
+        VariousDbTestHelper.createTable(UserSessionDelta.class);
+        final DbStore store = createDeltaStore(2);
+        final String sessionId = createSessionId();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final List<SessionEntry> entries = new ArrayList<SessionEntry>();
+        entries.add(new SessionEntry("key1", "val1", store));
+        store.save(sessionId, entries, unusedCtx);
+        assertThat("初回は全体が書き込まれること",
+                VariousDbTestHelper.findAll(UserSessionDelta.class).size(), is(0));
+
+        entries.add(new SessionEntry("key2", "val2", store));
+        store.save(sessionId, entries, unusedCtx);
+        entries.set(0, new SessionEntry("key1", "val1-changed", store));
+        store.save(sessionId, entries, unusedCtx);
+        assertThat("2回目以降は差分が追記されること",
+                VariousDbTestHelper.findAll(UserSessionDelta.class).size(), is(2));
+
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key1")), hasProperty("value", is("val1-changed"))),
+                allOf(hasProperty("key", is("key2")), hasProperty("value", is("val2")))));
+
+        entries.add(new SessionEntry("key3", "val3", store));
+        store.save(sessionId, entries, unusedCtx);
+        assertThat("差分の件数が上限に達したので全体が書き込まれ差分が削除されること",
+                VariousDbTestHelper.findAll(UserSessionDelta.class).size(), is(0));
+
+        final DbStore another = createDeltaStore(2);
+        assertThat("キャッシュを持たないストアからも読み込めること", another.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key1")), hasProperty("value", is("val1-changed"))),
+                allOf(hasProperty("key", is("key2")), hasProperty("value", is("val2"))),
+                allOf(hasProperty("key", is("key3")), hasProperty("value", is("val3")))));
+
+        store.delete(sessionId, unusedCtx);
+        assertThat(VariousDbTestHelper.findById(VersionedUserSession.class, sessionId), is(nullValue()));
+        assertThat(VariousDbTestHelper.findAll(UserSessionDelta.class).size(), is(0));
+    }
+
+    /**
+     * 差分保存モードで、他のノードが保存した後に古い内容を作成元として保存した場合は、
+     * 差分ではなく全体が書き込まれ、後から保存した内容が有効となること。
+     */
+    @Test
+    public void testDeltaSaveWithStaleBase() throws Exception {
+        VariousDbTestHelper.createTable(VersionedUserSession.class);
+        VariousDbTestHelper.createTable(UserSessionDelta.class);
+        final DbStore node1 = createDeltaStore(10);
+        final DbStore node2 = createDeltaStore(0);
+        final String sessionId = createSessionId();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        node1.save(sessionId, Arrays.asList(new SessionEntry("key1", "val1", node1)), unusedCtx);
+        // 別ノードで全体が書き換えられる
+        node2.save(sessionId, Arrays.asList(new SessionEntry("key1", "node2", node2)), unusedCtx);
+        // 古い内容を作成元とする保存
+        node1.save(sessionId, Arrays.asList(new SessionEntry("key1", "node1", node1)), unusedCtx);
+
+        assertThat("古い内容からの差分は追記されないこと",
+                VariousDbTestHelper.findAll(UserSessionDelta.class).size(), is(0));
+        assertThat(node2.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key1")), hasProperty("value", is("node1")))));
+
+        // 別ノードで全体が書き換えられた後、前回保存した内容と同じ内容を保存する
+        node2.save(sessionId, Arrays.asList(new SessionEntry("key1", "node2", node2)), unusedCtx);
+        node1.save(sessionId, Arrays.asList(new SessionEntry("key1", "node1", node1)), unusedCtx);
+        assertThat("有効期限の更新だけでなく全体が書き込まれること", node2.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key1")), hasProperty("value", is("node1")))));
+    }
+
+    /**
+     * 差分保存モードで、バージョンカラムが設定されていない場合は初期化時に例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testDeltaSaveWithoutVersion() throws Exception {
+        final SessionDeltaSchema schema = new SessionDeltaSchema();
+        schema.setTableName("USER_SESSION_DELTA");
+        final DbStore store = createStore();
+        store.setSessionDeltaSchema(schema);
+        store.initialize();
+    }
+
+    /**
+     * サイズが閾値を超えるセッションオブジェクトはセッションチャンクテーブルに分割して保存され、
+     * ユーザセッションテーブルには参照だけが保存されること。
+     */
+    @Test
+    public void testOverflowToDb() throws Exception {
+        VariousDbTestHelper.createTable(UserSessionChunk.class);
+        final DbSessionOverflowStore overflowStore = new DbSessionOverflowStore();
+        overflowStore.setChunkSize(1000);
+        overflowStore.initialize();
+        final DbStore store = createOverflowStore(overflowStore);
+        final String sessionId = createSessionId();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final String largeValue = new String(new char[5000]).replace('\0', 'a');
+        store.save(sessionId, Arrays.asList(new SessionEntry("large", largeValue, store)), unusedCtx);
+        final UserSession userSession = VariousDbTestHelper.findById(UserSession.class, sessionId);
+        assertTrue("ユーザセッションテーブルには参照だけが保存されること", userSession.sessionObjec.length < 100);
+        final int chunkCount = VariousDbTestHelper.findAll(UserSessionChunk.class).size();
+        assertTrue(chunkCount > 1);
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("large")), hasProperty("value", is(largeValue)))));
+
+        final String otherValue = createString(5000).replace('a', 'b');
+        store.save(sessionId, Arrays.asList(new SessionEntry("large", otherValue, store)), unusedCtx);
+        assertThat("以前のバージョンのチャンクは削除されること",
+                VariousDbTestHelper.findAll(UserSessionChunk.class).size(), is(chunkCount));
+        assertThat("他のノードからも新しいバージョンが読み込めること", createOverflowStore(overflowStore).load(sessionId, unusedCtx),
+                contains(allOf(hasProperty("key", is("large")), hasProperty("value", is(otherValue)))));
+
+        store.save(sessionId, Arrays.asList(new SessionEntry("small", "val", store)), unusedCtx);
+        assertThat("閾値以下になった場合はチャンクが削除されること",
+                VariousDbTestHelper.findAll(UserSessionChunk.class).size(), is(0));
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("small")), hasProperty("value", is("val")))));
+
+        store.save(sessionId, Arrays.asList(new SessionEntry("large", largeValue, store)), unusedCtx);
+        store.delete(sessionId, unusedCtx);
+        assertThat(VariousDbTestHelper.findAll(UserSessionChunk.class).size(), is(0));
+    }
+
+    /**
+     * サイズが閾値を超えるセッションオブジェクトはファイルに保存されること。
+     */
+    @Test
+    public void testOverflowToFile() throws Exception {
+        final File directory = temporaryFolder.newFolder("overflow");
+        final FileSessionOverflowStore overflowStore = new FileSessionOverflowStore();
+        overflowStore.setDirectory(directory.getPath());
+        overflowStore.initialize();
+        final DbStore store = createOverflowStore(overflowStore);
+        final String sessionId = createSessionId();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final String largeValue = new String(new char[5000]).replace('\0', 'a');
+        store.save(sessionId, Arrays.asList(new SessionEntry("large", largeValue, store)), unusedCtx);
+        assertThat(directory.listFiles().length, is(1));
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("large")), hasProperty("value", is(largeValue)))));
+
+        final String otherValue = createString(5000).replace('a', 'b');
+        final DbStore otherNode = createOverflowStore(overflowStore);
+        otherNode.save(sessionId, Arrays.asList(new SessionEntry("large", otherValue, store)), unusedCtx);
+        assertThat("以前のバージョンのファイルは削除されること", directory.listFiles().length, is(1));
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("large")), hasProperty("value", is(otherValue)))));
+
+        otherNode.save(sessionId, Arrays.asList(new SessionEntry("small", "val", store)), unusedCtx);
+        assertThat("閾値以下になった場合はファイルが削除されること", directory.listFiles().length, is(0));
+        store.save(sessionId, Arrays.asList(new SessionEntry("large", largeValue, store)), unusedCtx);
+
+        store.delete(sessionId, unusedCtx);
+        assertThat(directory.listFiles().length, is(0));
+        assertTrue(store.load(sessionId, unusedCtx).isEmpty());
+    }
+
+    /**
+     * プールしたバッファでエンコードした場合も保存・読み込みができ、
+     * 既存の形式で保存したセッションも読み込めること。
+     */
+    @Test
+    public void testPooledEncoding() throws Exception {
+        final DbStore store = createStore();
+        store.setPooledEncoding(true);
+        store.initialize();
+        final String sessionId = createSessionId();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        for (int i = 0; i < 3; i++) {
+            store.save(sessionId, Arrays.asList(
+                    new SessionEntry("key", "val" + i, store),
+                    new SessionEntry("null", null, store)), unusedCtx);
+            assertThat(store.load(sessionId, unusedCtx), contains(
+                    allOf(hasProperty("key", is("key")), hasProperty("value", is("val" + i))),
+                    allOf(hasProperty("key", is("null")), hasProperty("value", nullValue()))));
+        }
+
+        final DbStore legacyStore = createStore();
+        legacyStore.initialize();
+        legacyStore.save(sessionId, Arrays.asList(new SessionEntry("legacy", "val", legacyStore)), unusedCtx);
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("legacy")), hasProperty("value", is("val")))));
+    }
+
+    /**
+     * 並列にエンコード・デコードするコーデックを設定した場合、エントリの順序と値が保たれ、
+     * コーデックを設定していない{@link DbStore}でも読み込めること。
+     * また、エンコードはキーごとに記録したバイト数が大きい場合だけ並列に行い、
+     * スレッドプールを終了した後はリクエストスレッドだけで処理すること。
+     */
+    @Test
+    public void testParallelCodec() throws Exception {
+        final ParallelSessionCodec codec = new ParallelSessionCodec();
+        codec.setParallelism(3);
+        codec.setParallelThresholdBytes(1024);
+        codec.initialize();
+        final DbStore store = createStore();
+        store.setParallelCodec(codec);
+        store.initialize();
+        final String sessionId = createSessionId();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final List<SessionEntry> entries = new ArrayList<SessionEntry>();
+        for (int i = 0; i < 10; i++) {
+            entries.add(new SessionEntry("key" + i, i == 3 ? null : i + createString(2048), store));
+        }
+        entries.add(new SessionEntry("small", "val", store));
+        store.save(sessionId, entries, unusedCtx);
+        assertThat("バイト数を記録していないキーは逐次エンコードされること", codec.getParallelCount(), is(0L));
+
+        final List<SessionEntry> loaded = store.load(sessionId, unusedCtx);
+        assertThat("デコードが並列に行われること", codec.getParallelCount(), is(1L));
+        assertThat(loaded.size(), is(entries.size()));
+        for (int i = 0; i < entries.size(); i++) {
+            assertThat(loaded.get(i).getKey(), is(entries.get(i).getKey()));
+            assertThat(loaded.get(i).getValue(), is(entries.get(i).getValue()));
+        }
+
+        final DbStore serialStore = createStore();
+        serialStore.initialize();
+        assertThat(serialStore.load(sessionId, unusedCtx).size(), is(entries.size()));
+
+        store.save(sessionId, entries, unusedCtx);
+        assertThat("記録したバイト数が大きいキーは並列にエンコードされること", codec.getParallelCount(), is(2L));
+
+        final List<SessionEntry> smallEntries = new ArrayList<SessionEntry>();
+        for (int i = 0; i < 20; i++) {
+            smallEntries.add(new SessionEntry("small" + i, "val" + i, store));
+        }
+        store.save(sessionId, smallEntries, unusedCtx);
+        assertThat(store.load(sessionId, unusedCtx).size(), is(smallEntries.size()));
+        assertThat("小さなエントリが多いだけのセッションは逐次処理されること", codec.getParallelCount(), is(2L));
+
+        codec.dispose();
+        store.save(sessionId, entries, unusedCtx);
+        assertThat(store.load(sessionId, unusedCtx).size(), is(entries.size()));
+        assertThat("終了した後はリクエストスレッドだけで処理すること", codec.getParallelCount(), is(2L));
+    }
+
+    /**
+     * 複数のセッションを一括で読み込み、一括で削除できること。
+     */
+    @Test
+    public void testLoadAllAndDeleteAll() throws Exception {
+        final DbStore store = createStore();
+        store.setBulkChunkSize(2);
+        store.initialize();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final List<String> sessionIds = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            final String sessionId = createSessionId();
+            store.save(sessionId, Arrays.asList(new SessionEntry("key", "val" + i, store)), unusedCtx);
+            sessionIds.add(sessionId);
+        }
+        final List<String> requestIds = new ArrayList<String>(sessionIds);
+        requestIds.add(createSessionId());
+
+        final Map<String, List<SessionEntry>> loaded = store.loadAll(requestIds, unusedCtx);
+        assertThat("存在しないセッションIDは含まれないこと", loaded.size(), is(3));
+        for (int i = 0; i < 3; i++) {
+            assertThat(loaded.get(sessionIds.get(i)), contains(
+                    allOf(hasProperty("key", is("key")), hasProperty("value", is("val" + i)))));
+        }
+
+        store.deleteAll(requestIds.subList(0, 2), unusedCtx);
+        assertThat(store.loadAll(requestIds, unusedCtx).keySet(), contains(sessionIds.get(2)));
+    }
+
+    /**
+     * 所有者IDを保存し、所有者のセッションを全て無効化できること。
+     */
+    @Test
+    public void testInvalidateByOwner() throws Exception {
+        VariousDbTestHelper.createTable(OwnedUserSession.class);
+        final UserSessionSchema schema = new UserSessionSchema();
+        schema.setTableName("USER_SESSION_OWNED");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSessionObjectName("SESSION_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        schema.setOwnerIdName("OWNER_ID");
+
+        final DbStore store = createStore();
+        store.setUserSessionSchema(schema);
+        store.initialize();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        try {
+            final String anonymous = createSessionId();
+            store.save(anonymous, Arrays.asList(new SessionEntry("key", "val", store)), unusedCtx);
+            ThreadContext.setUserId("user1");
+            final String pc = createSessionId();
+            final String mobile = createSessionId();
+            store.save(pc, Arrays.asList(new SessionEntry("key", "val", store)), unusedCtx);
+            store.save(mobile, Arrays.asList(new SessionEntry("key", "val", store)), unusedCtx);
+            ThreadContext.setUserId("user2");
+            final String other = createSessionId();
+            store.save(other, Arrays.asList(new SessionEntry("key", "val", store)), unusedCtx);
+
+            assertThat(VariousDbTestHelper.findById(OwnedUserSession.class, pc).ownerId, is("user1"));
+            assertThat(VariousDbTestHelper.findById(OwnedUserSession.class, anonymous).ownerId, nullValue());
+            assertThat(store.findSessionIdsByOwner("user1").size(), is(2));
+
+            assertThat(store.invalidateByOwner("user1"), is(2));
+            assertTrue(store.load(pc, unusedCtx).isEmpty());
+            assertTrue(store.load(mobile, unusedCtx).isEmpty());
+            assertThat(store.load(other, unusedCtx).size(), is(1));
+            assertThat(store.load(anonymous, unusedCtx).size(), is(1));
+        } finally {
+            ThreadContext.clear();
+        }
+    }
+
+    /**
+     * アクセスのないセッションがコールドテーブルに移動され、読み込み時にユーザセッションテーブルに戻されること。
+     */
+    @Test
+    public void testArchiveIdleSessions() throws Exception {
+        VariousDbTestHelper.createTable(OwnedUserSession.class);
+        VariousDbTestHelper.createTable(ColdUserSession.class);
+        final UserSessionSchema hotSchema = new UserSessionSchema();
+        hotSchema.setTableName("USER_SESSION_OWNED");
+        hotSchema.setSessionIdName("SESSION_ID");
+        hotSchema.setSessionObjectName("SESSION_OBJECT");
+        hotSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        hotSchema.setOwnerIdName("OWNER_ID");
+        final UserSessionSchema coldSchema = new UserSessionSchema();
+        coldSchema.setTableName("USER_SESSION_COLD");
+        coldSchema.setSessionIdName("SESSION_ID");
+        coldSchema.setSessionObjectName("SESSION_OBJECT");
+        coldSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        coldSchema.setOwnerIdName("OWNER_ID");
+
+        final DbStore store = createStore();
+        store.setUserSessionSchema(hotSchema);
+        store.setColdSessionSchema(coldSchema);
+        // 保存した直後のセッションも対象となるようにする
+        store.setArchiveIdleSeconds(0);
+        store.setArchiveBatchSize(2);
+        store.setCompressArchive(true);
+        store.initialize();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final String largeValue = new String(new char[5000]).replace('\0', 'a');
+        final List<String> sessionIds = new ArrayList<String>();
+        try {
+            ThreadContext.setUserId("user1");
+            for (int i = 0; i < 3; i++) {
+                final String sessionId = createSessionId();
+                store.save(sessionId, Arrays.asList(new SessionEntry("key", largeValue + i, store)), unusedCtx);
+                sessionIds.add(sessionId);
+            }
+        } finally {
+            ThreadContext.clear();
+        }
+
+        assertThat(store.archiveIdleSessions(), is(3));
+        assertThat(VariousDbTestHelper.findAll(OwnedUserSession.class).size(), is(0));
+        final ColdUserSession cold = VariousDbTestHelper.findById(ColdUserSession.class, sessionIds.get(0));
+        assertThat(cold.ownerId, is("user1"));
+        assertTrue("圧縮して保存されること", cold.sessionObject.length < 5000);
+
+        assertThat(store.load(sessionIds.get(0), unusedCtx), contains(
+                allOf(hasProperty("key", is("key")), hasProperty("value", is(largeValue + 0)))));
+        assertThat("読み込んだセッションはユーザセッションテーブルに戻されること",
+                VariousDbTestHelper.findById(OwnedUserSession.class, sessionIds.get(0)).ownerId, is("user1"));
+        assertNull(VariousDbTestHelper.findById(ColdUserSession.class, sessionIds.get(0)));
+
+        store.delete(sessionIds.get(1), unusedCtx);
+        assertTrue(store.load(sessionIds.get(1), unusedCtx).isEmpty());
+
+        assertThat(store.invalidateByOwner("user1"), is(2));
+        assertThat(VariousDbTestHelper.findAll(ColdUserSession.class).size(), is(0));
+    }
+
+    /**
+     * コールドテーブルに移動する際に参照している共有値の有効期限が延長され、
+     * 戻す際には退避した時点の有効期限が復元されること。
+     * また、有効期限切れのセッションはコールドテーブルから削除されること。
+     */
+    @Test
+    public void testArchiveIdleSessionsKeepsExpiration() throws Exception {
+        VariousDbTestHelper.createTable(SharedUserSessionValue.class);
+        VariousDbTestHelper.createTable(ColdUserSession.class);
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final String largeValue = createString(10000);
+        final String sessionId = createSessionId();
+        final DbStore saver = createSharedValueStore();
+        saver.save(sessionId, Arrays.asList(new SessionEntry("codes", largeValue, saver)), unusedCtx);
+
+        final long now = System.currentTimeMillis();
+        final long archivedExpiration = (now + 600000L) / 1000 * 1000;
+        final UserSession hot = VariousDbTestHelper.findById(UserSession.class, sessionId);
+        hot.expirationDatetime = new Timestamp(archivedExpiration);
+        VariousDbTestHelper.setUpTable(hot);
+        final SharedUserSessionValue value = VariousDbTestHelper.findAll(SharedUserSessionValue.class).get(0);
+        value.expirationDatetime = new Timestamp(now + 1000L);
+        VariousDbTestHelper.setUpTable(value);
+        final ColdUserSession expired = new ColdUserSession();
+        expired.sessionId = createSessionId();
+        expired.expirationDatetime = new Timestamp(now - 1000L);
+        VariousDbTestHelper.setUpTable(expired);
+
+        // 保存したノードとは別のノードで移動する
+        final DbStore archiver = createColdSharedValueStore();
+        assertThat(archiver.archiveIdleSessions(), is(1));
+        assertTrue("参照している共有値の有効期限がセッションの有効期限まで延長されること",
+                VariousDbTestHelper.findAll(SharedUserSessionValue.class).get(0).expirationDatetime.getTime()
+                        >= archivedExpiration);
+        assertNull("有効期限切れのセッションはコールドテーブルから削除されること",
+                VariousDbTestHelper.findById(ColdUserSession.class, expired.sessionId));
+        assertNotNull(VariousDbTestHelper.findById(ColdUserSession.class, sessionId));
+
+        final DbStore store = createColdSharedValueStore();
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("codes")), hasProperty("value", is(largeValue)))));
+        assertThat("退避した時点の有効期限で戻されること",
+                VariousDbTestHelper.findById(UserSession.class, sessionId).expirationDatetime.getTime(),
+                is(archivedExpiration));
+    }
+
+    /**
+     * データベースの時計を使用する場合、有効期限はデータベースの現在日時から算出され、
+     * 有効期限切れの判定もデータベースの現在日時で行われること。
+     */
+    @Test
+    public void testDatabaseClock() throws Exception {
+        final DatabaseClock clock = new DatabaseClock();
+        clock.setDialect("h2");
+        final DbStore store = createStore();
+        store.setDatabaseClock(clock);
+        store.initialize();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final String sessionId = createSessionId();
+        final long now = System.currentTimeMillis();
+        store.save(sessionId, Arrays.asList(new SessionEntry("key", "value", store)), unusedCtx);
+        final UserSession saved = VariousDbTestHelper.findById(UserSession.class, sessionId);
+        assertTrue(String.valueOf(saved.expirationDatetime),
+                Math.abs(saved.expirationDatetime.getTime() - (now + 1800000L)) < 10000L);
+
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key")), hasProperty("value", is("value")))));
+        assertThat(store.loadAll(Arrays.asList(sessionId), unusedCtx).size(), is(1));
+
+        VariousDbTestHelper.setUpTable(new UserSession(sessionId, saved.sessionObjec, new Timestamp(now - 1000L)));
+        assertTrue("有効期限切れのセッションは読み込まれないこと", store.load(sessionId, unusedCtx).isEmpty());
+        assertTrue(store.loadAll(Arrays.asList(sessionId), unusedCtx).isEmpty());
+    }
+
+    /**
+     * 時間がかかった処理のログ出力を設定した場合、読み込み・保存・削除が計測されること。
+     */
+    @Test
+    public void testSlowOperationLogger() throws Exception {
+        final SlowOperationLogger slowOperationLogger = new SlowOperationLogger();
+        slowOperationLogger.setThresholdMillis(0L);
+        slowOperationLogger.setMaxLogsPerSecond(100);
+        final DbStore store = createStore();
+        store.setSlowOperationLogger(slowOperationLogger);
+        store.initialize();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final String sessionId = createSessionId();
+        store.save(sessionId, Arrays.asList(new SessionEntry("key", "value", store)), unusedCtx);
+        assertThat(store.load(sessionId, unusedCtx).size(), is(1));
+        store.delete(sessionId, unusedCtx);
+        assertThat(slowOperationLogger.getSlowCount(), is(3L));
+    }
+
+    /**
+     * {@link RoutingDbStore}を使用した場合、実行コンテキストから決定した保存先のテーブルが使用されること。
+     */
+    @Test
+    public void testStorageResolver() throws Exception {
+        VariousDbTestHelper.createTable(OwnedUserSession.class);
+        final UserSessionSchema tenantSchema = new UserSessionSchema();
+        tenantSchema.setTableName("USER_SESSION_OWNED");
+        tenantSchema.setSessionIdName("SESSION_ID");
+        tenantSchema.setSessionObjectName("SESSION_OBJECT");
+        tenantSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        final SessionStorageRoute tenantRoute = new SessionStorageRoute();
+        tenantRoute.setUserSessionSchema(tenantSchema);
+        final RequestAttributeStorageResolver resolver = new RequestAttributeStorageResolver();
+        resolver.setAttributeName("tenantId");
+        resolver.setRoutes(Collections.singletonMap("tenantA", tenantRoute));
+
+        final DbStore defaultStore = createStore();
+        defaultStore.initialize();
+        final RoutingDbStore store = createRoutingStore(defaultStore, resolver);
+
+        final ExecutionContext tenantCtx = new ExecutionContext();
+        tenantCtx.setRequestScopedVar("tenantId", "tenantA");
+        final ExecutionContext defaultCtx = new ExecutionContext();
+
+        final String sessionId = createSessionId();
+        store.save(sessionId, Arrays.asList(new SessionEntry("key", "tenant", store)), tenantCtx);
+        assertNotNull(VariousDbTestHelper.findById(OwnedUserSession.class, sessionId));
+        assertNull(VariousDbTestHelper.findById(UserSession.class, sessionId));
+
+        assertThat(store.load(sessionId, tenantCtx), contains(
+                allOf(hasProperty("key", is("key")), hasProperty("value", is("tenant")))));
+        assertTrue("既定の保存先からは読み込まれないこと", store.load(sessionId, defaultCtx).isEmpty());
+
+        store.delete(sessionId, tenantCtx);
+        assertNull(VariousDbTestHelper.findById(OwnedUserSession.class, sessionId));
+    }
+
+    /**
+     * セッションIDをバイナリで保存する設定で、UUID形式でないセッションIDのセッションを保存しようとした場合、
+     * 例外とならずに何も保存されないこと。
+     */
+    @Test
+    public void testSaveWithInvalidBinarySessionId() {
+        final UserSessionSchema schema = new UserSessionSchema();
+        schema.setTableName("USER_SESSION");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSessionObjectName("SESSION_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        schema.setBinarySessionId(true);
+        final DbStore store = createStore();
+        store.setUserSessionSchema(schema);
+        store.initialize();
+
+        store.save("not-a-uuid", Arrays.asList(new SessionEntry("key", "val", store)), new ExecutionContext());
+        assertThat(VariousDbTestHelper.findAll(UserSession.class).size(), is(0));
+        assertThat(store.load("not-a-uuid", new ExecutionContext()).size(), is(0));
+    }
+
+    /**
+     * {@link DbAccessLimiter}の同時実行数が上限に達している場合、読み込みと保存は空きを待ち、
+     * 待ち時間内に空かなければ{@link DbAccessLimitExceededException}が送出されること。
+     */
+    @Test
+    public void testSaturatedDbAccessLimiter() throws Exception {
+        final DbAccessLimiter limiter = new DbAccessLimiter();
+        limiter.setMaxConcurrency(1);
+        limiter.setQueueTimeoutMillis(50L);
+        final DbStore store = createStore();
+        store.setDbAccessLimiter(limiter);
+        store.initialize();
+        final String sessionId = createSessionId();
+        final List<SessionEntry> entries = Arrays.asList(new SessionEntry("key", "val", store));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            // 他のスレッドで実行権を保持し、上限に達した状態にする
+            final Future<Void> holder = executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    return limiter.doTransaction(new SimpleDbTransactionExecutor<Void>(
+                            repositoryResource.<SimpleDbTransactionManager>getComponent("transaction")) {
+                        @Override
+                        public Void execute(AppDbConnection connection) {
+                            started.countDown();
+                            try {
+                                release.await(10, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            return null;
+                        }
+                    });
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            try {
+                store.save(sessionId, entries, new ExecutionContext());
+                fail("上限に達しているので保存は打ち切られること");
+            } catch (DbAccessLimitExceededException ignored) {
+            }
+            try {
+                store.load(sessionId, new ExecutionContext());
+                fail("上限に達しているので読み込みは打ち切られること");
+            } catch (DbAccessLimitExceededException ignored) {
+            }
+            assertThat(limiter.getRejectedCount(), is(2L));
+
+            // 待ち時間内に空きができれば、待っていた保存が実行されること
+            limiter.setQueueTimeoutMillis(10000L);
+            final Future<Void> queued = executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    store.save(sessionId, entries, new ExecutionContext());
+                    return null;
+                }
+            });
+            final long deadline = System.currentTimeMillis() + 10000L;
+            while (limiter.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertThat("空きを待っていること", limiter.getQueueDepth(), is(1));
+            assertThat(VariousDbTestHelper.findById(UserSession.class, sessionId), nullValue());
+
+            release.countDown();
+            holder.get(10, TimeUnit.SECONDS);
+            queued.get(10, TimeUnit.SECONDS);
+            assertThat(store.load(sessionId, new ExecutionContext()), contains(
+                    allOf(hasProperty("key", is("key")), hasProperty("value", is((Object) "val")))));
+            assertThat(limiter.getRejectedCount(), is(2L));
+            assertThat(limiter.getActiveCount(), is(0));
+        } finally {
+            release.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * 保存先ごとの{@link DbStore}には、既定の保存先の設定が全て引き継がれること。
+     * <p/>
+     * 既定の保存先には全ての設定をデフォルトと異なる値で設定し、
+     * 設定を追加した際に引き継ぎ漏れがあれば失敗するよう、セッターに対応するフィールドを全て比較する。
+     */
+    @Test
+    public void testStorageResolverCopiesAllSettings() throws Exception {
+        final SessionDeltaSchema deltaSchema = new SessionDeltaSchema();
+        final UserSessionSchema coldSchema = new UserSessionSchema();
+        final SharedSessionValueSchema sharedSchema = new SharedSessionValueSchema();
+        sharedSchema.setTableName("USER_SESSION_SHARED_VALUE");
+        sharedSchema.setHashName("VALUE_HASH");
+        sharedSchema.setValueObjectName("VALUE_OBJECT");
+        sharedSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        final SessionChangeLogSchema changeLogSchema = new SessionChangeLogSchema();
+        final DatabaseClock clock = new DatabaseClock();
+        clock.setDialect("h2");
+
+        final DbStore defaultStore = createStore();
+        defaultStore.setUserSessionSchema(createVersionedSchema());
+        defaultStore.setDbAccessLimiter(new DbAccessLimiter());
+        defaultStore.setSessionDeltaSchema(deltaSchema);
+        defaultStore.setMaxDeltaCount(3);
+        defaultStore.setDeltaCompactionRatio(2.0);
+        defaultStore.setDeltaBaseCacheMaxBytes(1024L);
+        defaultStore.setOverflowStore(new FileSessionOverflowStore());
+        defaultStore.setOverflowThreshold(2048);
+        defaultStore.setColdSessionSchema(coldSchema);
+        defaultStore.setArchiveIdleSeconds(60L);
+        defaultStore.setArchiveBatchSize(10);
+        defaultStore.setCompressArchive(true);
+        defaultStore.setSizeStatistics(new SessionSizeStatistics());
+        defaultStore.setQuota(new SessionQuota());
+        defaultStore.setLocalTier(new MappedSessionTier());
+        defaultStore.setSharedValueSchema(sharedSchema);
+        defaultStore.setSharedValueThreshold(512);
+        defaultStore.setSharedValueCacheMaxBytes(4096L);
+        defaultStore.setDatabaseClock(clock);
+        defaultStore.setSlowOperationLogger(new SlowOperationLogger());
+        defaultStore.setChangeLogSchema(changeLogSchema);
+        defaultStore.setBulkChunkSize(10);
+        defaultStore.setPooledEncoding(true);
+        defaultStore.setEncodeBufferMaxRetainedBytes(4096);
+        defaultStore.setParallelCodec(new ParallelSessionCodec());
+        defaultStore.setWarmUpEncodeRounds(1);
+        defaultStore.setValidateSchema(true);
+        defaultStore.initialize();
+
+        final SessionStorageRoute tenantRoute = new SessionStorageRoute();
+        tenantRoute.setUserSessionSchema(createVersionedSchema());
+        final RequestAttributeStorageResolver resolver = new RequestAttributeStorageResolver();
+        resolver.setAttributeName("tenantId");
+        resolver.setRoutes(Collections.singletonMap("tenantA", tenantRoute));
+        final RoutingDbStore routingStore = createRoutingStore(defaultStore, resolver);
+        final ExecutionContext tenantCtx = new ExecutionContext();
+        tenantCtx.setRequestScopedVar("tenantId", "tenantA");
+        final DbStore routed = routingStore.getStore(tenantCtx);
+
+        final List<String> notCopied = Arrays.asList(
+                "dbManager", "userSessionSchema", "sessionIdFilter", "warmUpConnections");
+        final DbStore unconfigured = new DbStore();
+        for (Method setter : DbStore.class.getDeclaredMethods()) {
+            if (!setter.getName().startsWith("set") || !Modifier.isPublic(setter.getModifiers())) {
+                continue;
+            }
+            final String name = Character.toLowerCase(setter.getName().charAt(3)) + setter.getName().substring(4);
+            if (notCopied.contains(name)) {
+                continue;
+            }
+            final Field field = DbStore.class.getDeclaredField(name);
+            field.setAccessible(true);
+            assertThat("デフォルトと異なる値を設定していること: " + name,
+                    field.get(defaultStore).equals(field.get(unconfigured)), is(false));
+            assertThat("設定が引き継がれること: " + name, field.get(routed), is(field.get(defaultStore)));
+        }
+        assertThat(routed.getExpiresMilliSeconds(), is(defaultStore.getExpiresMilliSeconds()));
+        assertThat(routingStore.getStore(new ExecutionContext()), is(defaultStore));
+    }
+
+    /**
+     * 保存先ごとの{@link DbStore}でも、差分保存モードが使用されること。
+     */
+    @Test
+    public void testStorageResolverWithDelta() throws Exception {
+        VariousDbTestHelper.createTable(VersionedUserSession.class);
+        VariousDbTestHelper.createTable(UserSessionDelta.class);
+        final SessionStorageRoute tenantRoute = new SessionStorageRoute();
+        tenantRoute.setUserSessionSchema(createVersionedSchema());
+        final RequestAttributeStorageResolver resolver = new RequestAttributeStorageResolver();
+        resolver.setAttributeName("tenantId");
+        resolver.setRoutes(Collections.singletonMap("tenantA", tenantRoute));
+        final RoutingDbStore store = createRoutingStore(createDeltaStore(5), resolver);
+        final ExecutionContext tenantCtx = new ExecutionContext();
+        tenantCtx.setRequestScopedVar("tenantId", "tenantA");
+
+        final String sessionId = createSessionId();
+        final List<SessionEntry> entries = new ArrayList<SessionEntry>();
+        entries.add(new SessionEntry("key1", "val1", store));
+        store.save(sessionId, entries, tenantCtx);
+        entries.add(new SessionEntry("key2", "val2", store));
+        store.save(sessionId, entries, tenantCtx);
+        assertThat("保存先でも差分が追記されること",
+                VariousDbTestHelper.findAll(UserSessionDelta.class).size(), is(1));
+        assertThat(store.load(sessionId, tenantCtx), contains(
+                allOf(hasProperty("key", is("key1")), hasProperty("value", is("val1"))),
+                allOf(hasProperty("key", is("key2")), hasProperty("value", is("val2")))));
+    }
+
+    /**
+     * 既定の保存先に{@link SessionIdFilter}が設定されている場合、{@link RoutingDbStore}の初期化時に例外が送出されること。
+     */
+    @Test
+    public void testStorageResolverWithSessionIdFilter() throws Exception {
+        final DbStore defaultStore = createStore();
+        defaultStore.setSessionIdFilter(new SessionIdFilter());
+        final RoutingDbStore store = new RoutingDbStore();
+        store.setDefaultStore(defaultStore);
+        store.setStorageResolver(new RequestAttributeStorageResolver());
+        try {
+            store.initialize();
+            fail("保存先ごとに使用できない設定の場合は例外が送出されること");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("sessionIdFilter cannot be used with storageResolver."));
+        }
+    }
+
+    /**
+     * 保存先ごとの{@link DbStore}は既定の保存先とキャッシュを共有し、
+     * 共有値のキャッシュは保存先ごとに分けて使用されること。
+     */
+    @Test
+    public void testStorageResolverSharesNodeCaches() throws Exception {
+        VariousDbTestHelper.createTable(OwnedUserSession.class);
+        VariousDbTestHelper.createTable(SharedUserSessionValue.class);
+        final UserSessionSchema tenantSchema = new UserSessionSchema();
+        tenantSchema.setTableName("USER_SESSION_OWNED");
+        tenantSchema.setSessionIdName("SESSION_ID");
+        tenantSchema.setSessionObjectName("SESSION_OBJECT");
+        tenantSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        final SessionStorageRoute tenantRoute = new SessionStorageRoute();
+        tenantRoute.setUserSessionSchema(tenantSchema);
+        final RequestAttributeStorageResolver resolver = new RequestAttributeStorageResolver();
+        resolver.setAttributeName("tenantId");
+        resolver.setRoutes(Collections.singletonMap("tenantA", tenantRoute));
+        final DbStore defaultStore = createSharedValueStore();
+        final RoutingDbStore store = createRoutingStore(defaultStore, resolver);
+
+        final ExecutionContext tenantCtx = new ExecutionContext();
+        tenantCtx.setRequestScopedVar("tenantId", "tenantA");
+        final ExecutionContext defaultCtx = new ExecutionContext();
+        final String largeValue = createString(10000);
+
+        store.save(createSessionId(), Arrays.asList(new SessionEntry("codes", largeValue, store)), defaultCtx);
+        VariousDbTestHelper.createTable(SharedUserSessionValue.class);
+        final String tenantSessionId = createSessionId();
+        store.save(tenantSessionId, Arrays.asList(new SessionEntry("codes", largeValue, store)), tenantCtx);
+        assertThat("既定の保存先のキャッシュを使用せずに共有値が保存されること",
+                VariousDbTestHelper.findAll(SharedUserSessionValue.class).size(), is(1));
+        assertThat(store.load(tenantSessionId, tenantCtx), contains(
+                allOf(hasProperty("key", is("codes")), hasProperty("value", is(largeValue)))));
+    }
+
+    /**
+     * サイズの上限を超えたセッションは、デフォルトでは保存を拒否されること。
+     */
+    @Test
+    public void testQuotaReject() throws Exception {
+        final SessionQuota quota = new SessionQuota();
+        quota.setSoftLimitBytes(1000);
+        quota.setHardLimitBytes(2000);
+        final DbStore store = createQuotaStore(quota, null);
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final String sessionId = createSessionId();
+
+        store.save(sessionId, Arrays.asList(new SessionEntry("medium", createString(1500), store)), unusedCtx);
+        assertThat("警告を出力するサイズを超えても保存されること", store.load(sessionId, unusedCtx).size(), is(1));
+        assertThat(quota.getSoftLimitExceededCount(), is(1L));
+
+        try {
+            store.save(sessionId, Arrays.asList(new SessionEntry("large", createString(5000), store)), unusedCtx);
+            fail("上限を超えた場合は例外が送出されること");
+        } catch (SessionQuotaExceededException e) {
+            assertThat(quota.getHardLimitExceededCount(), is(1L));
+        }
+        assertThat("拒否された場合は以前の内容が残ること", store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("medium")), hasProperty("value", is(createString(1500))))));
+    }
+
+    /**
+     * {@link DropLargestEntriesQuotaPolicy}を設定した場合、値の大きいエントリが除かれて保存されること。
+     */
+    @Test
+    public void testQuotaDropLargestEntries() throws Exception {
+        final SessionQuota quota = new SessionQuota();
+        quota.setHardLimitBytes(2000);
+        quota.setPolicy(new DropLargestEntriesQuotaPolicy());
+        final DbStore store = createQuotaStore(quota, null);
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final String sessionId = createSessionId();
+
+        store.save(sessionId, Arrays.asList(
+                new SessionEntry("small", "val", store),
+                new SessionEntry("large", createString(5000), store),
+                new SessionEntry("medium", createString(500), store)), unusedCtx);
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("small")), hasProperty("value", is("val"))),
+                allOf(hasProperty("key", is("medium")), hasProperty("value", is(createString(500))))));
+    }
+
+    /**
+     * {@link OverflowQuotaPolicy}を設定した場合、閾値に関わらず{@link SessionOverflowStore}に保存されること。
+     */
+    @Test
+    public void testQuotaOverflow() throws Exception {
+        VariousDbTestHelper.createTable(UserSessionChunk.class);
+        final DbSessionOverflowStore overflowStore = new DbSessionOverflowStore();
+        overflowStore.setChunkSize(1000);
+        overflowStore.initialize();
+        final SessionQuota quota = new SessionQuota();
+        quota.setHardLimitBytes(2000);
+        quota.setPolicy(new OverflowQuotaPolicy());
+        final DbStore store = createQuotaStore(quota, overflowStore);
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final String sessionId = createSessionId();
+
+        final String largeValue = createString(5000);
+        store.save(sessionId, Arrays.asList(new SessionEntry("large", largeValue, store)), unusedCtx);
+        final UserSession userSession = VariousDbTestHelper.findById(UserSession.class, sessionId);
+        assertTrue("ユーザセッションテーブルには参照だけが保存されること", userSession.sessionObjec.length < 100);
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("large")), hasProperty("value", is(largeValue)))));
+
+        store.save(sessionId, Arrays.asList(new SessionEntry("small", "val", store)), unusedCtx);
+        assertThat("上限以内になった場合はチャンクが削除されること",
+                VariousDbTestHelper.findAll(UserSessionChunk.class).size(), is(0));
+    }
+
+    /**
+     * 共有値テーブルを設定した場合、閾値以上の同じ値は共有値テーブルに1行だけ保存され、
+     * 別のノード(キャッシュを持たない{@link DbStore})からも読み込めること。
+     */
+    @Test
+    public void testSharedValues() throws Exception {
+        VariousDbTestHelper.createTable(SharedUserSessionValue.class);
+        final DbStore store = createSharedValueStore();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final String largeValue = createString(10000);
+        final String sessionId1 = createSessionId();
+        final String sessionId2 = createSessionId();
+        store.save(sessionId1, Arrays.asList(
+                new SessionEntry("codes", largeValue, store),
+                new SessionEntry("small", "val", store)), unusedCtx);
+        store.save(sessionId2, Arrays.asList(new SessionEntry("codes", largeValue, store)), unusedCtx);
+
+        assertThat("同じ値は1行だけ保存されること",
+                VariousDbTestHelper.findAll(SharedUserSessionValue.class).size(), is(1));
+        assertTrue("ユーザセッションテーブルにはハッシュ値だけが保存されること",
+                VariousDbTestHelper.findById(UserSession.class, sessionId1).sessionObjec.length < 1000);
+
+        final DbStore otherNode = createSharedValueStore();
+        assertThat(otherNode.load(sessionId1, unusedCtx), contains(
+                allOf(hasProperty("key", is("codes")), hasProperty("value", is(largeValue))),
+                allOf(hasProperty("key", is("small")), hasProperty("value", is("val")))));
+        assertThat(otherNode.load(sessionId2, unusedCtx), contains(
+                allOf(hasProperty("key", is("codes")), hasProperty("value", is(largeValue)))));
+
+        assertThat("有効期限内の値は削除されないこと", store.purgeSharedValues(), is(0));
+    }
+
+    /**
+     * 共有値テーブルの有効期限は、保存時に延長され、短縮されないこと。
+     * また、参照する値が共有値テーブルに存在しないセッションは、無効なセッションとして扱われること。
+     */
+    @Test
+    public void testSharedValueExtensionAndMissing() throws Exception {
+        VariousDbTestHelper.createTable(SharedUserSessionValue.class);
+        final DbStore store = createSharedValueStore();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final String largeValue = createString(10000);
+
+        final String sessionId = createSessionId();
+        store.save(sessionId, Arrays.asList(
+                new SessionEntry("codes", largeValue, store),
+                new SessionEntry("small", "val", store)), unusedCtx);
+        assertTrue("参照するセッションの有効期限より後まで延長されること",
+                VariousDbTestHelper.findAll(SharedUserSessionValue.class).get(0).expirationDatetime.getTime()
+                        > System.currentTimeMillis() + 1800000L);
+
+        // より長く有効なセッションが参照している場合
+        final long longer = System.currentTimeMillis() + 24 * 3600000L;
+        final SharedUserSessionValue value = VariousDbTestHelper.findAll(SharedUserSessionValue.class).get(0);
+        value.expirationDatetime = new Timestamp(longer);
+        VariousDbTestHelper.setUpTable(value);
+        final DbStore otherNode = createSharedValueStore();
+        otherNode.save(createSessionId(), Arrays.asList(new SessionEntry("codes", largeValue, otherNode)), unusedCtx);
+        assertThat("有効期限が短縮されないこと",
+                VariousDbTestHelper.findAll(SharedUserSessionValue.class).get(0).expirationDatetime.getTime(),
+                is(longer));
+
+        VariousDbTestHelper.createTable(SharedUserSessionValue.class);
+        assertTrue("一部のエントリだけが復元されないこと", createSharedValueStore().load(sessionId, unusedCtx).isEmpty());
+    }
+
+    /**
+     * 複数のノードで同時に同じ値を保存しても、全ての保存が成功し、値は1行だけ保存されること。
+     */
+    @Test
+    public void testSharedValueConcurrentStore() throws Exception {
+        VariousDbTestHelper.createTable(SharedUserSessionValue.class);
+        final String largeValue = createString(10000);
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final int nodes = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newFixedThreadPool(nodes);
+        final List<String> sessionIds = new ArrayList<String>();
+        try {
+            final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < nodes; i++) {
+                final DbStore node = createSharedValueStore();
+                final String sessionId = createSessionId();
+                sessionIds.add(sessionId);
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        start.await();
+                        node.save(sessionId, Arrays.asList(new SessionEntry("codes", largeValue, node)),
+                                new ExecutionContext());
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Object> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertThat(VariousDbTestHelper.findAll(SharedUserSessionValue.class).size(), is(1));
+        final DbStore reader = createSharedValueStore();
+        for (String sessionId : sessionIds) {
+            assertThat(reader.load(sessionId, unusedCtx), contains(
+                    allOf(hasProperty("key", is("codes")), hasProperty("value", is(largeValue)))));
+        }
+    }
+
+    /**
+     * 変更ログのリスナに設定した場合、他のノードでの保存・削除によりこのノードで保持している内容が破棄され、
+     * このノードでの保存や有効期限の更新では破棄されないこと。
+     */
+    @Test
+    public void testSessionChangeListener() throws Exception {
+        VariousDbTestHelper.createTable(VersionedUserSession.class);
+        VariousDbTestHelper.createTable(UserSessionChangeLog.class);
+        final SimpleDbTransactionManager dbManager = repositoryResource.getComponent("transaction");
+        new SimpleDbTransactionExecutor<Void>(dbManager) {
+            @Override
+            public Void execute(AppDbConnection connection) {
+                connection.prepareStatement("CREATE SEQUENCE IF NOT EXISTS USER_SESSION_CHANGE_SEQ").executeUpdate();
+                return null;
+            }
+        }.doTransaction();
+        final SessionChangeLogSchema changeLogSchema = new SessionChangeLogSchema();
+        changeLogSchema.setTableName("USER_SESSION_CHANGE_LOG");
+        changeLogSchema.setSequenceName("CHANGE_SEQ");
+        changeLogSchema.setSessionIdName("SESSION_ID");
+        changeLogSchema.setChangeTypeName("CHANGE_TYPE");
+        changeLogSchema.setChangedAtName("CHANGED_AT");
+        changeLogSchema.setSequenceExpression("NEXT VALUE FOR USER_SESSION_CHANGE_SEQ");
+
+        final MappedSessionTier tier = createLocalTier(temporaryFolder.newFolder("listener"));
+        final DbStore node = createStore();
+        node.setUserSessionSchema(createVersionedSchema());
+        node.setLocalTier(tier);
+        node.setChangeLogSchema(changeLogSchema);
+        node.initialize();
+        final DbStore otherNode = createStore();
+        otherNode.setUserSessionSchema(createVersionedSchema());
+        otherNode.setChangeLogSchema(changeLogSchema);
+        otherNode.initialize();
+
+        final SessionChangeLogPoller poller = new SessionChangeLogPoller();
+        poller.setDbManager(dbManager);
+        poller.setChangeLogSchema(changeLogSchema);
+        poller.setPollIntervalMillis(0);
+        poller.setListeners(Collections.<SessionChangeListener>singletonList(node));
+        poller.initialize();
+
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final String sessionId = createSessionId();
+        node.save(sessionId, Arrays.asList(new SessionEntry("key", "first", node)), unusedCtx);
+        assertThat(poller.poll(), is(1));
+        assertTrue("このノードでの保存では破棄されないこと", tier.versionOf(sessionId) >= 0);
+
+        final DbManagedExpiration expiration = new DbManagedExpiration();
+        expiration.setDbManager(dbManager);
+        expiration.setUserSessionSchema(createVersionedSchema());
+        expiration.setChangeLogSchema(changeLogSchema);
+        expiration.initialize();
+        expiration.saveExpirationDateTime(sessionId, System.currentTimeMillis() + 3600000L, unusedCtx);
+        assertThat(poller.poll(), is(1));
+        assertTrue("有効期限の更新では破棄されないこと", tier.versionOf(sessionId) >= 0);
+
+        otherNode.save(sessionId, Arrays.asList(new SessionEntry("key", "second", otherNode)), unusedCtx);
+        assertThat(poller.poll(), is(1));
+        assertThat("他のノードでの保存で破棄されること", tier.versionOf(sessionId), is(-1L));
+        assertThat(node.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key")), hasProperty("value", is("second")))));
+        assertTrue(tier.versionOf(sessionId) >= 0);
+
+        otherNode.delete(sessionId, unusedCtx);
+        assertThat(poller.poll(), is(1));
+        assertThat("他のノードでの削除で破棄されること", tier.versionOf(sessionId), is(-1L));
+    }
+
+    /**
+     * ローカルファイルに保持する層を設定した場合、バージョンが一致する間はローカルファイルの内容が使用され、
+     * 他のノードで更新された場合はデータベースから読み込まれること。
+     * 有効期限だけが更新された場合はローカルファイルの内容が使用され続けること。
+     * また、再起動後もローカルファイルの内容が使用されること。
+     */
+    @Test
+    public void testLocalTier() throws Exception {
+        VariousDbTestHelper.createTable(VersionedUserSession.class);
+        final File directory = temporaryFolder.newFolder("tier");
+        final MappedSessionTier tier = createLocalTier(directory);
+        final DbStore store = createLocalTierStore(tier);
+        final DbStore otherNode = createLocalTierStore(null);
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final String sessionId = createSessionId();
+
+        store.save(sessionId, Arrays.asList(new SessionEntry("key", "first", store)), unusedCtx);
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key")), hasProperty("value", is("first")))));
+        assertThat("保存した内容が使用されること", tier.getHitCount(), is(1L));
+
+        final VersionedUserSession extended = VariousDbTestHelper.findById(VersionedUserSession.class, sessionId);
+        extended.expirationDatetime = new Timestamp(System.currentTimeMillis() + 3600000L);
+        VariousDbTestHelper.setUpTable(extended);
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key")), hasProperty("value", is("first")))));
+        assertThat("有効期限だけが更新された場合はローカルファイルの内容が使用されること", tier.getHitCount(), is(2L));
+
+        otherNode.save(sessionId, Arrays.asList(new SessionEntry("key", "second", store)), unusedCtx);
+        assertThat(store.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key")), hasProperty("value", is("second")))));
+        assertThat("バージョンが異なるためデータベースから読み込まれること", tier.getMissCount(), is(1L));
+
+        final MappedSessionTier restartedTier = createLocalTier(directory);
+        final DbStore restarted = createLocalTierStore(restartedTier);
+        assertThat(restarted.load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key")), hasProperty("value", is("second")))));
+        assertThat("再起動後もローカルファイルの内容が使用されること", restartedTier.getHitCount(), is(1L));
+
+        otherNode.delete(sessionId, unusedCtx);
+        assertTrue("削除されたセッションは使用されないこと", restarted.load(sessionId, unusedCtx).isEmpty());
+    }
+
+    /**
+     * 有効期限とデータベース、エンコーダを設定した{@link DbStore}を生成する。
+     * <p/>
+     * テストごとの設定を追加できるよう、初期化はしない。
+     *
+     * @return 初期化していない{@link DbStore}
+     */
+    private DbStore createStore() {
+        final DbStore store = new DbStore();
+        store.setExpires(1800L);
+        store.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        return store;
+    }
+
+    /**
+     * {@link MappedSessionTier}を生成する。
+     *
+     * @param directory ファイルを保存するディレクトリ
+     * @return {@link MappedSessionTier}
+     */
+    private MappedSessionTier createLocalTier(File directory) {
+        final MappedSessionTier tier = new MappedSessionTier();
+        tier.setDirectory(directory.getPath());
+        tier.setMaxBytes(1024 * 1024);
+        tier.initialize();
+        return tier;
+    }
+
+    /**
+     * ローカルファイルに保持する層を設定した{@link DbStore}を生成する。
+     *
+     * @param tier ノードのローカルファイルに保持する層(設定しない場合は{@code null})
+     * @return {@link DbStore}
+     */
+    private DbStore createLocalTierStore(MappedSessionTier tier) {
+        final DbStore store = createStore();
+        store.setUserSessionSchema(createVersionedSchema());
+        store.setLocalTier(tier);
+        store.initialize();
+        return store;
+    }
+
+    /**
+     * 共有値テーブルを設定した{@link DbStore}を生成する。
+     *
+     * @return {@link DbStore}
+     */
+    private DbStore createSharedValueStore() {
+        final SharedSessionValueSchema schema = new SharedSessionValueSchema();
+        schema.setTableName("USER_SESSION_SHARED_VALUE");
+        schema.setHashName("VALUE_HASH");
+        schema.setValueObjectName("VALUE_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+
+        final DbStore store = createStore();
+        store.setSharedValueSchema(schema);
+        store.setSharedValueThreshold(1024);
+        store.initialize();
+        return store;
+    }
+
+    /**
+     * 共有値テーブルとコールドテーブルを設定し、保存した直後のセッションも移動の対象とする{@link DbStore}を生成する。
+     *
+     * @return {@link DbStore}
+     */
+    private DbStore createColdSharedValueStore() {
+        final SharedSessionValueSchema schema = new SharedSessionValueSchema();
+        schema.setTableName("USER_SESSION_SHARED_VALUE");
+        schema.setHashName("VALUE_HASH");
+        schema.setValueObjectName("VALUE_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        final UserSessionSchema coldSchema = new UserSessionSchema();
+        coldSchema.setTableName("USER_SESSION_COLD");
+        coldSchema.setSessionIdName("SESSION_ID");
+        coldSchema.setSessionObjectName("SESSION_OBJECT");
+        coldSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+
+        final DbStore store = createStore();
+        store.setSharedValueSchema(schema);
+        store.setSharedValueThreshold(1024);
+        store.setColdSessionSchema(coldSchema);
+        store.setArchiveIdleSeconds(0);
+        store.initialize();
+        return store;
+    }
+
+    /**
+     * 既定の保存先と保存先のリゾルバを設定した{@link RoutingDbStore}を生成する。
+     *
+     * @param defaultStore 既定の保存先
+     * @param storageResolver 保存先のリゾルバ
+     * @return {@link RoutingDbStore}
+     */
+    private RoutingDbStore createRoutingStore(DbStore defaultStore, SessionStorageResolver storageResolver) {
+        final RoutingDbStore store = new RoutingDbStore();
+        store.setDefaultStore(defaultStore);
+        store.setStorageResolver(storageResolver);
+        store.initialize();
+        return store;
+    }
+
+    /**
+     * セッションごとのサイズの上限を設定した{@link DbStore}を生成する。
+     * <p/>
+     * {@link SessionOverflowStore}の閾値は、上限より十分大きくしておく。
+     *
+     * @param quota セッションごとのサイズの上限
+     * @param overflowStore サイズの大きいセッションオブジェクトの保存先
+     * @return {@link DbStore}
+     */
+    private DbStore createQuotaStore(SessionQuota quota, SessionOverflowStore overflowStore) {
+        final DbStore store = createStore();
+        store.setOverflowStore(overflowStore);
+        store.setOverflowThreshold(1000000);
+        store.setQuota(quota);
+        store.initialize();
+        return store;
+    }
+
+    /**
+     * 指定した長さの文字列を生成する。
+     *
+     * @param length 長さ
+     * @return 文字列
+     */
+    private static String createString(int length) {
+        return new String(new char[length]).replace('\0', 'a');
+    }
+
+    /**
+     * サイズの大きいセッションオブジェクトを{@link SessionOverflowStore}に保存する{@link DbStore}を生成する。
+     *
+     * @param overflowStore サイズの大きいセッションオブジェクトの保存先
+     * @return {@link DbStore}
+     */
+    private DbStore createOverflowStore(SessionOverflowStore overflowStore) {
+        final DbStore store = createStore();
+        store.setOverflowStore(overflowStore);
+        store.setOverflowThreshold(1024);
+        store.initialize();
+        return store;
+    }
+
+    /**
+     * バージョンを持つユーザセッションテーブル({@link VersionedUserSession})のスキーマを生成する。
+     *
+     * @return スキーマ
+     */
+    private static UserSessionSchema createVersionedSchema() {
+        final UserSessionSchema schema = new UserSessionSchema();
+        schema.setTableName("USER_SESSION_VERSIONED");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSessionObjectName("SESSION_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        schema.setVersionName("SESSION_VERSION");
+        return schema;
+    }
+
+    /**
+     * 差分保存モードの{@link DbStore}を生成する。
+     * <p/>
+     * 差分のサイズによらず差分が追記されるよう、差分の合計サイズの比率は十分大きくしておく。
+     *
+     * @param maxDeltaCount 差分の最大件数
+     * @return 差分保存モードの{@link DbStore}
+     */
+    private DbStore createDeltaStore(int maxDeltaCount) {
+        final SessionDeltaSchema schema = new SessionDeltaSchema();
+        schema.setTableName("USER_SESSION_DELTA");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSequenceName("DELTA_SEQ");
+        schema.setDeltaObjectName("DELTA_OBJECT");
+
+        final DbStore store = createStore();
+        store.setUserSessionSchema(createVersionedSchema());
+        store.setSessionDeltaSchema(schema);
+        store.setMaxDeltaCount(maxDeltaCount);
+        store.setDeltaCompactionRatio(100);
+        store.initialize();
+        return store;
+    }
+
     private static Comparator<SessionEntry> keySort = new Comparator<SessionEntry>() {
         @Override
         public int compare(SessionEntry o1, SessionEntry o2) {
@@ -0,0 +1,219 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@link ExpiredSessionPurger}のテスト。
+ *
+ * @author TIS
+ */
+@RunWith(DatabaseTestRunner.class)
+public class ExpiredSessionPurgerTest {
+
+    @ClassRule
+    public static SystemRepositoryResource repositoryResource = new SystemRepositoryResource(
+            "nablarch/common/web/session/store/db-store-test.xml");
+
+    private UserSessionSchema schema;
+
+    @Before
+    public void setUp() {
+        VariousDbTestHelper.createTable(BucketedUserSession.class);
+        schema = new UserSessionSchema();
+        schema.setTableName("USER_SESSION_BUCKETED");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSessionObjectName("SESSION_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        schema.setExpirationBucketName("EXPIRATION_BUCKET");
+    }
+
+    /**
+     * {@link DbStore}で保存した場合、有効期限バケットが保存されること。
+     */
+    @Test
+    public void testSaveExpirationBucket() {
+        final DbStore store = new DbStore();
+        store.setExpires(1800L);
+        store.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        store.setUserSessionSchema(schema);
+        store.initialize();
+
+        store.save("sid", Arrays.asList(new SessionEntry("key", "val", store)), new ExecutionContext());
+
+        final BucketedUserSession saved = VariousDbTestHelper.findById(BucketedUserSession.class, "sid");
+        assertThat(saved.expirationBucket, is(saved.expirationDatetime.getTime() / 3600000L));
+    }
+
+    /**
+     * 現在日時のバケットより前のバケットの行だけが削除されること。
+     */
+    @Test
+    public void testPurge() {
+        final long now = System.currentTimeMillis();
+        final long currentBucket = schema.toExpirationBucket(now);
+        VariousDbTestHelper.setUpTable(
+                new BucketedUserSession("expired1", new Timestamp(now - 7200000L), currentBucket - 2),
+                new BucketedUserSession("expired2", new Timestamp(now - 7100000L), currentBucket - 2),
+                new BucketedUserSession("expired3", new Timestamp(now - 3600000L), currentBucket - 1),
+                new BucketedUserSession("current", new Timestamp(now), currentBucket),
+                new BucketedUserSession("future", new Timestamp(now + 3600000L), currentBucket + 1));
+
+        final ExpiredSessionPurger sut = new ExpiredSessionPurger();
+        sut.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        sut.setUserSessionSchema(schema);
+        sut.initialize();
+
+        assertThat("2つのバケットが削除されること", sut.purge(), is(2));
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "expired1"), is(nullValue()));
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "expired2"), is(nullValue()));
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "expired3"), is(nullValue()));
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "current"), is(notNullValue()));
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "future"), is(notNullValue()));
+    }
+
+    /**
+     * 前のバケットに含まれていても、有効期限切れでない行は削除されないこと。
+     * (データベースの時計で有効期限を算出し、アプリケーションの時計でバケットを算出した場合)
+     */
+    @Test
+    public void testPurgeWithDatabaseClock() {
+        final long now = System.currentTimeMillis();
+        final long currentBucket = schema.toExpirationBucket(now);
+        VariousDbTestHelper.setUpTable(
+                new BucketedUserSession("expired", new Timestamp(now - 3600000L), currentBucket - 1),
+                new BucketedUserSession("skewed", new Timestamp(now + 600000L), currentBucket - 1));
+
+        final DatabaseClock clock = new DatabaseClock();
+        clock.setDialect("h2");
+        final ExpiredSessionPurger sut = new ExpiredSessionPurger();
+        sut.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        sut.setUserSessionSchema(schema);
+        sut.setDatabaseClock(clock);
+        sut.initialize();
+
+        sut.purge();
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "expired"), is(nullValue()));
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "skewed"), is(notNullValue()));
+    }
+
+    /**
+     * パーティションに有効期限切れでない行が含まれる場合は、切り捨てずに有効期限切れの行だけを削除すること。
+     */
+    @Test
+    public void testPartitionWithAliveSession() {
+        final long now = System.currentTimeMillis();
+        final long currentBucket = schema.toExpirationBucket(now);
+        VariousDbTestHelper.setUpTable(
+                new BucketedUserSession("expired1", new Timestamp(now - 7200000L), currentBucket - 2),
+                new BucketedUserSession("expired2", new Timestamp(now - 3600000L), currentBucket - 1),
+                new BucketedUserSession("skewed", new Timestamp(now + 600000L), currentBucket - 1));
+
+        final ExpiredSessionPurger sut = new ExpiredSessionPurger();
+        sut.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        sut.setUserSessionSchema(schema);
+        // パーティションの切り捨ての代わりに、バケットの全行を削除する
+        sut.setPartitionPurgeSqlTemplate("DELETE FROM USER_SESSION_BUCKETED WHERE EXPIRATION_BUCKET = {bucket}");
+        sut.initialize();
+
+        sut.purge();
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "expired1"), is(nullValue()));
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "expired2"), is(nullValue()));
+        assertThat(VariousDbTestHelper.findById(BucketedUserSession.class, "skewed"), is(notNullValue()));
+    }
+
+    /**
+     * セッション差分テーブルを設定した場合、ユーザセッションテーブルにもコールドテーブルにも
+     * 存在しないセッションの差分が削除されること。
+     */
+    @Test
+    public void testPurgeOrphanDeltas() {
+        VariousDbTestHelper.createTable(UserSessionDelta.class);
+        VariousDbTestHelper.createTable(ColdUserSession.class);
+        final long now = System.currentTimeMillis();
+        final long currentBucket = schema.toExpirationBucket(now);
+        VariousDbTestHelper.setUpTable(
+                new BucketedUserSession("expired", new Timestamp(now - 3600000L), currentBucket - 1),
+                new BucketedUserSession("current", new Timestamp(now + 600000L), currentBucket));
+        final ColdUserSession archived = new ColdUserSession();
+        archived.sessionId = "archived";
+        archived.expirationDatetime = new Timestamp(now + 600000L);
+        VariousDbTestHelper.setUpTable(archived);
+        VariousDbTestHelper.setUpTable(
+                new UserSessionDelta("expired", 1, new byte[] {1}),
+                new UserSessionDelta("current", 1, new byte[] {1}),
+                new UserSessionDelta("current", 2, new byte[] {2}),
+                new UserSessionDelta("archived", 1, new byte[] {1}),
+                new UserSessionDelta("deleted", 1, new byte[] {1}));
+
+        final SessionDeltaSchema deltaSchema = new SessionDeltaSchema();
+        deltaSchema.setTableName("USER_SESSION_DELTA");
+        deltaSchema.setSessionIdName("SESSION_ID");
+        deltaSchema.setSequenceName("DELTA_SEQ");
+        deltaSchema.setDeltaObjectName("DELTA_OBJECT");
+        final UserSessionSchema coldSchema = new UserSessionSchema();
+        coldSchema.setTableName("USER_SESSION_COLD");
+        coldSchema.setSessionIdName("SESSION_ID");
+        coldSchema.setSessionObjectName("SESSION_OBJECT");
+        coldSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+
+        final ExpiredSessionPurger sut = new ExpiredSessionPurger();
+        sut.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        sut.setUserSessionSchema(schema);
+        sut.setSessionDeltaSchema(deltaSchema);
+        sut.setColdSessionSchema(coldSchema);
+        sut.initialize();
+
+        sut.purge();
+        final List<String> remaining = new ArrayList<String>();
+        for (UserSessionDelta delta : VariousDbTestHelper.findAll(UserSessionDelta.class)) {
+            remaining.add(delta.sessionId + ":" + delta.deltaSeq);
+        }
+        Collections.sort(remaining);
+        assertThat(remaining, is(Arrays.asList("archived:1", "current:1", "current:2")));
+    }
+
+    /**
+     * セッションIDをバイナリで保存する場合は、セッション差分テーブルを設定すると初期化時に例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testDeltaWithBinarySessionId() {
+        schema.setBinarySessionId(true);
+        final ExpiredSessionPurger sut = new ExpiredSessionPurger();
+        sut.setUserSessionSchema(schema);
+        sut.setSessionDeltaSchema(new SessionDeltaSchema());
+        sut.initialize();
+    }
+
+    /**
+     * 有効期限バケットカラムが設定されていない場合、初期化時に例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testWithoutBucketColumn() {
+        schema.setExpirationBucketName(null);
+        final ExpiredSessionPurger sut = new ExpiredSessionPurger();
+        sut.setUserSessionSchema(schema);
+        sut.initialize();
+    }
+}
@@ -0,0 +1,111 @@
+package nablarch.common.web.session.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link MappedSessionTier}のテスト。
+ *
+ * @author TIS
+ */
+public class MappedSessionTierTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * バージョンが一致する場合だけ取得でき、再起動後も内容が残ること。
+     */
+    @Test
+    public void testGetAndRecover() throws Exception {
+        final File directory = temporaryFolder.newFolder("tier");
+        final MappedSessionTier tier = createTier(directory, 64 * 1024);
+        tier.put("s1", 100L, new byte[] {1, 2, 3});
+        tier.put("s2", 200L, new byte[] {4});
+        tier.put("s1", 101L, new byte[] {5, 6});
+
+        assertArrayEquals(new byte[] {5, 6}, tier.get("s1", 101L));
+        assertThat("バージョンが異なる場合は取得できないこと", tier.get("s1", 100L), nullValue());
+        assertThat(tier.getHitCount(), is(1L));
+        assertThat(tier.getMissCount(), is(1L));
+
+        final MappedSessionTier restarted = createTier(directory, 64 * 1024);
+        assertThat(restarted.size(), is(2));
+        assertArrayEquals("最新のレコードが使用されること", new byte[] {5, 6}, restarted.get("s1", 101L));
+        assertArrayEquals(new byte[] {4}, restarted.get("s2", 200L));
+    }
+
+    /**
+     * 壊れたレコード以降は、再起動時に破棄されること。
+     */
+    @Test
+    public void testRecoverFromCorruptedRecord() throws Exception {
+        final File directory = temporaryFolder.newFolder("tier");
+        final MappedSessionTier tier = createTier(directory, 64 * 1024);
+        tier.put("s1", 100L, new byte[] {1, 2, 3});
+        tier.put("s2", 200L, new byte[] {4, 5, 6});
+
+        // 2件目のセッションオブジェクトの最後のバイトを書き換える
+        final RandomAccessFile raf = new RandomAccessFile(new File(directory, "session-tier.dat"), "rw");
+        try {
+            final long position = 4 + (8 + 2 + 2 + 8 + 3) + (8 + 2 + 2 + 8 + 2);
+            raf.seek(position);
+            raf.write(99);
+        } finally {
+            raf.close();
+        }
+
+        final MappedSessionTier restarted = createTier(directory, 64 * 1024);
+        assertThat(restarted.size(), is(1));
+        assertArrayEquals(new byte[] {1, 2, 3}, restarted.get("s1", 100L));
+        assertThat(restarted.get("s2", 200L), nullValue());
+    }
+
+    /**
+     * ファイルの末尾に達した場合はバックグラウンドで詰め直し、最大バイト数の半分を超える分は古いレコードから破棄されること。
+     * また、詰め直している間は保持した内容が使用されないこと。
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        final File directory = temporaryFolder.newFolder("tier");
+        final MappedSessionTier tier = createTier(directory, 4096);
+        final byte[] value = new byte[100];
+        int i = 0;
+        while (!tier.isCompacting() && i < 1000) {
+            tier.put("s" + (i % 20), i, value);
+            i++;
+        }
+        assertTrue("ファイルの末尾に達した場合は詰め直すこと", i < 1000);
+        tier.put("during", 1L, value);
+        while (tier.isCompacting()) {
+            Thread.sleep(10L);
+        }
+        assertTrue(tier.size() <= 20);
+        assertThat(tier.get("s0", 0L), nullValue());
+
+        tier.put("s19", 1000L, value);
+        assertArrayEquals("詰め直した後は保持できること", value, tier.get("s19", 1000L));
+
+        final MappedSessionTier restarted = createTier(directory, 4096);
+        assertThat(restarted.size(), is(tier.size()));
+        assertArrayEquals(value, restarted.get("s19", 1000L));
+    }
+
+    private MappedSessionTier createTier(File directory, long maxBytes) {
+        final MappedSessionTier tier = new MappedSessionTier();
+        tier.setDirectory(directory.getPath());
+        tier.setMaxBytes(maxBytes);
+        tier.initialize();
+        return tier;
+    }
+}
@@ -0,0 +1,165 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.web.session.DbManagedExpiration;
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@link SessionChangeLogPoller}のテスト。
+ *
+ * @author TIS
+ */
+@RunWith(DatabaseTestRunner.class)
+public class SessionChangeLogPollerTest {
+
+    @ClassRule
+    public static SystemRepositoryResource repositoryResource = new SystemRepositoryResource(
+            "nablarch/common/web/session/store/db-store-test.xml");
+
+    private final List<String> events = new ArrayList<String>();
+
+    private SimpleDbTransactionManager dbManager;
+
+    private SessionChangeLogSchema schema;
+
+    private SessionChangeLogPoller poller;
+
+    @Before
+    public void setUp() {
+        VariousDbTestHelper.createTable(UserSession.class);
+        VariousDbTestHelper.createTable(UserSessionChangeLog.class);
+        dbManager = repositoryResource.getComponent("transaction");
+        new SimpleDbTransactionExecutor<Void>(dbManager) {
+            @Override
+            public Void execute(AppDbConnection connection) {
+                connection.prepareStatement("CREATE SEQUENCE IF NOT EXISTS USER_SESSION_CHANGE_SEQ").executeUpdate();
+                return null;
+            }
+        }.doTransaction();
+
+        schema = new SessionChangeLogSchema();
+        schema.setTableName("USER_SESSION_CHANGE_LOG");
+        schema.setSequenceName("CHANGE_SEQ");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setChangeTypeName("CHANGE_TYPE");
+        schema.setChangedAtName("CHANGED_AT");
+        schema.setSequenceExpression("NEXT VALUE FOR USER_SESSION_CHANGE_SEQ");
+
+        poller = new SessionChangeLogPoller();
+        poller.setDbManager(dbManager);
+        poller.setChangeLogSchema(schema);
+        poller.setPollIntervalMillis(0);
+        poller.setListeners(Collections.<SessionChangeListener>singletonList(new SessionChangeListener() {
+            @Override
+            public void sessionChanged(String sessionId, SessionChangeType changeType) {
+                events.add(changeType + ":" + sessionId);
+            }
+        }));
+        poller.initialize();
+    }
+
+    /**
+     * 保存・削除・有効期限の更新が、変更ログを通じて通知されること。
+     */
+    @Test
+    public void testPoll() {
+        final DbStore store = new DbStore();
+        store.setExpires(1800L);
+        store.setDbManager(dbManager);
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        store.setChangeLogSchema(schema);
+        store.initialize();
+        final DbManagedExpiration expiration = new DbManagedExpiration();
+        expiration.setDbManager(dbManager);
+        expiration.setChangeLogSchema(schema);
+        expiration.initialize();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        final String sessionId1 = UUID.randomUUID().toString();
+        final String sessionId2 = UUID.randomUUID().toString();
+        store.save(sessionId1, Arrays.asList(new SessionEntry("key", "value1", store)), unusedCtx);
+        store.save(sessionId2, Arrays.asList(new SessionEntry("key", "value2", store)), unusedCtx);
+        assertThat(poller.poll(), is(2));
+        assertThat(events, is(Arrays.asList("SAVE:" + sessionId1, "SAVE:" + sessionId2)));
+
+        events.clear();
+        store.delete(sessionId1, unusedCtx);
+        expiration.saveExpirationDateTime(sessionId2, System.currentTimeMillis() + 1800000L, unusedCtx);
+        assertThat(poller.poll(), is(2));
+        assertThat(events, is(Arrays.asList("DELETE:" + sessionId1, "EXPIRATION:" + sessionId2)));
+
+        events.clear();
+        assertThat("通知済みの変更は再度通知されないこと", poller.poll(), is(0));
+
+        store.delete(sessionId1, unusedCtx);
+        store.deleteAll(Arrays.asList(sessionId1, UUID.randomUUID().toString()), unusedCtx);
+        assertThat("削除されなかったセッションの変更ログは記録されないこと", poller.poll(), is(0));
+    }
+
+    /**
+     * リスナが例外を送出しても、残りのリスナ・変更に通知されること。
+     */
+    @Test
+    public void testListenerFailure() {
+        poller.setListeners(Arrays.<SessionChangeListener>asList(new SessionChangeListener() {
+            @Override
+            public void sessionChanged(String sessionId, SessionChangeType changeType) {
+                throw new IllegalStateException("listener failure");
+            }
+        }, new SessionChangeListener() {
+            @Override
+            public void sessionChanged(String sessionId, SessionChangeType changeType) {
+                events.add(changeType + ":" + sessionId);
+            }
+        }));
+        long max = 0;
+        for (UserSessionChangeLog log : VariousDbTestHelper.findAll(UserSessionChangeLog.class)) {
+            max = Math.max(max, log.changeSeq);
+        }
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        VariousDbTestHelper.insert(new UserSessionChangeLog(max + 1, "first", "S", now));
+        VariousDbTestHelper.insert(new UserSessionChangeLog(max + 2, "second", "D", now));
+        assertThat(poller.poll(), is(2));
+        assertThat(events, is(Arrays.asList("SAVE:first", "DELETE:second")));
+        assertThat(poller.poll(), is(0));
+    }
+
+    /**
+     * 後からコミットされた欠番の変更ログも通知されること。
+     */
+    @Test
+    public void testGap() {
+        long max = 0;
+        for (UserSessionChangeLog log : VariousDbTestHelper.findAll(UserSessionChangeLog.class)) {
+            max = Math.max(max, log.changeSeq);
+        }
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        VariousDbTestHelper.insert(new UserSessionChangeLog(max + 2, "late", "S", now));
+        assertThat(poller.poll(), is(1));
+        VariousDbTestHelper.insert(new UserSessionChangeLog(max + 1, "early", "D", now));
+        assertThat(poller.poll(), is(1));
+        assertThat(events, is(Arrays.asList("SAVE:late", "DELETE:early")));
+        assertThat(poller.poll(), is(0));
+    }
+}
@@ -0,0 +1,160 @@
+package nablarch.common.web.session.store;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SessionEncodeBufferPool}のテスト。
+ *
+ * @author TIS
+ */
+public class SessionEncodeBufferPoolTest {
+
+    /** セッションに保存する値のバイト数 */
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+
+    /** 書き込みの回数 */
+    private static final int ROUNDS = 200;
+
+    /**
+     * 返却したバッファが同じスレッドで再利用されること。
+     */
+    @Test
+    public void testReuse() {
+        final SessionEncodeBufferPool pool = new SessionEncodeBufferPool(1024 * 1024);
+        final SessionEncodeBuffer first = pool.acquire();
+        first.write(new byte[100], 0, 100);
+        pool.release(first);
+
+        final SessionEncodeBuffer second = pool.acquire();
+        assertThat(second, sameInstance(first));
+        assertThat("返却前のバッファは別のものが返されること", pool.acquire(), not(sameInstance(second)));
+        assertThat(second.size(), is(0));
+    }
+
+    /**
+     * 最大バイト数を超えるバッファは再利用されないこと。
+     */
+    @Test
+    public void testLargeBufferIsNotRetained() {
+        final SessionEncodeBufferPool pool = new SessionEncodeBufferPool(1024);
+        final SessionEncodeBuffer buffer = pool.acquire();
+        buffer.write(new byte[4096], 0, 4096);
+        pool.release(buffer);
+
+        assertThat(pool.acquire(), not(sameInstance(buffer)));
+    }
+
+    /**
+     * プールしたバッファを使用して{@link DbStore#encodePooled(List, SessionEncodeBuffer)}でエンコードした場合、
+     * {@link nablarch.common.web.session.SessionStore#encode(List)}でエンコードする場合(本機能を使用しない場合)に比べて、
+     * 1回あたり少なくともセッションオブジェクトのバイト数分、割り当てるメモリが少ないこと(割り当てバイト数のベンチマーク)。
+     * <p/>
+     * 値のエンコード({@link JavaSerializeStateEncoder})で割り当てるメモリはどちらの場合も同じため、差だけを検証する。
+     * スレッドごとの割り当てバイト数を取得できないJVMでは実行しない。
+     */
+    @Test
+    public void testAllocationBenchmark() throws Exception {
+        final Method allocatedBytes = getThreadAllocatedBytesMethod();
+        Assume.assumeTrue(allocatedBytes != null);
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final EncodingDbStore store = new EncodingDbStore();
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        final List<SessionEntry> entries = Arrays.asList(
+                new SessionEntry("payload", new byte[PAYLOAD_SIZE], store),
+                new SessionEntry("user", "user-id", store));
+        final SessionEncodeBufferPool pool = new SessionEncodeBufferPool(1024 * 1024);
+
+        // ウォームアップ(プールの容量を適応させる)
+        for (int i = 0; i < 10; i++) {
+            encodePooled(store, pool, entries);
+            store.encodeOriginal(entries);
+        }
+
+        long start = (Long) allocatedBytes.invoke(bean, threadId);
+        byte[] original = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            original = store.encodeOriginal(entries);
+        }
+        final long originalAllocated = (Long) allocatedBytes.invoke(bean, threadId) - start;
+
+        start = (Long) allocatedBytes.invoke(bean, threadId);
+        int pooledSize = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            pooledSize = encodePooled(store, pool, entries);
+        }
+        final long pooledAllocated = (Long) allocatedBytes.invoke(bean, threadId) - start;
+
+        final List<SessionEntry> decoded = store.decode(original);
+        assertThat("元の形式でエンコードされていること", decoded.size(), is(entries.size()));
+        assertThat(decoded.get(1).getValue(), is((Object) "user-id"));
+        assertTrue("original = " + originalAllocated + ", pooled = " + pooledAllocated,
+                (originalAllocated - pooledAllocated) / ROUNDS >= pooledSize);
+    }
+
+    /**
+     * スレッドごとの割り当てバイト数を取得するメソッドを取得する。
+     * <p/>
+     * {@code com.sun.management.ThreadMXBean}はJVMの実装によっては存在しないため、リフレクションで取得する。
+     *
+     * @return 割り当てバイト数を取得するメソッド。取得できない場合は{@code null}
+     * @throws Exception リフレクションに失敗した場合
+     */
+    private static Method getThreadAllocatedBytesMethod() throws Exception {
+        final Class<?> beanClass;
+        try {
+            beanClass = Class.forName("com.sun.management.ThreadMXBean");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!beanClass.isInstance(bean)
+                || !(Boolean) beanClass.getMethod("isThreadAllocatedMemorySupported").invoke(bean)
+                || !(Boolean) beanClass.getMethod("isThreadAllocatedMemoryEnabled").invoke(bean)) {
+            return null;
+        }
+        return beanClass.getMethod("getThreadAllocatedBytes", long.class);
+    }
+
+    private static int encodePooled(DbStore store, SessionEncodeBufferPool pool, List<SessionEntry> entries) {
+        final SessionEncodeBuffer buffer = pool.acquire();
+        try {
+            store.encodePooled(entries, buffer);
+            return buffer.size();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * {@link nablarch.common.web.session.SessionStore#encode(List)}を呼び出すための{@link DbStore}。
+     */
+    private static class EncodingDbStore extends DbStore {
+
+        /**
+         * {@link nablarch.common.web.session.SessionStore}の形式でエンコードする。
+         *
+         * @param entries セッションに保存する情報
+         * @return エンコードしたセッションオブジェクト
+         */
+        byte[] encodeOriginal(List<SessionEntry> entries) {
+            return encode(entries);
+        }
+    }
+}
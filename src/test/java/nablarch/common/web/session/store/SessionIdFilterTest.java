@@ -0,0 +1,204 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.web.session.DbManagedExpiration;
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link SessionIdFilter}のテスト。
+ *
+ * @author TIS
+ */
+@RunWith(DatabaseTestRunner.class)
+public class SessionIdFilterTest {
+
+    @ClassRule
+    public static SystemRepositoryResource repositoryResource = new SystemRepositoryResource(
+            "nablarch/common/web/session/store/db-store-test.xml");
+
+    private SessionIdFilter sut;
+
+    @Before
+    public void setUp() {
+        VariousDbTestHelper.createTable(UserSession.class);
+        VariousDbTestHelper.setUpTable(
+                new UserSession("alive", null, new Timestamp(System.currentTimeMillis() + 3600000L)),
+                new UserSession("expired", null, new Timestamp(System.currentTimeMillis() - 3600000L)));
+
+        sut = new SessionIdFilter();
+        sut.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        sut.setExpectedInsertions(1000);
+        sut.setRebuildIntervalSeconds(0);
+        sut.setLocalSessionsOnly(true);
+        sut.initialize();
+    }
+
+    /**
+     * 初期化時に、有効期限に関わらずテーブルに存在するセッションIDからフィルタが構築されること。
+     */
+    @Test
+    public void testInitialize() {
+        assertTrue(sut.mightContain("alive"));
+        assertTrue("削除時に取り除けるよう、有効期限切れのセッションIDも含まれること", sut.mightContain("expired"));
+        assertFalse(sut.mightContain("unknown"));
+    }
+
+    /**
+     * 全てのセッションが本ノードで登録される環境であることを設定していない場合、初期化時に例外が送出されること。
+     */
+    @Test
+    public void testLocalSessionsOnlyRequired() {
+        final SessionIdFilter filter = new SessionIdFilter();
+        filter.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        filter.setRebuildIntervalSeconds(0);
+        try {
+            filter.initialize();
+            fail("明示的に設定していない場合は使用できないこと");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("localSessionsOnly"));
+        }
+    }
+
+    /**
+     * 取り除いたセッションIDは含まれなくなり、同じハッシュ値を共有する他のセッションIDは含まれたままであること。
+     */
+    @Test
+    public void testRemove() {
+        final List<String> sessionIds = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            final String sessionId = "sid" + i;
+            sut.add(sessionId);
+            sessionIds.add(sessionId);
+        }
+        for (int i = 0; i < 250; i++) {
+            sut.remove(sessionIds.get(i));
+        }
+        for (int i = 250; i < 500; i++) {
+            assertTrue("取り除いていないセッションIDは含まれたままであること", sut.mightContain(sessionIds.get(i)));
+        }
+        int remaining = 0;
+        for (int i = 0; i < 250; i++) {
+            if (sut.mightContain(sessionIds.get(i))) {
+                remaining++;
+            }
+        }
+        assertTrue("取り除いたセッションIDは偽陽性を除いて含まれないこと: " + remaining, remaining < 25);
+
+        // 含まれていないセッションIDを取り除いても、他のセッションIDに影響しないこと
+        sut.remove("unknown");
+        assertTrue(sut.mightContain("alive"));
+    }
+
+    /**
+     * 破棄した後は定期的な再構築が行われないこと。
+     */
+    @Test
+    public void testDispose() throws Exception {
+        final SessionIdFilter filter = new SessionIdFilter();
+        filter.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        filter.setRebuildIntervalSeconds(1);
+        filter.setLocalSessionsOnly(true);
+        filter.initialize();
+        filter.dispose();
+
+        VariousDbTestHelper.createTable(UserSession.class);
+        Thread.sleep(1500L);
+        assertTrue("破棄した後は再構築されないこと", filter.mightContain("alive"));
+    }
+
+    /**
+     * 追加がフィルタに反映され、テーブルから削除したセッションIDは再構築で取り除かれること。
+     */
+    @Test
+    public void testAddAndRebuild() {
+        sut.add("added");
+        assertTrue(sut.mightContain("added"));
+
+        VariousDbTestHelper.setUpTable(
+                new UserSession("expired", null, new Timestamp(System.currentTimeMillis() - 3600000L)));
+        assertTrue("再構築するまでは削除したセッションIDも含まれること", sut.mightContain("alive"));
+        sut.rebuild();
+        assertTrue("直前に追加したセッションIDは再構築後も含まれること", sut.mightContain("added"));
+        assertFalse("テーブルから削除したセッションIDは再構築で取り除かれること", sut.mightContain("alive"));
+    }
+
+    /**
+     * {@link DbStore}での登録がフィルタに反映され、
+     * フィルタに含まれないセッションIDはDBにアクセスせずに空のセッションとなること。
+     */
+    @Test
+    public void testDbStore() {
+        final DbStore store = new DbStore();
+        store.setExpires(1800L);
+        store.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        store.setSessionIdFilter(sut);
+        store.initialize();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        store.save("sid", Arrays.asList(new SessionEntry("key", "val", store)), unusedCtx);
+        assertTrue(sut.mightContain("sid"));
+        assertThat(store.load("sid", unusedCtx).size(), is(1));
+
+        // フィルタに含まれないセッションIDはテーブルに存在してもロードされない
+        VariousDbTestHelper.insert(new UserSession("bypass", null, new Timestamp(System.currentTimeMillis() + 3600000L)));
+        assertTrue(store.load("bypass", unusedCtx).isEmpty());
+
+        // 削除したセッションIDはフィルタから取り除かれる
+        store.delete("sid", unusedCtx);
+        assertFalse(sut.mightContain("sid"));
+        assertTrue(store.load("sid", unusedCtx).isEmpty());
+
+        // 空のセッションの保存による削除と、一括での削除でも取り除かれる
+        store.save("sid2", Arrays.asList(new SessionEntry("key", "val", store)), unusedCtx);
+        store.save("sid3", Arrays.asList(new SessionEntry("key", "val", store)), unusedCtx);
+        store.save("sid2", Collections.<SessionEntry>emptyList(), unusedCtx);
+        assertFalse(sut.mightContain("sid2"));
+        store.deleteAll(Arrays.asList("sid3", "unknown"), unusedCtx);
+        assertFalse(sut.mightContain("sid3"));
+        assertTrue("削除していないセッションIDは残ること", sut.mightContain("alive"));
+    }
+
+    /**
+     * {@link DbManagedExpiration}での登録がフィルタに反映され、
+     * フィルタに含まれないセッションIDは有効期限切れと判定されること。
+     */
+    @Test
+    public void testDbManagedExpiration() {
+        final DbManagedExpiration expiration = new DbManagedExpiration();
+        expiration.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        expiration.setSessionIdFilter(sut);
+        expiration.initialize();
+        final ExecutionContext unusedCtx = new ExecutionContext();
+
+        assertFalse(expiration.isDeterminable("sid", unusedCtx));
+        assertTrue(expiration.isExpired("sid", 0, unusedCtx));
+
+        expiration.saveExpirationDateTime("sid", 1000, unusedCtx);
+        assertTrue(sut.mightContain("sid"));
+        assertTrue(expiration.isDeterminable("sid", unusedCtx));
+        assertFalse(expiration.isExpired("sid", 0, unusedCtx));
+    }
+}
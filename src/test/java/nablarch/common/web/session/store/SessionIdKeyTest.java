@@ -0,0 +1,82 @@
+package nablarch.common.web.session.store;
+
+import mockit.Mocked;
+import mockit.Verifications;
+import nablarch.core.db.statement.SqlPStatement;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link SessionIdKey}のテスト。
+ *
+ * @author TIS
+ */
+public class SessionIdKeyTest {
+
+    @Mocked
+    private SqlPStatement statement;
+
+    /**
+     * 文字列で保存する設定の場合は、セッションIDをそのままバインドすること。
+     */
+    @Test
+    public void testStringSessionId() {
+        final SessionIdKey key = SessionIdKey.of("not-uuid", createSchema(false));
+        assertThat(key.isValid(), is(true));
+        key.bind(statement, 1);
+        new Verifications() {{
+            statement.setString(1, "not-uuid");
+        }};
+    }
+
+    /**
+     * バイナリで保存する設定の場合は、UUIDを16バイトに変換してバインドし、元の文字列に戻せること。
+     */
+    @Test
+    public void testBinarySessionId() {
+        final UUID uuid = UUID.randomUUID();
+        final SessionIdKey key = SessionIdKey.of(uuid.toString(), createSchema(true));
+        assertThat(key.isValid(), is(true));
+        key.bind(statement, 2);
+
+        final byte[] expected = ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+        new Verifications() {{
+            statement.setBytes(2, expected);
+        }};
+        assertThat(SessionIdKey.toSessionId(expected), is(uuid.toString()));
+    }
+
+    /**
+     * バイナリで保存する設定の場合、正規形式のUUIDでないセッションIDはバインドできないこと。
+     */
+    @Test
+    public void testInvalidBinarySessionId() {
+        final UserSessionSchema schema = createSchema(true);
+        final String upperCase = UUID.randomUUID().toString().toUpperCase();
+        assertThat(SessionIdKey.of(upperCase, schema).isValid(), is(false));
+        assertThat(SessionIdKey.of("not-uuid", schema).isValid(), is(false));
+        assertThat(SessionIdKey.of("0123456789012345678901234567890123456", schema).isValid(), is(false));
+
+        try {
+            SessionIdKey.of("not-uuid", schema).bind(statement, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("session id must be UUID format. session id = not-uuid"));
+        }
+    }
+
+    private static UserSessionSchema createSchema(boolean binarySessionId) {
+        final UserSessionSchema schema = new UserSessionSchema();
+        schema.setBinarySessionId(binarySessionId);
+        return schema;
+    }
+}
@@ -0,0 +1,76 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SessionSizeStatistics}のテスト。
+ *
+ * @author TIS
+ */
+public class SessionSizeStatisticsTest {
+
+    private final JavaSerializeStateEncoder encoder = new JavaSerializeStateEncoder();
+
+    /**
+     * キーごと・値のクラスごとに、サイズの合計が大きい順に集計されること。
+     */
+    @Test
+    public void testTopKeys() {
+        final SessionSizeStatistics statistics = new SessionSizeStatistics();
+        statistics.setSampleInterval(1);
+        statistics.setTopN(2);
+        statistics.setLogIntervalSeconds(0);
+        statistics.initialize();
+
+        final String large = new String(new char[10000]).replace('\0', 'a');
+        for (int i = 0; i < 3; i++) {
+            statistics.sample(Arrays.asList(
+                    new SessionEntry("small", "s", null),
+                    new SessionEntry("large", large, null),
+                    new SessionEntry("number", Integer.valueOf(i), null),
+                    new SessionEntry("empty", null, null)), encoder);
+        }
+
+        final List<SessionSizeStatistics.Stats> keys = statistics.getTopKeys();
+        assertThat(keys.size(), is(2));
+        assertThat(keys.get(0).getName(), is("large"));
+        assertThat(keys.get(0).getCount(), is(3L));
+        assertTrue(keys.get(0).getMaxBytes() > 10000);
+        assertThat("10000バイト以上16384バイト未満のバケットに記録されること", keys.get(0).getHistogram()[14], is(3L));
+
+        final List<SessionSizeStatistics.Stats> classes = statistics.getTopValueClasses();
+        assertThat(classes.get(0).getName(), is("java.lang.String"));
+        assertThat(classes.get(0).getCount(), is(6L));
+        assertThat(classes.get(1).getName(), is("java.lang.Integer"));
+
+        assertThat(statistics.getSessionStats().getCount(), is(3L));
+
+        statistics.logAndReset();
+        assertThat("ログに出力するとリセットされること", statistics.getTopKeys().size(), is(0));
+    }
+
+    /**
+     * 指定した間隔の保存だけが記録されること。
+     */
+    @Test
+    public void testSampleInterval() {
+        final SessionSizeStatistics statistics = new SessionSizeStatistics();
+        statistics.setSampleInterval(4);
+        statistics.setLogIntervalSeconds(0);
+        statistics.initialize();
+
+        for (int i = 0; i < 10; i++) {
+            statistics.sample(Arrays.asList(new SessionEntry("key", "value", null)), encoder);
+        }
+        assertThat(statistics.getSessionStats().getCount(), is(2L));
+    }
+}
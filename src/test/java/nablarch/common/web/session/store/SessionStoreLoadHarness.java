@@ -0,0 +1,510 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.web.session.DbManagedExpiration;
+import nablarch.common.web.session.SessionEntry;
+import nablarch.fw.ExecutionContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DbStore}と{@link DbManagedExpiration}に多数のユーザからの同時アクセスを模した負荷をかけるハーネス。
+ * <p/>
+ * ユーザごとに1つのセッションを使用し、セッションごとに{@link #setParallelRequestsPerSession(int)}の数の
+ * スレッドから同時にリクエストを送る。1回のリクエストでは、有効期限の確認、セッションの読み込み、
+ * 自スレッドのカウンタの更新、セッションの保存、有効期限の保存を順に行う。
+ * <p/>
+ * セッションの保存は後勝ちのため、同じセッションへの同時リクエストでは他スレッドの更新が失われ得る。
+ * 失われた更新の数は、各スレッドが保存に成功した回数と、最終的に保存されているカウンタの差として算出する。
+ *
+ * @author TIS
+ */
+public class SessionStoreLoadHarness {
+
+    /** ユーザ数 */
+    private int users = 10;
+
+    /** セッションごとの同時リクエスト数 */
+    private int parallelRequestsPerSession = 1;
+
+    /** スレッドごとのリクエスト数 */
+    private int requestsPerThread = 20;
+
+    /** リクエスト間の思考時間(ミリ秒) */
+    private long thinkTimeMillis = 0L;
+
+    /** セッションに保存する値のサイズの分布 */
+    private PayloadDistribution payloadDistribution = fixed(100);
+
+    /** 乱数のシード */
+    private long seed = 1L;
+
+    /**
+     * ユーザ数をセットする。
+     *
+     * @param users ユーザ数
+     * @return 本オブジェクト
+     */
+    public SessionStoreLoadHarness setUsers(int users) {
+        this.users = users;
+        return this;
+    }
+
+    /**
+     * セッションごとの同時リクエスト数をセットする。
+     *
+     * @param parallelRequestsPerSession セッションごとの同時リクエスト数
+     * @return 本オブジェクト
+     */
+    public SessionStoreLoadHarness setParallelRequestsPerSession(int parallelRequestsPerSession) {
+        this.parallelRequestsPerSession = parallelRequestsPerSession;
+        return this;
+    }
+
+    /**
+     * スレッドごとのリクエスト数をセットする。
+     *
+     * @param requestsPerThread スレッドごとのリクエスト数
+     * @return 本オブジェクト
+     */
+    public SessionStoreLoadHarness setRequestsPerThread(int requestsPerThread) {
+        this.requestsPerThread = requestsPerThread;
+        return this;
+    }
+
+    /**
+     * リクエスト間の思考時間をセットする。
+     * <p/>
+     * 実際の思考時間は0から指定した値の2倍までの一様分布とする。
+     *
+     * @param thinkTimeMillis 思考時間の平均(ミリ秒)
+     * @return 本オブジェクト
+     */
+    public SessionStoreLoadHarness setThinkTimeMillis(long thinkTimeMillis) {
+        this.thinkTimeMillis = thinkTimeMillis;
+        return this;
+    }
+
+    /**
+     * セッションに保存する値のサイズの分布をセットする。
+     *
+     * @param payloadDistribution 値のサイズの分布
+     * @return 本オブジェクト
+     */
+    public SessionStoreLoadHarness setPayloadDistribution(PayloadDistribution payloadDistribution) {
+        this.payloadDistribution = payloadDistribution;
+        return this;
+    }
+
+    /**
+     * 乱数のシードをセットする。
+     *
+     * @param seed 乱数のシード
+     * @return 本オブジェクト
+     */
+    public SessionStoreLoadHarness setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * 負荷をかけ、結果を集計する。
+     *
+     * @param store 負荷をかける{@link DbStore}
+     * @param expiration 負荷をかける{@link DbManagedExpiration}
+     * @return 結果
+     * @throws Exception 負荷をかけるスレッドの待機中に割り込まれた場合など
+     */
+    public Result run(final DbStore store, final DbManagedExpiration expiration) throws Exception {
+        final int threads = users * parallelRequestsPerSession;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long storeRetriesBefore = store.getDuplicateRetryCount();
+        final long expirationRetriesBefore = expiration.getDuplicateRetryCount();
+        final List<String> sessionIds = new ArrayList<String>();
+        final List<Future<Worker>> futures = new ArrayList<Future<Worker>>();
+        try {
+            for (int user = 0; user < users; user++) {
+                final String sessionId = UUID.randomUUID().toString();
+                sessionIds.add(sessionId);
+                for (int slot = 0; slot < parallelRequestsPerSession; slot++) {
+                    final Worker worker = new Worker(store, expiration, sessionId, "counter-" + slot,
+                            new Random(seed + user * 1000L + slot));
+                    futures.add(executor.submit(new Callable<Worker>() {
+                        @Override
+                        public Worker call() throws Exception {
+                            start.await();
+                            worker.run();
+                            return worker;
+                        }
+                    }));
+                }
+            }
+            final long startNanos = System.nanoTime();
+            start.countDown();
+
+            final List<Worker> workers = new ArrayList<Worker>();
+            for (Future<Worker> future : futures) {
+                workers.add(future.get());
+            }
+            final long elapsedNanos = System.nanoTime() - startNanos;
+
+            return new Result(workers, countLostUpdates(store, sessionIds, workers), elapsedNanos,
+                    store.getDuplicateRetryCount() - storeRetriesBefore
+                            + expiration.getDuplicateRetryCount() - expirationRetriesBefore);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 失われた更新の数を数える。
+     *
+     * @param store {@link DbStore}
+     * @param sessionIds セッションID
+     * @param workers 負荷をかけたスレッド
+     * @return 失われた更新の数
+     */
+    private static long countLostUpdates(DbStore store, List<String> sessionIds, List<Worker> workers) {
+        long lost = 0;
+        for (String sessionId : sessionIds) {
+            final List<SessionEntry> entries = store.load(sessionId, new ExecutionContext());
+            for (Worker worker : workers) {
+                if (worker.sessionId.equals(sessionId)) {
+                    lost += worker.successCount - counterOf(entries, worker.counterKey);
+                }
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * セッションに保存されたカウンタの値を取得する。
+     *
+     * @param entries セッションに保存された情報
+     * @param counterKey カウンタのキー
+     * @return カウンタの値(保存されていない場合は0)
+     */
+    private static int counterOf(List<SessionEntry> entries, String counterKey) {
+        for (SessionEntry entry : entries) {
+            if (entry.getKey().equals(counterKey)) {
+                return (Integer) entry.getValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 1つのセッションに対してリクエストを送るスレッドの処理。
+     */
+    private class Worker {
+
+        /** {@link DbStore} */
+        private final DbStore store;
+
+        /** {@link DbManagedExpiration} */
+        private final DbManagedExpiration expiration;
+
+        /** セッションID */
+        private final String sessionId;
+
+        /** 本スレッドが更新するカウンタのキー */
+        private final String counterKey;
+
+        /** 乱数 */
+        private final Random random;
+
+        /** リクエストごとの処理時間(ナノ秒) */
+        private final long[] latencies = new long[requestsPerThread];
+
+        /** 成功したリクエストの数 */
+        private int successCount;
+
+        /** 失敗したリクエストの数 */
+        private int errorCount;
+
+        /** 最初に発生した例外 */
+        private Throwable firstError;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param store {@link DbStore}
+         * @param expiration {@link DbManagedExpiration}
+         * @param sessionId セッションID
+         * @param counterKey カウンタのキー
+         * @param random 乱数
+         */
+        private Worker(DbStore store, DbManagedExpiration expiration, String sessionId, String counterKey,
+                Random random) {
+            this.store = store;
+            this.expiration = expiration;
+            this.sessionId = sessionId;
+            this.counterKey = counterKey;
+            this.random = random;
+        }
+
+        /**
+         * リクエストを送る。
+         *
+         * @throws InterruptedException 思考時間の待機中に割り込まれた場合
+         */
+        private void run() throws InterruptedException {
+            for (int i = 0; i < requestsPerThread; i++) {
+                final long start = System.nanoTime();
+                try {
+                    request();
+                    successCount++;
+                } catch (RuntimeException e) {
+                    errorCount++;
+                    if (firstError == null) {
+                        firstError = e;
+                    }
+                }
+                latencies[i] = System.nanoTime() - start;
+                if (thinkTimeMillis > 0) {
+                    Thread.sleep((long) (random.nextDouble() * thinkTimeMillis * 2));
+                }
+            }
+        }
+
+        /**
+         * 1回のリクエストを処理する。
+         */
+        private void request() {
+            final ExecutionContext context = new ExecutionContext();
+            final long now = System.currentTimeMillis();
+            final List<SessionEntry> loaded = expiration.isExpired(sessionId, now, context)
+                    ? new ArrayList<SessionEntry>()
+                    : new ArrayList<SessionEntry>(store.load(sessionId, context));
+
+            final List<SessionEntry> entries = new ArrayList<SessionEntry>();
+            int counter = 0;
+            for (SessionEntry entry : loaded) {
+                if (entry.getKey().equals(counterKey)) {
+                    counter = (Integer) entry.getValue();
+                } else if (!entry.getKey().equals("payload")) {
+                    entries.add(entry);
+                }
+            }
+            entries.add(new SessionEntry(counterKey, counter + 1, store));
+            final char[] payload = new char[payloadDistribution.nextSize(random)];
+            Arrays.fill(payload, 'x');
+            entries.add(new SessionEntry("payload", new String(payload), store));
+
+            store.save(sessionId, entries, context);
+            expiration.saveExpirationDateTime(sessionId, now + store.getExpiresMilliSeconds(), context);
+        }
+    }
+
+    /**
+     * セッションに保存する値のサイズの分布。
+     */
+    public interface PayloadDistribution {
+
+        /**
+         * 次の値のサイズを取得する。
+         *
+         * @param random 乱数
+         * @return 値のサイズ(文字数)
+         */
+        int nextSize(Random random);
+    }
+
+    /**
+     * 常に同じサイズとなる分布を生成する。
+     *
+     * @param size サイズ
+     * @return 分布
+     */
+    public static PayloadDistribution fixed(final int size) {
+        return new PayloadDistribution() {
+            @Override
+            public int nextSize(Random random) {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * 指定した範囲の一様分布を生成する。
+     *
+     * @param min 最小のサイズ
+     * @param max 最大のサイズ
+     * @return 分布
+     */
+    public static PayloadDistribution uniform(final int min, final int max) {
+        return new PayloadDistribution() {
+            @Override
+            public int nextSize(Random random) {
+                return min + random.nextInt(max - min + 1);
+            }
+        };
+    }
+
+    /**
+     * 大部分が小さく、一部が大きいサイズとなる分布を生成する。
+     *
+     * @param smallSize 小さいサイズ
+     * @param largeSize 大きいサイズ
+     * @param largeRatio 大きいサイズとなる割合
+     * @return 分布
+     */
+    public static PayloadDistribution bimodal(final int smallSize, final int largeSize, final double largeRatio) {
+        return new PayloadDistribution() {
+            @Override
+            public int nextSize(Random random) {
+                return random.nextDouble() < largeRatio ? largeSize : smallSize;
+            }
+        };
+    }
+
+    /**
+     * 負荷をかけた結果。
+     */
+    public static class Result {
+
+        /** 成功したリクエストの数 */
+        private final long successCount;
+
+        /** 失敗したリクエストの数 */
+        private final long errorCount;
+
+        /** 最初に発生した例外 */
+        private final Throwable firstError;
+
+        /** 処理時間(ナノ秒、昇順) */
+        private final long[] sortedLatencies;
+
+        /** 失われた更新の数 */
+        private final long lostUpdates;
+
+        /** 経過時間(ナノ秒) */
+        private final long elapsedNanos;
+
+        /** 一意制約違反によるリトライの数 */
+        private final long duplicateRetries;
+
+        /**
+         * コンストラクタ。
+         *
+         * @param workers 負荷をかけたスレッド
+         * @param lostUpdates 失われた更新の数
+         * @param elapsedNanos 経過時間(ナノ秒)
+         * @param duplicateRetries 一意制約違反によるリトライの数
+         */
+        private Result(List<Worker> workers, long lostUpdates, long elapsedNanos, long duplicateRetries) {
+            long success = 0;
+            long error = 0;
+            Throwable first = null;
+            int total = 0;
+            for (Worker worker : workers) {
+                total += worker.latencies.length;
+            }
+            sortedLatencies = new long[total];
+            int offset = 0;
+            for (Worker worker : workers) {
+                success += worker.successCount;
+                error += worker.errorCount;
+                if (first == null) {
+                    first = worker.firstError;
+                }
+                System.arraycopy(worker.latencies, 0, sortedLatencies, offset, worker.latencies.length);
+                offset += worker.latencies.length;
+            }
+            Arrays.sort(sortedLatencies);
+            this.successCount = success;
+            this.errorCount = error;
+            this.firstError = first;
+            this.lostUpdates = lostUpdates;
+            this.elapsedNanos = elapsedNanos;
+            this.duplicateRetries = duplicateRetries;
+        }
+
+        /**
+         * 成功したリクエストの数を取得する。
+         *
+         * @return 成功したリクエストの数
+         */
+        public long getSuccessCount() {
+            return successCount;
+        }
+
+        /**
+         * 失敗したリクエストの数を取得する。
+         *
+         * @return 失敗したリクエストの数
+         */
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * 最初に発生した例外を取得する。
+         *
+         * @return 最初に発生した例外(発生していない場合は{@code null})
+         */
+        public Throwable getFirstError() {
+            return firstError;
+        }
+
+        /**
+         * 失われた更新の数を取得する。
+         *
+         * @return 失われた更新の数
+         */
+        public long getLostUpdates() {
+            return lostUpdates;
+        }
+
+        /**
+         * 一意制約違反によるリトライの数を取得する。
+         *
+         * @return 一意制約違反によるリトライの数
+         */
+        public long getDuplicateRetries() {
+            return duplicateRetries;
+        }
+
+        /**
+         * スループット(1秒あたりの成功したリクエスト数)を取得する。
+         *
+         * @return スループット
+         */
+        public double getThroughput() {
+            return successCount * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * 処理時間のパーセンタイル値を取得する。
+         *
+         * @param percentile パーセンタイル(0〜100)
+         * @return 処理時間(ミリ秒)
+         */
+        public double getLatencyMillis(double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("throughput=%.1f req/s, latency p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms, "
+                            + "success=%d, errors=%d, duplicateRetries=%d, lostUpdates=%d",
+                    getThroughput(), getLatencyMillis(50), getLatencyMillis(95), getLatencyMillis(99),
+                    getLatencyMillis(100), successCount, errorCount, duplicateRetries, lostUpdates);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.web.session.DbManagedExpiration;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SessionStoreLoadHarness}を使用した{@link DbStore}と{@link DbManagedExpiration}の負荷テスト。
+ *
+ * @author TIS
+ */
+@RunWith(DatabaseTestRunner.class)
+public class SessionStoreLoadHarnessTest {
+
+    @ClassRule
+    public static SystemRepositoryResource repositoryResource = new SystemRepositoryResource(
+            "nablarch/common/web/session/store/db-store-test.xml");
+
+    private DbStore store;
+
+    private DbManagedExpiration expiration;
+
+    @Before
+    public void setUp() {
+        VariousDbTestHelper.createTable(UserSession.class);
+        final SimpleDbTransactionManager dbManager = repositoryResource.getComponent("transaction");
+
+        store = new DbStore();
+        store.setExpires(1800L);
+        store.setDbManager(dbManager);
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        store.initialize();
+
+        expiration = new DbManagedExpiration();
+        expiration.setDbManager(dbManager);
+        expiration.initialize();
+    }
+
+    /**
+     * セッションごとのリクエストが逐次の場合、エラーも更新の消失も発生しないこと。
+     */
+    @Test
+    public void testSequentialRequestsPerSession() throws Exception {
+        final SessionStoreLoadHarness.Result result = new SessionStoreLoadHarness()
+                .setUsers(10)
+                .setParallelRequestsPerSession(1)
+                .setRequestsPerThread(20)
+                .setPayloadDistribution(SessionStoreLoadHarness.uniform(10, 2000))
+                .run(store, expiration);
+
+        assertThat(String.valueOf(result.getFirstError()), result.getErrorCount(), is(0L));
+        assertThat(result.getSuccessCount(), is(200L));
+        assertThat(result.getLostUpdates(), is(0L));
+        assertThat("同時に新規登録しないためリトライは発生しないこと", result.getDuplicateRetries(), is(0L));
+        assertMeasured(result);
+    }
+
+    /**
+     * 同じセッションに同時にリクエストした場合も、新規登録の一意制約違反はリトライで吸収されエラーにならないこと。
+     * <p/>
+     * 保存は後勝ちのため更新の消失は発生し得るが、カウンタは各スレッドだけが増やすため成功した保存の数を超えず、
+     * 各セッションの最後の保存は自身のカウンタを1以上で保存するため、セッションごとに少なくとも1つの更新は残る。
+     * このため、失われた更新の数は0以上、(成功した保存の数 - セッション数)以下となる。
+     */
+    @Test
+    public void testParallelRequestsPerSession() throws Exception {
+        final int users = 5;
+        final SessionStoreLoadHarness.Result result = new SessionStoreLoadHarness()
+                .setUsers(users)
+                .setParallelRequestsPerSession(4)
+                .setRequestsPerThread(10)
+                .setThinkTimeMillis(1)
+                .setPayloadDistribution(SessionStoreLoadHarness.bimodal(100, 20000, 0.1))
+                .run(store, expiration);
+
+        assertThat(String.valueOf(result.getFirstError()), result.getErrorCount(), is(0L));
+        assertThat(result.getSuccessCount(), is(200L));
+        assertTrue(result.toString(), result.getLostUpdates() >= 0);
+        assertTrue(result.toString(), result.getLostUpdates() <= result.getSuccessCount() - users);
+        assertMeasured(result);
+    }
+
+    /**
+     * スループットとレイテンシが計測されていること。
+     *
+     * @param result 実行結果
+     */
+    private static void assertMeasured(SessionStoreLoadHarness.Result result) {
+        assertTrue(result.toString(), result.getThroughput() > 0);
+        assertTrue(result.toString(), result.getLatencyMillis(50) > 0);
+        assertTrue(result.toString(), result.getLatencyMillis(50) <= result.getLatencyMillis(99));
+        assertTrue(result.toString(), result.getLatencyMillis(99) <= result.getLatencyMillis(100));
+    }
+}
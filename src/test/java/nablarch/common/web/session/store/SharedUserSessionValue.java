@@ -0,0 +1,32 @@
+package nablarch.common.web.session.store;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * 共有値テーブル
+ *
+ */
+@Entity
+@Table(name = "USER_SESSION_SHARED_VALUE")
+public class SharedUserSessionValue {
+
+    public SharedUserSessionValue() {
+    };
+
+    @Id
+    @Column(name = "VALUE_HASH", length = 64, nullable = false)
+    public String valueHash;
+
+    @Lob
+    @Column(name = "VALUE_OBJECT")
+    public byte[] valueObject;
+
+    @Column(name = "EXPIRATION_DATETIME")
+    public Timestamp expirationDatetime;
+}
@@ -0,0 +1,80 @@
+package nablarch.common.web.session.store;
+
+import nablarch.core.db.connection.AppDbConnection;
+import nablarch.core.db.transaction.SimpleDbTransactionExecutor;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SlowOperationLogger}のテスト。
+ *
+ * @author TIS
+ */
+public class SlowOperationLoggerTest {
+
+    /**
+     * 閾値未満の処理は記録されないこと。
+     */
+    @Test
+    public void testThreshold() {
+        final SlowOperationLogger logger = new SlowOperationLogger();
+        logger.setThresholdMillis(60000L);
+        logger.start("load", "session").end();
+        assertThat(logger.getSlowCount(), is(0L));
+    }
+
+    /**
+     * 1秒あたりの上限を超えたログは出力されず、件数が記録されること。
+     */
+    @Test
+    public void testRateLimit() {
+        final SlowOperationLogger logger = new SlowOperationLogger();
+        logger.setThresholdMillis(0L);
+        logger.setMaxLogsPerSecond(2);
+        for (int i = 0; i < 5; i++) {
+            final SlowOperationLogger.Operation operation = logger.start("save", "session" + i).setSql("UPDATE");
+            operation.setEncodedSize(100);
+            operation.addRows(1);
+            operation.retried();
+            operation.end();
+        }
+        assertThat(logger.getSlowCount(), is(5L));
+        // 秒の境界をまたいだ場合でも、5件のうち1件以上は出力が制限される
+        assertTrue(String.valueOf(logger.getSuppressedCount()),
+                logger.getSuppressedCount() >= 1 && logger.getSuppressedCount() <= 3);
+    }
+
+    /**
+     * セッションIDはハッシュ値に変換されること。
+     */
+    @Test
+    public void testHash() {
+        final String hash = SlowOperationLogger.hash("4f7c2a9e-1b3d-4c5e-8f6a-7b8c9d0e1f2a");
+        assertThat(hash.length(), is(16));
+        assertTrue(hash.matches("[0-9a-f]+"));
+        assertThat(SlowOperationLogger.hash("4f7c2a9e-1b3d-4c5e-8f6a-7b8c9d0e1f2a"), is(hash));
+        assertThat(SlowOperationLogger.hash("another"), not(hash));
+        assertThat(SlowOperationLogger.hash(null), is("-"));
+    }
+
+    /**
+     * 計測を行わない場合、トランザクションはラップされないこと。
+     */
+    @Test
+    public void testNone() {
+        final SimpleDbTransactionExecutor<Void> executor = new SimpleDbTransactionExecutor<Void>(null) {
+            @Override
+            public Void execute(AppDbConnection connection) {
+                return null;
+            }
+        };
+        assertSame(executor, SlowOperationLogger.Operation.NONE.wrap(null, executor));
+        SlowOperationLogger.Operation.NONE.addRows(1);
+        SlowOperationLogger.Operation.NONE.end();
+    }
+}
@@ -0,0 +1,40 @@
+package nablarch.common.web.session.store;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * セッション変更ログテーブル
+ *
+ */
+@Entity
+@Table(name = "USER_SESSION_CHANGE_LOG")
+public class UserSessionChangeLog {
+
+    public UserSessionChangeLog() {
+    };
+
+    public UserSessionChangeLog(Long changeSeq, String sessionId, String changeType, Timestamp changedAt) {
+        this.changeSeq = changeSeq;
+        this.sessionId = sessionId;
+        this.changeType = changeType;
+        this.changedAt = changedAt;
+    }
+
+    @Id
+    @Column(name = "CHANGE_SEQ", nullable = false)
+    public Long changeSeq;
+
+    @Column(name = "SESSION_ID")
+    public String sessionId;
+
+    @Column(name = "CHANGE_TYPE", length = 1)
+    public String changeType;
+
+    @Column(name = "CHANGED_AT")
+    public Timestamp changedAt;
+}
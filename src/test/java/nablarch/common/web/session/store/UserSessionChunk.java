@@ -0,0 +1,33 @@
+package nablarch.common.web.session.store;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * セッションチャンクテーブル
+ *
+ */
+@Entity
+@Table(name = "USER_SESSION_CHUNK")
+public class UserSessionChunk {
+
+    public UserSessionChunk() {
+    };
+
+    @Id
+    @Column(name = "SESSION_ID", nullable = false)
+    public String sessionId;
+
+    @Id
+    @Column(name = "OBJECT_VERSION", length = 36, nullable = false)
+    public String objectVersion;
+
+    @Id
+    @Column(name = "CHUNK_NUMBER", nullable = false)
+    public Integer chunkNumber;
+
+    @Column(name = "CHUNK_DATA", length = 1000)
+    public byte[] chunkData;
+}
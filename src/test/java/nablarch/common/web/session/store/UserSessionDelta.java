@@ -0,0 +1,37 @@
+package nablarch.common.web.session.store;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * セッション差分テーブル
+ *
+ */
+@Entity
+@Table(name = "USER_SESSION_DELTA")
+public class UserSessionDelta {
+
+    public UserSessionDelta() {
+    };
+
+    public UserSessionDelta(String sessionId, Integer deltaSeq, byte[] deltaObject) {
+        this.sessionId = sessionId;
+        this.deltaSeq = deltaSeq;
+        this.deltaObject = deltaObject;
+    }
+
+    @Id
+    @Column(name = "SESSION_ID", nullable = false)
+    public String sessionId;
+
+    @Id
+    @Column(name = "DELTA_SEQ", nullable = false)
+    public Integer deltaSeq;
+
+    @Lob
+    @Column(name = "DELTA_OBJECT")
+    public byte[] deltaObject;
+}
@@ -0,0 +1,110 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.collection.IsIterableContainingInOrder.contains;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@link UserSessionTableInspector}のテスト。
+ *
+ * @author TIS
+ */
+@RunWith(DatabaseTestRunner.class)
+public class UserSessionTableInspectorTest {
+
+    @ClassRule
+    public static SystemRepositoryResource repositoryResource = new SystemRepositoryResource(
+            "nablarch/common/web/session/store/db-store-test.xml");
+
+    @Before
+    public void setUp() {
+        VariousDbTestHelper.createTable(UserSession.class);
+    }
+
+    /**
+     * 有効期限カラムの索引が存在しない場合、問題として報告されること。
+     */
+    @Test
+    public void testValidateMissingExpirationIndex() {
+        final List<String> problems = UserSessionTableInspector.validate(getDbManager(), createSchema("USER_SESSION"));
+        assertThat(problems, contains("index on USER_SESSION(EXPIRATION_DATETIME) was not found."));
+    }
+
+    /**
+     * テーブルが存在しない場合、問題として報告されること。
+     */
+    @Test
+    public void testValidateMissingTable() {
+        final List<String> problems = UserSessionTableInspector.validate(getDbManager(), createSchema("NO_SUCH_TABLE"));
+        assertThat(problems, contains("table NO_SUCH_TABLE was not found."));
+    }
+
+    /**
+     * ウォームアップを設定した場合も、初期化後に通常どおり使用できること。
+     */
+    @Test
+    public void testWarmUp() {
+        final DbStore store = new DbStore();
+        store.setExpires(1800L);
+        store.setDbManager(getDbManager());
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        store.setUserSessionSchema(createSchema("USER_SESSION"));
+        store.setWarmUpConnections(2);
+        store.setWarmUpEncodeRounds(10);
+        store.setValidateSchema(true);
+        store.initialize();
+
+        store.save("sid", Arrays.asList(new SessionEntry("key", "val", store)), new ExecutionContext());
+        final List<SessionEntry> entries = store.load("sid", new ExecutionContext());
+        assertThat(entries.size(), is(1));
+        assertThat((String) entries.get(0).getValue(), is("val"));
+    }
+
+    /**
+     * コネクションプールの最大数を大きく超える回数を指定しても、
+     * コネクションを1つずつ取得して返却するため、待機せずにウォームアップが完了すること。
+     */
+    @Test(timeout = 10000L)
+    public void testWarmUpAcquiresConnectionsOneByOne() {
+        UserSessionTableInspector.warmUp(getDbManager(), 200,
+                "SELECT SESSION_OBJECT FROM USER_SESSION WHERE SESSION_ID = ?", null);
+
+        final DbStore store = new DbStore();
+        store.setExpires(1800L);
+        store.setDbManager(getDbManager());
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        store.setUserSessionSchema(createSchema("USER_SESSION"));
+        store.initialize();
+        store.save("sid", Arrays.asList(new SessionEntry("key", "val", store)), new ExecutionContext());
+        assertThat("ウォームアップ後もコネクションが返却されていること",
+                store.load("sid", new ExecutionContext()).size(), is(1));
+    }
+
+    private static SimpleDbTransactionManager getDbManager() {
+        return repositoryResource.getComponent("transaction");
+    }
+
+    private static UserSessionSchema createSchema(String tableName) {
+        final UserSessionSchema schema = new UserSessionSchema();
+        schema.setTableName(tableName);
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSessionObjectName("SESSION_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        return schema;
+    }
+}
@@ -0,0 +1,253 @@
+package nablarch.common.web.session.store;
+
+import nablarch.common.web.session.SessionEntry;
+import nablarch.common.web.session.encoder.JavaSerializeStateEncoder;
+import nablarch.core.db.transaction.SimpleDbTransactionManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.allOf;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.beans.HasPropertyWithValue.hasProperty;
+import static org.hamcrest.collection.IsIterableContainingInOrder.contains;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link UserSessionTransfer}のテスト。
+ *
+ * @author TIS
+ */
+@RunWith(DatabaseTestRunner.class)
+public class UserSessionTransferTest {
+
+    @ClassRule
+    public static SystemRepositoryResource repositoryResource = new SystemRepositoryResource(
+            "nablarch/common/web/session/store/db-store-test.xml");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        VariousDbTestHelper.createTable(OwnedUserSession.class);
+        VariousDbTestHelper.createTable(BucketedUserSession.class);
+    }
+
+    /**
+     * 有効なセッションだけがセッションIDの範囲ごとのファイルにエクスポートされ、
+     * 別のスキーマのテーブルにセッションオブジェクトがそのままインポートされること。
+     */
+    @Test
+    public void testExportAndImport() throws Exception {
+        final long now = System.currentTimeMillis();
+        final List<OwnedUserSession> sessions = new ArrayList<OwnedUserSession>();
+        for (int i = 0; i < 20; i++) {
+            final OwnedUserSession session = new OwnedUserSession();
+            session.sessionId = UUID.randomUUID().toString();
+            session.sessionObject = new byte[] {(byte) i, (byte) 0xFF, 0, (byte) 0x80};
+            session.expirationDatetime = new Timestamp(now + 3600000L);
+            session.ownerId = "user" + i;
+            sessions.add(session);
+        }
+        final OwnedUserSession expired = new OwnedUserSession();
+        expired.sessionId = UUID.randomUUID().toString();
+        expired.sessionObject = new byte[] {1};
+        expired.expirationDatetime = new Timestamp(now - 3600000L);
+        VariousDbTestHelper.insert(expired);
+        for (OwnedUserSession session : sessions) {
+            VariousDbTestHelper.insert(session);
+        }
+
+        final UserSessionTransfer exporter = createTransfer(createOwnedSchema());
+        final File directory = temporaryFolder.newFolder("export");
+        assertThat(exporter.exportTo(directory), is(20L));
+        assertThat("並列数と同じ数のファイルが出力されること", directory.listFiles().length, is(4));
+
+        final UserSessionSchema bucketedSchema = new UserSessionSchema();
+        bucketedSchema.setTableName("USER_SESSION_BUCKETED");
+        bucketedSchema.setSessionIdName("SESSION_ID");
+        bucketedSchema.setSessionObjectName("SESSION_OBJECT");
+        bucketedSchema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        bucketedSchema.setExpirationBucketName("EXPIRATION_BUCKET");
+        final UserSessionTransfer importer = createTransfer(bucketedSchema);
+        assertThat(importer.importFrom(directory), is(20L));
+
+        assertThat(VariousDbTestHelper.findAll(BucketedUserSession.class).size(), is(20));
+        for (OwnedUserSession session : sessions) {
+            final BucketedUserSession imported = VariousDbTestHelper.findById(
+                    BucketedUserSession.class, session.sessionId);
+            assertThat(imported, notNullValue());
+            assertArrayEquals(session.sessionObject, imported.sessionObject);
+            assertThat(imported.expirationDatetime, is(session.expirationDatetime));
+            assertThat("有効期限バケットが算出されること", imported.expirationBucket,
+                    is(bucketedSchema.toExpirationBucket(session.expirationDatetime.getTime())));
+        }
+        assertThat("有効期限切れのセッションは移されないこと",
+                VariousDbTestHelper.findById(BucketedUserSession.class, expired.sessionId), nullValue());
+    }
+
+    /**
+     * 差分保存モードのセッションは差分を反映した内容がエクスポートされ、
+     * バージョンカラムのあるテーブルには新しいバージョンでインポートされること。
+     */
+    @Test
+    public void testExportAppliesDeltas() throws Exception {
+        VariousDbTestHelper.createTable(VersionedUserSession.class);
+        VariousDbTestHelper.createTable(UserSessionDelta.class);
+        final ExecutionContext unusedCtx = new ExecutionContext();
+        final DbStore store = createDeltaStore();
+        final String sessionId = UUID.randomUUID().toString();
+        final List<SessionEntry> entries = new ArrayList<SessionEntry>();
+        entries.add(new SessionEntry("key1", "val1", store));
+        store.save(sessionId, entries, unusedCtx);
+        entries.add(new SessionEntry("key2", "val2", store));
+        store.save(sessionId, entries, unusedCtx);
+        assertThat("差分が保存されていること", VariousDbTestHelper.findAll(UserSessionDelta.class).size(), is(1));
+        final Long exportedVersion = VariousDbTestHelper.findById(VersionedUserSession.class, sessionId).sessionVersion;
+
+        final UserSessionTransfer exporter = createTransfer(createVersionedSchema());
+        exporter.setSessionDeltaSchema(createDeltaSchema());
+        exporter.initialize();
+        final File directory = temporaryFolder.newFolder("export");
+        assertThat(exporter.exportTo(directory), is(1L));
+
+        VariousDbTestHelper.createTable(VersionedUserSession.class);
+        VariousDbTestHelper.createTable(UserSessionDelta.class);
+        assertThat(createTransfer(createVersionedSchema()).importFrom(directory), is(1L));
+
+        final VersionedUserSession imported = VariousDbTestHelper.findById(VersionedUserSession.class, sessionId);
+        assertThat("新しいバージョンが採番されること", imported.sessionVersion, notNullValue());
+        assertThat(imported.sessionVersion.equals(exportedVersion), is(false));
+        assertThat("差分を反映した内容が読み込めること", createDeltaStore().load(sessionId, unusedCtx), contains(
+                allOf(hasProperty("key", is("key1")), hasProperty("value", is("val1"))),
+                allOf(hasProperty("key", is("key2")), hasProperty("value", is("val2")))));
+    }
+
+    /**
+     * {@link SessionOverflowStore}や共有値テーブルを参照する形式のセッションオブジェクトが見つかった場合、
+     * エクスポートが失敗すること。
+     */
+    @Test
+    public void testExportRejectsReferencingFormats() throws Exception {
+        final byte[][] references = {
+                {(byte) 0xFF, (byte) 0xFD, 'O', 'V', 0, 1, 'v'},
+                {(byte) 0xFF, (byte) 0xFC, 'D', 'V', 0}
+        };
+        final String[] formats = {"overflow reference", "shared value"};
+        for (int i = 0; i < references.length; i++) {
+            VariousDbTestHelper.createTable(OwnedUserSession.class);
+            final OwnedUserSession session = new OwnedUserSession();
+            session.sessionId = UUID.randomUUID().toString();
+            session.sessionObject = references[i];
+            session.expirationDatetime = new Timestamp(System.currentTimeMillis() + 3600000L);
+            VariousDbTestHelper.insert(session);
+
+            try {
+                createTransfer(createOwnedSchema()).exportTo(temporaryFolder.newFolder("export" + i));
+                fail("参照先を移さないと復元できない形式はエクスポートできないこと");
+            } catch (IllegalStateException e) {
+                assertThat(e.getMessage(), containsString(formats[i]));
+            }
+        }
+    }
+
+    /**
+     * 所有者IDカラムを設定したスキーマを生成する。
+     *
+     * @return スキーマ
+     */
+    private static UserSessionSchema createOwnedSchema() {
+        final UserSessionSchema schema = new UserSessionSchema();
+        schema.setTableName("USER_SESSION_OWNED");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSessionObjectName("SESSION_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        schema.setOwnerIdName("OWNER_ID");
+        return schema;
+    }
+
+    /**
+     * バージョンカラムを設定したスキーマを生成する。
+     *
+     * @return スキーマ
+     */
+    private static UserSessionSchema createVersionedSchema() {
+        final UserSessionSchema schema = new UserSessionSchema();
+        schema.setTableName("USER_SESSION_VERSIONED");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSessionObjectName("SESSION_OBJECT");
+        schema.setExpirationDatetimeName("EXPIRATION_DATETIME");
+        schema.setVersionName("SESSION_VERSION");
+        return schema;
+    }
+
+    /**
+     * セッション差分テーブルのスキーマを生成する。
+     *
+     * @return スキーマ
+     */
+    private static SessionDeltaSchema createDeltaSchema() {
+        final SessionDeltaSchema schema = new SessionDeltaSchema();
+        schema.setTableName("USER_SESSION_DELTA");
+        schema.setSessionIdName("SESSION_ID");
+        schema.setSequenceName("DELTA_SEQ");
+        schema.setDeltaObjectName("DELTA_OBJECT");
+        return schema;
+    }
+
+    /**
+     * 差分のサイズによらず差分を追記する、差分保存モードの{@link DbStore}を生成する。
+     *
+     * @return {@link DbStore}
+     */
+    private DbStore createDeltaStore() {
+        final DbStore store = new DbStore();
+        store.setExpires(1800L);
+        store.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        store.setStateEncoder(new JavaSerializeStateEncoder());
+        store.setUserSessionSchema(createVersionedSchema());
+        store.setSessionDeltaSchema(createDeltaSchema());
+        store.setMaxDeltaCount(10);
+        store.setDeltaCompactionRatio(100);
+        store.initialize();
+        return store;
+    }
+
+    /**
+     * {@link UserSessionTransfer}を生成する。
+     * <p/>
+     * 範囲の分割とバッチの区切りを確認するため、並列数は4、バッチサイズは3とする。
+     *
+     * @param schema ユーザセッションテーブルのスキーマ
+     * @return {@link UserSessionTransfer}
+     */
+    private UserSessionTransfer createTransfer(UserSessionSchema schema) {
+        final UserSessionTransfer transfer = new UserSessionTransfer();
+        transfer.setDbManager(repositoryResource.<SimpleDbTransactionManager>getComponent("transaction"));
+        transfer.setUserSessionSchema(schema);
+        transfer.setParallelism(4);
+        transfer.setBatchSize(3);
+        transfer.setFetchSize(5);
+        transfer.initialize();
+        return transfer;
+    }
+}
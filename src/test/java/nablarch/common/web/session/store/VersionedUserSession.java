@@ -0,0 +1,35 @@
+package nablarch.common.web.session.store;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * バージョンを持つユーザセッションテーブル
+ *
+ */
+@Entity
+@Table(name = "USER_SESSION_VERSIONED")
+public class VersionedUserSession {
+
+    public VersionedUserSession() {
+    };
+
+    @Id
+    @Column(name = "SESSION_ID", nullable = false)
+    public String sessionId;
+
+    @Lob
+    @Column(name = "SESSION_OBJECT")
+    public byte[] sessionObject;
+
+    @Column(name = "EXPIRATION_DATETIME")
+    public Timestamp expirationDatetime;
+
+    @Column(name = "SESSION_VERSION")
+    public Long sessionVersion;
+}